@@ -0,0 +1,378 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes an access log entry for every request without formatting or writing
+ * anything on the request thread.
+ * <p>
+ * When a request completes, a compact {@link AccessLogRecord} (including the
+ * latency and the number of response bytes) is put into a {@link RingBuffer}.
+ * A background thread drains the buffer in batches, formats the records as
+ * text lines or NDJSON, and writes them either to a file, flushed once per
+ * batch, or to the access logger. In the pattern format the lines are made
+ * from the same <code>logger.format</code> and <code>logger.error_format</code>
+ * templates as HAPI's <code>LoggingInterceptor</code>. If the buffer is full, records are either
+ * dropped (and counted in the <code>accesslog.records{outcome=dropped}</code>
+ * meter) or the request thread waits for space, depending on the full policy.
+ */
+@Interceptor
+public class AccessLogInterceptor implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AccessLogInterceptor.class);
+
+  private static final String START_NANOS_ATTRIBUTE = AccessLogInterceptor.class.getName() + ".startNanos";
+  private static final String EXCEPTION_ATTRIBUTE = AccessLogInterceptor.class.getName() + ".exception";
+  private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  public enum Format {
+    /** The message and error message templates, as the HAPI logging interceptor writes them */
+    PATTERN,
+    TEXT,
+    JSON
+  }
+
+  public enum FullPolicy {
+    /** Lose the record, never slowing down the request */
+    DROP,
+    /** Make the request thread wait until the writer has made space */
+    BLOCK
+  }
+
+  private final RingBuffer<AccessLogRecord> myBuffer;
+  private final Format myFormat;
+  private final FullPolicy myFullPolicy;
+  private final int myBatchSize;
+  private final org.slf4j.Logger myAccessLog;
+  private final Path myFile;
+  private final Counter myWrittenCounter;
+  private final Counter myDroppedCounter;
+  private volatile AccessLogPattern myMessagePattern;
+  private volatile AccessLogPattern myErrorMessagePattern;
+
+  private volatile boolean myRunning;
+  private Thread myThread;
+
+  /**
+   * @param theLoggerName the logger the entries are written to, unless a file is given
+   * @param theFile the file the entries are appended to, or null
+   */
+  public AccessLogInterceptor(String theLoggerName, Path theFile, Format theFormat, FullPolicy theFullPolicy, int theBufferSize, int theBatchSize, MeterRegistry theMeterRegistry) {
+    myBuffer = new RingBuffer<>(theBufferSize);
+    myFormat = theFormat;
+    myFullPolicy = theFullPolicy;
+    myBatchSize = theBatchSize;
+    myAccessLog = org.slf4j.LoggerFactory.getLogger(theLoggerName);
+    myFile = theFile;
+    myWrittenCounter = theMeterRegistry.counter("accesslog.records", "outcome", "written");
+    myDroppedCounter = theMeterRegistry.counter("accesslog.records", "outcome", "dropped");
+    theMeterRegistry.gauge("accesslog.buffer.size", myBuffer, RingBuffer::size);
+  }
+
+  /**
+   * Sets the template of the entries of requests that completed normally, in the pattern format
+   */
+  public void setMessageFormat(String theMessageFormat) {
+    myMessagePattern = AccessLogPattern.parse(theMessageFormat);
+  }
+
+  /**
+   * Sets the template of the entries of failed requests, in the pattern format,
+   * or null to write no entry for them
+   */
+  public void setErrorMessageFormat(String theErrorMessageFormat) {
+    myErrorMessagePattern = AccessLogPattern.parse(theErrorMessageFormat);
+  }
+
+  public synchronized void start() throws IOException {
+    if (myThread != null) {
+      return;
+    }
+    Writer out = null;
+    if (myFile != null) {
+      out = new BufferedWriter(new OutputStreamWriter(
+        Files.newOutputStream(myFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE),
+        StandardCharsets.UTF_8));
+    }
+    myRunning = true;
+    Writer finalOut = out;
+    myThread = new Thread(() -> run(finalOut), "access-log-writer");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+    theRequestDetails.setAttribute(START_NANOS_ATTRIBUTE, System.nanoTime());
+    if (theRequestDetails instanceof ServletRequestDetails) {
+      ServletRequestDetails servletRequestDetails = (ServletRequestDetails) theRequestDetails;
+      servletRequestDetails.setServletResponse(new CountingResponse(servletRequestDetails.getServletResponse()));
+    }
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+  public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException) {
+    theRequestDetails.setAttribute(EXCEPTION_ATTRIBUTE, theException);
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+  public void processingCompleted(RequestDetails theRequestDetails) {
+    Long startNanos = (Long) theRequestDetails.getAttribute(START_NANOS_ATTRIBUTE);
+    long latencyNanos = startNanos != null ? System.nanoTime() - startNanos : -1;
+
+    int status = 0;
+    long bytes = -1;
+    String remoteAddress = theRequestDetails.getHeader("X-Forwarded-For");
+    if (theRequestDetails instanceof ServletRequestDetails) {
+      ServletRequestDetails servletRequestDetails = (ServletRequestDetails) theRequestDetails;
+      HttpServletResponse response = servletRequestDetails.getServletResponse();
+      status = response.getStatus();
+      if (response instanceof CountingResponse) {
+        bytes = ((CountingResponse) response).getCount();
+      }
+      if (remoteAddress == null) {
+        remoteAddress = servletRequestDetails.getServletRequest().getRemoteAddr();
+      }
+    }
+
+    AccessLogPattern pattern = null;
+    Object[] patternValues = null;
+    if (myFormat == Format.PATTERN) {
+      Throwable exception = (Throwable) theRequestDetails.getAttribute(EXCEPTION_ATTRIBUTE);
+      pattern = exception != null ? myErrorMessagePattern : myMessagePattern;
+      if (pattern == null) {
+        return;
+      }
+      patternValues = pattern.capture(theRequestDetails, exception);
+    }
+
+    AccessLogRecord record = new AccessLogRecord(
+      System.currentTimeMillis(),
+      latencyNanos,
+      theRequestDetails.getRequestId(),
+      remoteAddress,
+      theRequestDetails.getRequestType() != null ? theRequestDetails.getRequestType().name() : null,
+      theRequestDetails.getRequestPath(),
+      theRequestDetails.getRestOperationType() != null ? theRequestDetails.getRestOperationType().getCode() : null,
+      theRequestDetails.getOperation(),
+      theRequestDetails.getResourceName(),
+      status,
+      bytes,
+      theRequestDetails.getHeader("User-Agent"),
+      pattern,
+      patternValues);
+    enqueue(record);
+  }
+
+  void enqueue(AccessLogRecord theRecord) {
+    while (!myBuffer.offer(theRecord)) {
+      if (myFullPolicy == FullPolicy.DROP || !myRunning) {
+        myDroppedCounter.increment();
+        return;
+      }
+      LockSupport.parkNanos(FULL_PARK_NANOS);
+    }
+  }
+
+  private void run(Writer theOut) {
+    StringBuilder line = new StringBuilder(256);
+    long idleParkNanos = 1;
+    while (true) {
+      boolean running = myRunning;
+      int count = 0;
+      AccessLogRecord next;
+      while (count < myBatchSize && (next = myBuffer.poll()) != null) {
+        line.setLength(0);
+        if (myFormat == Format.PATTERN) {
+          next.appendPattern(line);
+        } else if (myFormat == Format.JSON) {
+          next.appendJson(line);
+        } else {
+          next.appendText(line);
+        }
+        write(theOut, line);
+        count++;
+      }
+
+      if (count > 0) {
+        flush(theOut);
+        myWrittenCounter.increment(count);
+        idleParkNanos = 1;
+      } else if (!running) {
+        break;
+      } else {
+        // Back off while there is nothing to write
+        LockSupport.parkNanos(idleParkNanos);
+        idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+      }
+    }
+    close(theOut);
+  }
+
+  private void write(Writer theOut, StringBuilder theLine) {
+    if (theOut == null) {
+      myAccessLog.info(theLine.toString());
+      return;
+    }
+    try {
+      theOut.append(theLine).append('\n');
+    } catch (IOException e) {
+      ourLog.warn("Could not write to the access log {}: {}", myFile, e.toString());
+    }
+  }
+
+  private void flush(Writer theOut) {
+    if (theOut != null) {
+      try {
+        theOut.flush();
+      } catch (IOException e) {
+        ourLog.warn("Could not write to the access log {}: {}", myFile, e.toString());
+      }
+    }
+  }
+
+  private void close(Writer theOut) {
+    if (theOut != null) {
+      try {
+        theOut.close();
+      } catch (IOException e) {
+        ourLog.warn("Could not close the access log {}: {}", myFile, e.toString());
+      }
+    }
+  }
+
+  /**
+   * Stops the writer after it has written all records already in the buffer
+   */
+  @Override
+  public void close() throws InterruptedException {
+    Thread thread;
+    synchronized (this) {
+      thread = myThread;
+      myThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    myRunning = false;
+    LockSupport.unpark(thread);
+    thread.join(TimeUnit.SECONDS.toMillis(10));
+  }
+
+  static Format parseFormat(String theValue) {
+    return Format.valueOf(theValue.trim().toUpperCase(Locale.ROOT));
+  }
+
+  static FullPolicy parseFullPolicy(String theValue) {
+    return FullPolicy.valueOf(theValue.trim().toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Counts the bytes written to the response. The writer is layered on the
+   * counted output stream, as the servlet container would do.
+   */
+  static class CountingResponse extends HttpServletResponseWrapper {
+    private CountingOutputStream myOutputStream;
+    private PrintWriter myWriter;
+
+    CountingResponse(HttpServletResponse theResponse) {
+      super(theResponse);
+    }
+
+    long getCount() {
+      return myOutputStream != null ? myOutputStream.myCount : 0;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (myOutputStream == null) {
+        myOutputStream = new CountingOutputStream(super.getOutputStream());
+      }
+      return myOutputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (myWriter == null) {
+        myWriter = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+      }
+      return myWriter;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (myWriter != null) {
+        myWriter.flush();
+      }
+      super.flushBuffer();
+    }
+  }
+
+  private static class CountingOutputStream extends ServletOutputStream {
+    private final ServletOutputStream myDelegate;
+    private long myCount;
+
+    CountingOutputStream(ServletOutputStream theDelegate) {
+      myDelegate = theDelegate;
+    }
+
+    @Override
+    public void write(int theByte) throws IOException {
+      myDelegate.write(theByte);
+      myCount++;
+    }
+
+    @Override
+    public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+      myDelegate.write(theBytes, theOffset, theLength);
+      myCount += theLength;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      myDelegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      myDelegate.close();
+    }
+
+    @Override
+    public boolean isReady() {
+      return myDelegate.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener theWriteListener) {
+      myDelegate.setWriteListener(theWriteListener);
+    }
+  }
+}
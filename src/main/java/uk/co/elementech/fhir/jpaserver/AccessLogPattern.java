@@ -0,0 +1,173 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>logger.format</code> or <code>logger.error_format</code> message
+ * template, with the same <code>${...}</code> variables as HAPI's
+ * <code>LoggingInterceptor</code>.
+ * <p>
+ * The template is parsed once. For each request, {@link #capture} takes the
+ * values of the variables the template uses on the request thread, mostly as
+ * plain references, and {@link #append} puts the message together later on
+ * the access log writer thread.
+ */
+public final class AccessLogPattern {
+
+  private static final String UNKNOWN_VARIABLE = "!VAL!";
+
+  /**
+   * The literal text before each variable, with one more entry for the text after the last
+   */
+  private final String[] myLiterals;
+  private final String[] myVariables;
+
+  private AccessLogPattern(List<String> theLiterals, List<String> theVariables) {
+    myLiterals = theLiterals.toArray(new String[0]);
+    myVariables = theVariables.toArray(new String[0]);
+  }
+
+  /**
+   * @return the parsed template, or null if there is none
+   */
+  public static AccessLogPattern parse(String theTemplate) {
+    if (theTemplate == null) {
+      return null;
+    }
+    List<String> literals = new ArrayList<>();
+    List<String> variables = new ArrayList<>();
+    int pos = 0;
+    while (true) {
+      int start = theTemplate.indexOf("${", pos);
+      int end = start >= 0 ? theTemplate.indexOf('}', start + 2) : -1;
+      if (end < 0) {
+        literals.add(theTemplate.substring(pos));
+        break;
+      }
+      literals.add(theTemplate.substring(pos, start));
+      variables.add(theTemplate.substring(start + 2, end));
+      pos = end + 1;
+    }
+    return new AccessLogPattern(literals, variables);
+  }
+
+  /**
+   * Takes the values of the variables of this template from a completed request
+   *
+   * @param theException the exception the request failed with, or null
+   */
+  Object[] capture(RequestDetails theRequestDetails, Throwable theException) {
+    Object[] retVal = new Object[myVariables.length];
+    HttpServletRequest servletRequest = theRequestDetails instanceof ServletRequestDetails ? ((ServletRequestDetails) theRequestDetails).getServletRequest() : null;
+    for (int i = 0; i < myVariables.length; i++) {
+      retVal[i] = capture(myVariables[i], theRequestDetails, servletRequest, theException);
+    }
+    return retVal;
+  }
+
+  private static Object capture(String theVariable, RequestDetails theRequestDetails, HttpServletRequest theServletRequest, Throwable theException) {
+    if (theVariable.startsWith("requestHeader.")) {
+      return theRequestDetails.getHeader(theVariable.substring("requestHeader.".length()));
+    }
+    RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+    switch (theVariable) {
+      case "operationType":
+        return operationType != null ? operationType.getCode() : null;
+      case "operationName":
+        if (operationType == RestOperationTypeEnum.EXTENDED_OPERATION_SERVER
+          || operationType == RestOperationTypeEnum.EXTENDED_OPERATION_TYPE
+          || operationType == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE) {
+          return theRequestDetails.getOperation();
+        }
+        return null;
+      case "id":
+        return theRequestDetails.getId() != null ? theRequestDetails.getId().getValue() : null;
+      case "idOrResourceName":
+        if (theRequestDetails.getId() != null && theRequestDetails.getId().hasIdPart()) {
+          return theRequestDetails.getId().getValue();
+        }
+        return theRequestDetails.getResourceName();
+      case "requestParameters":
+        // Formatted by the writer
+        return theRequestDetails.getParameters();
+      case "remoteAddr":
+        return theServletRequest != null ? theServletRequest.getRemoteAddr() : null;
+      case "responseEncodingNoDefault":
+        EncodingEnum encoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null).getEncoding();
+        return encoding != null ? encoding.name() : null;
+      case "exceptionMessage":
+        return theException != null ? theException.getMessage() : null;
+      case "requestUrl":
+        return theServletRequest != null ? theServletRequest.getRequestURL().toString() : theRequestDetails.getCompleteUrl();
+      case "requestVerb":
+        return theRequestDetails.getRequestType() != null ? theRequestDetails.getRequestType().name() : null;
+      case "requestBodyFhir":
+        String contentType = theRequestDetails.getHeader(Constants.HEADER_CONTENT_TYPE);
+        if (contentType != null && EncodingEnum.forContentType(contentType) != null) {
+          return theRequestDetails.loadRequestContents();
+        }
+        return null;
+      case "servletPath":
+        return theServletRequest != null ? theServletRequest.getServletPath() : null;
+      case "requestId":
+        return theRequestDetails.getRequestId();
+      case "processingTimeMillis":
+        // Taken from the latency of the record
+        return null;
+      default:
+        return UNKNOWN_VARIABLE;
+    }
+  }
+
+  /**
+   * Appends the message for the given captured values
+   */
+  void append(StringBuilder theBuilder, Object[] theValues, long theLatencyNanos) {
+    for (int i = 0; i < myVariables.length; i++) {
+      theBuilder.append(myLiterals[i]);
+      if (myVariables[i].equals("processingTimeMillis")) {
+        theBuilder.append(TimeUnit.NANOSECONDS.toMillis(theLatencyNanos));
+      } else {
+        appendValue(theBuilder, theValues[i]);
+      }
+    }
+    theBuilder.append(myLiterals[myVariables.length]);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void appendValue(StringBuilder theBuilder, Object theValue) {
+    if (theValue == null) {
+      return;
+    }
+    if (theValue instanceof byte[]) {
+      theBuilder.append(new String((byte[]) theValue, StandardCharsets.UTF_8));
+    } else if (theValue instanceof Map) {
+      // The request parameters, as name=value pairs in the style of a query string
+      boolean first = true;
+      for (Map.Entry<String, String[]> next : ((Map<String, String[]>) theValue).entrySet()) {
+        for (String value : next.getValue()) {
+          if (!first) {
+            theBuilder.append('&');
+          }
+          first = false;
+          theBuilder.append(UrlUtil.escapeUrlParam(next.getKey())).append('=').append(UrlUtil.escapeUrlParam(value));
+        }
+      }
+    } else {
+      theBuilder.append(theValue);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the access log keeps of one request. Captured on the request thread as
+ * plain references and only formatted later by the access log writer.
+ */
+public final class AccessLogRecord {
+
+  private final long myTimestampMillis;
+  private final long myLatencyNanos;
+  private final String myRequestId;
+  private final String myRemoteAddress;
+  private final String myMethod;
+  private final String myPath;
+  private final String myOperationType;
+  private final String myOperationName;
+  private final String myResourceType;
+  private final int myStatus;
+  private final long myResponseBytes;
+  private final String myUserAgent;
+  private final AccessLogPattern myPattern;
+  private final Object[] myPatternValues;
+
+  AccessLogRecord(long theTimestampMillis, long theLatencyNanos, String theRequestId, String theRemoteAddress, String theMethod, String thePath,
+                  String theOperationType, String theOperationName, String theResourceType, int theStatus, long theResponseBytes, String theUserAgent) {
+    this(theTimestampMillis, theLatencyNanos, theRequestId, theRemoteAddress, theMethod, thePath, theOperationType, theOperationName, theResourceType,
+      theStatus, theResponseBytes, theUserAgent, null, null);
+  }
+
+  /**
+   * @param thePattern the message template for {@link #appendPattern}, or null
+   * @param thePatternValues the values of the variables of the template, captured from the request
+   */
+  AccessLogRecord(long theTimestampMillis, long theLatencyNanos, String theRequestId, String theRemoteAddress, String theMethod, String thePath,
+                  String theOperationType, String theOperationName, String theResourceType, int theStatus, long theResponseBytes, String theUserAgent,
+                  AccessLogPattern thePattern, Object[] thePatternValues) {
+    myTimestampMillis = theTimestampMillis;
+    myLatencyNanos = theLatencyNanos;
+    myRequestId = theRequestId;
+    myRemoteAddress = theRemoteAddress;
+    myMethod = theMethod;
+    myPath = thePath;
+    myOperationType = theOperationType;
+    myOperationName = theOperationName;
+    myResourceType = theResourceType;
+    myStatus = theStatus;
+    myResponseBytes = theResponseBytes;
+    myUserAgent = theUserAgent;
+    myPattern = thePattern;
+    myPatternValues = thePatternValues;
+  }
+
+  public long getLatencyNanos() {
+    return myLatencyNanos;
+  }
+
+  public int getStatus() {
+    return myStatus;
+  }
+
+  public long getResponseBytes() {
+    return myResponseBytes;
+  }
+
+  /**
+   * Appends a single line in the style of a web server access log, e.g.
+   * <code>2020-06-01T10:00:00Z 10.0.0.1 "GET /Patient/1" 200 1534 12.3ms read Patient ua="curl/7.68" id=abc</code>
+   */
+  public void appendText(StringBuilder theBuilder) {
+    theBuilder.append(Instant.ofEpochMilli(myTimestampMillis)).append(' ')
+      .append(orDash(myRemoteAddress)).append(" \"")
+      .append(myMethod).append(" /").append(orEmpty(myPath)).append("\" ")
+      .append(myStatus).append(' ')
+      .append(myResponseBytes).append(' ');
+    appendMillis(theBuilder).append("ms ")
+      .append(orDash(myOperationType));
+    if (myOperationName != null) {
+      theBuilder.append(' ').append(myOperationName);
+    }
+    theBuilder.append(' ').append(orDash(myResourceType))
+      .append(" ua=\"").append(orEmpty(myUserAgent)).append('"')
+      .append(" id=").append(orDash(myRequestId));
+  }
+
+  /**
+   * Appends the message of the <code>logger.format</code> or
+   * <code>logger.error_format</code> template captured with the record
+   */
+  public void appendPattern(StringBuilder theBuilder) {
+    if (myPattern != null) {
+      myPattern.append(theBuilder, myPatternValues, myLatencyNanos);
+    }
+  }
+
+  /**
+   * Appends a single JSON object, without a line terminator
+   */
+  public void appendJson(StringBuilder theBuilder) {
+    theBuilder.append("{\"timestamp\":\"").append(Instant.ofEpochMilli(myTimestampMillis)).append('"');
+    appendJsonField(theBuilder, "requestId", myRequestId);
+    appendJsonField(theBuilder, "remoteAddress", myRemoteAddress);
+    appendJsonField(theBuilder, "method", myMethod);
+    appendJsonField(theBuilder, "path", myPath);
+    appendJsonField(theBuilder, "operationType", myOperationType);
+    appendJsonField(theBuilder, "operationName", myOperationName);
+    appendJsonField(theBuilder, "resourceType", myResourceType);
+    theBuilder.append(",\"status\":").append(myStatus);
+    theBuilder.append(",\"responseBytes\":").append(myResponseBytes);
+    theBuilder.append(",\"latencyMillis\":");
+    appendMillis(theBuilder);
+    appendJsonField(theBuilder, "userAgent", myUserAgent);
+    theBuilder.append('}');
+  }
+
+  private StringBuilder appendMillis(StringBuilder theBuilder) {
+    // Millisecond latency with one decimal, without going through String.format
+    long tenths = TimeUnit.NANOSECONDS.toMicros(myLatencyNanos) / 100;
+    return theBuilder.append(tenths / 10).append('.').append(tenths % 10);
+  }
+
+  private static void appendJsonField(StringBuilder theBuilder, String theName, String theValue) {
+    if (theValue == null) {
+      return;
+    }
+    theBuilder.append(",\"").append(theName).append("\":\"");
+    for (int i = 0; i < theValue.length(); i++) {
+      char next = theValue.charAt(i);
+      switch (next) {
+        case '"':
+          theBuilder.append("\\\"");
+          break;
+        case '\\':
+          theBuilder.append("\\\\");
+          break;
+        case '\n':
+          theBuilder.append("\\n");
+          break;
+        case '\r':
+          theBuilder.append("\\r");
+          break;
+        case '\t':
+          theBuilder.append("\\t");
+          break;
+        default:
+          if (next < 0x20) {
+            theBuilder.append(String.format("\\u%04x", (int) next));
+          } else {
+            theBuilder.append(next);
+          }
+      }
+    }
+    theBuilder.append('"');
+  }
+
+  private static String orDash(String theValue) {
+    return theValue != null ? theValue : "-";
+  }
+
+  private static String orEmpty(String theValue) {
+    return theValue != null ? theValue : "";
+  }
+}
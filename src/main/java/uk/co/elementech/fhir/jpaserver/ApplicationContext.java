@@ -25,6 +25,9 @@ public class ApplicationContext extends AnnotationConfigWebApplicationContext {
 
     if (HapiProperties.getSubscriptionWebsocketEnabled()) {
       register(WebsocketDispatcherConfig.class);
+      if (HapiProperties.getSubscriptionWebsocketBuffered()) {
+        register(WebsocketBufferConfig.class);
+      }
     }
 
     if (HapiProperties.getSubscriptionEmailEnabled()
@@ -33,6 +36,9 @@ public class ApplicationContext extends AnnotationConfigWebApplicationContext {
       register(SubscriptionSubmitterConfig.class);
       register(SubscriptionProcessorConfig.class);
       register(SubscriptionChannelConfig.class);
+      if (HapiProperties.getSubscriptionMatchingIndexed()) {
+        register(SubscriptionMatchingConfig.class);
+      }
     }
 
   }
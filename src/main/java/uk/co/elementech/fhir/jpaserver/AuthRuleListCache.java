@@ -0,0 +1,112 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Bounded cache of authorization rule lists, keyed by the normalized set of
+ * scopes in a token plus its <code>patient</code> claim.
+ * <p>
+ * Rule lists built by {@link ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder}
+ * are not modified once built, so one list can be shared by every request that
+ * presents the same scopes for the same patient.
+ */
+public class AuthRuleListCache {
+
+  private final Cache<Key, List<IAuthRule>> myCache;
+
+  public AuthRuleListCache(long theMaximumSize) {
+    myCache = Caffeine.newBuilder()
+      .maximumSize(theMaximumSize)
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Returns the rule list for the given scope claim and patient claim, calling
+   * the builder at most once per distinct key. The builder receives the
+   * normalized (sorted, de-duplicated) scopes and the patient claim.
+   */
+  public List<IAuthRule> get(String theScopeClaim, String thePatientClaim, BiFunction<String[], String, List<IAuthRule>> theBuilder) {
+    Key key = new Key(normalizeScopes(theScopeClaim), thePatientClaim);
+    return myCache.get(key, k -> Collections.unmodifiableList(theBuilder.apply(k.getScopes(), k.getPatient())));
+  }
+
+  public CacheStats stats() {
+    return myCache.stats();
+  }
+
+  public long size() {
+    return myCache.estimatedSize();
+  }
+
+  public void invalidateAll() {
+    myCache.invalidateAll();
+  }
+
+  /**
+   * Splits a space separated scope claim into a sorted set of distinct scopes so
+   * that tokens listing the same scopes in a different order share a cache entry.
+   */
+  static String[] normalizeScopes(String theScopeClaim) {
+    TreeSet<String> scopes = new TreeSet<>();
+    if (theScopeClaim != null) {
+      for (String scope : theScopeClaim.split(" ")) {
+        if (isNotBlank(scope)) {
+          scopes.add(scope.trim());
+        }
+      }
+    }
+    return scopes.toArray(new String[0]);
+  }
+
+  private static class Key {
+    private final String[] myScopes;
+    private final String myPatient;
+    private final int myHashCode;
+
+    Key(String[] theScopes, String thePatient) {
+      myScopes = theScopes;
+      myPatient = thePatient;
+      myHashCode = 31 * Arrays.hashCode(theScopes) + Objects.hashCode(thePatient);
+    }
+
+    String[] getScopes() {
+      return myScopes;
+    }
+
+    String getPatient() {
+      return myPatient;
+    }
+
+    @Override
+    public boolean equals(Object theOther) {
+      if (this == theOther) {
+        return true;
+      }
+      if (!(theOther instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) theOther;
+      return myHashCode == other.myHashCode
+        && Arrays.equals(myScopes, other.myScopes)
+        && Objects.equals(myPatient, other.myPatient);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-request breakdown of the time spent authenticating a bearer token and
+ * building its rule list.
+ * <p>
+ * {@link OIDCAuthorizationInterceptor} stores an instance on each request under
+ * {@link #ATTRIBUTE_NAME}, so it can be read by later interceptors (e.g. access
+ * logging) through <code>RequestDetails.getAttribute</code>. Phases that did not
+ * run for a request, such as signature checking on a token cache hit, report
+ * <code>-1</code>.
+ * <p>
+ * Not thread safe; an instance belongs to a single request.
+ */
+public class AuthTimings {
+
+  public static final String ATTRIBUTE_NAME = AuthTimings.class.getName();
+
+  public enum Phase {
+    /** Header extraction, token cache lookup and JWT parsing */
+    PARSE("parse"),
+    /** Discovery document lookup for the token's issuer */
+    ISSUER_LOOKUP("issuer_lookup"),
+    /** Validator lookup and signature verification */
+    SIGNATURE("signature"),
+    /** Expiry, not-before and issued-at checks */
+    CLAIMS("claims"),
+    /** Building (or fetching the cached) rule list from the scopes */
+    RULE_BUILD("rule_build");
+
+    private final String myTagValue;
+
+    Phase(String theTagValue) {
+      myTagValue = theTagValue;
+    }
+
+    /**
+     * The value used for the <code>phase</code> metric tag
+     */
+    public String getTagValue() {
+      return myTagValue;
+    }
+  }
+
+  private static final Phase[] ourPhases = Phase.values();
+
+  private final long[] myNanos = new long[ourPhases.length];
+  private final long myStart;
+  private long myMark;
+  private long myEnd = -1;
+
+  public AuthTimings() {
+    Arrays.fill(myNanos, -1);
+    myStart = System.nanoTime();
+    myMark = myStart;
+  }
+
+  /**
+   * Attributes the time since the previous lap (or creation) to the given phase
+   */
+  public void lap(Phase thePhase) {
+    long now = System.nanoTime();
+    int index = thePhase.ordinal();
+    myNanos[index] = Math.max(myNanos[index], 0) + (now - myMark);
+    myMark = now;
+  }
+
+  /**
+   * Stops the total clock. Further laps are still recorded but do not extend the total.
+   */
+  public void finish() {
+    if (myEnd == -1) {
+      myEnd = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return the nanoseconds spent in the phase, or <code>-1</code> if it did not run
+   */
+  public long getNanos(Phase thePhase) {
+    return myNanos[thePhase.ordinal()];
+  }
+
+  /**
+   * @return the nanoseconds from creation until {@link #finish()} (or now, if not finished)
+   */
+  public long getTotalNanos() {
+    return (myEnd == -1 ? System.nanoTime() : myEnd) - myStart;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder(96);
+    for (Phase next : ourPhases) {
+      long nanos = getNanos(next);
+      if (nanos >= 0) {
+        b.append(next.getTagValue()).append('=').append(formatMillis(nanos)).append("ms ");
+      }
+    }
+    return b.append("total=").append(formatMillis(getTotalNanos())).append("ms").toString();
+  }
+
+  private static String formatMillis(long theNanos) {
+    return String.format(Locale.ROOT, "%.3f", theNanos / 1000000.0);
+  }
+}
@@ -0,0 +1,85 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.util.BinaryUtil;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * An NDJSON input for {@link NdjsonImportSvc} that was uploaded as a Binary.
+ * Content kept in the binary storage is streamed from there through a pipe
+ * rather than loaded into memory.
+ */
+public class BinaryImportSource implements NdjsonImportSvc.Source {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BinaryImportSource.class);
+
+  private final FhirContext myFhirContext;
+  private final DaoRegistry myDaoRegistry;
+  private final IBinaryStorageSvc myBinaryStorageSvc;
+  private final IIdType myId;
+
+  public BinaryImportSource(FhirContext theFhirContext, DaoRegistry theDaoRegistry, IBinaryStorageSvc theBinaryStorageSvc, IIdType theId) {
+    myFhirContext = theFhirContext;
+    myDaoRegistry = theDaoRegistry;
+    myBinaryStorageSvc = theBinaryStorageSvc;
+    myId = theId;
+  }
+
+  @Override
+  public String getName() {
+    return myId.toUnqualifiedVersionless().getValue();
+  }
+
+  @Override
+  public InputStream open() throws IOException {
+    IBaseBinary binary = (IBaseBinary) myDaoRegistry.getResourceDao("Binary").read(myId);
+    String blobId = getExternalizedBlobId(BinaryUtil.getOrCreateData(myFhirContext, binary));
+    if (blobId == null) {
+      byte[] content = binary.getContent();
+      return new ByteArrayInputStream(content != null ? content : new byte[0]);
+    }
+
+    PipedInputStream retVal = new PipedInputStream(65536);
+    PipedOutputStream out = new PipedOutputStream(retVal);
+    Thread thread = new Thread(() -> {
+      try {
+        if (myBinaryStorageSvc.writeBlob(myId, blobId, out)) {
+          out.close();
+        } else {
+          ourLog.warn("Blob {} of {} not found", blobId, myId);
+        }
+        // If the pipe is left open, the reader fails once this thread has ended, instead of seeing a truncated input
+      } catch (IOException e) {
+        ourLog.warn("Could not read blob {} of {}", blobId, myId, e);
+      }
+    }, "binary-import-" + myId.getIdPart());
+    thread.setDaemon(true);
+    thread.start();
+    return retVal;
+  }
+
+  private static String getExternalizedBlobId(IPrimitiveType<byte[]> theData) {
+    if (!(theData instanceof IBaseHasExtensions)) {
+      return null;
+    }
+    for (IBaseExtension<?, ?> next : ((IBaseHasExtensions) theData).getExtension()) {
+      if (JpaConstants.EXT_EXTERNALIZED_BINARY_ID.equals(next.getUrl()) && next.getValue() instanceof IPrimitiveType) {
+        return ((IPrimitiveType<?>) next.getValue()).getValueAsString();
+      }
+    }
+    return null;
+  }
+}
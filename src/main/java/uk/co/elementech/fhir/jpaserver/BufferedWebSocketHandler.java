@@ -0,0 +1,138 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Gives the sessions of a websocket handler a buffer of a
+ * {@link WebsocketFanout}, so that the text messages the handler sends are
+ * queued and written asynchronously instead of blocking the sending thread
+ * until a slow client has read them.
+ * <p>
+ * Messages are written with the asynchronous send of the standard
+ * (<code>javax.websocket</code>) session, which Tomcat and Jetty both
+ * provide, or of the Jetty session when the handler runs on Jetty's own
+ * websocket API. Any other session is written with its blocking send.
+ */
+public class BufferedWebSocketHandler extends WebSocketHandlerDecorator {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BufferedWebSocketHandler.class);
+
+  private final WebsocketFanout myFanout;
+  private final Map<String, BufferedSession> mySessions = new ConcurrentHashMap<>();
+
+  public BufferedWebSocketHandler(WebSocketHandler theDelegate, WebsocketFanout theFanout) {
+    super(theDelegate);
+    myFanout = theFanout;
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession theSession) throws Exception {
+    BufferedSession session = new BufferedSession(theSession);
+    mySessions.put(theSession.getId(), session);
+    super.afterConnectionEstablished(session);
+  }
+
+  @Override
+  public void handleMessage(WebSocketSession theSession, WebSocketMessage<?> theMessage) throws Exception {
+    super.handleMessage(buffered(theSession), theMessage);
+  }
+
+  @Override
+  public void handleTransportError(WebSocketSession theSession, Throwable theException) throws Exception {
+    super.handleTransportError(buffered(theSession), theException);
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession theSession, CloseStatus theCloseStatus) throws Exception {
+    BufferedSession session = mySessions.remove(theSession.getId());
+    if (session != null) {
+      session.myOutbox.close();
+    }
+    super.afterConnectionClosed(session != null ? session : theSession, theCloseStatus);
+  }
+
+  /**
+   * The session as the delegate knows it
+   */
+  private WebSocketSession buffered(WebSocketSession theSession) {
+    BufferedSession retVal = mySessions.get(theSession.getId());
+    return retVal != null ? retVal : theSession;
+  }
+
+  private class BufferedSession extends WebSocketSessionDecorator implements WebsocketFanout.Transport {
+
+    private final javax.websocket.Session myStandardSession;
+    private final Session myJettySession;
+    private final WebsocketFanout.Outbox myOutbox;
+
+    private BufferedSession(WebSocketSession theSession) {
+      super(theSession);
+      WebSocketSession session = WebSocketSessionDecorator.unwrap(theSession);
+      NativeWebSocketSession nativeSession = session instanceof NativeWebSocketSession ? (NativeWebSocketSession) session : null;
+      myStandardSession = nativeSession != null ? nativeSession.getNativeSession(javax.websocket.Session.class) : null;
+      myJettySession = nativeSession != null && myStandardSession == null ? nativeSession.getNativeSession(Session.class) : null;
+      myOutbox = myFanout.open(this);
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> theMessage) throws IOException {
+      if (theMessage instanceof TextMessage) {
+        myOutbox.send(((TextMessage) theMessage).getPayload());
+      } else {
+        super.sendMessage(theMessage);
+      }
+    }
+
+    @Override
+    public void sendAsync(String theMessage, Consumer<Throwable> theCallback) {
+      if (myStandardSession != null) {
+        myStandardSession.getAsyncRemote().sendText(theMessage, theResult -> theCallback.accept(theResult.isOK() ? null : theResult.getException()));
+        return;
+      }
+      if (myJettySession == null) {
+        // No asynchronous send, so the message is written as the delegate would
+        try {
+          super.sendMessage(new TextMessage(theMessage));
+          theCallback.accept(null);
+        } catch (IOException e) {
+          theCallback.accept(e);
+        }
+        return;
+      }
+      myJettySession.getRemote().sendString(theMessage, new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable theCause) {
+          theCallback.accept(theCause);
+        }
+
+        @Override
+        public void writeSuccess() {
+          theCallback.accept(null);
+        }
+      });
+    }
+
+    @Override
+    public void disconnect(String theReason) {
+      try {
+        close(CloseStatus.SESSION_NOT_RELIABLE.withReason(theReason));
+      } catch (IOException e) {
+        ourLog.debug("Could not close websocket session {}: {}", getId(), e.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the in-process caches of the servers of a cluster coherent. The
+ * writes of this server are published to the other servers as
+ * {@link CacheInvalidationEvent}s over a {@link CacheInvalidationTransport},
+ * and the events published by the others are handed to the {@link Listener}s,
+ * which drop whatever they have cached about the written resources.
+ * <p>
+ * Writes are published once their transaction has committed, so that another
+ * server does not reload the data from before the write. They are coalesced
+ * and sent in batches, at most every flush interval: repeated writes of a
+ * resource are sent once, a write of every resource of a type replaces the
+ * single resources of the type, and a batch with more than the maximum number
+ * of events is sent per type instead. Batches that can not be sent are kept
+ * for the next flush. If more events than ten batches pile up, for example
+ * while the transport is down, they are replaced by a single event for
+ * everything, so memory stays bounded and no invalidation is lost. Sent and
+ * received events are counted in the
+ * <code>cache.invalidation.events</code> meter, tagged with the direction.
+ * <p>
+ * It listens to the storage pointcuts, so it is registered with the JPA
+ * interceptor service, which also sees writes made without a request.
+ */
+@Interceptor
+public class CacheInvalidationBus implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+  static final String EVENTS_METER = "cache.invalidation.events";
+  /**
+   * The most events kept unsent, in batches, before they are replaced by one for everything
+   */
+  private static final int MAX_PENDING_BATCHES = 10;
+
+  private final CacheInvalidationTransport myTransport;
+  private final long myFlushIntervalMillis;
+  private final int myMaxBatchSize;
+  private final List<Listener> myListeners = new CopyOnWriteArrayList<>();
+  private final Set<CacheInvalidationEvent> myPending = new LinkedHashSet<>();
+  private final ScheduledExecutorService myExecutor;
+  private final Counter mySent;
+  private final Counter myReceived;
+
+  /**
+   * Drops what is cached about the resources written by another server
+   */
+  public interface Listener {
+    void invalidate(List<CacheInvalidationEvent> theEvents);
+  }
+
+  public CacheInvalidationBus(CacheInvalidationTransport theTransport, long theFlushIntervalMillis, int theMaxBatchSize, MeterRegistry theMeterRegistry) {
+    myTransport = theTransport;
+    myFlushIntervalMillis = theFlushIntervalMillis;
+    myMaxBatchSize = theMaxBatchSize;
+    myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "cache-invalidation-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    mySent = Counter.builder(EVENTS_METER).tag("direction", "sent").register(theMeterRegistry);
+    myReceived = Counter.builder(EVENTS_METER).tag("direction", "received").register(theMeterRegistry);
+  }
+
+  public void start() {
+    myTransport.start(this::received);
+    myExecutor.scheduleWithFixedDelay(this::flush, myFlushIntervalMillis, myFlushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void addListener(Listener theListener) {
+    myListeners.add(theListener);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    publishAfterCommit(CacheInvalidationEvent.forResource(theResource.getIdElement()));
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    publishAfterCommit(CacheInvalidationEvent.forResource(theNewResource.getIdElement()));
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    publishAfterCommit(CacheInvalidationEvent.forResource(theResource.getIdElement()));
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE)
+  public void expungeResource(IIdType theId) {
+    publishAfterCommit(CacheInvalidationEvent.forResource(theId));
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_EVERYTHING)
+  public void expungeEverything() {
+    publishAfterCommit(CacheInvalidationEvent.everything());
+  }
+
+  /**
+   * Queues an event for the next batch
+   */
+  public void publish(CacheInvalidationEvent theEvent) {
+    boolean full;
+    synchronized (myPending) {
+      addPending(Collections.singletonList(theEvent));
+      full = myPending.size() >= myMaxBatchSize;
+    }
+    if (full) {
+      try {
+        myExecutor.execute(this::flush);
+      } catch (RejectedExecutionException e) {
+        // Closing, which flushes what is queued
+      }
+    }
+  }
+
+  /**
+   * Sends the queued events as one batch
+   */
+  void flush() {
+    List<CacheInvalidationEvent> batch;
+    synchronized (myPending) {
+      if (myPending.isEmpty()) {
+        return;
+      }
+      batch = coalesce(myPending, myMaxBatchSize);
+      myPending.clear();
+    }
+    try {
+      myTransport.publish(batch);
+      mySent.increment(batch.size());
+    } catch (IOException | RuntimeException e) {
+      ourLog.warn("Could not send {} cache invalidations, will retry: {}", batch.size(), e.toString());
+      synchronized (myPending) {
+        addPending(batch);
+      }
+    }
+  }
+
+  /**
+   * Adds events to the queue, falling back to one event for everything once
+   * the queue is too long. Called holding the lock of the queue.
+   */
+  private void addPending(Collection<CacheInvalidationEvent> theEvents) {
+    CacheInvalidationEvent everything = CacheInvalidationEvent.everything();
+    if (myPending.contains(everything)) {
+      return;
+    }
+    myPending.addAll(theEvents);
+    if (myPending.size() > (long) myMaxBatchSize * MAX_PENDING_BATCHES) {
+      ourLog.warn("{} cache invalidations are waiting to be sent, invalidating everything instead", myPending.size());
+      myPending.clear();
+      myPending.add(everything);
+    }
+  }
+
+  int getPendingCount() {
+    synchronized (myPending) {
+      return myPending.size();
+    }
+  }
+
+  @Override
+  public void close() {
+    myExecutor.shutdownNow();
+    try {
+      if (!myExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+        ourLog.warn("Cache invalidation flushing did not stop within 10s");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    myTransport.close();
+  }
+
+  private void publishAfterCommit(CacheInvalidationEvent theEvent) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      publish(theEvent);
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int theStatus) {
+        if (theStatus == STATUS_COMMITTED) {
+          publish(theEvent);
+        }
+      }
+    });
+  }
+
+  private void received(List<CacheInvalidationEvent> theEvents) {
+    myReceived.increment(theEvents.size());
+    for (Listener next : myListeners) {
+      try {
+        next.invalidate(theEvents);
+      } catch (RuntimeException e) {
+        ourLog.error("Cache invalidation listener failed", e);
+      }
+    }
+  }
+
+  /**
+   * Drops the events covered by others: everything covers all events, and a
+   * type covers its resources. If more than the maximum remain, resources are
+   * replaced by their types.
+   */
+  static List<CacheInvalidationEvent> coalesce(Collection<CacheInvalidationEvent> theEvents, int theMaxSize) {
+    Set<String> types = new HashSet<>();
+    for (CacheInvalidationEvent next : theEvents) {
+      if (next.isEverything()) {
+        return Collections.singletonList(next);
+      }
+      if (next.getResourceId() == null) {
+        types.add(next.getResourceType());
+      }
+    }
+    List<CacheInvalidationEvent> retVal = new ArrayList<>();
+    for (CacheInvalidationEvent next : theEvents) {
+      if (next.getResourceId() == null || !types.contains(next.getResourceType())) {
+        retVal.add(next);
+      }
+    }
+    if (retVal.size() <= theMaxSize) {
+      return retVal;
+    }
+    Set<CacheInvalidationEvent> retValTypes = new LinkedHashSet<>();
+    for (CacheInvalidationEvent next : retVal) {
+      retValTypes.add(CacheInvalidationEvent.forType(next.getResourceType()));
+    }
+    return new ArrayList<>(retValTypes);
+  }
+}
@@ -0,0 +1,111 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.Objects;
+
+/**
+ * Tells the other servers of a cluster that something they may have cached
+ * has changed: one resource, every resource of a type, or everything (after
+ * <code>$expunge</code> of the whole database). SearchParameter and
+ * Subscription changes are resource events of those types.
+ */
+public final class CacheInvalidationEvent {
+
+  private static final String EVERYTHING_VALUE = "*";
+  private static final CacheInvalidationEvent EVERYTHING = new CacheInvalidationEvent(null, null);
+
+  private final String myResourceType;
+  private final String myResourceId;
+
+  private CacheInvalidationEvent(String theResourceType, String theResourceId) {
+    myResourceType = theResourceType;
+    myResourceId = theResourceId;
+  }
+
+  public static CacheInvalidationEvent everything() {
+    return EVERYTHING;
+  }
+
+  public static CacheInvalidationEvent forType(String theResourceType) {
+    return new CacheInvalidationEvent(theResourceType, null);
+  }
+
+  /**
+   * An event for the resource, or for its whole type if the id has no id part
+   */
+  public static CacheInvalidationEvent forResource(IIdType theId) {
+    if (theId == null || !theId.hasResourceType()) {
+      return EVERYTHING;
+    }
+    return new CacheInvalidationEvent(theId.getResourceType(), theId.hasIdPart() ? theId.getIdPart() : null);
+  }
+
+  /**
+   * Parses the form written by {@link #encode()}
+   */
+  public static CacheInvalidationEvent parse(String theValue) {
+    if (theValue.equals(EVERYTHING_VALUE)) {
+      return EVERYTHING;
+    }
+    int slash = theValue.indexOf('/');
+    if (slash == -1) {
+      return forType(theValue);
+    }
+    return new CacheInvalidationEvent(theValue.substring(0, slash), theValue.substring(slash + 1));
+  }
+
+  /**
+   * The resource type, or null if everything has changed
+   */
+  public String getResourceType() {
+    return myResourceType;
+  }
+
+  /**
+   * The resource id, or null if every resource of the type has changed
+   */
+  public String getResourceId() {
+    return myResourceId;
+  }
+
+  public boolean isEverything() {
+    return myResourceType == null;
+  }
+
+  /**
+   * Whether resources of the type may have changed
+   */
+  public boolean affects(String theResourceType) {
+    return myResourceType == null || myResourceType.equals(theResourceType);
+  }
+
+  /**
+   * <code>*</code>, <code>Type</code> or <code>Type/id</code>
+   */
+  public String encode() {
+    if (myResourceType == null) {
+      return EVERYTHING_VALUE;
+    }
+    return myResourceId == null ? myResourceType : myResourceType + "/" + myResourceId;
+  }
+
+  @Override
+  public boolean equals(Object theOther) {
+    if (!(theOther instanceof CacheInvalidationEvent)) {
+      return false;
+    }
+    CacheInvalidationEvent other = (CacheInvalidationEvent) theOther;
+    return Objects.equals(myResourceType, other.myResourceType) && Objects.equals(myResourceId, other.myResourceId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(myResourceType, myResourceId);
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+}
@@ -0,0 +1,29 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Carries batches of {@link CacheInvalidationEvent}s between the servers of a
+ * cluster for {@link CacheInvalidationBus}. A transport delivers the batches
+ * published by every other server, but not those published by its own.
+ * {@link JdbcCacheInvalidationTransport} uses the shared database; other
+ * transports, such as a message broker, implement this interface.
+ */
+public interface CacheInvalidationTransport extends AutoCloseable {
+
+  /**
+   * Starts delivering the batches published by other servers to the receiver,
+   * from a thread of the transport
+   */
+  void start(Consumer<List<CacheInvalidationEvent>> theReceiver);
+
+  /**
+   * Sends a batch to the other servers
+   */
+  void publish(List<CacheInvalidationEvent> theEvents) throws IOException;
+
+  @Override
+  void close();
+}
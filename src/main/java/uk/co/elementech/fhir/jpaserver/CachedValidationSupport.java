@@ -0,0 +1,234 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Wraps the validation support chain of the instance validator with a cache
+ * of everything it looks up: conformance resources, generated snapshots,
+ * ValueSet expansions and code validations. Each entry expires after
+ * <code>validation.cache.ttl_seconds</code>, so that terminology loaded
+ * later is picked up, and the least recently used entries are evicted beyond
+ * <code>validation.cache.max_entries</code> per kind of lookup.
+ * <p>
+ * {@link #precompile()} fetches all StructureDefinitions and generates the
+ * missing snapshots up front, so that the first requests validated against a
+ * profile do not pay for it. The caches are published as <code>cache.*</code>
+ * meters, with <code>cache=validation.&lt;kind&gt;</code>.
+ */
+public class CachedValidationSupport implements IValidationSupport {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CachedValidationSupport.class);
+
+  private final IValidationSupport myDelegate;
+  private final Cache<String, Optional<Object>> myResources;
+  private final Cache<String, Optional<Object>> mySnapshots;
+  private final Cache<String, Optional<Object>> myExpansions;
+  private final Cache<String, Optional<Object>> myCodeValidations;
+  private final Cache<String, Boolean> mySupported;
+
+  public CachedValidationSupport(IValidationSupport theDelegate, long theMaxEntries, long theTtlSeconds, MeterRegistry theMeterRegistry) {
+    myDelegate = theDelegate;
+    myResources = newCache("resources", theMaxEntries, theTtlSeconds, theMeterRegistry);
+    mySnapshots = newCache("snapshots", theMaxEntries, theTtlSeconds, theMeterRegistry);
+    myExpansions = newCache("expansions", theMaxEntries, theTtlSeconds, theMeterRegistry);
+    myCodeValidations = newCache("codes", theMaxEntries, theTtlSeconds, theMeterRegistry);
+    mySupported = newCache("supported", theMaxEntries, theTtlSeconds, theMeterRegistry);
+  }
+
+  private static <V> Cache<String, V> newCache(String theName, long theMaxEntries, long theTtlSeconds, MeterRegistry theMeterRegistry) {
+    Cache<String, V> retVal = Caffeine.newBuilder()
+      .maximumSize(theMaxEntries)
+      .expireAfterWrite(theTtlSeconds, TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+    if (theMeterRegistry != null) {
+      CaffeineCacheMetrics.monitor(theMeterRegistry, retVal, "validation." + theName);
+    }
+    return retVal;
+  }
+
+  /**
+   * Loads all StructureDefinitions into the cache and generates the snapshots they are missing
+   */
+  public void precompile() {
+    long start = System.currentTimeMillis();
+    List<IBaseResource> structureDefinitions = fetchAllStructureDefinitions();
+    int generated = 0;
+    for (IBaseResource next : structureDefinitions) {
+      String url = getUrl(next);
+      if (url == null) {
+        continue;
+      }
+      IBaseResource structureDefinition = next;
+      if (!hasSnapshot(next)) {
+        try {
+          IBaseResource snapshot = myDelegate.generateSnapshot(this, next, url, null, null);
+          if (snapshot != null) {
+            structureDefinition = snapshot;
+            generated++;
+          }
+        } catch (RuntimeException e) {
+          ourLog.warn("Could not generate the snapshot of {}: {}", url, e.getMessage());
+        }
+      }
+      // The validator then finds the snapshot ready instead of generating it on its first use
+      myResources.put("StructureDefinition|" + url, Optional.of(structureDefinition));
+    }
+    ourLog.info("Precompiled {} StructureDefinitions ({} snapshots generated) in {}ms", structureDefinitions.size(), generated, System.currentTimeMillis() - start);
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return myDelegate.getFhirContext();
+  }
+
+  @Override
+  public List<IBaseResource> fetchAllConformanceResources() {
+    return cached(myResources, "all-conformance", myDelegate::fetchAllConformanceResources);
+  }
+
+  @Override
+  public <T extends IBaseResource> List<T> fetchAllStructureDefinitions() {
+    return cached(myResources, "all-structure-definitions", myDelegate::fetchAllStructureDefinitions);
+  }
+
+  @Override
+  public IBaseResource fetchCodeSystem(String theSystem) {
+    return cached(myResources, "CodeSystem|" + theSystem, () -> myDelegate.fetchCodeSystem(theSystem));
+  }
+
+  @Override
+  public IBaseResource fetchValueSet(String theUri) {
+    return cached(myResources, "ValueSet|" + theUri, () -> myDelegate.fetchValueSet(theUri));
+  }
+
+  @Override
+  public IBaseResource fetchStructureDefinition(String theUrl) {
+    return cached(myResources, "StructureDefinition|" + theUrl, () -> myDelegate.fetchStructureDefinition(theUrl));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T extends IBaseResource> T fetchResource(Class<T> theClass, String theUri) {
+    String type = theClass != null ? theClass.getSimpleName() : "";
+    // Shares the entries of the typed lookups, as the default implementation does
+    switch (type) {
+      case "StructureDefinition":
+        return (T) fetchStructureDefinition(theUri);
+      case "ValueSet":
+        return (T) fetchValueSet(theUri);
+      case "CodeSystem":
+        return (T) fetchCodeSystem(theUri);
+      default:
+        return cached(myResources, "resource|" + type + "|" + theUri, () -> myDelegate.fetchResource(theClass, theUri));
+    }
+  }
+
+  @Override
+  public boolean isCodeSystemSupported(IValidationSupport theRootValidationSupport, String theSystem) {
+    return mySupported.get("CodeSystem|" + theSystem, k -> myDelegate.isCodeSystemSupported(theRootValidationSupport, theSystem));
+  }
+
+  @Override
+  public boolean isValueSetSupported(IValidationSupport theRootValidationSupport, String theValueSetUrl) {
+    return mySupported.get("ValueSet|" + theValueSetUrl, k -> myDelegate.isValueSetSupported(theRootValidationSupport, theValueSetUrl));
+  }
+
+  @Override
+  public ValueSetExpansionOutcome expandValueSet(IValidationSupport theRootValidationSupport, ValueSetExpansionOptions theExpansionOptions, IBaseResource theValueSetToExpand) {
+    String url = getUrl(theValueSetToExpand);
+    if (url == null) {
+      return myDelegate.expandValueSet(theRootValidationSupport, theExpansionOptions, theValueSetToExpand);
+    }
+    String key = url + "|" + getVersion(theValueSetToExpand);
+    if (theExpansionOptions != null) {
+      key += "|" + theExpansionOptions.getOffset() + "|" + theExpansionOptions.getCount() + "|" + theExpansionOptions.isFailOnMissingCodeSystem();
+    }
+    return cached(myExpansions, key, () -> myDelegate.expandValueSet(theRootValidationSupport, theExpansionOptions, theValueSetToExpand));
+  }
+
+  @Override
+  public CodeValidationResult validateCode(IValidationSupport theRootValidationSupport, ConceptValidationOptions theOptions, String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl) {
+    String key = "code|" + inferSystem(theOptions) + "|" + theCodeSystem + "|" + theCode + "|" + theDisplay + "|" + theValueSetUrl;
+    return cached(myCodeValidations, key, () -> myDelegate.validateCode(theRootValidationSupport, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl));
+  }
+
+  @Override
+  public CodeValidationResult validateCodeInValueSet(IValidationSupport theRootValidationSupport, ConceptValidationOptions theOptions, String theCodeSystem, String theCode, String theDisplay, IBaseResource theValueSet) {
+    String url = getUrl(theValueSet);
+    if (url == null) {
+      return myDelegate.validateCodeInValueSet(theRootValidationSupport, theOptions, theCodeSystem, theCode, theDisplay, theValueSet);
+    }
+    String key = "in-valueset|" + inferSystem(theOptions) + "|" + theCodeSystem + "|" + theCode + "|" + theDisplay + "|" + url + "|" + getVersion(theValueSet);
+    return cached(myCodeValidations, key, () -> myDelegate.validateCodeInValueSet(theRootValidationSupport, theOptions, theCodeSystem, theCode, theDisplay, theValueSet));
+  }
+
+  @Override
+  public LookupCodeResult lookupCode(IValidationSupport theRootValidationSupport, String theSystem, String theCode) {
+    return cached(myCodeValidations, "lookup|" + theSystem + "|" + theCode, () -> myDelegate.lookupCode(theRootValidationSupport, theSystem, theCode));
+  }
+
+  @Override
+  public IBaseResource generateSnapshot(IValidationSupport theRootValidationSupport, IBaseResource theInput, String theUrl, String theWebUrl, String theProfileName) {
+    String url = getUrl(theInput);
+    if (url == null) {
+      return myDelegate.generateSnapshot(theRootValidationSupport, theInput, theUrl, theWebUrl, theProfileName);
+    }
+    String key = url + "|" + getVersion(theInput) + "|" + theUrl + "|" + theWebUrl + "|" + theProfileName;
+    return cached(mySnapshots, key, () -> myDelegate.generateSnapshot(theRootValidationSupport, theInput, theUrl, theWebUrl, theProfileName));
+  }
+
+  @Override
+  public void invalidateCaches() {
+    myResources.invalidateAll();
+    mySnapshots.invalidateAll();
+    myExpansions.invalidateAll();
+    myCodeValidations.invalidateAll();
+    mySupported.invalidateAll();
+    myDelegate.invalidateCaches();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T cached(Cache<String, Optional<Object>> theCache, String theKey, Supplier<T> theLoader) {
+    // Misses are cached as well, lookups of unknown codes and profiles are as frequent as the others
+    return (T) theCache.get(theKey, k -> Optional.ofNullable(theLoader.get())).orElse(null);
+  }
+
+  private static boolean inferSystem(ConceptValidationOptions theOptions) {
+    return theOptions != null && theOptions.isInferSystem();
+  }
+
+  private String getUrl(IBaseResource theResource) {
+    return getPrimitive(theResource, "url");
+  }
+
+  private String getVersion(IBaseResource theResource) {
+    return getPrimitive(theResource, "version");
+  }
+
+  private boolean hasSnapshot(IBaseResource theStructureDefinition) {
+    return getFhirContext().newTerser().getSingleValueOrNull(theStructureDefinition, "snapshot") != null;
+  }
+
+  private String getPrimitive(IBaseResource theResource, String thePath) {
+    if (theResource == null) {
+      return null;
+    }
+    IPrimitiveType<?> value = getFhirContext().newTerser().getSingleValueOrNull(theResource, thePath, IPrimitiveType.class);
+    return value != null ? value.getValueAsString() : null;
+  }
+}
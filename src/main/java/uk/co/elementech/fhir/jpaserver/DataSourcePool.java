@@ -0,0 +1,190 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.Driver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JDBC connection pool implementations the server can use, selected with
+ * the <code>datasource.pool</code> property.
+ * <p>
+ * Both pools are configured from the same <code>datasource.*</code> properties
+ * and publish connection acquire time (as a histogram), active, idle and
+ * pending connection counts and acquire timeouts to the meter registry:
+ * HikariCP through its own <code>hikaricp.connections.*</code> meters, DBCP2
+ * through the equivalent <code>dbcp2.connections.*</code> meters of
+ * {@link MeteredBasicDataSource}. Connections held for longer than the leak
+ * detection threshold are logged as warnings with the stack trace of the code
+ * that borrowed them.
+ */
+public enum DataSourcePool {
+
+  DBCP2 {
+    @Override
+    DataSource createDataSource(String thePoolName, String theUrl, String theUsername, String thePassword, MeterRegistry theMeterRegistry) throws ReflectiveOperationException {
+      MeteredBasicDataSource retVal = new MeteredBasicDataSource(thePoolName);
+      Driver driver = (Driver) Class.forName(HapiProperties.getDataSourceDriver()).getConstructor().newInstance();
+      retVal.setDriver(driver);
+      retVal.setUrl(theUrl);
+      retVal.setUsername(theUsername);
+      retVal.setPassword(thePassword);
+
+      int maxPoolSize = HapiProperties.getDataSourceMaxPoolSize();
+      retVal.setMaxTotal(maxPoolSize);
+      retVal.setMaxIdle(maxPoolSize);
+      retVal.setMinIdle(HapiProperties.getDataSourceMinIdle());
+      retVal.setMaxWaitMillis(HapiProperties.getDataSourceConnectionTimeoutMillis());
+      retVal.setMaxConnLifetimeMillis(HapiProperties.getDataSourceMaxLifetimeMillis());
+      retVal.setMinEvictableIdleTimeMillis(HapiProperties.getDataSourceIdleTimeoutMillis());
+      retVal.setTimeBetweenEvictionRunsMillis(EVICTION_RUN_INTERVAL_MILLIS);
+
+      retVal.setTestOnBorrow(true);
+      retVal.setValidationQuery(HapiProperties.getDataSourceValidationQuery());
+      retVal.setValidationQueryTimeout(toSeconds(HapiProperties.getDataSourceValidationTimeoutMillis()));
+
+      int leakDetectionThresholdMillis = HapiProperties.getDataSourceLeakDetectionThresholdMillis();
+      if (leakDetectionThresholdMillis > 0) {
+        // DBCP2 also closes the leaked connection, so that the pool does not run dry
+        retVal.setRemoveAbandonedOnMaintenance(true);
+        retVal.setRemoveAbandonedTimeout(toSeconds(leakDetectionThresholdMillis));
+        retVal.setLogAbandoned(true);
+        retVal.setAbandonedLogWriter(new PrintWriter(new LeakWarningWriter()));
+      }
+
+      retVal.bindTo(theMeterRegistry);
+      return retVal;
+    }
+  },
+
+  HIKARI {
+    @Override
+    DataSource createDataSource(String thePoolName, String theUrl, String theUsername, String thePassword, MeterRegistry theMeterRegistry) {
+      HikariConfig config = new HikariConfig();
+      config.setPoolName(thePoolName);
+      config.setDriverClassName(HapiProperties.getDataSourceDriver());
+      config.setJdbcUrl(theUrl);
+      config.setUsername(theUsername);
+      config.setPassword(thePassword);
+
+      config.setMaximumPoolSize(HapiProperties.getDataSourceMaxPoolSize());
+      config.setMinimumIdle(HapiProperties.getDataSourceMinIdle());
+      config.setConnectionTimeout(HapiProperties.getDataSourceConnectionTimeoutMillis());
+      config.setIdleTimeout(HapiProperties.getDataSourceIdleTimeoutMillis());
+      config.setMaxLifetime(HapiProperties.getDataSourceMaxLifetimeMillis());
+      config.setConnectionTestQuery(HapiProperties.getDataSourceValidationQuery());
+      config.setValidationTimeout(HapiProperties.getDataSourceValidationTimeoutMillis());
+      config.setLeakDetectionThreshold(HapiProperties.getDataSourceLeakDetectionThresholdMillis());
+
+      config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(theMeterRegistry));
+      return new HikariDataSource(config);
+    }
+  };
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(DataSourcePool.class);
+
+  /**
+   * Tag value identifying the server's (primary) pool in the connection pool metrics.
+   * Read replica pools are named <code>hapi-replica-0</code>, <code>hapi-replica-1</code>...
+   */
+  static final String POOL_NAME = "hapi";
+
+  private static final long EVICTION_RUN_INTERVAL_MILLIS = 30000;
+
+  /**
+   * Creates a pool for one database. The returned data source must be closed on shutdown.
+   */
+  abstract DataSource createDataSource(String thePoolName, String theUrl, String theUsername, String thePassword, MeterRegistry theMeterRegistry) throws ReflectiveOperationException;
+
+  /**
+   * Creates the configured pool, publishing acquire times as percentile
+   * histograms so that queueing for connections shows up in the tail latencies.
+   * If read replicas are configured, each gets its own pool and a
+   * {@link ReplicaRoutingDataSource} over all of them is returned.
+   */
+  public static DataSource create(MeterRegistry theMeterRegistry) {
+    theMeterRegistry.config().meterFilter(new MeterFilter() {
+      @Override
+      public DistributionStatisticConfig configure(Meter.Id theId, DistributionStatisticConfig theConfig) {
+        if (theId.getName().endsWith(".connections.acquire")) {
+          return DistributionStatisticConfig.builder()
+            .percentilesHistogram(true)
+            .build()
+            .merge(theConfig);
+        }
+        return theConfig;
+      }
+    });
+
+    DataSourcePool pool = HapiProperties.getDataSourcePool();
+    ourLog.info("Using {} connection pool with up to {} connections", pool.name().toLowerCase(Locale.ROOT), HapiProperties.getDataSourceMaxPoolSize());
+    try {
+      DataSource primary = pool.createDataSource(POOL_NAME, HapiProperties.getDataSourceUrl(), HapiProperties.getDataSourceUsername(), HapiProperties.getDataSourcePassword(), theMeterRegistry);
+      List<String> replicaUrls = HapiProperties.getDataSourceReplicaUrls();
+      if (replicaUrls.isEmpty()) {
+        return primary;
+      }
+
+      List<DataSource> replicas = new ArrayList<>();
+      for (String next : replicaUrls) {
+        String poolName = POOL_NAME + "-replica-" + replicas.size();
+        replicas.add(pool.createDataSource(poolName, next, HapiProperties.getDataSourceReplicaUsername(), HapiProperties.getDataSourceReplicaPassword(), theMeterRegistry));
+      }
+      ourLog.info("Routing read-only requests to {} read replica(s)", replicas.size());
+      return new ReplicaRoutingDataSource(primary, replicas, HapiProperties.getDataSourceReplicaSelection(), theMeterRegistry);
+    } catch (ReflectiveOperationException e) {
+      throw new ConfigurationException("Could not load the JDBC driver " + HapiProperties.getDataSourceDriver(), e);
+    }
+  }
+
+  static DataSourcePool fromPropertyValue(String theValue) {
+    try {
+      return valueOf(theValue.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("Unknown datasource.pool '" + theValue + "', expected dbcp2 or hikari");
+    }
+  }
+
+  private static int toSeconds(int theMillis) {
+    return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(theMillis + 999));
+  }
+
+  /**
+   * Sends the stack traces DBCP2 prints for abandoned connections to the log,
+   * one warning per connection
+   */
+  private static class LeakWarningWriter extends Writer {
+    private final StringBuilder myBuffer = new StringBuilder();
+
+    @Override
+    public synchronized void write(char[] theChars, int theOffset, int theLength) {
+      myBuffer.append(theChars, theOffset, theLength);
+    }
+
+    @Override
+    public synchronized void flush() {
+      if (myBuffer.length() > 0) {
+        ourLog.warn("Connection leak detected, the connection was borrowed by:\n{}", myBuffer.toString().trim());
+        myBuffer.setLength(0);
+      }
+    }
+
+    @Override
+    public void close() {
+      flush();
+    }
+  }
+}
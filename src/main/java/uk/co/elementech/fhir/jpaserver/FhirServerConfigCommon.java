@@ -1,25 +1,34 @@
 package uk.co.elementech.fhir.jpaserver;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.binstore.DatabaseBlobBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.dao.SearchBuilderFactory;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
 import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionDeliveryHandlerFactory;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.IEmailSender;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.JavaMailEmailSender;
-import org.apache.commons.dbcp2.BasicDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.hl7.fhir.dstu2.model.Subscription;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 import org.thymeleaf.util.Validate;
 
-import java.lang.reflect.InvocationTargetException;
-import java.sql.Driver;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.nio.file.Paths;
 
 /**
  * This is the primary configuration file for the example server
@@ -133,6 +142,14 @@ public class FhirServerConfigCommon {
     return retVal;
   }
 
+  /**
+   * Registry for the server's runtime metrics, which can be scraped in Prometheus format
+   */
+  @Bean
+  public PrometheusMeterRegistry meterRegistry() {
+    return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+  }
+
   @Bean
   public PartitionSettings partitionSettings() {
     return new PartitionSettings();
@@ -164,23 +181,68 @@ public class FhirServerConfigCommon {
    * directory called "jpaserver_derby_files".
    * <p>
    * A URL to a remote database could also be placed here, along with login credentials and other properties supported by BasicDataSource.
+   * <p>
+   * The pool implementation (DBCP2 or HikariCP) is chosen with <code>datasource.pool</code>, see {@link DataSourcePool}.
    */
   @Bean(destroyMethod = "close")
-  public BasicDataSource dataSource() throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
-    BasicDataSource retVal = new BasicDataSource();
-    Driver driver = (Driver) Class.forName(HapiProperties.getDataSourceDriver()).getConstructor().newInstance();
-    retVal.setDriver(driver);
-    retVal.setUrl(HapiProperties.getDataSourceUrl());
-    retVal.setUsername(HapiProperties.getDataSourceUsername());
-    retVal.setPassword(HapiProperties.getDataSourcePassword());
-    retVal.setMaxTotal(HapiProperties.getDataSourceMaxPoolSize());
+  public DataSource dataSource(MeterRegistry theMeterRegistry) {
+    DataSource retVal = DataSourcePool.create(theMeterRegistry);
+    if (HapiProperties.getMetricsEnabled()) {
+      // Times JDBC statements for the per-request database time (see RequestMetricsInterceptor)
+      retVal = new StatementTimingDataSource(retVal);
+    }
     return retVal;
   }
 
+  @Bean(destroyMethod = "close")
+  public SecondLevelCache secondLevelCache(MeterRegistry theMeterRegistry) {
+    return SecondLevelCache.create(theMeterRegistry);
+  }
+
+  /**
+   * Streams bulk exports into NDJSON files, used instead of the HAPI bulk export
+   * provider when bulk.export.directory is set (see JpaRestfulServer)
+   */
+  @Lazy
+  @Bean(initMethod = "start", destroyMethod = "close")
+  public NdjsonExportSvc ndjsonExportSvc(FhirContext theFhirContext, DataSource theDataSource, DaoRegistry theDaoRegistry,
+                                         SearchBuilderFactory theSearchBuilderFactory, PlatformTransactionManager theTransactionManager) {
+    return new NdjsonExportSvc(
+      theFhirContext,
+      theDataSource,
+      new JpaResourceLoader(theDaoRegistry, theSearchBuilderFactory, theTransactionManager),
+      Paths.get(HapiProperties.getBulkExportDirectory()),
+      HapiProperties.getBulkExportGzip(),
+      HapiProperties.getBulkExportChunkSize(),
+      HapiProperties.getBulkExportThreads(),
+      HapiProperties.getBulkExportRetentionHours());
+  }
+
+  /**
+   * Runs <code>$import</code> jobs, see NdjsonImportProvider
+   */
+  @Lazy
+  @Bean(destroyMethod = "close")
+  public NdjsonImportSvc ndjsonImportSvc(FhirContext theFhirContext, DaoRegistry theDaoRegistry,
+                                         EntityManagerFactory theEntityManagerFactory, PlatformTransactionManager theTransactionManager) {
+    JpaImportResourceWriter writer = new JpaImportResourceWriter(
+      theFhirContext,
+      theDaoRegistry,
+      SharedEntityManagerCreator.createSharedEntityManager(theEntityManagerFactory),
+      theTransactionManager,
+      HapiProperties.getBulkImportJdbcBatchSize());
+    return new NdjsonImportSvc(theFhirContext, writer, HapiProperties.getBulkImportThreads(), HapiProperties.getBulkImportBatchSize());
+  }
+
   @Lazy
   @Bean
-  public IBinaryStorageSvc binaryStorageSvc() {
-    DatabaseBlobBinaryStorageSvcImpl binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+  public IBinaryStorageSvc binaryStorageSvc(FhirContext theFhirContext) {
+    IBinaryStorageSvc binaryStorageSvc;
+    if (HapiProperties.isBinaryStorageFilesystem()) {
+      binaryStorageSvc = new FilesystemBinaryStorageSvc(theFhirContext, Paths.get(HapiProperties.getBinaryStorageDirectory()));
+    } else {
+      binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+    }
 
     if (HapiProperties.getMaxBinarySize() != null) {
       binaryStorageSvc.setMaximumBinarySize(HapiProperties.getMaxBinarySize());
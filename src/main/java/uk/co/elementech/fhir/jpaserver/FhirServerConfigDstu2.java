@@ -3,6 +3,7 @@ package uk.co.elementech.fhir.jpaserver;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigDstu2;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,14 +19,23 @@ public class FhirServerConfigDstu2 extends BaseJavaConfigDstu2 {
     @Autowired
     private DataSource myDataSource;
 
+    @Autowired
+    private SecondLevelCache mySecondLevelCache;
+
+    @Autowired
+    private MeterRegistry myMeterRegistry;
+
     /**
      * We override the paging provider definition so that we can customize
      * the default/max page sizes for search results. You can set these however
      * you want, although very large page sizes will require a lot of RAM.
+     * With paging.prefetch.enabled the next page of a search is loaded ahead.
      */
     @Override
     public DatabaseBackedPagingProvider databaseBackedPagingProvider() {
-        DatabaseBackedPagingProvider pagingProvider = super.databaseBackedPagingProvider();
+        DatabaseBackedPagingProvider pagingProvider = HapiProperties.getPagingPrefetchEnabled()
+            ? PrefetchingPagingProvider.create(myMeterRegistry)
+            : super.databaseBackedPagingProvider();
         pagingProvider.setDefaultPageSize(HapiProperties.getDefaultPageSize());
         pagingProvider.setMaximumPageSize(HapiProperties.getMaximumPageSize());
         return pagingProvider;
@@ -43,7 +53,7 @@ public class FhirServerConfigDstu2 extends BaseJavaConfigDstu2 {
             throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
         }
 
-        retVal.setJpaProperties(HapiProperties.getJpaProperties());
+        retVal.setJpaProperties(mySecondLevelCache.apply(HapiProperties.getJpaProperties()));
         return retVal;
     }
 
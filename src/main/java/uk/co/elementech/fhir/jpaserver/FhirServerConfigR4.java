@@ -3,6 +3,7 @@ package uk.co.elementech.fhir.jpaserver;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigR4;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import org.mitre.openid.connect.client.service.ServerConfigurationService;
 import org.mitre.openid.connect.client.service.impl.DynamicServerConfigurationService;
@@ -22,14 +23,23 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
     @Autowired
     private DataSource myDataSource;
 
+    @Autowired
+    private SecondLevelCache mySecondLevelCache;
+
+    @Autowired
+    private MeterRegistry myMeterRegistry;
+
     /**
      * We override the paging provider definition so that we can customize
      * the default/max page sizes for search results. You can set these however
      * you want, although very large page sizes will require a lot of RAM.
+     * With paging.prefetch.enabled the next page of a search is loaded ahead.
      */
     @Override
     public DatabaseBackedPagingProvider databaseBackedPagingProvider() {
-        DatabaseBackedPagingProvider pagingProvider = super.databaseBackedPagingProvider();
+        DatabaseBackedPagingProvider pagingProvider = HapiProperties.getPagingPrefetchEnabled()
+            ? PrefetchingPagingProvider.create(myMeterRegistry)
+            : super.databaseBackedPagingProvider();
         pagingProvider.setDefaultPageSize(HapiProperties.getDefaultPageSize());
         pagingProvider.setMaximumPageSize(HapiProperties.getMaximumPageSize());
         return pagingProvider;
@@ -47,7 +57,7 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
             throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
         }
 
-        retVal.setJpaProperties(HapiProperties.getJpaProperties());
+        retVal.setJpaProperties(mySecondLevelCache.apply(HapiProperties.getJpaProperties()));
         return retVal;
     }
 
@@ -0,0 +1,394 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.binstore.BaseBinaryStorageSvcImpl;
+import ca.uhn.fhir.jpa.binstore.StoredDetails;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashingInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Stores binaries as content-addressed files: the blob id is the SHA-256 hash
+ * of the content, and a blob lives in <code>ab/cd/abcd...</code> under the base
+ * directory, next to a JSON file with its details. Storing the same content
+ * twice keeps a single file.
+ * <p>
+ * Uploads are copied from the request stream to a temporary file while the
+ * hash is computed, and moved into place once complete, so a blob is never
+ * held in memory and a partial upload is never visible. Downloads are
+ * transferred straight from the file channel to the response stream.
+ * <p>
+ * Every resource version that refers to a blob leaves a reference marker
+ * named after the version in the blob's <code>.refs</code> directory, holding
+ * the content type of that version's binary, as the same content may be
+ * stored with different content types. The markers are written when the
+ * version is committed, as the id is not known yet when a created resource's
+ * blob is stored; until then, a pending marker left by the store keeps the
+ * blob for {@value #PENDING_MARKER_MINUTES} minutes. Expunging a version
+ * removes its marker, and the file is deleted when the last marker is gone.
+ * <p>
+ * The markers are written by the commit hooks, so this service is also
+ * registered as an interceptor with the JPA interceptor service.
+ */
+@Interceptor
+public class FilesystemBinaryStorageSvc extends BaseBinaryStorageSvcImpl {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FilesystemBinaryStorageSvc.class);
+
+  private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+  private static final long TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int LOCK_STRIPES = 64;
+  private static final String PENDING_PREFIX = "pending_";
+  static final long PENDING_MARKER_MINUTES = 60;
+
+  private final FhirContext myFhirContext;
+  private final Path myBaseDirectory;
+  private final Path myTempDirectory;
+  private final ObjectMapper myJsonSerializer = new ObjectMapper();
+  private final Object[] myLocks = new Object[LOCK_STRIPES];
+
+  public FilesystemBinaryStorageSvc(FhirContext theFhirContext, Path theBaseDirectory) {
+    myFhirContext = theFhirContext;
+    myBaseDirectory = theBaseDirectory;
+    myTempDirectory = theBaseDirectory.resolve("tmp");
+    for (int i = 0; i < myLocks.length; i++) {
+      myLocks[i] = new Object();
+    }
+    try {
+      Files.createDirectories(myTempDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create the binary storage directory " + myBaseDirectory, e);
+    }
+    ourLog.info("Storing binaries in {}", myBaseDirectory.toAbsolutePath());
+  }
+
+  /**
+   * The blob id is always the hash of the content, so a requested blob id is ignored
+   */
+  @Override
+  public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream) throws IOException {
+    if (theBlobIdOrNull != null) {
+      ourLog.debug("Ignoring requested blob id {}, blobs are stored by content hash", theBlobIdOrNull);
+    }
+
+    Path temp = Files.createTempFile(myTempDirectory, "upload", ".tmp");
+    try {
+      CountingInputStream countingInputStream = createCountingInputStream(theInputStream);
+      HashingInputStream hashingInputStream = createHashingInputStream(countingInputStream);
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ReadableByteChannel source = Channels.newChannel(hashingInputStream);
+        long position = 0;
+        long transferred;
+        while ((transferred = channel.transferFrom(source, position, TRANSFER_CHUNK_BYTES)) > 0) {
+          position += transferred;
+        }
+        channel.force(false);
+      }
+
+      // Fails with a PayloadTooLargeException if the maximum size was exceeded
+      long bytes = countingInputStream.getCount();
+      StoredDetails retVal = new StoredDetails(null, bytes, theContentType, hashingInputStream, new Date());
+      String hash = retVal.getHash();
+      retVal.setBlobId(hash);
+
+      Path content = getContentFile(hash);
+      synchronized (getLock(hash)) {
+        if (Files.exists(content)) {
+          // The same bytes may have been stored with another content type
+          retVal = readDetails(hash);
+          retVal.setContentType(theContentType);
+        } else {
+          Files.createDirectories(content.getParent());
+          writeDetails(hash, retVal);
+          Files.move(temp, content, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Path references = getReferencesDirectory(hash);
+        Files.createDirectories(references);
+        Files.createFile(references.resolve(PENDING_PREFIX + UUID.randomUUID()));
+      }
+      ourLog.debug("Stored {} bytes as blob {}", bytes, hash);
+      return retVal;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * The details carry the content type the resource stored the blob with,
+   * that of its current version if the id has no version
+   */
+  @Override
+  public StoredDetails fetchBlobDetails(IIdType theResourceId, String theBlobId) throws IOException {
+    if (!isBlobId(theBlobId) || !Files.exists(getContentFile(theBlobId))) {
+      return null;
+    }
+    StoredDetails retVal = readDetails(theBlobId);
+    Path marker = findReference(theResourceId, theBlobId);
+    if (marker != null) {
+      try {
+        String contentType = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8);
+        if (!contentType.isEmpty()) {
+          retVal.setContentType(contentType);
+        }
+      } catch (NoSuchFileException e) {
+        // Expunged meanwhile
+      }
+    }
+    return retVal;
+  }
+
+  @Override
+  public boolean writeBlob(IIdType theResourceId, String theBlobId, OutputStream theOutputStream) throws IOException {
+    if (!isBlobId(theBlobId)) {
+      return false;
+    }
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(getContentFile(theBlobId), StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    try (FileChannel source = channel) {
+      // Not closed, as that would close the output stream
+      WritableByteChannel target = Channels.newChannel(theOutputStream);
+      long size = source.size();
+      long position = 0;
+      while (position < size) {
+        position += source.transferTo(position, Math.min(size - position, TRANSFER_CHUNK_BYTES), target);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public byte[] fetchBlob(IIdType theResourceId, String theBlobId) throws IOException {
+    if (isBlobId(theBlobId)) {
+      try {
+        return Files.readAllBytes(getContentFile(theBlobId));
+      } catch (NoSuchFileException e) {
+        // Fall through
+      }
+    }
+    throw new ResourceNotFoundException("Unknown blob ID: " + theBlobId + " for resource ID " + theResourceId);
+  }
+
+  /**
+   * Called for each version that is expunged, so only removes the marker of
+   * that version, or those of all versions if the id has no version
+   */
+  @Override
+  public void expungeBlob(IIdType theResourceId, String theBlobId) {
+    String name = getReferenceName(theResourceId);
+    if (!isBlobId(theBlobId) || name == null) {
+      return;
+    }
+    long stalePending = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(PENDING_MARKER_MINUTES);
+    synchronized (getLock(theBlobId)) {
+      Path references = getReferencesDirectory(theBlobId);
+      try {
+        if (!Files.isDirectory(references)) {
+          return;
+        }
+        boolean remaining = false;
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(references)) {
+          for (Path next : markers) {
+            String marker = next.getFileName().toString();
+            if (theResourceId.hasVersionIdPart() ? marker.equals(name) : marker.startsWith(name)) {
+              Files.delete(next);
+            } else if (marker.startsWith(PENDING_PREFIX) && Files.getLastModifiedTime(next).toMillis() < stalePending) {
+              // Left by a store whose transaction never committed
+              Files.delete(next);
+            } else {
+              remaining = true;
+            }
+          }
+        }
+        if (!remaining) {
+          Files.deleteIfExists(getContentFile(theBlobId));
+          Files.deleteIfExists(getDetailsFile(theBlobId));
+          Files.deleteIfExists(references);
+          ourLog.debug("Deleted blob {}", theBlobId);
+        }
+      } catch (IOException e) {
+        ourLog.warn("Could not expunge blob {} of {}", theBlobId, theResourceId, e);
+      }
+    }
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    addReferences(theResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    addReferences(theNewResource);
+  }
+
+  /**
+   * Leaves a marker for the version of the resource in each blob it refers to
+   */
+  private void addReferences(IBaseResource theResource) {
+    String name = getReferenceName(theResource.getIdElement().hasResourceType()
+      ? theResource.getIdElement()
+      : theResource.getIdElement().withResourceType(myFhirContext.getResourceDefinition(theResource).getName()));
+    if (name == null) {
+      return;
+    }
+    for (Map.Entry<String, String> next : getBlobIds(theResource).entrySet()) {
+      String blobId = next.getKey();
+      synchronized (getLock(blobId)) {
+        Path references = getReferencesDirectory(blobId);
+        if (!Files.exists(getContentFile(blobId))) {
+          ourLog.warn("Resource {} refers to missing blob {}", theResource.getIdElement().getValue(), blobId);
+          continue;
+        }
+        try {
+          Files.createDirectories(references);
+          Files.write(references.resolve(name), next.getValue() != null ? next.getValue().getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Could not store the reference of " + theResource.getIdElement().getValue() + " to blob " + blobId, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the ids of the stored blobs of a Binary or of the attachments of a resource, with their content types
+   */
+  private Map<String, String> getBlobIds(IBaseResource theResource) {
+    Map<String, String> retVal = new LinkedHashMap<>();
+    if (theResource instanceof IBaseBinary) {
+      IBaseBinary binary = (IBaseBinary) theResource;
+      addBlobId(retVal, binary.getContentElement(), binary.getContentType());
+    } else {
+      FhirTerser terser = myFhirContext.newTerser();
+      Class<? extends IBase> attachmentType = myFhirContext.getElementDefinition("Attachment").getImplementingClass();
+      for (IBase next : terser.getAllPopulatedChildElementsOfType(theResource, attachmentType)) {
+        Object contentType = terser.getSingleValueOrNull(next, "contentType");
+        addBlobId(retVal, terser.getSingleValueOrNull(next, "data", IBase.class), contentType instanceof IPrimitiveType ? ((IPrimitiveType<?>) contentType).getValueAsString() : null);
+      }
+    }
+    return retVal;
+  }
+
+  private static void addBlobId(Map<String, String> theBlobIds, IBase theData, String theContentType) {
+    if (!(theData instanceof IBaseHasExtensions)) {
+      return;
+    }
+    for (IBaseExtension<?, ?> next : ((IBaseHasExtensions) theData).getExtension()) {
+      if (JpaConstants.EXT_EXTERNALIZED_BINARY_ID.equals(next.getUrl()) && next.getValue() instanceof IPrimitiveType) {
+        String blobId = ((IPrimitiveType<?>) next.getValue()).getValueAsString();
+        if (isBlobId(blobId)) {
+          theBlobIds.put(blobId, theContentType);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the marker of the version, or of the latest version if the id has none, or null if there is none
+   */
+  private Path findReference(IIdType theResourceId, String theBlobId) throws IOException {
+    Path references = getReferencesDirectory(theBlobId);
+    String name = getReferenceName(theResourceId);
+    if (name == null || !Files.isDirectory(references)) {
+      return null;
+    }
+    if (theResourceId.hasVersionIdPart()) {
+      Path retVal = references.resolve(name);
+      return Files.exists(retVal) ? retVal : null;
+    }
+    Path retVal = null;
+    long latest = -1;
+    try (DirectoryStream<Path> markers = Files.newDirectoryStream(references, name + "*")) {
+      for (Path next : markers) {
+        try {
+          long version = Long.parseLong(next.getFileName().toString().substring(name.length()));
+          if (version > latest) {
+            latest = version;
+            retVal = next;
+          }
+        } catch (NumberFormatException e) {
+          // Not a version marker
+        }
+      }
+    }
+    return retVal;
+  }
+
+  Path getContentFile(String theBlobId) {
+    return myBaseDirectory.resolve(theBlobId.substring(0, 2)).resolve(theBlobId.substring(2, 4)).resolve(theBlobId);
+  }
+
+  private Path getDetailsFile(String theBlobId) {
+    return getContentFile(theBlobId).resolveSibling(theBlobId + ".json");
+  }
+
+  private Path getReferencesDirectory(String theBlobId) {
+    return getContentFile(theBlobId).resolveSibling(theBlobId + ".refs");
+  }
+
+  private StoredDetails readDetails(String theBlobId) throws IOException {
+    return myJsonSerializer.readValue(getDetailsFile(theBlobId).toFile(), StoredDetails.class);
+  }
+
+  private void writeDetails(String theBlobId, StoredDetails theDetails) throws IOException {
+    myJsonSerializer.writeValue(getDetailsFile(theBlobId).toFile(), theDetails);
+  }
+
+  private Object getLock(String theBlobId) {
+    return myLocks[Math.floorMod(theBlobId.hashCode(), LOCK_STRIPES)];
+  }
+
+  /**
+   * @return the name of the marker of the resource version, without the version if the id has none, or null if the id is incomplete
+   */
+  private static String getReferenceName(IIdType theResourceId) {
+    if (theResourceId == null || !theResourceId.hasResourceType() || !theResourceId.hasIdPart()) {
+      return null;
+    }
+    // FHIR ids never contain an underscore
+    String retVal = theResourceId.getResourceType() + "_" + theResourceId.getIdPart() + "_";
+    return theResourceId.hasVersionIdPart() ? retVal + theResourceId.getVersionIdPart() : retVal;
+  }
+
+  private static boolean isBlobId(String theBlobId) {
+    return theBlobId != null && HASH_PATTERN.matcher(theBlobId).matches();
+  }
+}
@@ -3,8 +3,8 @@ package uk.co.elementech.fhir.jpaserver;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.jpa.search.elastic.ElasticsearchHibernatePropertiesBuilder;
-import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import com.google.common.annotations.VisibleForTesting;
 import org.hibernate.search.elasticsearch.cfg.ElasticsearchIndexStatus;
@@ -14,10 +14,17 @@ import org.jetbrains.annotations.NotNull;
 import javax.annotation.Nonnull;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringUtils.defaultString;
@@ -25,11 +32,15 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.apache.commons.lang3.StringUtils.trim;
 
 public class HapiProperties {
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HapiProperties.class);
+
   static final String ENABLE_INDEX_MISSING_FIELDS = "enable_index_missing_fields";
   static final String AUTO_CREATE_PLACEHOLDER_REFERENCE_TARGETS = "auto_create_placeholder_reference_targets";
   static final String ENFORCE_REFERENTIAL_INTEGRITY_ON_WRITE = "enforce_referential_integrity_on_write";
   static final String ENFORCE_REFERENTIAL_INTEGRITY_ON_DELETE = "enforce_referential_integrity_on_delete";
   static final String BINARY_STORAGE_ENABLED = "binary_storage.enabled";
+  static final String BINARY_STORAGE_MODE = "binary_storage.mode";
+  static final String BINARY_STORAGE_DIRECTORY = "binary_storage.directory";
   static final String ALLOW_EXTERNAL_REFERENCES = "allow_external_references";
   static final String ALLOW_MULTIPLE_DELETE = "allow_multiple_delete";
   static final String ALLOW_PLACEHOLDER_REFERENCES = "allow_placeholder_references";
@@ -39,8 +50,51 @@ public class HapiProperties {
   static final String DATASOURCE_PASSWORD = "datasource.password";
   static final String DATASOURCE_URL = "datasource.url";
   static final String DATASOURCE_USERNAME = "datasource.username";
+  static final String DATASOURCE_POOL = "datasource.pool";
+  static final String DATASOURCE_MIN_IDLE = "datasource.min_idle";
+  static final String DATASOURCE_CONNECTION_TIMEOUT_MILLIS = "datasource.connection_timeout_millis";
+  static final String DATASOURCE_IDLE_TIMEOUT_MILLIS = "datasource.idle_timeout_millis";
+  static final String DATASOURCE_MAX_LIFETIME_MILLIS = "datasource.max_lifetime_millis";
+  static final String DATASOURCE_VALIDATION_QUERY = "datasource.validation_query";
+  static final String DATASOURCE_VALIDATION_TIMEOUT_MILLIS = "datasource.validation_timeout_millis";
+  static final String DATASOURCE_LEAK_DETECTION_THRESHOLD_MILLIS = "datasource.leak_detection_threshold_millis";
+  static final String DATASOURCE_REPLICA_URLS = "datasource.replica.urls";
+  static final String DATASOURCE_REPLICA_USERNAME = "datasource.replica.username";
+  static final String DATASOURCE_REPLICA_PASSWORD = "datasource.replica.password";
+  static final String DATASOURCE_REPLICA_SELECTION = "datasource.replica.selection";
+  static final String DATASOURCE_REPLICA_OPERATIONS = "datasource.replica.operations";
+  static final String DATASOURCE_REPLICA_READ_YOUR_WRITES_MILLIS = "datasource.replica.read_your_writes_millis";
+  static final String METRICS_ENABLED = "metrics.enabled";
+  static final String RESPONSE_CACHE_ENABLED = "response_cache.enabled";
+  static final String RESPONSE_CACHE_MAX_SIZE_MB = "response_cache.max_size_mb";
+  static final String SEARCH_CACHE_ENABLED = "search_cache.enabled";
+  static final String SEARCH_CACHE_MAX_SIZE_MB = "search_cache.max_size_mb";
+  static final String SEARCH_CACHE_TTL_SECONDS = "search_cache.ttl_seconds";
+  static final String CLUSTER_INVALIDATION_ENABLED = "cluster.invalidation.enabled";
+  static final String CLUSTER_INVALIDATION_NODE_ID = "cluster.invalidation.node_id";
+  static final String CLUSTER_INVALIDATION_POLL_INTERVAL_MILLIS = "cluster.invalidation.poll_interval_millis";
+  static final String CLUSTER_INVALIDATION_FLUSH_INTERVAL_MILLIS = "cluster.invalidation.flush_interval_millis";
+  static final String CLUSTER_INVALIDATION_MAX_BATCH_SIZE = "cluster.invalidation.max_batch_size";
+  static final String CLUSTER_INVALIDATION_RETENTION_MINUTES = "cluster.invalidation.retention_minutes";
+  static final String RESPONSE_HIGHLIGHTER_ENABLED = "response_highlighter.enabled";
+  static final String NARRATIVE_MODE = "narrative.mode";
+  static final String NARRATIVE_RESOURCE_TYPES = "narrative.resource_types";
+  static final String NARRATIVE_CACHE_SIZE = "narrative.cache_size";
+  static final String ACCESS_LOG_ASYNC = "access_log.async";
+  static final String ACCESS_LOG_FORMAT = "access_log.format";
+  static final String ACCESS_LOG_FILE = "access_log.file";
+  static final String ACCESS_LOG_BUFFER_SIZE = "access_log.buffer_size";
+  static final String ACCESS_LOG_BATCH_SIZE = "access_log.batch_size";
+  static final String ACCESS_LOG_FULL_POLICY = "access_log.full_policy";
+  static final String SECOND_LEVEL_CACHE_ENABLED = "hibernate.cache.use_second_level_cache";
+  static final String SECOND_LEVEL_CACHE_REGIONS = "jpa.cache.regions";
+  static final String SECOND_LEVEL_CACHE_PREFIX = "jpa.cache.";
   static final String DEFAULT_ENCODING = "default_encoding";
   static final String DEFAULT_PAGE_SIZE = "default_page_size";
+  static final String PAGING_PREFETCH_ENABLED = "paging.prefetch.enabled";
+  static final String PAGING_PREFETCH_THREADS = "paging.prefetch.threads";
+  static final String PAGING_PREFETCH_QUEUE_SIZE = "paging.prefetch.queue_size";
+  static final String PAGING_PREFETCH_MAX_RESOURCES = "paging.prefetch.max_resources";
   static final String DEFAULT_PRETTY_PRINT = "default_pretty_print";
   static final String ETAG_SUPPORT = "etag_support";
   static final String FHIR_VERSION = "fhir_version";
@@ -58,6 +112,19 @@ public class HapiProperties {
   static final String SUBSCRIPTION_EMAIL_ENABLED = "subscription.email.enabled";
   static final String SUBSCRIPTION_RESTHOOK_ENABLED = "subscription.resthook.enabled";
   static final String SUBSCRIPTION_WEBSOCKET_ENABLED = "subscription.websocket.enabled";
+  static final String SUBSCRIPTION_MATCHING_INDEXED = "subscription.matching.indexed";
+  static final String SUBSCRIPTION_WEBSOCKET_BUFFERED = "subscription.websocket.buffered";
+  static final String SUBSCRIPTION_WEBSOCKET_BUFFER_SIZE = "subscription.websocket.buffer_size";
+  static final String SUBSCRIPTION_WEBSOCKET_SLOW_CONSUMER_POLICY = "subscription.websocket.slow_consumer_policy";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_ENABLED = "subscription.resthook.batching.enabled";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_WINDOW_MILLIS = "subscription.resthook.batching.window_millis";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_MAX_BATCH_SIZE = "subscription.resthook.batching.max_batch_size";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_MAX_IN_FLIGHT = "subscription.resthook.batching.max_in_flight";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_MAX_QUEUE_SIZE = "subscription.resthook.batching.max_queue_size";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_THREADS = "subscription.resthook.batching.threads";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_MAX_ATTEMPTS = "subscription.resthook.batching.max_attempts";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_INITIAL_BACKOFF_MILLIS = "subscription.resthook.batching.initial_backoff_millis";
+  static final String SUBSCRIPTION_RESTHOOK_BATCHING_MAX_BACKOFF_MILLIS = "subscription.resthook.batching.max_backoff_millis";
   static final String ALLOWED_BUNDLE_TYPES = "allowed_bundle_types";
   static final String TEST_PORT = "test.port";
   static final String TESTER_CONFIG_REFUSE_TO_FETCH_THIRD_PARTY_URLS = "tester.config.refuse_to_fetch_third_party_urls";
@@ -69,12 +136,39 @@ public class HapiProperties {
   static final String EMAIL_FROM = "email.from";
   static final String VALIDATE_REQUESTS_ENABLED = "validation.requests.enabled";
   static final String VALIDATE_RESPONSES_ENABLED = "validation.responses.enabled";
+  static final String VALIDATE_REQUESTS_SAMPLE_PERCENT = "validation.requests.sample_percent";
+  static final String VALIDATE_REQUESTS_ASYNC = "validation.requests.async";
+  static final String VALIDATE_REQUESTS_ASYNC_THREADS = "validation.requests.async_threads";
+  static final String VALIDATE_REQUESTS_ASYNC_QUEUE_SIZE = "validation.requests.async_queue_size";
+  static final String VALIDATION_RESULTS_MAX = "validation.results.max";
+  static final String VALIDATION_CACHE_MAX_ENTRIES = "validation.cache.max_entries";
+  static final String VALIDATION_CACHE_TTL_SECONDS = "validation.cache.ttl_seconds";
+  static final String VALIDATION_PRECOMPILE = "validation.precompile";
   static final String FILTER_SEARCH_ENABLED = "filter_search.enabled";
   static final String GRAPHQL_ENABLED = "graphql.enabled";
   static final String BULK_EXPORT_ENABLED = "bulk.export.enabled";
+  static final String BULK_EXPORT_DIRECTORY = "bulk.export.directory";
+  static final String BULK_EXPORT_GZIP = "bulk.export.gzip";
+  static final String BULK_EXPORT_CHUNK_SIZE = "bulk.export.chunk_size";
+  static final String BULK_EXPORT_THREADS = "bulk.export.threads";
+  static final String BULK_EXPORT_RETENTION_HOURS = "bulk.export.retention_hours";
+  static final String BULK_IMPORT_ENABLED = "bulk.import.enabled";
+  static final String BULK_IMPORT_DIRECTORY = "bulk.import.directory";
+  static final String BULK_IMPORT_THREADS = "bulk.import.threads";
+  static final String BULK_IMPORT_BATCH_SIZE = "bulk.import.batch_size";
+  static final String BULK_IMPORT_JDBC_BATCH_SIZE = "bulk.import.jdbc_batch_size";
   static final String EXPIRE_SEARCH_RESULTS_AFTER_MINS = "retain_cached_searches_mins";
   static final String MAX_BINARY_SIZE = "max_binary_size";
-  private static Properties ourProperties;
+  private static volatile PropertiesSnapshot ourSnapshot;
+  private static final List<ChangeListener> ourChangeListeners = new CopyOnWriteArrayList<>();
+  private static final String ourDefaultNodeId = UUID.randomUUID().toString();
+
+  /**
+   * Notified after the configuration has been reloaded with different values
+   */
+  public interface ChangeListener {
+    void propertiesChanged(Set<String> theChangedNames);
+  }
 
   public static boolean isElasticSearchEnabled() {
     return HapiProperties.getPropertyBoolean("elasticsearch.enabled", false);
@@ -84,8 +178,59 @@ public class HapiProperties {
    * Force the configuration to be reloaded
    */
   public static void forceReload() {
-    ourProperties = null;
-    getProperties();
+    publish(new PropertiesSnapshot(loadProperties(), System.getenv()));
+  }
+
+  public static void addChangeListener(ChangeListener theListener) {
+    ourChangeListeners.add(theListener);
+  }
+
+  public static void removeChangeListener(ChangeListener theListener) {
+    ourChangeListeners.remove(theListener);
+  }
+
+  /**
+   * The current configuration. Callers reading several related settings should
+   * read them all from one snapshot, as a reload replaces it as a whole.
+   */
+  public static PropertiesSnapshot getSnapshot() {
+    PropertiesSnapshot retVal = ourSnapshot;
+    if (retVal == null) {
+      synchronized (HapiProperties.class) {
+        retVal = ourSnapshot;
+        if (retVal == null) {
+          retVal = new PropertiesSnapshot(loadProperties(), System.getenv());
+          ourSnapshot = retVal;
+        }
+      }
+    }
+    return retVal;
+  }
+
+  private static void publish(PropertiesSnapshot theSnapshot) {
+    Set<String> changed;
+    synchronized (HapiProperties.class) {
+      PropertiesSnapshot previous = ourSnapshot;
+      ourSnapshot = theSnapshot;
+      changed = previous != null ? previous.getChangedNames(theSnapshot) : Collections.emptySet();
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+    for (ChangeListener next : ourChangeListeners) {
+      try {
+        next.propertiesChanged(changed);
+      } catch (RuntimeException e) {
+        ourLog.error("Configuration change listener failed", e);
+      }
+    }
+  }
+
+  /**
+   * The file given with -Dhapi.properties=&lt;path&gt;, or null if the server only uses the bundled hapi.properties
+   */
+  public static String getOverridePropertiesFile() {
+    return System.getProperty(HAPI_PROPERTIES);
   }
 
   /**
@@ -94,7 +239,9 @@ public class HapiProperties {
    */
   @VisibleForTesting
   public static void setProperty(String theKey, String theValue) {
-    getProperties().setProperty(theKey, theValue);
+    synchronized (HapiProperties.class) {
+      publish(getSnapshot().with(theKey, theValue));
+    }
   }
 
   public static Properties getJpaProperties() {
@@ -115,15 +262,6 @@ public class HapiProperties {
     return retVal;
   }
 
-  private static Properties getProperties() {
-    if (ourProperties == null) {
-      Properties properties = loadProperties();
-      HapiProperties.ourProperties = properties;
-    }
-
-    return ourProperties;
-  }
-
   @NotNull
   private static Properties loadProperties() {
     // Load the configurable properties file
@@ -151,9 +289,9 @@ public class HapiProperties {
   private static Properties loadOverrideProperties() {
     String confFile = System.getProperty(HAPI_PROPERTIES);
     if (confFile != null) {
-      try {
+      try (InputStream in = new FileInputStream(confFile)) {
         Properties props = new Properties();
-        props.load(new FileInputStream(confFile));
+        props.load(in);
         return props;
       } catch (Exception e) {
         throw new ConfigurationException("Could not load HAPI properties file: " + confFile, e);
@@ -164,41 +302,15 @@ public class HapiProperties {
   }
 
   private static String getProperty(String propertyName) {
-    String env = "HAPI_" + propertyName.toUpperCase(Locale.US);
-    env = env.replace(".", "_");
-    env = env.replace("-", "_");
-
-    String propertyValue = System.getenv(env);
-    if (propertyValue != null) {
-      return propertyValue;
-    }
-
-    Properties properties = HapiProperties.getProperties();
-    if (properties != null) {
-      propertyValue = properties.getProperty(propertyName);
-    }
-
-    return propertyValue;
+    return getSnapshot().get(propertyName);
   }
 
   private static String getProperty(String propertyName, String defaultValue) {
-    String value = getProperty(propertyName);
-
-    if (value != null && value.length() > 0) {
-      return value;
-    }
-
-    return defaultValue;
+    return getSnapshot().get(propertyName, defaultValue);
   }
 
   private static Boolean getBooleanProperty(String propertyName, Boolean defaultValue) {
-    String value = HapiProperties.getProperty(propertyName);
-
-    if (value == null || value.length() == 0) {
-      return defaultValue;
-    }
-
-    return Boolean.parseBoolean(value);
+    return getSnapshot().getBoolean(propertyName, defaultValue);
   }
 
   private static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
@@ -206,13 +318,7 @@ public class HapiProperties {
   }
 
   private static Integer getIntegerProperty(String propertyName, Integer defaultValue) {
-    String value = HapiProperties.getProperty(propertyName);
-
-    if (value == null || value.length() == 0) {
-      return defaultValue;
-    }
-
-    return Integer.parseInt(value);
+    return getSnapshot().getInteger(propertyName, defaultValue);
   }
 
   public static FhirVersionEnum getFhirVersion() {
@@ -229,6 +335,26 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(BINARY_STORAGE_ENABLED, true);
   }
 
+  /**
+   * Whether binaries are stored as files in {@link #getBinaryStorageDirectory()}
+   * (binary_storage.mode=filesystem) instead of in the database (the default)
+   */
+  public static boolean isBinaryStorageFilesystem() {
+    String mode = HapiProperties.getProperty(BINARY_STORAGE_MODE, "database").trim().toLowerCase(Locale.ROOT);
+    switch (mode) {
+      case "database":
+        return false;
+      case "filesystem":
+        return true;
+      default:
+        throw new ConfigurationException("Unknown " + BINARY_STORAGE_MODE + " '" + mode + "', expected database or filesystem");
+    }
+  }
+
+  public static String getBinaryStorageDirectory() {
+    return HapiProperties.getProperty(BINARY_STORAGE_DIRECTORY, "target/binaries");
+  }
+
   public static ETagSupportEnum getEtagSupport() {
     String etagSupportString = HapiProperties.getProperty(ETAG_SUPPORT);
 
@@ -265,6 +391,29 @@ public class HapiProperties {
     return HapiProperties.getIntegerProperty(MAX_PAGE_SIZE, 200);
   }
 
+  /**
+   * Whether the next page of a search is loaded in the background while the
+   * client reads the current one
+   */
+  public static boolean getPagingPrefetchEnabled() {
+    return HapiProperties.getBooleanProperty(PAGING_PREFETCH_ENABLED, false);
+  }
+
+  public static int getPagingPrefetchThreads() {
+    return HapiProperties.getIntegerProperty(PAGING_PREFETCH_THREADS, 2);
+  }
+
+  public static int getPagingPrefetchQueueSize() {
+    return HapiProperties.getIntegerProperty(PAGING_PREFETCH_QUEUE_SIZE, 16);
+  }
+
+  /**
+   * The number of prefetched resources held in memory until their page is requested
+   */
+  public static int getPagingPrefetchMaxResources() {
+    return HapiProperties.getIntegerProperty(PAGING_PREFETCH_MAX_RESOURCES, 10000);
+  }
+
   public static Integer getMaximumFetchSize() {
     return HapiProperties.getIntegerProperty(MAX_FETCH_SIZE, Integer.MAX_VALUE);
   }
@@ -285,6 +434,159 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(LOGGER_LOG_EXCEPTIONS, true);
   }
 
+  /**
+   * If true, request latencies are recorded and served from /metrics and the $metrics operation
+   */
+  public static boolean getMetricsEnabled() {
+    return getSnapshot().isMetricsEnabled();
+  }
+
+  /**
+   * If true, {@link ResponseCacheInterceptor} keeps the encoded responses of reads. Every read
+   * still loads the resource, so this is off by default.
+   */
+  public static boolean getResponseCacheEnabled() {
+    return HapiProperties.getBooleanProperty(RESPONSE_CACHE_ENABLED, false);
+  }
+
+  /**
+   * The most encoded read responses {@link ResponseCacheInterceptor} keeps, in megabytes
+   */
+  public static Integer getResponseCacheMaxSizeMb() {
+    return HapiProperties.getIntegerProperty(RESPONSE_CACHE_MAX_SIZE_MB, 64);
+  }
+
+  /**
+   * Whether the first pages of recent searches are kept by {@link SearchCacheInterceptor}
+   */
+  public static boolean getSearchCacheEnabled() {
+    return HapiProperties.getBooleanProperty(SEARCH_CACHE_ENABLED, false);
+  }
+
+  public static Integer getSearchCacheMaxSizeMb() {
+    return HapiProperties.getIntegerProperty(SEARCH_CACHE_MAX_SIZE_MB, 32);
+  }
+
+  /**
+   * How long a cached search page is served, at most, when no write invalidates it
+   */
+  public static Integer getSearchCacheTtlSeconds() {
+    return HapiProperties.getIntegerProperty(SEARCH_CACHE_TTL_SECONDS, 30);
+  }
+
+  /**
+   * Whether writes are published to, and cache invalidations received from,
+   * the other servers sharing the database
+   */
+  public static boolean getClusterInvalidationEnabled() {
+    return HapiProperties.getBooleanProperty(CLUSTER_INVALIDATION_ENABLED, false);
+  }
+
+  /**
+   * The name of this server in the cluster, by default a random id per start
+   */
+  public static String getClusterInvalidationNodeId() {
+    return HapiProperties.getProperty(CLUSTER_INVALIDATION_NODE_ID, ourDefaultNodeId);
+  }
+
+  public static int getClusterInvalidationPollIntervalMillis() {
+    return getPositiveIntegerProperty(CLUSTER_INVALIDATION_POLL_INTERVAL_MILLIS, 1000);
+  }
+
+  public static int getClusterInvalidationFlushIntervalMillis() {
+    return getPositiveIntegerProperty(CLUSTER_INVALIDATION_FLUSH_INTERVAL_MILLIS, 200);
+  }
+
+  /**
+   * The most events sent in one batch before they are sent per resource type instead
+   */
+  public static int getClusterInvalidationMaxBatchSize() {
+    return getPositiveIntegerProperty(CLUSTER_INVALIDATION_MAX_BATCH_SIZE, 500);
+  }
+
+  /**
+   * How long published events are kept for servers to read them
+   */
+  public static int getClusterInvalidationRetentionMinutes() {
+    return getPositiveIntegerProperty(CLUSTER_INVALIDATION_RETENTION_MINUTES, 10);
+  }
+
+  private static int getPositiveIntegerProperty(String thePropertyName, int theDefaultValue) {
+    int value = HapiProperties.getIntegerProperty(thePropertyName, theDefaultValue);
+    if (value <= 0) {
+      throw new ConfigurationException(thePropertyName + " must be greater than 0, was " + value);
+    }
+    return value;
+  }
+
+  public static boolean getResponseHighlighterEnabled() {
+    return HapiProperties.getBooleanProperty(RESPONSE_HIGHLIGHTER_ENABLED, true);
+  }
+
+  /**
+   * Whether narratives are only generated for responses that ask for them
+   * (see {@link NarrativeInterceptor}) rather than whenever a resource is encoded
+   */
+  public static boolean isNarrativeOnRequest() {
+    String mode = HapiProperties.getProperty(NARRATIVE_MODE, "always").trim().toLowerCase(Locale.ROOT);
+    switch (mode) {
+      case "always":
+        return false;
+      case "on_request":
+        return true;
+      default:
+        throw new ConfigurationException("Unknown " + NARRATIVE_MODE + " '" + mode + "', expected always or on_request");
+    }
+  }
+
+  /**
+   * The resource types that get a narrative without asking for it, when narratives are generated on request
+   */
+  public static Set<String> getNarrativeResourceTypes() {
+    Set<String> retVal = new HashSet<>();
+    for (String next : HapiProperties.getProperty(NARRATIVE_RESOURCE_TYPES, "").split(",")) {
+      if (next.trim().length() > 0) {
+        retVal.add(next.trim());
+      }
+    }
+    return retVal;
+  }
+
+  public static Integer getNarrativeCacheSize() {
+    return HapiProperties.getIntegerProperty(NARRATIVE_CACHE_SIZE, 10000);
+  }
+
+  /**
+   * If true, requests are logged by the {@link AccessLogInterceptor} on a background thread instead
+   * of by HAPI's LoggingInterceptor on the request thread
+   */
+  public static boolean getAccessLogAsync() {
+    return HapiProperties.getBooleanProperty(ACCESS_LOG_ASYNC, false);
+  }
+
+  public static AccessLogInterceptor.Format getAccessLogFormat() {
+    return AccessLogInterceptor.parseFormat(HapiProperties.getProperty(ACCESS_LOG_FORMAT, "pattern"));
+  }
+
+  /**
+   * The file the access log is appended to, or null to write it to the logger.name logger
+   */
+  public static String getAccessLogFile() {
+    return HapiProperties.getProperty(ACCESS_LOG_FILE, null);
+  }
+
+  public static Integer getAccessLogBufferSize() {
+    return HapiProperties.getIntegerProperty(ACCESS_LOG_BUFFER_SIZE, 8192);
+  }
+
+  public static Integer getAccessLogBatchSize() {
+    return HapiProperties.getIntegerProperty(ACCESS_LOG_BATCH_SIZE, 256);
+  }
+
+  public static AccessLogInterceptor.FullPolicy getAccessLogFullPolicy() {
+    return AccessLogInterceptor.parseFullPolicy(HapiProperties.getProperty(ACCESS_LOG_FULL_POLICY, "drop"));
+  }
+
   public static String getDataSourceDriver() {
     return HapiProperties.getProperty(DATASOURCE_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver");
   }
@@ -305,6 +607,130 @@ public class HapiProperties {
     return HapiProperties.getProperty(DATASOURCE_PASSWORD);
   }
 
+  public static DataSourcePool getDataSourcePool() {
+    return DataSourcePool.fromPropertyValue(HapiProperties.getProperty(DATASOURCE_POOL, "dbcp2"));
+  }
+
+  /**
+   * Defaults to 2, or the maximum pool size if that is smaller
+   */
+  public static Integer getDataSourceMinIdle() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_MIN_IDLE, Math.min(2, getDataSourceMaxPoolSize()));
+  }
+
+  public static Integer getDataSourceConnectionTimeoutMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_CONNECTION_TIMEOUT_MILLIS, 30000);
+  }
+
+  public static Integer getDataSourceIdleTimeoutMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_IDLE_TIMEOUT_MILLIS, 600000);
+  }
+
+  public static Integer getDataSourceMaxLifetimeMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_MAX_LIFETIME_MILLIS, 1800000);
+  }
+
+  /**
+   * If not set, connections are validated with <code>Connection.isValid()</code>
+   */
+  public static String getDataSourceValidationQuery() {
+    return HapiProperties.getProperty(DATASOURCE_VALIDATION_QUERY, null);
+  }
+
+  public static Integer getDataSourceValidationTimeoutMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_VALIDATION_TIMEOUT_MILLIS, 5000);
+  }
+
+  /**
+   * A connection held for longer than this is reported as a possible leak. 0 disables leak detection.
+   */
+  public static Integer getDataSourceLeakDetectionThresholdMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_LEAK_DETECTION_THRESHOLD_MILLIS, 0);
+  }
+
+  /**
+   * JDBC URLs of read replicas of the primary database, or an empty list if reads are not scaled out
+   */
+  public static List<String> getDataSourceReplicaUrls() {
+    List<String> retVal = new ArrayList<>();
+    String urls = HapiProperties.getProperty(DATASOURCE_REPLICA_URLS, "");
+    for (String next : urls.split(",")) {
+      if (next.trim().length() > 0) {
+        retVal.add(next.trim());
+      }
+    }
+    return retVal;
+  }
+
+  public static String getDataSourceReplicaUsername() {
+    return HapiProperties.getProperty(DATASOURCE_REPLICA_USERNAME, getDataSourceUsername());
+  }
+
+  public static String getDataSourceReplicaPassword() {
+    return HapiProperties.getProperty(DATASOURCE_REPLICA_PASSWORD, getDataSourcePassword());
+  }
+
+  public static ReplicaRoutingDataSource.Selection getDataSourceReplicaSelection() {
+    String value = HapiProperties.getProperty(DATASOURCE_REPLICA_SELECTION, "round_robin");
+    return ReplicaRoutingDataSource.Selection.valueOf(value.trim().toUpperCase(Locale.US));
+  }
+
+  /**
+   * The REST operation types served from a read replica. Defaults to <code>read,vread</code>.
+   */
+  public static Set<RestOperationTypeEnum> getDataSourceReplicaOperations() {
+    Set<RestOperationTypeEnum> retVal = EnumSet.noneOf(RestOperationTypeEnum.class);
+    String operations = HapiProperties.getProperty(DATASOURCE_REPLICA_OPERATIONS, "read,vread");
+    for (String next : operations.split(",")) {
+      if (next.trim().length() > 0) {
+        retVal.add(RestOperationTypeEnum.valueOf(next.trim().toUpperCase(Locale.US)));
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * After a client writes, its reads go to the primary for this long so that it sees its own changes
+   */
+  public static Integer getDataSourceReplicaReadYourWritesMillis() {
+    return HapiProperties.getIntegerProperty(DATASOURCE_REPLICA_READ_YOUR_WRITES_MILLIS, 5000);
+  }
+
+  public static boolean getSecondLevelCacheEnabled() {
+    return HapiProperties.getPropertyBoolean(SECOND_LEVEL_CACHE_ENABLED, false);
+  }
+
+  /**
+   * The entities kept in the second-level cache, by simple class name for HAPI's own entities
+   */
+  public static List<String> getSecondLevelCacheRegions() {
+    List<String> retVal = new ArrayList<>();
+    String regions = HapiProperties.getProperty(SECOND_LEVEL_CACHE_REGIONS, "ResourceTable,ForcedId,TagDefinition");
+    for (String next : regions.split(",")) {
+      if (next.trim().length() > 0) {
+        retVal.add(next.trim());
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * Reads <code>jpa.cache.&lt;region&gt;.max_entries</code>, falling back to <code>jpa.cache.default.max_entries</code>
+   */
+  public static Integer getSecondLevelCacheMaxEntries(String theRegion) {
+    Integer defaultValue = HapiProperties.getIntegerProperty(SECOND_LEVEL_CACHE_PREFIX + "default.max_entries", 10000);
+    return HapiProperties.getIntegerProperty(SECOND_LEVEL_CACHE_PREFIX + theRegion + ".max_entries", defaultValue);
+  }
+
+  /**
+   * Reads <code>jpa.cache.&lt;region&gt;.ttl_seconds</code>, falling back to <code>jpa.cache.default.ttl_seconds</code>.
+   * 0 means entries do not expire.
+   */
+  public static Integer getSecondLevelCacheTtlSeconds(String theRegion) {
+    Integer defaultValue = HapiProperties.getIntegerProperty(SECOND_LEVEL_CACHE_PREFIX + "default.ttl_seconds", 300);
+    return HapiProperties.getIntegerProperty(SECOND_LEVEL_CACHE_PREFIX + theRegion + ".ttl_seconds", defaultValue);
+  }
+
   public static Boolean getAllowMultipleDelete() {
     return HapiProperties.getBooleanProperty(ALLOW_MULTIPLE_DELETE, false);
   }
@@ -374,6 +800,85 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(SUBSCRIPTION_WEBSOCKET_ENABLED, false);
   }
 
+  public static Boolean getSubscriptionMatchingIndexed() {
+    return HapiProperties.getBooleanProperty(SUBSCRIPTION_MATCHING_INDEXED, false);
+  }
+
+  /**
+   * Whether messages to websocket subscribers are queued per session and written asynchronously
+   */
+  public static boolean getSubscriptionWebsocketBuffered() {
+    return HapiProperties.getBooleanProperty(SUBSCRIPTION_WEBSOCKET_BUFFERED, false);
+  }
+
+  /**
+   * The most messages queued for one websocket session
+   */
+  public static int getSubscriptionWebsocketBufferSize() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_WEBSOCKET_BUFFER_SIZE, 256);
+  }
+
+  public static WebsocketFanout.SlowConsumerPolicy getSubscriptionWebsocketSlowConsumerPolicy() {
+    String value = HapiProperties.getProperty(SUBSCRIPTION_WEBSOCKET_SLOW_CONSUMER_POLICY, WebsocketFanout.SlowConsumerPolicy.COALESCE.name());
+    try {
+      return WebsocketFanout.SlowConsumerPolicy.valueOf(value.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException(SUBSCRIPTION_WEBSOCKET_SLOW_CONSUMER_POLICY + " must be one of DROP_OLDEST, COALESCE or DISCONNECT, was " + value);
+    }
+  }
+
+  /**
+   * Whether REST hook notifications are queued per endpoint and delivered in batches
+   */
+  public static boolean getSubscriptionRestHookBatchingEnabled() {
+    return HapiProperties.getBooleanProperty(SUBSCRIPTION_RESTHOOK_BATCHING_ENABLED, false);
+  }
+
+  /**
+   * How long a notification waits for others to the same endpoint, 0 to send it as soon as a batch can be sent
+   */
+  public static int getSubscriptionRestHookBatchingWindowMillis() {
+    int value = HapiProperties.getIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_WINDOW_MILLIS, 1000);
+    if (value < 0) {
+      throw new ConfigurationException(SUBSCRIPTION_RESTHOOK_BATCHING_WINDOW_MILLIS + " must not be negative, was " + value);
+    }
+    return value;
+  }
+
+  public static int getSubscriptionRestHookBatchingMaxBatchSize() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_MAX_BATCH_SIZE, 100);
+  }
+
+  /**
+   * The most batches sent to one endpoint at a time
+   */
+  public static int getSubscriptionRestHookBatchingMaxInFlight() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_MAX_IN_FLIGHT, 2);
+  }
+
+  /**
+   * The most notifications queued for one endpoint, beyond which the delivery threads wait for space
+   */
+  public static int getSubscriptionRestHookBatchingMaxQueueSize() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_MAX_QUEUE_SIZE, 10000);
+  }
+
+  public static int getSubscriptionRestHookBatchingThreads() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_THREADS, 8);
+  }
+
+  public static int getSubscriptionRestHookBatchingMaxAttempts() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_MAX_ATTEMPTS, 5);
+  }
+
+  public static int getSubscriptionRestHookBatchingInitialBackoffMillis() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_INITIAL_BACKOFF_MILLIS, 1000);
+  }
+
+  public static int getSubscriptionRestHookBatchingMaxBackoffMillis() {
+    return getPositiveIntegerProperty(SUBSCRIPTION_RESTHOOK_BATCHING_MAX_BACKOFF_MILLIS, 60000);
+  }
+
   public static Boolean getAllowContainsSearches() {
     return HapiProperties.getBooleanProperty(ALLOW_CONTAINS_SEARCHES, true);
   }
@@ -445,6 +950,49 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(VALIDATE_RESPONSES_ENABLED, false);
   }
 
+  /**
+   * The percentage of incoming requests that are validated, from 0 to 100
+   */
+  public static int getValidateRequestsSamplePercent() {
+    int value = HapiProperties.getIntegerProperty(VALIDATE_REQUESTS_SAMPLE_PERCENT, 100);
+    if (value < 0 || value > 100) {
+      throw new ConfigurationException(VALIDATE_REQUESTS_SAMPLE_PERCENT + " must be between 0 and 100, was " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Whether requests are validated after the fact, by background threads,
+   * instead of being rejected when they are invalid
+   */
+  public static boolean getValidateRequestsAsync() {
+    return HapiProperties.getBooleanProperty(VALIDATE_REQUESTS_ASYNC, false);
+  }
+
+  public static int getValidateRequestsAsyncThreads() {
+    return HapiProperties.getIntegerProperty(VALIDATE_REQUESTS_ASYNC_THREADS, 1);
+  }
+
+  public static int getValidateRequestsAsyncQueueSize() {
+    return HapiProperties.getIntegerProperty(VALIDATE_REQUESTS_ASYNC_QUEUE_SIZE, 1000);
+  }
+
+  public static int getValidationResultsMax() {
+    return HapiProperties.getIntegerProperty(VALIDATION_RESULTS_MAX, 1000);
+  }
+
+  public static int getValidationCacheMaxEntries() {
+    return HapiProperties.getIntegerProperty(VALIDATION_CACHE_MAX_ENTRIES, 10000);
+  }
+
+  public static int getValidationCacheTtlSeconds() {
+    return HapiProperties.getIntegerProperty(VALIDATION_CACHE_TTL_SECONDS, 600);
+  }
+
+  public static boolean getValidationPrecompile() {
+    return HapiProperties.getBooleanProperty(VALIDATION_PRECOMPILE, true);
+  }
+
   public static boolean getFilterSearchEnabled() {
     return HapiProperties.getBooleanProperty(FILTER_SEARCH_ENABLED, true);
   }
@@ -474,8 +1022,7 @@ public class HapiProperties {
   }
 
   private static boolean getPropertyBoolean(String thePropertyName, boolean theDefaultValue) {
-    String value = getProperty(thePropertyName, Boolean.toString(theDefaultValue));
-    return Boolean.parseBoolean(value);
+    return getBooleanProperty(thePropertyName, theDefaultValue);
   }
 
   private static <T extends Enum> T getPropertyEnum(String thePropertyName, Class<T> theEnumType, T theDefaultValue) {
@@ -487,24 +1034,104 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(BULK_EXPORT_ENABLED, true);
   }
 
+  /**
+   * The directory bulk exports are streamed to as NDJSON files, or null to
+   * store them as binaries in the database
+   */
+  public static String getBulkExportDirectory() {
+    return HapiProperties.getProperty(BULK_EXPORT_DIRECTORY, null);
+  }
+
+  public static boolean getBulkExportGzip() {
+    return HapiProperties.getBooleanProperty(BULK_EXPORT_GZIP, true);
+  }
+
+  public static Integer getBulkExportChunkSize() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_CHUNK_SIZE, 1000);
+  }
+
+  public static Integer getBulkExportThreads() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_THREADS, 2);
+  }
+
+  public static Integer getBulkExportRetentionHours() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_RETENTION_HOURS, 24);
+  }
+
+  public static boolean getBulkImportEnabled() {
+    return HapiProperties.getBooleanProperty(BULK_IMPORT_ENABLED, false);
+  }
+
+  /**
+   * The directory <code>$import</code> may read files from, or null to only
+   * import uploaded binaries
+   */
+  public static String getBulkImportDirectory() {
+    return HapiProperties.getProperty(BULK_IMPORT_DIRECTORY, null);
+  }
+
+  public static Integer getBulkImportThreads() {
+    return HapiProperties.getIntegerProperty(BULK_IMPORT_THREADS, 4);
+  }
+
+  public static Integer getBulkImportBatchSize() {
+    return HapiProperties.getIntegerProperty(BULK_IMPORT_BATCH_SIZE, 1000);
+  }
+
+  public static Integer getBulkImportJdbcBatchSize() {
+    return HapiProperties.getIntegerProperty(BULK_IMPORT_JDBC_BATCH_SIZE, 100);
+  }
+
   public static boolean isFhirPathFilterInterceptorEnabled() {
     return HapiProperties.getBooleanProperty("fhirpath_interceptor.enabled", false);
   }
 
   public static String getAccessTokenHeaderName() {
-    return HapiProperties.getProperty("oauth.token.name", Constants.HEADER_AUTHORIZATION);
+    return getSnapshot().getAccessTokenHeaderName();
   }
 
   public static String getAccessTokenHeaderPrefix() {
-    return HapiProperties.getProperty("oauth.token.prefix");
+    return getSnapshot().getAccessTokenHeaderPrefix();
   }
 
   public static String getAuthServerWhitelist() {
     return HapiProperties.getProperty("oauth.whitelist");
   }
 
+  public static Boolean getAuthSystemScopesEnabled() {
+    return HapiProperties.getBooleanProperty("oauth.system_scopes.enabled", false);
+  }
+
+  public static Integer getAuthTokenCacheMaxSize() {
+    return HapiProperties.getIntegerProperty("oauth.token_cache.max_size", 10000);
+  }
+
+  public static Integer getAuthRuleCacheMaxSize() {
+    return HapiProperties.getIntegerProperty("oauth.rule_cache.max_size", 1000);
+  }
+
+  public static Integer getDiscoveryRefreshIntervalSeconds() {
+    return HapiProperties.getIntegerProperty("oauth.discovery.refresh_interval_seconds", 600);
+  }
+
+  public static Integer getDiscoveryMaxStaleSeconds() {
+    return HapiProperties.getIntegerProperty("oauth.discovery.max_stale_seconds", 86400);
+  }
+
+  public static Integer getDiscoveryMinRefreshIntervalSeconds() {
+    return HapiProperties.getIntegerProperty("oauth.discovery.min_refresh_interval_seconds", 30);
+  }
+
+  public static Integer getJwksRefreshIntervalSeconds() {
+    return HapiProperties.getIntegerProperty("oauth.jwks.refresh_interval_seconds", 600);
+  }
+
+  public static Integer getJwksMinRefreshIntervalSeconds() {
+    return HapiProperties.getIntegerProperty("oauth.jwks.min_refresh_interval_seconds", 30);
+  }
+
   public static Boolean getOIDCEnabled() {
-    return HapiProperties.getPropertyBoolean("oidc.auth.enabled",true);
+    return getSnapshot().isOidcEnabled();
   }
 }
 
@@ -0,0 +1,96 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.searchparam.matcher.InMemoryMatchResult;
+import ca.uhn.fhir.jpa.subscription.match.matcher.matching.ISubscriptionMatcher;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Set;
+
+/**
+ * Matches a written resource only against the subscriptions that a
+ * {@link SubscriptionCriteriaIndex} finds it can match, and skips the others,
+ * instead of evaluating the criteria of every active subscription for every
+ * write. The candidates are looked up once per message, as the message is
+ * matched against each subscription in turn.
+ * <p>
+ * Subscriptions are added to the index as they are matched, so a new or
+ * changed subscription is evaluated once before the index is used for it.
+ * A subscription is removed from the index when its Subscription resource is
+ * updated or deleted, which covers deactivation; an active one is added again
+ * when it is next matched. For these storage hooks, the matcher is registered
+ * with the JPA interceptor service.
+ * Skipped and evaluated matches are counted in the
+ * <code>fhir.subscription.match</code> meter, tagged with the result.
+ */
+@Interceptor
+public class IndexedSubscriptionMatcher implements ISubscriptionMatcher {
+
+  static final String MATCH_METER = "fhir.subscription.match";
+  private static final String SUBSCRIPTION = "Subscription";
+
+  private final ISubscriptionMatcher myDelegate;
+  private final FhirContext myFhirContext;
+  private final SubscriptionCriteriaIndex myIndex;
+  /**
+   * Held by the message, which is dropped once it has been matched
+   */
+  private final Cache<ResourceModifiedMessage, Set<String>> myCandidates = Caffeine.newBuilder().weakKeys().build();
+  private final Counter mySkipped;
+  private final Counter myEvaluated;
+
+  public IndexedSubscriptionMatcher(ISubscriptionMatcher theDelegate, FhirContext theFhirContext, MeterRegistry theMeterRegistry) {
+    myDelegate = theDelegate;
+    myFhirContext = theFhirContext;
+    myIndex = new SubscriptionCriteriaIndex(theFhirContext);
+    mySkipped = Counter.builder(MATCH_METER).tag("result", "skipped").register(theMeterRegistry);
+    myEvaluated = Counter.builder(MATCH_METER).tag("result", "evaluated").register(theMeterRegistry);
+  }
+
+  @Override
+  public InMemoryMatchResult match(CanonicalSubscription theSubscription, ResourceModifiedMessage theMsg) {
+    String id = theSubscription.getIdElementString();
+    boolean changed = myIndex.put(id, theSubscription.getCriteriaString());
+    Set<String> candidates = candidates(theMsg);
+    if (!changed && candidates != null && !candidates.contains(id)) {
+      mySkipped.increment();
+      return InMemoryMatchResult.fromBoolean(false);
+    }
+    myEvaluated.increment();
+    return myDelegate.match(theSubscription, theMsg);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    removeSubscription(theNewResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    removeSubscription(theResource);
+  }
+
+  private void removeSubscription(IBaseResource theResource) {
+    if (SUBSCRIPTION.equals(myFhirContext.getResourceDefinition(theResource).getName())) {
+      // Keyed as the canonical subscription is, by the unqualified versionless id
+      myIndex.remove(theResource.getIdElement().toUnqualifiedVersionless().getValue());
+    }
+  }
+
+  private Set<String> candidates(ResourceModifiedMessage theMsg) {
+    return myCandidates.get(theMsg, t -> {
+      IBaseResource resource = t.getNewPayload(myFhirContext);
+      // Without a payload, such as for a delete, every subscription is evaluated
+      return resource != null ? myIndex.candidates(resource) : null;
+    });
+  }
+}
@@ -0,0 +1,292 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.nimbusds.jose.util.DefaultResourceRetriever;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.minidev.json.JSONObject;
+import org.mitre.openid.connect.client.service.ServerConfigurationService;
+import org.mitre.openid.connect.config.ServerConfiguration;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ServerConfigurationService} that only fetches on the calling thread
+ * for an issuer that has never been loaded.
+ * <p>
+ * The OpenID Connect discovery documents of whitelisted issuers are loaded in the
+ * background at {@link #start() startup} and refreshed periodically. A lookup of
+ * an issuer that is not loaded yet, such as one arriving before the first load
+ * completes, fetches its document on the calling thread; concurrent lookups wait
+ * for the same fetch, and after a failed fetch none is tried again within the
+ * {@link #setMinRefreshIntervalMillis(long) minimum refresh interval}. Other
+ * lookups return the cached document immediately; a document older than the
+ * refresh interval is still returned while a background refresh is queued
+ * (stale-while-revalidate), so auth keeps working while the identity provider is
+ * briefly unavailable. Documents older than the maximum staleness are dropped and
+ * tokens from that issuer are rejected until a refresh succeeds. Without a
+ * whitelist, at most {@value #MAX_UNLISTED_ISSUERS} issuers are kept, the least
+ * recently loaded making way for new ones.
+ * <p>
+ * Refresh latency and outcome are recorded in the <code>oidc.discovery.refresh</code>
+ * timer, tagged with <code>outcome=success|failure</code> and with the issuer if
+ * it is whitelisted, or <code>other</code>, as any caller can name an issuer
+ * that is not.
+ */
+public class IssuerMetadataCache implements ServerConfigurationService {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(IssuerMetadataCache.class);
+
+  private static final String WELL_KNOWN_PATH = ".well-known/openid-configuration";
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+  private static final int SIZE_LIMIT_BYTES = 256 * 1024;
+  static final int MAX_UNLISTED_ISSUERS = 100;
+  private static final String OTHER_ISSUER_TAG = "other";
+
+  private final Set<String> myWhitelist;
+  private final MeterRegistry myMeterRegistry;
+  private final ScheduledExecutorService myExecutor;
+  private final DefaultResourceRetriever myRetriever = new DefaultResourceRetriever(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS, SIZE_LIMIT_BYTES);
+  private final ConcurrentHashMap<String, Entry> myEntries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Boolean>> myFetches = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> myLastFailedLoad = new ConcurrentHashMap<>();
+  private final Set<String> myPendingRefreshes = ConcurrentHashMap.newKeySet();
+  private final List<Consumer<ServerConfiguration>> myListeners = new CopyOnWriteArrayList<>();
+  private long myRefreshIntervalMillis = TimeUnit.MINUTES.toMillis(10);
+  private long myMaxStaleMillis = TimeUnit.HOURS.toMillis(24);
+  private long myMinRefreshIntervalMillis = 30000;
+
+  /**
+   * @param theWhitelist issuers to trust. If empty, any issuer is looked up on demand.
+   */
+  public IssuerMetadataCache(Collection<String> theWhitelist, MeterRegistry theMeterRegistry) {
+    myWhitelist = new HashSet<>(theWhitelist);
+    myMeterRegistry = theMeterRegistry;
+    myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "oidc-discovery-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    myMeterRegistry.gauge("oidc.discovery.issuers", myEntries, ConcurrentHashMap::size);
+  }
+
+  public void setRefreshIntervalSeconds(long theRefreshIntervalSeconds) {
+    myRefreshIntervalMillis = TimeUnit.SECONDS.toMillis(theRefreshIntervalSeconds);
+  }
+
+  public void setMaxStaleSeconds(long theMaxStaleSeconds) {
+    myMaxStaleMillis = TimeUnit.SECONDS.toMillis(theMaxStaleSeconds);
+  }
+
+  public void setMinRefreshIntervalMillis(long theMinRefreshIntervalMillis) {
+    myMinRefreshIntervalMillis = theMinRefreshIntervalMillis;
+  }
+
+  /**
+   * Registers a callback invoked on the thread that loaded it when an issuer's
+   * discovery document is first loaded or its <code>jwks_uri</code> changes
+   */
+  public void addListener(Consumer<ServerConfiguration> theListener) {
+    myListeners.add(theListener);
+  }
+
+  /**
+   * Loads the whitelisted issuers in the background and schedules their periodic refresh
+   */
+  public void start() {
+    myExecutor.scheduleWithFixedDelay(() -> {
+      for (String issuer : myWhitelist) {
+        refresh(issuer);
+      }
+    }, 0, myRefreshIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Returns the discovery document for the issuer. If it has not been loaded
+   * yet, it is fetched before returning. Returns <code>null</code> if the
+   * issuer is not trusted or its document can not be loaded.
+   */
+  @Override
+  public ServerConfiguration getServerConfiguration(String theIssuer) {
+    if (theIssuer == null || (!myWhitelist.isEmpty() && !myWhitelist.contains(theIssuer))) {
+      return null;
+    }
+    Entry entry = myEntries.get(theIssuer);
+    if (entry == null) {
+      entry = load(theIssuer);
+      if (entry == null) {
+        return null;
+      }
+    }
+    long age = System.currentTimeMillis() - entry.myLoadedAt;
+    if (age > myRefreshIntervalMillis) {
+      requestRefresh(theIssuer);
+    }
+    if (age > myMaxStaleMillis) {
+      ourLog.debug("Discovery document for issuer {} is {}s old, rejecting its tokens until it can be refreshed", theIssuer, age / 1000);
+      return null;
+    }
+    return entry.myConfiguration;
+  }
+
+  /**
+   * Fetches a document that has not been loaded on the calling thread, unless
+   * a fetch of it failed within the minimum refresh interval
+   *
+   * @return the entry, or null if it could not be fetched
+   */
+  private Entry load(String theIssuer) {
+    Long lastFailure = myLastFailedLoad.get(theIssuer);
+    if (lastFailure != null && System.currentTimeMillis() - lastFailure < myMinRefreshIntervalMillis) {
+      return null;
+    }
+    if (!refresh(theIssuer, true)) {
+      if (myWhitelist.isEmpty() && myLastFailedLoad.size() >= MAX_UNLISTED_ISSUERS) {
+        myLastFailedLoad.clear();
+      }
+      myLastFailedLoad.put(theIssuer, System.currentTimeMillis());
+      return null;
+    }
+    myLastFailedLoad.remove(theIssuer);
+    return myEntries.get(theIssuer);
+  }
+
+  private void requestRefresh(String theIssuer) {
+    if (!myPendingRefreshes.add(theIssuer)) {
+      return;
+    }
+    try {
+      myExecutor.execute(() -> {
+        try {
+          refresh(theIssuer);
+        } finally {
+          myPendingRefreshes.remove(theIssuer);
+        }
+      });
+    } catch (RuntimeException e) {
+      myPendingRefreshes.remove(theIssuer);
+      ourLog.warn("Could not queue discovery refresh for issuer {}: {}", theIssuer, e.toString());
+    }
+  }
+
+  /**
+   * Fetches the discovery document synchronously. If it is already being
+   * fetched, waits for that fetch instead of starting another. On failure the
+   * previous document, if any, is kept.
+   */
+  boolean refresh(String theIssuer) {
+    return refresh(theIssuer, false);
+  }
+
+  /**
+   * @param theIfAbsent whether to skip the fetch if the document has been loaded in the meantime
+   */
+  private boolean refresh(String theIssuer, boolean theIfAbsent) {
+    CompletableFuture<Boolean> fetch = new CompletableFuture<>();
+    CompletableFuture<Boolean> inFlight = myFetches.putIfAbsent(theIssuer, fetch);
+    if (inFlight != null) {
+      return inFlight.join();
+    }
+    boolean retVal = false;
+    try {
+      // A fetch that just completed has stored its document before letting another start
+      retVal = theIfAbsent && myEntries.containsKey(theIssuer) || fetchAndStore(theIssuer);
+    } finally {
+      myFetches.remove(theIssuer, fetch);
+      fetch.complete(retVal);
+    }
+    return retVal;
+  }
+
+  private boolean fetchAndStore(String theIssuer) {
+    Timer.Sample sample = Timer.start(myMeterRegistry);
+    String outcome = "failure";
+    try {
+      ServerConfiguration config = fetch(theIssuer);
+      Entry previous = myEntries.put(theIssuer, new Entry(config, System.currentTimeMillis()));
+      if (previous == null && myWhitelist.isEmpty() && myEntries.size() > MAX_UNLISTED_ISSUERS) {
+        evictOldest(theIssuer);
+      }
+      outcome = "success";
+      if (previous == null || !Objects.equals(previous.myConfiguration.getJwksUri(), config.getJwksUri())) {
+        ourLog.info("Loaded discovery document for issuer {}", theIssuer);
+        for (Consumer<ServerConfiguration> next : myListeners) {
+          next.accept(config);
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      ourLog.warn("Failed to load discovery document for issuer {}: {}", theIssuer, e.toString());
+      return false;
+    } finally {
+      String issuerTag = myWhitelist.contains(theIssuer) ? theIssuer : OTHER_ISSUER_TAG;
+      sample.stop(myMeterRegistry.timer("oidc.discovery.refresh", "issuer", issuerTag, "outcome", outcome));
+    }
+  }
+
+  private void evictOldest(String theKeep) {
+    String oldest = null;
+    long oldestLoadedAt = Long.MAX_VALUE;
+    for (String next : myEntries.keySet()) {
+      Entry entry = myEntries.get(next);
+      if (entry != null && !next.equals(theKeep) && entry.myLoadedAt < oldestLoadedAt) {
+        oldest = next;
+        oldestLoadedAt = entry.myLoadedAt;
+      }
+    }
+    if (oldest != null) {
+      myEntries.remove(oldest);
+    }
+  }
+
+  private ServerConfiguration fetch(String theIssuer) throws Exception {
+    String url = theIssuer.endsWith("/") ? theIssuer + WELL_KNOWN_PATH : theIssuer + "/" + WELL_KNOWN_PATH;
+    JSONObject json = JSONObjectUtils.parse(myRetriever.retrieveResource(new URL(url)).getContent());
+
+    String issuer = JSONObjectUtils.getString(json, "issuer");
+    if (!theIssuer.equals(issuer)) {
+      throw new IllegalStateException("Discovery document issuer '" + issuer + "' does not match '" + theIssuer + "'");
+    }
+
+    ServerConfiguration retVal = new ServerConfiguration();
+    retVal.setIssuer(issuer);
+    retVal.setJwksUri(JSONObjectUtils.getString(json, "jwks_uri"));
+    retVal.setAuthorizationEndpointUri(optionalString(json, "authorization_endpoint"));
+    retVal.setTokenEndpointUri(optionalString(json, "token_endpoint"));
+    retVal.setUserInfoUri(optionalString(json, "userinfo_endpoint"));
+    retVal.setIntrospectionEndpointUri(optionalString(json, "introspection_endpoint"));
+    return retVal;
+  }
+
+  private static String optionalString(JSONObject theJson, String theKey) {
+    Object value = theJson.get(theKey);
+    return value instanceof String ? (String) value : null;
+  }
+
+  private static class Entry {
+    private final ServerConfiguration myConfiguration;
+    private final long myLoadedAt;
+
+    Entry(ServerConfiguration theConfiguration, long theLoadedAt) {
+      myConfiguration = theConfiguration;
+      myLoadedAt = theLoadedAt;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link CacheInvalidationTransport} over the database the servers share.
+ * Each batch is inserted into the <code>CACHE_INVALIDATION</code> table, which
+ * is created if it does not exist, and every server polls the table for the
+ * rows inserted by the others since its last poll. Rows are deleted once they
+ * are older than the retention time.
+ * <p>
+ * Rows are read in id order. An id can become visible after a higher one, as
+ * ids are assigned before the insert commits, so a missing id is looked for
+ * again on the next polls for up to {@link #GAP_TIMEOUT_MILLIS}; after that it
+ * is taken to be an id that was never used. The table is created for H2,
+ * MySQL and PostgreSQL.
+ */
+public class JdbcCacheInvalidationTransport implements CacheInvalidationTransport {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JdbcCacheInvalidationTransport.class);
+
+  static final String TABLE_NAME = "CACHE_INVALIDATION";
+  static final long GAP_TIMEOUT_MILLIS = 10000;
+  /**
+   * Events are written as lines into a column of this size, so a larger batch takes several rows
+   */
+  private static final int MAX_ROW_CHARS = 4000;
+  private static final long CLEANUP_INTERVAL_MILLIS = 60000;
+
+  private final DataSource myDataSource;
+  private final String myNodeId;
+  private final long myPollIntervalMillis;
+  private final long myRetentionMillis;
+  private final ScheduledExecutorService myExecutor;
+  private Consumer<List<CacheInvalidationEvent>> myReceiver;
+  /**
+   * Every row up to this id has been handled. Only used by the poll thread.
+   */
+  private long myLastId;
+  private final Set<Long> myHandledIds = new HashSet<>();
+  private long myGapSince;
+
+  public JdbcCacheInvalidationTransport(DataSource theDataSource, String theNodeId, long thePollIntervalMillis, long theRetentionMillis) {
+    myDataSource = theDataSource;
+    myNodeId = theNodeId;
+    myPollIntervalMillis = thePollIntervalMillis;
+    myRetentionMillis = theRetentionMillis;
+    myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "cache-invalidation-poll");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void start(Consumer<List<CacheInvalidationEvent>> theReceiver) {
+    myReceiver = theReceiver;
+    try {
+      createTable();
+      myLastId = findLastId();
+    } catch (SQLException e) {
+      throw new IllegalStateException("Could not create the " + TABLE_NAME + " table", e);
+    }
+    ourLog.info("Polling {} for cache invalidations every {}ms as node {}", TABLE_NAME, myPollIntervalMillis, myNodeId);
+    myExecutor.scheduleWithFixedDelay(this::pollQuietly, myPollIntervalMillis, myPollIntervalMillis, TimeUnit.MILLISECONDS);
+    myExecutor.scheduleWithFixedDelay(this::deleteExpiredQuietly, CLEANUP_INTERVAL_MILLIS, CLEANUP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void publish(List<CacheInvalidationEvent> theEvents) throws IOException {
+    if (theEvents.isEmpty()) {
+      return;
+    }
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE_NAME + " (NODE_ID, CREATED, EVENTS) VALUES (?, ?, ?)")) {
+      long now = System.currentTimeMillis();
+      for (String next : toRows(theEvents)) {
+        statement.setString(1, myNodeId);
+        statement.setLong(2, now);
+        statement.setString(3, next);
+        statement.addBatch();
+      }
+      statement.executeBatch();
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+    } catch (SQLException e) {
+      throw new IOException("Could not publish " + theEvents.size() + " cache invalidations", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    myExecutor.shutdownNow();
+    try {
+      if (!myExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+        ourLog.warn("Cache invalidation polling did not stop within 10s");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads and delivers the rows of the other nodes inserted since the last poll
+   */
+  void poll() throws SQLException {
+    List<CacheInvalidationEvent> received = new ArrayList<>();
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("SELECT ID, NODE_ID, EVENTS FROM " + TABLE_NAME + " WHERE ID > ? ORDER BY ID")) {
+      statement.setLong(1, myLastId);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          if (myHandledIds.add(resultSet.getLong(1)) && !myNodeId.equals(resultSet.getString(2))) {
+            for (String next : resultSet.getString(3).split("\n")) {
+              received.add(CacheInvalidationEvent.parse(next));
+            }
+          }
+        }
+      }
+    }
+    advance();
+    if (!received.isEmpty()) {
+      myReceiver.accept(received);
+    }
+  }
+
+  private void advance() {
+    while (myHandledIds.remove(myLastId + 1)) {
+      myLastId++;
+    }
+    if (myHandledIds.isEmpty()) {
+      myGapSince = 0;
+    } else if (myGapSince == 0) {
+      myGapSince = System.currentTimeMillis();
+    } else if (System.currentTimeMillis() - myGapSince > GAP_TIMEOUT_MILLIS) {
+      ourLog.debug("Skipping cache invalidation ids {} to {} that never appeared", myLastId + 1, Collections.max(myHandledIds));
+      myLastId = Collections.max(myHandledIds);
+      myHandledIds.clear();
+      myGapSince = 0;
+    }
+  }
+
+  void deleteExpired() throws SQLException {
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE_NAME + " WHERE CREATED < ?")) {
+      statement.setLong(1, System.currentTimeMillis() - myRetentionMillis);
+      statement.executeUpdate();
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+    }
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (SQLException | RuntimeException e) {
+      ourLog.warn("Could not poll for cache invalidations: {}", e.toString());
+    }
+  }
+
+  private void deleteExpiredQuietly() {
+    try {
+      deleteExpired();
+    } catch (SQLException e) {
+      ourLog.warn("Could not delete expired cache invalidations: {}", e.toString());
+    }
+  }
+
+  private void createTable() throws SQLException {
+    try (Connection connection = myDataSource.getConnection();
+         Statement statement = connection.createStatement()) {
+      String idColumn = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("postgres")
+        ? "ID BIGSERIAL PRIMARY KEY"
+        : "ID BIGINT AUTO_INCREMENT PRIMARY KEY";
+      statement.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+        + idColumn + ", "
+        + "NODE_ID VARCHAR(100) NOT NULL, "
+        + "CREATED BIGINT NOT NULL, "
+        + "EVENTS VARCHAR(" + MAX_ROW_CHARS + ") NOT NULL)");
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+    }
+  }
+
+  private long findLastId() throws SQLException {
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("SELECT MAX(ID) FROM " + TABLE_NAME);
+         ResultSet resultSet = statement.executeQuery()) {
+      return resultSet.next() ? resultSet.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * The events as lines, split into rows that fit the column
+   */
+  static List<String> toRows(List<CacheInvalidationEvent> theEvents) {
+    List<String> retVal = new ArrayList<>();
+    StringBuilder row = new StringBuilder();
+    for (CacheInvalidationEvent next : theEvents) {
+      String line = next.encode();
+      if (line.length() > MAX_ROW_CHARS) {
+        // Ids are at most 64 characters, so this is a malformed id; invalidate its type instead
+        line = CacheInvalidationEvent.forType(next.getResourceType()).encode();
+      }
+      if (row.length() > 0 && row.length() + 1 + line.length() > MAX_ROW_CHARS) {
+        retVal.add(row.toString());
+        row.setLength(0);
+      }
+      if (row.length() > 0) {
+        row.append('\n');
+      }
+      row.append(line);
+    }
+    if (row.length() > 0) {
+      retVal.add(row.toString());
+    }
+    return retVal;
+  }
+}
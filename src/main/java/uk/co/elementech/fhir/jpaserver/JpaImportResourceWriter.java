@@ -0,0 +1,60 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import org.hibernate.Session;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+/**
+ * Stores the batches of {@link NdjsonImportSvc} through the resource DAOs, in
+ * one transaction per batch. Resources with an id are stored under that id
+ * (an update), the others are created.
+ * <p>
+ * Nothing is flushed until the batch commits, and the session's JDBC batch
+ * size is raised for the import, so the resource, version and search index
+ * rows of the whole batch go to the database in large JDBC batches.
+ */
+public class JpaImportResourceWriter implements NdjsonImportSvc.ResourceWriter {
+
+  private final FhirContext myFhirContext;
+  private final DaoRegistry myDaoRegistry;
+  private final EntityManager myEntityManager;
+  private final TransactionTemplate myTransactionTemplate;
+  private final int myJdbcBatchSize;
+
+  /**
+   * @param theEntityManager a shared entity manager, i.e. one bound to the current transaction
+   */
+  public JpaImportResourceWriter(FhirContext theFhirContext, DaoRegistry theDaoRegistry, EntityManager theEntityManager,
+                                 PlatformTransactionManager theTransactionManager, int theJdbcBatchSize) {
+    myFhirContext = theFhirContext;
+    myDaoRegistry = theDaoRegistry;
+    myEntityManager = theEntityManager;
+    myTransactionTemplate = new TransactionTemplate(theTransactionManager);
+    myJdbcBatchSize = theJdbcBatchSize;
+  }
+
+  @Override
+  public void write(List<IBaseResource> theResources) {
+    myTransactionTemplate.execute(t -> {
+      myEntityManager.unwrap(Session.class).setJdbcBatchSize(myJdbcBatchSize);
+      for (IBaseResource next : theResources) {
+        IFhirResourceDao<IBaseResource> dao = myDaoRegistry.getResourceDao(myFhirContext.getResourceDefinition(next).getName());
+        if (next.getIdElement().hasIdPart()) {
+          // An exported version id would otherwise be taken as an If-Match
+          next.setId(next.getIdElement().toUnqualifiedVersionless());
+          dao.update(next);
+        } else {
+          dao.create(next);
+        }
+      }
+      return null;
+    });
+  }
+}
@@ -0,0 +1,52 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.ISearchBuilder;
+import ca.uhn.fhir.jpa.dao.SearchBuilderFactory;
+import ca.uhn.fhir.rest.api.server.storage.ResourcePersistentId;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the chunks of resources for {@link NdjsonExportSvc} with the JPA
+ * search builder, which fetches a whole chunk (including tags and forced ids)
+ * in a few queries. Every chunk is loaded in its own read-only transaction, so
+ * the persistence context never holds more than one chunk of entities.
+ */
+public class JpaResourceLoader implements NdjsonExportSvc.ResourceLoader {
+
+  private final DaoRegistry myDaoRegistry;
+  private final SearchBuilderFactory mySearchBuilderFactory;
+  private final TransactionTemplate myTransactionTemplate;
+
+  public JpaResourceLoader(DaoRegistry theDaoRegistry, SearchBuilderFactory theSearchBuilderFactory, PlatformTransactionManager theTransactionManager) {
+    myDaoRegistry = theDaoRegistry;
+    mySearchBuilderFactory = theSearchBuilderFactory;
+    myTransactionTemplate = new TransactionTemplate(theTransactionManager);
+    myTransactionTemplate.setReadOnly(true);
+  }
+
+  @Override
+  public List<IBaseResource> load(String theResourceType, List<Long> thePids) {
+    IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(theResourceType);
+    ISearchBuilder searchBuilder = mySearchBuilderFactory.newSearchBuilder(dao, theResourceType, dao.getResourceType());
+    List<ResourcePersistentId> pids = thePids
+      .stream()
+      .map(ResourcePersistentId::new)
+      .collect(Collectors.toList());
+
+    List<IBaseResource> retVal = new ArrayList<>(thePids.size());
+    myTransactionTemplate.execute(t -> {
+      searchBuilder.loadResourcesByPid(pids, Collections.emptyList(), retVal, false, null);
+      return null;
+    });
+    return retVal;
+  }
+}
@@ -8,9 +8,12 @@ import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.api.rp.ResourceProviderFactory;
+import ca.uhn.fhir.jpa.binstore.BinaryAccessProvider;
 import ca.uhn.fhir.jpa.binstore.BinaryStorageInterceptor;
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.bulk.BulkDataExportProvider;
 import ca.uhn.fhir.jpa.interceptor.CascadingDeleteInterceptor;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
 import ca.uhn.fhir.jpa.provider.GraphQLProvider;
 import ca.uhn.fhir.jpa.provider.JpaConformanceProviderDstu2;
 import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
@@ -24,11 +27,13 @@ import ca.uhn.fhir.jpa.provider.r5.JpaConformanceProviderR5;
 import ca.uhn.fhir.jpa.provider.r5.JpaSystemProviderR5;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.jpa.searchparam.registry.ISearchParamRegistry;
+import ca.uhn.fhir.jpa.subscription.match.registry.SubscriptionLoader;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.FhirPathFilterInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor;
@@ -37,24 +42,45 @@ import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseValidatingInterceptor;
 import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.Meta;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
-import org.mitre.openid.connect.client.service.impl.DynamicServerConfigurationService;
 import org.springframework.context.ApplicationContext;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.cors.CorsConfiguration;
 
+import javax.persistence.EntityManagerFactory;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
 public class JpaRestfulServer extends RestfulServer {
 
   private static final long serialVersionUID = 2L;
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JpaRestfulServer.class);
+  /**
+   * The types the validator caches, which are reloaded when another server writes them
+   */
+  private static final List<String> CONFORMANCE_RESOURCE_TYPES = Arrays.asList("StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap");
+
+  private transient IssuerMetadataCache myIssuerMetadataCache;
+  private transient JwksValidatorService myJwksValidatorService;
+  private transient PropertiesFileWatcher myPropertiesFileWatcher;
+  private transient AccessLogInterceptor myAccessLogInterceptor;
+  private transient SampledValidationInterceptor mySampledValidationInterceptor;
+  private transient CacheInvalidationBus myCacheInvalidationBus;
+  private transient RestHookDeliveryQueue myRestHookDeliveryQueue;
+  private transient HapiProperties.ChangeListener myPropertiesChangeListener;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -148,10 +174,15 @@ public class JpaRestfulServer extends RestfulServer {
     setETagSupport(HapiProperties.getEtagSupport());
 
     /*
-     * This server tries to dynamically generate narratives
+     * This server tries to dynamically generate narratives, either whenever a
+     * resource is encoded or only for responses that ask for them
      */
     FhirContext ctx = getFhirContext();
-    ctx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+    if (HapiProperties.isNarrativeOnRequest()) {
+      registerInterceptor(new NarrativeInterceptor(ctx, new DefaultThymeleafNarrativeGenerator(), HapiProperties.getNarrativeResourceTypes(), HapiProperties.getNarrativeCacheSize()));
+    } else {
+      ctx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+    }
 
     /*
      * Default to JSON and pretty printing
@@ -174,24 +205,113 @@ public class JpaRestfulServer extends RestfulServer {
     /*
      * This interceptor formats the output using nice colourful
      * HTML output when the request is detected to come from a
-     * browser.
+     * browser. Servers only used by API clients can leave it out.
      */
-    ResponseHighlighterInterceptor responseHighlighterInterceptor = new ResponseHighlighterInterceptor();
-    this.registerInterceptor(responseHighlighterInterceptor);
+    if (HapiProperties.getResponseHighlighterEnabled()) {
+      ResponseHighlighterInterceptor responseHighlighterInterceptor = new ResponseHighlighterInterceptor();
+      this.registerInterceptor(responseHighlighterInterceptor);
+    }
 
     if (HapiProperties.isFhirPathFilterInterceptorEnabled()) {
       registerInterceptor(new FhirPathFilterInterceptor());
     }
 
     /*
-     * Add some logging for each request
+     * Record the latency of each request, split into database, serialization and
+     * auth time, for /metrics and the $metrics operation
+     */
+    MeterRegistry meterRegistry = appCtx.getBean(MeterRegistry.class);
+    if (HapiProperties.getMetricsEnabled()) {
+      registerInterceptor(new RequestMetricsInterceptor(meterRegistry));
+      registerProvider(new MetricsProvider(getFhirContext(), meterRegistry));
+    }
+
+    /*
+     * With several servers sharing the database, publish the writes of this one and
+     * drop what is cached about the writes of the others
+     */
+    if (HapiProperties.getClusterInvalidationEnabled()) {
+      myCacheInvalidationBus = new CacheInvalidationBus(
+        new JdbcCacheInvalidationTransport(
+          appCtx.getBean(DataSource.class),
+          HapiProperties.getClusterInvalidationNodeId(),
+          HapiProperties.getClusterInvalidationPollIntervalMillis(),
+          HapiProperties.getClusterInvalidationRetentionMinutes() * 60000L),
+        HapiProperties.getClusterInvalidationFlushIntervalMillis(),
+        HapiProperties.getClusterInvalidationMaxBatchSize(),
+        meterRegistry);
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(myCacheInvalidationBus);
+
+      myCacheInvalidationBus.addListener(theEvents -> {
+        if (theEvents.stream().anyMatch(t -> t.affects("SearchParameter"))) {
+          searchParamRegistry.forceRefresh();
+        }
+      });
+      if (HapiProperties.getSubscriptionWebsocketEnabled() ||
+        HapiProperties.getSubscriptionEmailEnabled() ||
+        HapiProperties.getSubscriptionRestHookEnabled()) {
+        SubscriptionLoader subscriptionLoader = appCtx.getBean(SubscriptionLoader.class);
+        myCacheInvalidationBus.addListener(theEvents -> {
+          if (theEvents.stream().anyMatch(t -> t.affects("Subscription"))) {
+            subscriptionLoader.syncSubscriptions();
+          }
+        });
+      }
+      if (appCtx.getBean(SecondLevelCache.class).isEnabled()) {
+        // Without a client assigned id, the id of a resource is the key of its ResourceTable entity
+        javax.persistence.Cache entityCache = appCtx.getBean(EntityManagerFactory.class).getCache();
+        myCacheInvalidationBus.addListener(theEvents -> {
+          for (CacheInvalidationEvent next : theEvents) {
+            if (next.isEverything()) {
+              entityCache.evictAll();
+            } else if (next.getResourceId() != null && StringUtils.isNumeric(next.getResourceId())) {
+              entityCache.evict(ResourceTable.class, Long.parseLong(next.getResourceId()));
+            } else {
+              entityCache.evict(ResourceTable.class);
+            }
+          }
+        });
+      }
+      myCacheInvalidationBus.start();
+    }
+
+    /*
+     * Serve reads of unchanged resource versions from their cached encoding
+     */
+    if (HapiProperties.getResponseCacheEnabled()) {
+      registerInterceptor(new ResponseCacheInterceptor(getFhirContext(), HapiProperties.getResponseCacheMaxSizeMb() * 1024L * 1024L, meterRegistry));
+    }
+
+    /*
+     * Add some logging for each request. If enabled, the access log is written by a
+     * background thread, so that request threads do not format or write log entries.
      */
-    LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
-    loggingInterceptor.setLoggerName(HapiProperties.getLoggerName());
-    loggingInterceptor.setMessageFormat(HapiProperties.getLoggerFormat());
-    loggingInterceptor.setErrorMessageFormat(HapiProperties.getLoggerErrorFormat());
-    loggingInterceptor.setLogExceptions(HapiProperties.getLoggerLogExceptions());
-    this.registerInterceptor(loggingInterceptor);
+    if (HapiProperties.getAccessLogAsync()) {
+      String accessLogFile = HapiProperties.getAccessLogFile();
+      myAccessLogInterceptor = new AccessLogInterceptor(
+        HapiProperties.getLoggerName(),
+        accessLogFile != null ? Paths.get(accessLogFile) : null,
+        HapiProperties.getAccessLogFormat(),
+        HapiProperties.getAccessLogFullPolicy(),
+        HapiProperties.getAccessLogBufferSize(),
+        HapiProperties.getAccessLogBatchSize(),
+        meterRegistry);
+      myAccessLogInterceptor.setMessageFormat(HapiProperties.getLoggerFormat());
+      myAccessLogInterceptor.setErrorMessageFormat(HapiProperties.getLoggerLogExceptions() ? HapiProperties.getLoggerErrorFormat() : null);
+      try {
+        myAccessLogInterceptor.start();
+      } catch (IOException e) {
+        throw new ServletException("Could not open the access log " + accessLogFile, e);
+      }
+      this.registerInterceptor(myAccessLogInterceptor);
+    } else {
+      LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
+      loggingInterceptor.setLoggerName(HapiProperties.getLoggerName());
+      loggingInterceptor.setMessageFormat(HapiProperties.getLoggerFormat());
+      loggingInterceptor.setErrorMessageFormat(HapiProperties.getLoggerErrorFormat());
+      loggingInterceptor.setLogExceptions(HapiProperties.getLoggerLogExceptions());
+      this.registerInterceptor(loggingInterceptor);
+    }
 
     /*
      * If you are hosting this server at a specific DNS name, the server will try to
@@ -263,6 +383,26 @@ public class JpaRestfulServer extends RestfulServer {
       interceptorService.registerInterceptor(new SubscriptionDebugLogInterceptor());
     }
 
+    /*
+     * Deliver REST hook notifications in batches per endpoint, coalescing repeated
+     * changes to a resource, instead of making a call for each
+     */
+    if (HapiProperties.getSubscriptionRestHookEnabled() && HapiProperties.getSubscriptionRestHookBatchingEnabled()) {
+      myRestHookDeliveryQueue = new RestHookDeliveryQueue(
+        ctx,
+        HapiProperties.getSubscriptionRestHookBatchingWindowMillis(),
+        HapiProperties.getSubscriptionRestHookBatchingMaxBatchSize(),
+        HapiProperties.getSubscriptionRestHookBatchingMaxInFlight(),
+        HapiProperties.getSubscriptionRestHookBatchingMaxQueueSize(),
+        HapiProperties.getSubscriptionRestHookBatchingThreads(),
+        meterRegistry);
+      myRestHookDeliveryQueue.setRetry(
+        HapiProperties.getSubscriptionRestHookBatchingMaxAttempts(),
+        HapiProperties.getSubscriptionRestHookBatchingInitialBackoffMillis(),
+        HapiProperties.getSubscriptionRestHookBatchingMaxBackoffMillis());
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(new RestHookBatchingInterceptor(ctx, myRestHookDeliveryQueue));
+    }
+
     // Cascading deletes
     DaoRegistry daoRegistry = appCtx.getBean(DaoRegistry.class);
     IInterceptorBroadcaster interceptorBroadcaster = appCtx.getBean(IInterceptorBroadcaster.class);
@@ -276,16 +416,65 @@ public class JpaRestfulServer extends RestfulServer {
       BinaryStorageInterceptor binaryStorageInterceptor = appCtx
         .getBean(BinaryStorageInterceptor.class);
       getInterceptorService().registerInterceptor(binaryStorageInterceptor);
+
+      // $binary-access-read and $binary-access-write stream blobs from and to the files
+      // without going through a resource body
+      if (HapiProperties.isBinaryStorageFilesystem()) {
+        registerProvider(appCtx.getBean(BinaryAccessProvider.class));
+        // Records which resource versions refer to each file
+        getInterceptorService().registerInterceptor(appCtx.getBean(IBinaryStorageSvc.class));
+      }
     }
 
     // Validation
     IValidatorModule validatorModule = appCtx.getBean(IValidatorModule.class);
     if (validatorModule != null) {
+      if (validatorModule instanceof FhirInstanceValidator
+        && (HapiProperties.getValidateRequestsEnabled() || HapiProperties.getValidateResponsesEnabled())) {
+        /*
+         * Cache the profiles, snapshots and terminology lookups of the instance
+         * validator, and generate the snapshots before the first request needs them
+         */
+        FhirInstanceValidator instanceValidator = (FhirInstanceValidator) validatorModule;
+        CachedValidationSupport validationSupport = new CachedValidationSupport(
+          instanceValidator.getValidationSupport(),
+          HapiProperties.getValidationCacheMaxEntries(),
+          HapiProperties.getValidationCacheTtlSeconds(),
+          meterRegistry);
+        instanceValidator.setValidationSupport(validationSupport);
+        if (myCacheInvalidationBus != null) {
+          myCacheInvalidationBus.addListener(theEvents -> {
+            if (theEvents.stream().anyMatch(t -> CONFORMANCE_RESOURCE_TYPES.stream().anyMatch(t::affects))) {
+              validationSupport.invalidateCaches();
+            }
+          });
+        }
+        if (HapiProperties.getValidationPrecompile()) {
+          Thread precompile = new Thread(validationSupport::precompile, "validation-precompile");
+          precompile.setDaemon(true);
+          precompile.start();
+        }
+      }
       if (HapiProperties.getValidateRequestsEnabled()) {
-        RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
-        interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
-        interceptor.setValidatorModules(Collections.singletonList(validatorModule));
-        registerInterceptor(interceptor);
+        int samplePercent = HapiProperties.getValidateRequestsSamplePercent();
+        boolean async = HapiProperties.getValidateRequestsAsync();
+        if (samplePercent == 100 && !async) {
+          RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
+          interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
+          interceptor.setValidatorModules(Collections.singletonList(validatorModule));
+          registerInterceptor(interceptor);
+        } else {
+          mySampledValidationInterceptor = new SampledValidationInterceptor(
+            ctx,
+            validatorModule,
+            samplePercent,
+            async ? HapiProperties.getValidateRequestsAsyncThreads() : 0,
+            HapiProperties.getValidateRequestsAsyncQueueSize(),
+            HapiProperties.getValidationResultsMax(),
+            meterRegistry);
+          registerInterceptor(mySampledValidationInterceptor);
+          registerProvider(new ValidationResultsProvider(ctx, mySampledValidationInterceptor));
+        }
       }
       if (HapiProperties.getValidateResponsesEnabled()) {
         ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor();
@@ -316,16 +505,144 @@ public class JpaRestfulServer extends RestfulServer {
 
     // Bulk Export
     if (HapiProperties.getBulkExportEnabled()) {
-      registerProvider(appCtx.getBean(BulkDataExportProvider.class));
+      if (HapiProperties.getBulkExportDirectory() != null) {
+        registerProvider(new NdjsonExportProvider(
+          getFhirContext(),
+          appCtx.getBean(NdjsonExportSvc.class),
+          (id, request) -> daoRegistry.getResourceDao("Group").read(id, request)));
+      } else {
+        registerProvider(appCtx.getBean(BulkDataExportProvider.class));
+      }
+    }
+
+    // Bulk Import
+    if (HapiProperties.getBulkImportEnabled()) {
+      String importDirectory = HapiProperties.getBulkImportDirectory();
+      IBinaryStorageSvc binaryStorageSvc = appCtx.getBean(IBinaryStorageSvc.class);
+      registerProvider(new NdjsonImportProvider(
+        getFhirContext(),
+        appCtx.getBean(NdjsonImportSvc.class),
+        importDirectory != null ? Paths.get(importDirectory) : null,
+        id -> new BinaryImportSource(getFhirContext(), daoRegistry, binaryStorageSvc, id)));
+    }
+
+    /*
+     * Send reads to the read replicas, if any are configured (see DataSourcePool)
+     */
+    if (!HapiProperties.getDataSourceReplicaUrls().isEmpty()) {
+      registerInterceptor(new ReplicaRoutingInterceptor(HapiProperties.getDataSourceReplicaOperations(), HapiProperties.getDataSourceReplicaReadYourWritesMillis()));
     }
 
-    DynamicServerConfigurationService oidcServerConfig = new DynamicServerConfigurationService();
     String whiteList = HapiProperties.getAuthServerWhitelist();
+    Set<String> trustedIssuers = Collections.emptySet();
     if (whiteList != null && whiteList.length() > 0) {
-      oidcServerConfig.setWhitelist(Set.of((whiteList.split(","))));
+      trustedIssuers = Set.of((whiteList.split(",")));
+    }
+
+    /*
+     * Discovery documents and signing keys (JWKS) of the trusted issuers are
+     * fetched up front and kept fresh in the background, so requests only
+     * wait on the identity provider for ones that have not been loaded yet
+     */
+    myIssuerMetadataCache = new IssuerMetadataCache(trustedIssuers, meterRegistry);
+    myIssuerMetadataCache.setRefreshIntervalSeconds(HapiProperties.getDiscoveryRefreshIntervalSeconds());
+    myIssuerMetadataCache.setMaxStaleSeconds(HapiProperties.getDiscoveryMaxStaleSeconds());
+    myIssuerMetadataCache.setMinRefreshIntervalMillis(HapiProperties.getDiscoveryMinRefreshIntervalSeconds() * 1000L);
+
+    myJwksValidatorService = new JwksValidatorService(myIssuerMetadataCache);
+    myJwksValidatorService.setRefreshIntervalSeconds(HapiProperties.getJwksRefreshIntervalSeconds());
+    myJwksValidatorService.setMinRefreshIntervalMillis(HapiProperties.getJwksMinRefreshIntervalSeconds() * 1000L);
+    myIssuerMetadataCache.addListener(config -> myJwksValidatorService.requestRefresh(config.getJwksUri()));
+
+    if (HapiProperties.getOIDCEnabled()) {
+      myIssuerMetadataCache.start();
+      myJwksValidatorService.start(trustedIssuers);
     }
+
     OIDCAuthorizationInterceptor authInterceptor = new OIDCAuthorizationInterceptor();
-    authInterceptor.setServerConfigurationService(oidcServerConfig);
+    authInterceptor.setServerConfigurationService(myIssuerMetadataCache);
+    authInterceptor.setJwksValidatorService(myJwksValidatorService);
+    authInterceptor.setMeterRegistry(meterRegistry);
     registerInterceptor(authInterceptor);
+
+    /*
+     * Serve repeated searches from the first pages of recent searches. The pages
+     * are cached per authorization context, as hits skip the authorization. It is
+     * also registered with the JPA interceptors, so that writes made without a
+     * request invalidate it too.
+     */
+    if (HapiProperties.getSearchCacheEnabled()) {
+      SearchCacheInterceptor searchCacheInterceptor = new SearchCacheInterceptor(
+        getFhirContext(),
+        HapiProperties.getSearchCacheMaxSizeMb() * 1024L * 1024L,
+        HapiProperties.getSearchCacheTtlSeconds(),
+        theRequest -> {
+          try {
+            return authInterceptor.getAuthorizationContext(theRequest);
+          } catch (AuthenticationException e) {
+            return null;
+          }
+        },
+        meterRegistry);
+      registerInterceptor(searchCacheInterceptor);
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(searchCacheInterceptor);
+      if (myCacheInvalidationBus != null) {
+        myCacheInvalidationBus.addListener(theEvents -> theEvents.forEach(t -> searchCacheInterceptor.invalidate(t.getResourceType())));
+      }
+    }
+
+    /*
+     * Pick up changes to the override properties file without a restart. Settings
+     * read per request (such as oidc.auth.enabled) apply straight away, the rest
+     * on the next restart.
+     */
+    myPropertiesChangeListener = theChangedNames -> ourLog.info("Configuration changed: {}", new TreeSet<>(theChangedNames));
+    HapiProperties.addChangeListener(myPropertiesChangeListener);
+    String overridePropertiesFile = HapiProperties.getOverridePropertiesFile();
+    if (overridePropertiesFile != null) {
+      myPropertiesFileWatcher = new PropertiesFileWatcher(Paths.get(overridePropertiesFile));
+      try {
+        myPropertiesFileWatcher.start();
+      } catch (IOException e) {
+        ourLog.warn("Could not watch {}, configuration changes need a restart", overridePropertiesFile, e);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (myPropertiesFileWatcher != null) {
+      try {
+        myPropertiesFileWatcher.close();
+      } catch (IOException e) {
+        ourLog.warn("Could not stop watching the properties file", e);
+      }
+    }
+    if (myPropertiesChangeListener != null) {
+      HapiProperties.removeChangeListener(myPropertiesChangeListener);
+    }
+    if (myAccessLogInterceptor != null) {
+      try {
+        myAccessLogInterceptor.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (mySampledValidationInterceptor != null) {
+      mySampledValidationInterceptor.close();
+    }
+    if (myCacheInvalidationBus != null) {
+      myCacheInvalidationBus.close();
+    }
+    if (myRestHookDeliveryQueue != null) {
+      myRestHookDeliveryQueue.close();
+    }
+    if (myJwksValidatorService != null) {
+      myJwksValidatorService.stop();
+    }
+    if (myIssuerMetadataCache != null) {
+      myIssuerMetadataCache.stop();
+    }
+    super.destroy();
   }
 }
@@ -0,0 +1,252 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.openid.connect.client.service.ServerConfigurationService;
+import org.mitre.openid.connect.config.ServerConfiguration;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps signature validators for the JWKS of each trusted issuer, fetched and
+ * refreshed on a background thread so that request threads only wait on the
+ * network for a key set that has never been loaded.
+ * <p>
+ * On {@link #start(Collection)} the key sets of all whitelisted issuers are
+ * fetched, then refreshed on a fixed schedule. A request for a key set that
+ * is not loaded yet, such as one arriving before the first fetch completes,
+ * fetches it on the request thread; concurrent requests wait for the same
+ * fetch, and after a failed fetch none is tried again within the
+ * {@link #setMinRefreshIntervalMillis(long) minimum refresh interval}. A key
+ * set that cannot be refreshed keeps being served until a fetch succeeds.
+ * When a token names a <code>kid</code> that is not in the current key set
+ * (typically after a key rotation) an out-of-band refresh is queued, at most
+ * once per minimum refresh interval.
+ */
+public class JwksValidatorService {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JwksValidatorService.class);
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+  private static final int SIZE_LIMIT_BYTES = 512 * 1024;
+
+  private final ServerConfigurationService myServerConfigurationService;
+  private final ScheduledExecutorService myExecutor;
+  private final ConcurrentHashMap<String, KeySet> myKeySets = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> myLastRefreshRequest = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Boolean>> myFetches = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> myLastFailedLoad = new ConcurrentHashMap<>();
+  private final Set<String> myPendingRefreshes = ConcurrentHashMap.newKeySet();
+  private final Set<String> myIssuers = ConcurrentHashMap.newKeySet();
+  private long myRefreshIntervalSeconds = 600;
+  private long myMinRefreshIntervalMillis = 30000;
+
+  public JwksValidatorService(ServerConfigurationService theServerConfigurationService) {
+    myServerConfigurationService = theServerConfigurationService;
+    myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "jwks-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void setRefreshIntervalSeconds(long theRefreshIntervalSeconds) {
+    myRefreshIntervalSeconds = theRefreshIntervalSeconds;
+  }
+
+  public void setMinRefreshIntervalMillis(long theMinRefreshIntervalMillis) {
+    myMinRefreshIntervalMillis = theMinRefreshIntervalMillis;
+  }
+
+  /**
+   * Fetches the key sets of the given issuers in the background and schedules
+   * their periodic refresh.
+   */
+  public void start(Collection<String> theIssuers) {
+    myIssuers.addAll(theIssuers);
+    myExecutor.scheduleWithFixedDelay(this::refreshAll, 0, myRefreshIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Returns the validator for a JWKS URI. If the key set has not been fetched
+   * yet, it is fetched before returning, and <code>null</code> is returned if
+   * that fails. If the key set does not contain the given key id, a background
+   * refresh is queued and the current validator is returned without waiting.
+   */
+  public JWTSigningAndValidationService getValidator(String theJwksUri, String theKeyId) {
+    if (theJwksUri == null) {
+      return null;
+    }
+    KeySet keySet = myKeySets.get(theJwksUri);
+    if (keySet == null) {
+      keySet = load(theJwksUri);
+      if (keySet == null) {
+        return null;
+      }
+    }
+    if (theKeyId != null && !keySet.myKeyIds.contains(theKeyId)) {
+      ourLog.debug("Unknown key id {} for {}", theKeyId, theJwksUri);
+      requestRefresh(theJwksUri);
+    }
+    return keySet.myValidator;
+  }
+
+  /**
+   * Fetches a key set that has not been loaded on the calling thread, unless
+   * a fetch of it failed within the minimum refresh interval
+   *
+   * @return the key set, or null if it could not be fetched
+   */
+  private KeySet load(String theJwksUri) {
+    Long lastFailure = myLastFailedLoad.get(theJwksUri);
+    if (lastFailure != null && System.currentTimeMillis() - lastFailure < myMinRefreshIntervalMillis) {
+      return null;
+    }
+    if (!refresh(theJwksUri, true)) {
+      myLastFailedLoad.put(theJwksUri, System.currentTimeMillis());
+      return null;
+    }
+    myLastFailedLoad.remove(theJwksUri);
+    return myKeySets.get(theJwksUri);
+  }
+
+  /**
+   * Queues a background fetch of the key set, unless one is already pending or
+   * one was requested within the minimum refresh interval.
+   */
+  void requestRefresh(String theJwksUri) {
+    long now = System.currentTimeMillis();
+    Long last = myLastRefreshRequest.get(theJwksUri);
+    if (last != null && now - last < myMinRefreshIntervalMillis) {
+      return;
+    }
+    if (!myPendingRefreshes.add(theJwksUri)) {
+      return;
+    }
+    myLastRefreshRequest.put(theJwksUri, now);
+    try {
+      myExecutor.execute(() -> {
+        try {
+          refresh(theJwksUri);
+        } finally {
+          myPendingRefreshes.remove(theJwksUri);
+        }
+      });
+    } catch (RuntimeException e) {
+      myPendingRefreshes.remove(theJwksUri);
+      ourLog.warn("Could not queue JWKS refresh for {}: {}", theJwksUri, e.toString());
+    }
+  }
+
+  /**
+   * Fetches the key set synchronously. If the key set is already being
+   * fetched, waits for that fetch instead of starting another. On failure the
+   * previous key set, if any, is kept.
+   */
+  boolean refresh(String theJwksUri) {
+    return refresh(theJwksUri, false);
+  }
+
+  /**
+   * @param theIfAbsent whether to skip the fetch if the key set has been loaded in the meantime
+   */
+  private boolean refresh(String theJwksUri, boolean theIfAbsent) {
+    CompletableFuture<Boolean> fetch = new CompletableFuture<>();
+    CompletableFuture<Boolean> inFlight = myFetches.putIfAbsent(theJwksUri, fetch);
+    if (inFlight != null) {
+      return inFlight.join();
+    }
+    boolean retVal = false;
+    try {
+      // A fetch that just completed has stored its key set before letting another start
+      retVal = theIfAbsent && myKeySets.containsKey(theJwksUri) || fetch(theJwksUri);
+    } finally {
+      myFetches.remove(theJwksUri, fetch);
+      fetch.complete(retVal);
+    }
+    return retVal;
+  }
+
+  private boolean fetch(String theJwksUri) {
+    try {
+      JWKSet jwkSet = JWKSet.load(new URL(theJwksUri), CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS, SIZE_LIMIT_BYTES);
+      Set<String> keyIds = new HashSet<>();
+      for (JWK next : jwkSet.getKeys()) {
+        if (next.getKeyID() != null) {
+          keyIds.add(next.getKeyID());
+        }
+      }
+      DefaultJWTSigningAndValidationService validator = new DefaultJWTSigningAndValidationService(new JWKSetKeyStore(jwkSet));
+      myKeySets.put(theJwksUri, new KeySet(validator, keyIds));
+      ourLog.debug("Loaded {} keys from {}", keyIds.size(), theJwksUri);
+      return true;
+    } catch (Exception e) {
+      ourLog.warn("Failed to load JWKS from {}: {}", theJwksUri, e.toString());
+      return false;
+    }
+  }
+
+  private void refreshAll() {
+    Set<String> jwksUris = new LinkedHashSet<>(myKeySets.keySet());
+    for (String issuer : myIssuers) {
+      String jwksUri = lookupJwksUri(issuer);
+      if (jwksUri != null) {
+        jwksUris.add(jwksUri);
+      }
+    }
+    for (String jwksUri : jwksUris) {
+      refresh(jwksUri);
+    }
+  }
+
+  private String lookupJwksUri(String theIssuer) {
+    try {
+      ServerConfiguration config = myServerConfigurationService.getServerConfiguration(theIssuer);
+      if (config == null) {
+        ourLog.warn("No server configuration found for issuer {}", theIssuer);
+        return null;
+      }
+      return config.getJwksUri();
+    } catch (RuntimeException e) {
+      ourLog.warn("Failed to load server configuration for issuer {}: {}", theIssuer, e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * The JWKS URIs for which a key set is currently held
+   */
+  public List<String> getLoadedJwksUris() {
+    return Collections.unmodifiableList(new ArrayList<>(myKeySets.keySet()));
+  }
+
+  private static class KeySet {
+    private final JWTSigningAndValidationService myValidator;
+    private final Set<String> myKeyIds;
+
+    KeySet(JWTSigningAndValidationService theValidator, Set<String> theKeyIds) {
+      myValidator = theValidator;
+      myKeyIds = theKeyIds;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DBCP2 {@link BasicDataSource} that publishes the same connection pool
+ * meters as HikariCP does, under the <code>dbcp2.connections</code> prefix:
+ * <ul>
+ *   <li><code>acquire</code> - time spent waiting for a connection, including waits that timed out</li>
+ *   <li><code>timeout</code> - requests that gave up waiting</li>
+ *   <li><code>active</code>, <code>idle</code>, <code>pending</code> - connections in use, idle, and threads waiting</li>
+ *   <li><code>max</code>, <code>min</code> - configured pool bounds</li>
+ * </ul>
+ */
+public class MeteredBasicDataSource extends BasicDataSource implements MeterBinder {
+
+  private static final String METRIC_PREFIX = "dbcp2.connections.";
+
+  private final String myPoolName;
+  private volatile Timer myAcquireTimer;
+  private volatile Counter myTimeoutCounter;
+
+  /**
+   * @param thePoolName the <code>pool</code> tag of the meters
+   */
+  public MeteredBasicDataSource(String thePoolName) {
+    myPoolName = thePoolName;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry theRegistry) {
+    Tags tags = Tags.of("pool", myPoolName);
+    myAcquireTimer = Timer.builder(METRIC_PREFIX + "acquire")
+      .description("Connection acquire time")
+      .tags(tags)
+      .register(theRegistry);
+    myTimeoutCounter = Counter.builder(METRIC_PREFIX + "timeout")
+      .description("Connection acquire timeouts")
+      .tags(tags)
+      .register(theRegistry);
+    Gauge.builder(METRIC_PREFIX + "active", this, BasicDataSource::getNumActive)
+      .description("Connections in use")
+      .tags(tags)
+      .register(theRegistry);
+    Gauge.builder(METRIC_PREFIX + "idle", this, BasicDataSource::getNumIdle)
+      .description("Idle connections")
+      .tags(tags)
+      .register(theRegistry);
+    Gauge.builder(METRIC_PREFIX + "pending", this, MeteredBasicDataSource::getNumWaiters)
+      .description("Threads waiting for a connection")
+      .tags(tags)
+      .register(theRegistry);
+    Gauge.builder(METRIC_PREFIX + "max", this, BasicDataSource::getMaxTotal)
+      .description("Maximum connections")
+      .tags(tags)
+      .register(theRegistry);
+    Gauge.builder(METRIC_PREFIX + "min", this, BasicDataSource::getMinIdle)
+      .description("Minimum idle connections")
+      .tags(tags)
+      .register(theRegistry);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    Timer acquireTimer = myAcquireTimer;
+    if (acquireTimer == null) {
+      return super.getConnection();
+    }
+    long start = System.nanoTime();
+    try {
+      return super.getConnection();
+    } catch (SQLException e) {
+      if (e.getCause() instanceof NoSuchElementException) {
+        myTimeoutCounter.increment();
+      }
+      throw e;
+    } finally {
+      acquireTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private int getNumWaiters() {
+    GenericObjectPool<?> pool = getConnectionPool();
+    return pool != null ? pool.getNumWaiters() : 0;
+  }
+}
@@ -0,0 +1,76 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.util.ParametersUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>$metrics</code> server operation, returning the request latency
+ * percentiles recorded by {@link RequestMetricsInterceptor} as a Parameters
+ * resource.
+ * <p>
+ * There is one <code>request</code> parameter per operation, resource type and
+ * status, and one <code>phase</code> parameter per phase, operation and
+ * resource type, each with the count and the mean, p50, p95, p99 and max
+ * latency in milliseconds. The same numbers are available in Prometheus format
+ * from <code>/metrics</code>.
+ */
+public class MetricsProvider {
+
+  private final FhirContext myFhirContext;
+  private final MeterRegistry myMeterRegistry;
+
+  public MetricsProvider(FhirContext theFhirContext, MeterRegistry theMeterRegistry) {
+    myFhirContext = theFhirContext;
+    myMeterRegistry = theMeterRegistry;
+  }
+
+  @Operation(name = "$metrics", idempotent = true)
+  public IBaseParameters metrics() {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    for (Timer next : myMeterRegistry.find(RequestMetricsInterceptor.REQUEST_TIMER).timers()) {
+      IBase parameter = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "request");
+      addTimer(parameter, next, "operation", "resource", "status");
+    }
+    for (Timer next : myMeterRegistry.find(RequestMetricsInterceptor.PHASE_TIMER).timers()) {
+      IBase parameter = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "phase");
+      addTimer(parameter, next, "phase", "operation", "resource");
+    }
+    return retVal;
+  }
+
+  private void addTimer(IBase theParameter, Timer theTimer, String... theTags) {
+    for (String next : theTags) {
+      ParametersUtil.addPartCode(myFhirContext, theParameter, next, theTimer.getId().getTag(next));
+    }
+    HistogramSnapshot snapshot = theTimer.takeSnapshot();
+    ParametersUtil.addPart(myFhirContext, theParameter, "count", primitive("integer", Long.toString(snapshot.count())));
+    addMillis(theParameter, "mean", snapshot.mean(TimeUnit.MILLISECONDS));
+    for (ValueAtPercentile next : snapshot.percentileValues()) {
+      addMillis(theParameter, "p" + Math.round(next.percentile() * 100), next.value(TimeUnit.MILLISECONDS));
+    }
+    addMillis(theParameter, "max", snapshot.max(TimeUnit.MILLISECONDS));
+  }
+
+  private void addMillis(IBase theParameter, String theName, double theMillis) {
+    String value = BigDecimal.valueOf(theMillis).setScale(3, RoundingMode.HALF_UP).toPlainString();
+    ParametersUtil.addPart(myFhirContext, theParameter, theName + "Millis", primitive("decimal", value));
+  }
+
+  private IPrimitiveType<?> primitive(String theType, String theValue) {
+    IPrimitiveType<?> retVal = (IPrimitiveType<?>) myFhirContext.getElementDefinition(theType).newInstance();
+    retVal.setValueAsString(theValue);
+    return retVal;
+  }
+}
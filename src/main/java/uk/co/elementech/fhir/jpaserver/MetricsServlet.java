@@ -0,0 +1,43 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.springframework.context.ApplicationContext;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Serves all of the server's metrics in the Prometheus text format, for
+ * scraping by Prometheus
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private transient PrometheusMeterRegistry myMeterRegistry;
+
+  @Override
+  public void init() throws ServletException {
+    ApplicationContext appCtx = (ApplicationContext) getServletContext()
+      .getAttribute("org.springframework.web.context.WebApplicationContext.ROOT");
+    myMeterRegistry = appCtx.getBean(PrometheusMeterRegistry.class);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest theRequest, HttpServletResponse theResponse) throws IOException {
+    if (!HapiProperties.getMetricsEnabled()) {
+      theResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    theResponse.setStatus(HttpServletResponse.SC_OK);
+    theResponse.setContentType(TextFormat.CONTENT_TYPE_004);
+    try (Writer writer = theResponse.getWriter()) {
+      myMeterRegistry.scrape(writer);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.INarrative;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Generates narratives for responses only where they are asked for, used
+ * instead of a narrative generator on the {@link FhirContext}, which runs for
+ * every resource the server encodes, including those it stores.
+ * <p>
+ * A narrative is generated for the resources of a response, or of a search
+ * result, if the request has <code>_narrative=true</code> or the resource type
+ * is one of the configured types, and only if the resource has no narrative
+ * of its own. Generated narratives are cached by resource type, which picks
+ * the template, id and version, so each version is rendered once. The cache
+ * keeps the parsed XHTML, and a hit gets a copy of it rather than parsing the
+ * markup again.
+ */
+@Interceptor
+public class NarrativeInterceptor {
+
+  static final String PARAM_NARRATIVE = "_narrative";
+
+  private static final String NARRATIVE_REQUESTED_ATTRIBUTE = NarrativeInterceptor.class.getName() + ".requested";
+
+  private final FhirContext myFhirContext;
+  private final INarrativeGenerator myNarrativeGenerator;
+  private final Set<String> myResourceTypes;
+  private final Cache<String, GeneratedNarrative> myCache;
+
+  /**
+   * @param theResourceTypes the resource types that always get a narrative
+   */
+  public NarrativeInterceptor(FhirContext theFhirContext, INarrativeGenerator theNarrativeGenerator, Set<String> theResourceTypes, long theCacheSize) {
+    myFhirContext = theFhirContext;
+    myNarrativeGenerator = theNarrativeGenerator;
+    myResourceTypes = Collections.unmodifiableSet(theResourceTypes);
+    myCache = Caffeine.newBuilder()
+      .maximumSize(theCacheSize)
+      .build();
+  }
+
+  /**
+   * Whether the request asked for narratives with <code>_narrative=true</code>
+   */
+  static boolean isNarrativeRequested(RequestDetails theRequestDetails) {
+    return Boolean.TRUE.equals(theRequestDetails.getAttribute(NARRATIVE_REQUESTED_ATTRIBUTE));
+  }
+
+  /**
+   * Takes <code>_narrative</code> out of the parameters, so that searches do
+   * not reject it as an unknown search parameter
+   */
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+    String[] values = theRequestDetails.getParameters().get(PARAM_NARRATIVE);
+    if (values != null) {
+      theRequestDetails.removeParameter(PARAM_NARRATIVE);
+      if (values.length > 0 && Boolean.parseBoolean(values[0])) {
+        theRequestDetails.setAttribute(NARRATIVE_REQUESTED_ATTRIBUTE, Boolean.TRUE);
+      }
+    }
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+  public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) {
+    IBaseResource resource = theResponseDetails.getResponseResource();
+    boolean requested = isNarrativeRequested(theRequestDetails);
+    if (resource == null || (myResourceTypes.isEmpty() && !requested)) {
+      return true;
+    }
+    if (resource instanceof IBaseBundle) {
+      for (IBaseResource next : BundleUtil.toListOfResources(myFhirContext, (IBaseBundle) resource)) {
+        populateNarrative(next, requested);
+      }
+    } else {
+      populateNarrative(resource, requested);
+    }
+    return true;
+  }
+
+  private void populateNarrative(IBaseResource theResource, boolean theRequested) {
+    RuntimeResourceDefinition definition = myFhirContext.getResourceDefinition(theResource);
+    String resourceType = definition.getName();
+    if (!theRequested && !myResourceTypes.contains(resourceType)) {
+      return;
+    }
+    BaseRuntimeChildDefinition textChild = definition.getChildByName("text");
+    if (textChild == null) {
+      return;
+    }
+    INarrative existing = textChild.getAccessor().<INarrative>getFirstValueOrNull(theResource).orElse(null);
+    if (existing != null && !existing.isEmpty()) {
+      return;
+    }
+
+    if (!theResource.getIdElement().hasIdPart() || !theResource.getIdElement().hasVersionIdPart()) {
+      myNarrativeGenerator.populateResourceNarrative(myFhirContext, theResource);
+      return;
+    }
+    String key = resourceType + "/" + theResource.getIdElement().getIdPart() + "/" + theResource.getIdElement().getVersionIdPart();
+    BaseRuntimeElementCompositeDefinition<?> narrativeDefinition = (BaseRuntimeElementCompositeDefinition<?>) textChild.getChildByName("text");
+    BaseRuntimeChildDefinition divChild = narrativeDefinition.getChildByName("div");
+    GeneratedNarrative cached = myCache.getIfPresent(key);
+    if (cached != null) {
+      INarrative narrative = (INarrative) narrativeDefinition.newInstance();
+      try {
+        if (cached.myDiv != null) {
+          // Each response gets its own copy, as the resource may still be changed by other hooks
+          divChild.getMutator().setValue(narrative, cached.myDiv.copy());
+        } else {
+          narrative.setDivAsString(cached.myDivString);
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException("Could not restore the narrative of " + key, e);
+      }
+      narrative.setStatusAsString(cached.myStatus);
+      textChild.getMutator().setValue(theResource, narrative);
+    } else if (myNarrativeGenerator.populateResourceNarrative(myFhirContext, theResource)) {
+      INarrative narrative = textChild.getAccessor().<INarrative>getFirstValueOrNull(theResource).orElse(null);
+      if (narrative != null && !narrative.isEmpty()) {
+        Object div = divChild.getAccessor().getFirstValueOrNull(narrative).orElse(null);
+        try {
+          if (div instanceof XhtmlNode) {
+            myCache.put(key, new GeneratedNarrative(narrative.getStatusAsString(), ((XhtmlNode) div).copy(), null));
+          } else {
+            // DSTU2 narratives are not held as an XhtmlNode
+            myCache.put(key, new GeneratedNarrative(narrative.getStatusAsString(), null, narrative.getDivAsString()));
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException("Could not read the narrative of " + key, e);
+        }
+      }
+    }
+  }
+
+  private static class GeneratedNarrative {
+
+    private final String myStatus;
+    /**
+     * Never handed out, only copied
+     */
+    private final XhtmlNode myDiv;
+    /**
+     * The markup, for narratives that are not held as an XhtmlNode
+     */
+    private final String myDivString;
+
+    GeneratedNarrative(String theStatus, XhtmlNode theDiv, String theDivString) {
+      myStatus = theStatus;
+      myDiv = theDiv;
+      myDivString = theDivString;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.PreferHeader;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The bulk data <code>$export</code> operation at system, Patient and Group
+ * level, backed by {@link NdjsonExportSvc}. It follows the same kick-off and
+ * status polling flow as the HAPI provider it replaces, but the manifest
+ * points to <code>$export-file</code> URLs, which stream the NDJSON files
+ * from disk.
+ */
+public class NdjsonExportProvider {
+
+  static final String OPERATION_EXPORT = "$export";
+  static final String OPERATION_EXPORT_POLL_STATUS = "$export-poll-status";
+  static final String OPERATION_EXPORT_FILE = "$export-file";
+
+  private final FhirContext myFhirContext;
+  private final NdjsonExportSvc myExportSvc;
+  private final BiFunction<IIdType, RequestDetails, IBaseResource> myGroupReader;
+  private final JsonFactory myJsonFactory = new JsonFactory();
+
+  /**
+   * @param theGroupReader reads the Group of a Group-level export
+   */
+  public NdjsonExportProvider(FhirContext theFhirContext, NdjsonExportSvc theExportSvc, BiFunction<IIdType, RequestDetails, IBaseResource> theGroupReader) {
+    myFhirContext = theFhirContext;
+    myExportSvc = theExportSvc;
+    myGroupReader = theGroupReader;
+  }
+
+  @Operation(name = OPERATION_EXPORT, manualResponse = true, idempotent = true)
+  public void export(
+    @OperationParam(name = "_outputFormat", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theOutputFormat,
+    @OperationParam(name = "_type", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    @OperationParam(name = "_since", min = 0, max = 1, typeName = "instant") IPrimitiveType<Date> theSince,
+    @OperationParam(name = "_typeFilter", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theTypeFilter,
+    ServletRequestDetails theRequestDetails
+  ) throws IOException {
+    List<String> resourceTypes = validate(theOutputFormat, theType, theTypeFilter, theRequestDetails);
+    NdjsonExportSvc.Job job = myExportSvc.submit(resourceTypes, toDate(theSince), theRequestDetails.getCompleteUrl());
+    respondAccepted(job, theRequestDetails);
+  }
+
+  /**
+   * Exports the Patient compartments of all patients
+   */
+  @Operation(name = OPERATION_EXPORT, manualResponse = true, idempotent = true, typeName = "Patient")
+  public void patientExport(
+    @OperationParam(name = "_outputFormat", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theOutputFormat,
+    @OperationParam(name = "_type", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    @OperationParam(name = "_since", min = 0, max = 1, typeName = "instant") IPrimitiveType<Date> theSince,
+    @OperationParam(name = "_typeFilter", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theTypeFilter,
+    ServletRequestDetails theRequestDetails
+  ) throws IOException {
+    List<String> resourceTypes = validate(theOutputFormat, theType, theTypeFilter, theRequestDetails);
+    submitPatients(resourceTypes, theSince, null, theRequestDetails);
+  }
+
+  /**
+   * Exports the Patient compartments of the patients in a Group
+   */
+  @Operation(name = OPERATION_EXPORT, manualResponse = true, idempotent = true, typeName = "Group")
+  public void groupExport(
+    @IdParam IIdType theGroupId,
+    @OperationParam(name = "_outputFormat", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theOutputFormat,
+    @OperationParam(name = "_type", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    @OperationParam(name = "_since", min = 0, max = 1, typeName = "instant") IPrimitiveType<Date> theSince,
+    @OperationParam(name = "_typeFilter", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theTypeFilter,
+    ServletRequestDetails theRequestDetails
+  ) throws IOException {
+    List<String> resourceTypes = validate(theOutputFormat, theType, theTypeFilter, theRequestDetails);
+    IBaseResource group = myGroupReader.apply(theGroupId, theRequestDetails);
+    Set<String> patientIds = new LinkedHashSet<>();
+    for (IBaseReference next : myFhirContext.newTerser().getValues(group, "Group.member.entity", IBaseReference.class)) {
+      IIdType member = next.getReferenceElement();
+      if ("Patient".equals(member.getResourceType()) && member.hasIdPart()) {
+        patientIds.add(member.getIdPart());
+      }
+    }
+    submitPatients(resourceTypes, theSince, patientIds, theRequestDetails);
+  }
+
+  private void submitPatients(List<String> theResourceTypes, IPrimitiveType<Date> theSince, Set<String> thePatientIds, ServletRequestDetails theRequestDetails) throws IOException {
+    NdjsonExportSvc.Job job;
+    try {
+      job = myExportSvc.submitPatients(theResourceTypes, toDate(theSince), theRequestDetails.getCompleteUrl(), thePatientIds);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidRequestException("Invalid _type: " + e.getMessage());
+    }
+    respondAccepted(job, theRequestDetails);
+  }
+
+  /**
+   * Checks the kick-off parameters shared by all levels
+   *
+   * @return the requested resource types, or empty for all
+   */
+  private List<String> validate(IPrimitiveType<String> theOutputFormat, IPrimitiveType<String> theType, IPrimitiveType<String> theTypeFilter,
+                                ServletRequestDetails theRequestDetails) {
+    PreferHeader prefer = RestfulServerUtils.parsePreferHeader(null, theRequestDetails.getHeader(Constants.HEADER_PREFER));
+    if (!prefer.getRespondAsync()) {
+      throw new InvalidRequestException("Must request async processing for " + OPERATION_EXPORT);
+    }
+    if (theOutputFormat != null && !Constants.CTS_NDJSON.contains(theOutputFormat.getValueAsString())) {
+      throw new InvalidRequestException("Unsupported _outputFormat: " + theOutputFormat.getValueAsString());
+    }
+    if (theTypeFilter != null && StringUtils.isNotBlank(theTypeFilter.getValueAsString())) {
+      throw new InvalidRequestException("_typeFilter is not supported");
+    }
+
+    List<String> resourceTypes = new ArrayList<>();
+    if (theType != null) {
+      for (String next : StringUtils.split(theType.getValueAsString(), ',')) {
+        try {
+          resourceTypes.add(myFhirContext.getResourceDefinition(next.trim()).getName());
+        } catch (DataFormatException e) {
+          throw new InvalidRequestException("Unknown resource type in _type: " + next);
+        }
+      }
+    }
+    return resourceTypes;
+  }
+
+  private static Date toDate(IPrimitiveType<Date> theSince) {
+    return theSince != null ? theSince.getValue() : null;
+  }
+
+  private void respondAccepted(NdjsonExportSvc.Job theJob, ServletRequestDetails theRequestDetails) {
+    HttpServletResponse response = theRequestDetails.getServletResponse();
+    theRequestDetails.getServer().addHeadersToResponse(response);
+    response.addHeader(Constants.HEADER_CONTENT_LOCATION, theRequestDetails.getServerBaseForRequest() + "/" + OPERATION_EXPORT_POLL_STATUS + "?_jobId=" + theJob.getId());
+    response.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+  }
+
+  @Operation(name = OPERATION_EXPORT_POLL_STATUS, manualResponse = true, idempotent = true)
+  public void exportPollStatus(
+    @OperationParam(name = "_jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId,
+    ServletRequestDetails theRequestDetails
+  ) throws IOException {
+    NdjsonExportSvc.Job job = getJob(theJobId);
+
+    HttpServletResponse response = theRequestDetails.getServletResponse();
+    theRequestDetails.getServer().addHeadersToResponse(response);
+    switch (job.getStatus()) {
+      case IN_PROGRESS:
+        response.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+        response.addHeader(Constants.HEADER_X_PROGRESS, "Exported " + job.getResourceCount() + " resources");
+        response.addHeader(Constants.HEADER_RETRY_AFTER, "120");
+        break;
+      case ERROR:
+        throw new InternalErrorException("Export job " + job.getId() + " failed: " + job.getError());
+      case COMPLETE:
+        response.setStatus(Constants.STATUS_HTTP_200_OK);
+        response.setContentType(Constants.CT_JSON);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (JsonGenerator json = myJsonFactory.createGenerator(response.getWriter())) {
+          writeManifest(json, job, theRequestDetails.getServerBaseForRequest());
+        }
+        break;
+    }
+  }
+
+  @Operation(name = OPERATION_EXPORT_FILE, manualResponse = true, idempotent = true)
+  public void exportFile(
+    @OperationParam(name = "_jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId,
+    @OperationParam(name = "_type", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    ServletRequestDetails theRequestDetails
+  ) throws IOException {
+    NdjsonExportSvc.Job job = getJob(theJobId);
+    Path file = job.getFile(theType.getValueAsString());
+    if (job.getStatus() != NdjsonExportSvc.Status.COMPLETE || file == null || !Files.exists(file)) {
+      throw new ResourceNotFoundException("No " + theType.getValueAsString() + " output for export job " + job.getId());
+    }
+
+    HttpServletResponse response = theRequestDetails.getServletResponse();
+    theRequestDetails.getServer().addHeadersToResponse(response);
+    response.setStatus(Constants.STATUS_HTTP_200_OK);
+    response.setContentType(Constants.CT_FHIR_NDJSON);
+
+    // Gzipped files are sent as they are to clients that accept gzip, and unzipped on the fly for the others
+    String acceptEncoding = theRequestDetails.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+    boolean sendGzip = job.isGzip() && acceptEncoding != null && acceptEncoding.contains(Constants.ENCODING_GZIP);
+    if (sendGzip) {
+      response.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+    }
+    if (sendGzip || !job.isGzip()) {
+      response.setContentLengthLong(Files.size(file));
+    }
+    try (InputStream in = job.isGzip() && !sendGzip ? new GZIPInputStream(Files.newInputStream(file), 65536) : Files.newInputStream(file);
+         OutputStream out = response.getOutputStream()) {
+      IOUtils.copyLarge(in, out);
+    }
+  }
+
+  private NdjsonExportSvc.Job getJob(IPrimitiveType<String> theJobId) {
+    NdjsonExportSvc.Job retVal = theJobId != null ? myExportSvc.getJob(theJobId.getValueAsString()) : null;
+    if (retVal == null) {
+      throw new ResourceNotFoundException("Unknown export job: " + (theJobId != null ? theJobId.getValueAsString() : null));
+    }
+    return retVal;
+  }
+
+  /**
+   * Writes the completion manifest of the bulk data specification
+   */
+  void writeManifest(JsonGenerator theJson, NdjsonExportSvc.Job theJob, String theServerBase) throws IOException {
+    theJson.writeStartObject();
+    theJson.writeStringField("transactionTime", theJob.getTransactionTime().toInstant().toString());
+    theJson.writeStringField("request", theJob.getRequest());
+    theJson.writeBooleanField("requiresAccessToken", true);
+    theJson.writeArrayFieldStart("output");
+    for (Map.Entry<String, Long> next : theJob.getOutputCounts().entrySet()) {
+      theJson.writeStartObject();
+      theJson.writeStringField("type", next.getKey());
+      theJson.writeStringField("url", theServerBase + "/" + OPERATION_EXPORT_FILE + "?_jobId=" + theJob.getId() + "&_type=" + next.getKey());
+      theJson.writeNumberField("count", next.getValue());
+      theJson.writeEndObject();
+    }
+    theJson.writeEndArray();
+    theJson.writeArrayFieldStart("error");
+    theJson.writeEndArray();
+    theJson.writeEndObject();
+  }
+}
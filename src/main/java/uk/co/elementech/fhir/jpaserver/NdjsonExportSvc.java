@@ -0,0 +1,721 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs bulk data exports straight into NDJSON files in a local directory,
+ * instead of collecting the resources in memory and storing the output as
+ * binaries in the database.
+ * <p>
+ * Each resource type of a job is exported by its own worker, with up to the
+ * configured number of workers running in parallel. A worker pages through
+ * the resource table by resource id (keyset pagination, so every chunk is a
+ * cheap index range scan no matter how far the export has got), loads each
+ * chunk of resources through the {@link ResourceLoader}, and appends them to
+ * the type's file, gzipped on the fly if enabled. Only one chunk of resources
+ * is held in memory at any time.
+ * <p>
+ * After every chunk the file is synced and a checkpoint with the last
+ * exported resource id and the file length is written. Jobs that were still
+ * running when the server stopped are picked up again on start: the file is
+ * cut back to the checkpointed length and the export continues after the
+ * checkpointed id. Gzipped files are written as one gzip member per chunk, so
+ * the cut always falls on a member boundary.
+ * <p>
+ * Patient-level exports are limited to the resource types in the Patient
+ * compartment. Group-level exports are also limited to the resources in the
+ * compartments of the patients in the group: the pages of ids only hold the
+ * patients themselves, or the resources that link to one of them in the
+ * resource link table, and a loaded resource is kept if one of the group's
+ * patients it refers to has it in their compartment.
+ * <p>
+ * Job directories are deleted once they are older than the retention period.
+ */
+public class NdjsonExportSvc implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(NdjsonExportSvc.class);
+
+  static final String JOB_FILE = "job.properties";
+  static final String CHECKPOINT_SUFFIX = ".checkpoint";
+  /**
+   * The most values in one SQL <code>IN</code> list, which some databases limit
+   */
+  private static final int MAX_IN_LIST = 1000;
+
+  /**
+   * Loads the resources with the given persistent ids
+   */
+  @FunctionalInterface
+  public interface ResourceLoader {
+    List<IBaseResource> load(String theResourceType, List<Long> thePids);
+  }
+
+  public enum Status {
+    IN_PROGRESS,
+    COMPLETE,
+    ERROR
+  }
+
+  private final FhirContext myFhirContext;
+  private final DataSource myDataSource;
+  private final ResourceLoader myResourceLoader;
+  private final Path myDirectory;
+  private final boolean myGzip;
+  private final int myChunkSize;
+  private final long myRetentionMillis;
+  private final ExecutorService myExecutor;
+  private final Map<String, Job> myJobs = new ConcurrentHashMap<>();
+
+  public NdjsonExportSvc(FhirContext theFhirContext, DataSource theDataSource, ResourceLoader theResourceLoader, Path theDirectory,
+                         boolean theGzip, int theChunkSize, int theThreads, int theRetentionHours) {
+    myFhirContext = theFhirContext;
+    myDataSource = theDataSource;
+    myResourceLoader = theResourceLoader;
+    myDirectory = theDirectory;
+    myGzip = theGzip;
+    myChunkSize = theChunkSize;
+    myRetentionMillis = TimeUnit.HOURS.toMillis(theRetentionHours);
+    AtomicInteger threadCount = new AtomicInteger();
+    myExecutor = Executors.newFixedThreadPool(theThreads, r -> {
+      Thread thread = new Thread(r, "ndjson-export-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Loads the jobs in the export directory and resumes the ones that were
+   * still in progress
+   */
+  public void start() throws IOException {
+    Files.createDirectories(myDirectory);
+    purgeExpiredJobs();
+    try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(myDirectory, Files::isDirectory)) {
+      for (Path next : jobDirectories) {
+        if (!Files.exists(next.resolve(JOB_FILE))) {
+          continue;
+        }
+        Job job;
+        try {
+          job = Job.read(next);
+        } catch (IOException | RuntimeException e) {
+          ourLog.warn("Ignoring bulk export job {}, its job file could not be read: {}", next.getFileName(), e.toString());
+          continue;
+        }
+        myJobs.put(job.getId(), job);
+        if (job.getStatus() == Status.IN_PROGRESS) {
+          ourLog.info("Resuming bulk export job {}", job.getId());
+          schedule(job);
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts a new export job
+   *
+   * @param theResourceTypes the resource types to export, or empty for every type in the database
+   * @param theSince only export resources updated at or after this time, or null
+   * @param theRequest the request URL, reported back in the manifest
+   * @return the new job
+   */
+  public Job submit(List<String> theResourceTypes, Date theSince, String theRequest) throws IOException {
+    List<String> resourceTypes = theResourceTypes;
+    if (resourceTypes.isEmpty()) {
+      resourceTypes = findResourceTypes();
+    }
+    return submitJob(resourceTypes, theSince, theRequest, null);
+  }
+
+  /**
+   * Starts a new Patient-level or Group-level export job, of the resource
+   * types in the Patient compartment
+   *
+   * @param theResourceTypes the resource types to export, or empty for every type in the Patient compartment that is in the database
+   * @param thePatientIds the ids of the patients whose compartments are exported, or null for all patients
+   * @throws IllegalArgumentException if one of the resource types is not in the Patient compartment
+   */
+  public Job submitPatients(List<String> theResourceTypes, Date theSince, String theRequest, Collection<String> thePatientIds) throws IOException {
+    Set<String> compartmentTypes = getPatientCompartmentTypes();
+    List<String> resourceTypes = theResourceTypes;
+    if (resourceTypes.isEmpty()) {
+      resourceTypes = findResourceTypes().stream().filter(compartmentTypes::contains).collect(Collectors.toList());
+    } else {
+      for (String next : resourceTypes) {
+        if (!compartmentTypes.contains(next)) {
+          throw new IllegalArgumentException(next + " is not in the Patient compartment");
+        }
+      }
+    }
+    return submitJob(resourceTypes, theSince, theRequest, thePatientIds);
+  }
+
+  private Job submitJob(List<String> theResourceTypes, Date theSince, String theRequest, Collection<String> thePatientIds) throws IOException {
+    purgeExpiredJobs();
+    String id = UUID.randomUUID().toString();
+    Job job = new Job(id, myDirectory.resolve(id), theResourceTypes, theSince, new Date(), theRequest, myGzip,
+      thePatientIds != null ? new LinkedHashSet<>(thePatientIds) : null);
+    Files.createDirectories(job.myDirectory);
+    job.write();
+    myJobs.put(id, job);
+    ourLog.info("Starting bulk export job {} for {}", id, theResourceTypes);
+    schedule(job);
+    return job;
+  }
+
+  /**
+   * The resource types with a search parameter that places them in the Patient compartment
+   */
+  public Set<String> getPatientCompartmentTypes() {
+    Set<String> retVal = new LinkedHashSet<>();
+    for (String next : myFhirContext.getResourceNames()) {
+      for (RuntimeSearchParam param : myFhirContext.getResourceDefinition(next).getSearchParams()) {
+        if (param.getProvidesMembershipInCompartments() != null && param.getProvidesMembershipInCompartments().contains("Patient")) {
+          retVal.add(next);
+          break;
+        }
+      }
+    }
+    retVal.add("Patient");
+    return retVal;
+  }
+
+  /**
+   * @return the job, or null if there is no such job
+   */
+  public Job getJob(String theId) {
+    return myJobs.get(theId);
+  }
+
+  private void schedule(Job theJob) {
+    AtomicInteger remaining = new AtomicInteger(theJob.getResourceTypes().size());
+    if (remaining.get() == 0) {
+      theJob.finish(Status.COMPLETE, null);
+      return;
+    }
+    for (String next : theJob.getResourceTypes()) {
+      myExecutor.submit(() -> {
+        try {
+          if (exportType(theJob, next) && remaining.decrementAndGet() == 0 && theJob.getStatus() == Status.IN_PROGRESS) {
+            theJob.finish(Status.COMPLETE, null);
+            ourLog.info("Bulk export job {} complete, {} resources", theJob.getId(), theJob.getResourceCount());
+          }
+        } catch (Exception e) {
+          if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+            ourLog.info("Bulk export job {} interrupted, it resumes on the next start", theJob.getId());
+          } else {
+            ourLog.error("Bulk export job {} failed exporting {}", theJob.getId(), next, e);
+            theJob.finish(Status.ERROR, next + ": " + e.getMessage());
+          }
+        }
+        return null;
+      });
+    }
+  }
+
+  /**
+   * @return true if the resource type has been exported completely, false if the export was interrupted
+   */
+  private boolean exportType(Job theJob, String theResourceType) throws IOException, SQLException {
+    Checkpoint checkpoint = theJob.myCheckpoints.get(theResourceType);
+    if (checkpoint.myComplete) {
+      return true;
+    }
+
+    List<Long> patientPids = null;
+    if (theJob.myPatientIds != null) {
+      patientPids = findPatientPids(theJob.myPatientIds);
+    }
+    FhirTerser terser = myFhirContext.newTerser();
+
+    Path file = theJob.getFile(theResourceType);
+    Path checkpointFile = theJob.myDirectory.resolve(theResourceType + CHECKPOINT_SUFFIX);
+    IParser parser = myFhirContext.newJsonParser();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      // Drop whatever was written after the last checkpoint
+      channel.truncate(checkpoint.myBytes);
+      channel.position(checkpoint.myBytes);
+      OutputStream out = new UnclosableOutputStream(Channels.newOutputStream(channel));
+
+      while (true) {
+        if (Thread.currentThread().isInterrupted() || theJob.getStatus() != Status.IN_PROGRESS) {
+          return false;
+        }
+        List<Long> pids = nextPids(theResourceType, checkpoint.myLastPid, theJob.getSince(), patientPids);
+        if (pids.isEmpty()) {
+          break;
+        }
+        List<IBaseResource> resources = myResourceLoader.load(theResourceType, pids);
+        if (patientPids != null && !theResourceType.equals("Patient")) {
+          resources = inCompartments(terser, resources, theJob.myPatientIds);
+        }
+
+        // Closing the writer finishes the gzip member, but leaves the file open
+        OutputStream chunkOut = theJob.isGzip() ? new GZIPOutputStream(out, 65536) : out;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(chunkOut, StandardCharsets.UTF_8), 65536)) {
+          for (IBaseResource next : resources) {
+            parser.encodeResourceToWriter(next, writer);
+            writer.write('\n');
+          }
+        }
+        channel.force(false);
+
+        checkpoint.myLastPid = pids.get(pids.size() - 1);
+        checkpoint.myResources += resources.size();
+        checkpoint.myBytes = channel.position();
+        checkpoint.write(checkpointFile);
+        theJob.myResourceCount.addAndGet(resources.size());
+      }
+    }
+
+    checkpoint.myComplete = true;
+    checkpoint.write(checkpointFile);
+    if (checkpoint.myResources == 0) {
+      Files.deleteIfExists(file);
+    }
+    return true;
+  }
+
+  /**
+   * The resources that are in the Patient compartment of one of the given
+   * patients. Only the patients a resource refers to are checked.
+   */
+  private List<IBaseResource> inCompartments(FhirTerser theTerser, List<IBaseResource> theResources, Set<String> thePatientIds) {
+    List<IBaseResource> retVal = new ArrayList<>(theResources.size());
+    for (IBaseResource next : theResources) {
+      for (ResourceReferenceInfo reference : theTerser.getAllResourceReferences(next)) {
+        IIdType target = reference.getResourceReference().getReferenceElement();
+        if (target != null && "Patient".equals(target.getResourceType()) && thePatientIds.contains(target.getIdPart())
+          && theTerser.isSourceInCompartmentForTarget("Patient", next, target.toUnqualifiedVersionless())) {
+          retVal.add(next);
+          break;
+        }
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * The persistent ids of the current patients with the given ids
+   */
+  private List<Long> findPatientPids(Set<String> thePatientIds) throws SQLException {
+    List<String> ids = new ArrayList<>(thePatientIds);
+    Set<Long> retVal = new LinkedHashSet<>();
+    Set<String> forced = new LinkedHashSet<>();
+    try (Connection connection = myDataSource.getConnection()) {
+      for (int start = 0; start < ids.size(); start += MAX_IN_LIST) {
+        List<String> batch = ids.subList(start, Math.min(ids.size(), start + MAX_IN_LIST));
+        String sql = "SELECT RESOURCE_PID, FORCED_ID FROM HFJ_FORCED_ID WHERE RESOURCE_TYPE = 'Patient' AND FORCED_ID IN ("
+          + String.join(",", Collections.nCopies(batch.size(), "?")) + ")";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+          for (int i = 0; i < batch.size(); i++) {
+            statement.setString(i + 1, batch.get(i));
+          }
+          try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+              retVal.add(resultSet.getLong(1));
+              forced.add(resultSet.getString(2));
+            }
+          }
+        }
+      }
+    }
+    // Server assigned ids are the persistent ids
+    for (String next : ids) {
+      if (!forced.contains(next) && next.matches("[0-9]+")) {
+        retVal.add(Long.parseLong(next));
+      }
+    }
+    return new ArrayList<>(retVal);
+  }
+
+  /**
+   * The next chunk of ids of current resources of the given type, after the given id
+   *
+   * @param thePatientPids if not null, only patients with these ids, or resources that link to one of them
+   */
+  List<Long> nextPids(String theResourceType, long theAfterPid, Date theSince, List<Long> thePatientPids) throws SQLException {
+    List<Long> retVal = new ArrayList<>(myChunkSize);
+    if (thePatientPids != null && thePatientPids.isEmpty()) {
+      return retVal;
+    }
+    StringBuilder sql = new StringBuilder("SELECT RES_ID FROM HFJ_RESOURCE WHERE RES_TYPE = ? AND RES_DELETED_AT IS NULL AND RES_ID > ?");
+    if (theSince != null) {
+      sql.append(" AND RES_UPDATED >= ?");
+    }
+    if (thePatientPids != null) {
+      String column = theResourceType.equals("Patient") ? "RES_ID" : "TARGET_RESOURCE_ID";
+      sql.append(theResourceType.equals("Patient") ? " AND (" : " AND RES_ID IN (SELECT SRC_RESOURCE_ID FROM HFJ_RES_LINK WHERE ");
+      for (int start = 0; start < thePatientPids.size(); start += MAX_IN_LIST) {
+        int count = Math.min(thePatientPids.size() - start, MAX_IN_LIST);
+        sql.append(start > 0 ? " OR " : "").append(column).append(" IN (").append(String.join(",", Collections.nCopies(count, "?"))).append(")");
+      }
+      sql.append(")");
+    }
+    sql.append(" ORDER BY RES_ID");
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+      statement.setMaxRows(myChunkSize);
+      statement.setFetchSize(myChunkSize);
+      int index = 1;
+      statement.setString(index++, theResourceType);
+      statement.setLong(index++, theAfterPid);
+      if (theSince != null) {
+        statement.setTimestamp(index++, new Timestamp(theSince.getTime()));
+      }
+      if (thePatientPids != null) {
+        for (Long next : thePatientPids) {
+          statement.setLong(index++, next);
+        }
+      }
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          retVal.add(resultSet.getLong(1));
+        }
+      }
+    }
+    return retVal;
+  }
+
+  private List<String> findResourceTypes() throws IOException {
+    List<String> retVal = new ArrayList<>();
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("SELECT DISTINCT RES_TYPE FROM HFJ_RESOURCE WHERE RES_DELETED_AT IS NULL");
+         ResultSet resultSet = statement.executeQuery()) {
+      while (resultSet.next()) {
+        retVal.add(resultSet.getString(1));
+      }
+    } catch (SQLException e) {
+      throw new IOException("Could not list the resource types to export", e);
+    }
+    Collections.sort(retVal);
+    return retVal;
+  }
+
+  private void purgeExpiredJobs() {
+    long cutoff = System.currentTimeMillis() - myRetentionMillis;
+    for (Job next : new ArrayList<>(myJobs.values())) {
+      if (next.getStatus() != Status.IN_PROGRESS && next.getTransactionTime().getTime() < cutoff) {
+        myJobs.remove(next.getId());
+        ourLog.info("Deleting expired bulk export job {}", next.getId());
+        try (Stream<Path> files = Files.walk(next.myDirectory)) {
+          files.sorted(Comparator.reverseOrder()).forEach(t -> t.toFile().delete());
+        } catch (IOException e) {
+          ourLog.warn("Could not delete {}", next.myDirectory, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the workers. Running jobs are left in progress and resume on the next start.
+   */
+  @Override
+  public void close() {
+    myExecutor.shutdownNow();
+    try {
+      if (!myExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+        ourLog.warn("Bulk export workers did not stop within 30 seconds");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static class Job {
+
+    private final String myId;
+    private final Path myDirectory;
+    private final List<String> myResourceTypes;
+    private final Date mySince;
+    private final Date myTransactionTime;
+    private final String myRequest;
+    private final boolean myGzip;
+    /**
+     * The patients of a Group-level export, or null
+     */
+    private final Set<String> myPatientIds;
+    private final Map<String, Checkpoint> myCheckpoints = new LinkedHashMap<>();
+    private final AtomicLong myResourceCount = new AtomicLong();
+    private volatile Status myStatus = Status.IN_PROGRESS;
+    private volatile String myError;
+
+    Job(String theId, Path theDirectory, List<String> theResourceTypes, Date theSince, Date theTransactionTime, String theRequest, boolean theGzip,
+        Set<String> thePatientIds) {
+      myId = theId;
+      myDirectory = theDirectory;
+      myResourceTypes = Collections.unmodifiableList(new ArrayList<>(theResourceTypes));
+      mySince = theSince;
+      myTransactionTime = theTransactionTime;
+      myRequest = theRequest;
+      myGzip = theGzip;
+      myPatientIds = thePatientIds != null ? Collections.unmodifiableSet(thePatientIds) : null;
+      for (String next : myResourceTypes) {
+        myCheckpoints.put(next, new Checkpoint());
+      }
+    }
+
+    public String getId() {
+      return myId;
+    }
+
+    public List<String> getResourceTypes() {
+      return myResourceTypes;
+    }
+
+    public Date getSince() {
+      return mySince;
+    }
+
+    public Date getTransactionTime() {
+      return myTransactionTime;
+    }
+
+    public String getRequest() {
+      return myRequest;
+    }
+
+    public boolean isGzip() {
+      return myGzip;
+    }
+
+    public Status getStatus() {
+      return myStatus;
+    }
+
+    public String getError() {
+      return myError;
+    }
+
+    /**
+     * The number of resources exported so far
+     */
+    public long getResourceCount() {
+      return myResourceCount.get();
+    }
+
+    /**
+     * The number of resources exported per resource type, for the types that have any
+     */
+    public Map<String, Long> getOutputCounts() {
+      Map<String, Long> retVal = new LinkedHashMap<>();
+      myCheckpoints.forEach((type, checkpoint) -> {
+        if (checkpoint.myResources > 0) {
+          retVal.put(type, checkpoint.myResources);
+        }
+      });
+      return retVal;
+    }
+
+    public String getFileName(String theResourceType) {
+      return theResourceType + ".ndjson" + (myGzip ? ".gz" : "");
+    }
+
+    /**
+     * The output file of the given resource type, or null if it is not one of this job's types
+     */
+    public Path getFile(String theResourceType) {
+      if (!myCheckpoints.containsKey(theResourceType)) {
+        return null;
+      }
+      return myDirectory.resolve(getFileName(theResourceType));
+    }
+
+    private synchronized void finish(Status theStatus, String theError) {
+      if (myStatus != Status.IN_PROGRESS) {
+        return;
+      }
+      myStatus = theStatus;
+      myError = theError;
+      try {
+        write();
+      } catch (IOException e) {
+        ourLog.error("Could not save the status of bulk export job {}", myId, e);
+      }
+    }
+
+    private void write() throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("types", String.join(",", myResourceTypes));
+      if (mySince != null) {
+        properties.setProperty("since", Long.toString(mySince.getTime()));
+      }
+      properties.setProperty("transactionTime", Long.toString(myTransactionTime.getTime()));
+      properties.setProperty("request", myRequest);
+      properties.setProperty("gzip", Boolean.toString(myGzip));
+      if (myPatientIds != null) {
+        properties.setProperty("patients", String.join(",", myPatientIds));
+      }
+      properties.setProperty("status", myStatus.name());
+      if (myError != null) {
+        properties.setProperty("error", myError);
+      }
+      writeAtomically(properties, myDirectory.resolve(JOB_FILE));
+    }
+
+    static Job read(Path theDirectory) throws IOException {
+      Properties properties = readProperties(theDirectory.resolve(JOB_FILE));
+      String since = properties.getProperty("since");
+      String types = properties.getProperty("types", "");
+      String patients = properties.getProperty("patients");
+      String transactionTime = properties.getProperty("transactionTime");
+      if (transactionTime == null) {
+        throw new IOException("No transaction time in " + JOB_FILE);
+      }
+      Job retVal = new Job(
+        theDirectory.getFileName().toString(),
+        theDirectory,
+        types.isEmpty() ? Collections.emptyList() : Arrays.asList(types.split(",")),
+        since != null ? new Date(Long.parseLong(since)) : null,
+        new Date(Long.parseLong(transactionTime)),
+        properties.getProperty("request"),
+        Boolean.parseBoolean(properties.getProperty("gzip")),
+        patients == null ? null : patients.isEmpty() ? new LinkedHashSet<>() : new LinkedHashSet<>(Arrays.asList(patients.split(","))));
+      String status = properties.getProperty("status");
+      try {
+        retVal.myStatus = Status.valueOf(status);
+        retVal.myError = properties.getProperty("error");
+      } catch (IllegalArgumentException | NullPointerException e) {
+        // A job file written partly, or by another version, is not resumed
+        retVal.myStatus = Status.ERROR;
+        retVal.myError = "Unknown job status: " + status;
+      }
+      for (Map.Entry<String, Checkpoint> next : retVal.myCheckpoints.entrySet()) {
+        Path checkpointFile = theDirectory.resolve(next.getKey() + CHECKPOINT_SUFFIX);
+        if (Files.exists(checkpointFile)) {
+          next.setValue(Checkpoint.read(checkpointFile));
+          retVal.myResourceCount.addAndGet(next.getValue().myResources);
+        }
+      }
+      return retVal;
+    }
+  }
+
+  /**
+   * How far the export of one resource type has got
+   */
+  private static class Checkpoint {
+
+    private volatile long myLastPid;
+    private volatile long myResources;
+    private volatile long myBytes;
+    private volatile boolean myComplete;
+
+    void write(Path theFile) throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("lastPid", Long.toString(myLastPid));
+      properties.setProperty("resources", Long.toString(myResources));
+      properties.setProperty("bytes", Long.toString(myBytes));
+      properties.setProperty("complete", Boolean.toString(myComplete));
+      writeAtomically(properties, theFile);
+    }
+
+    static Checkpoint read(Path theFile) throws IOException {
+      Properties properties = readProperties(theFile);
+      Checkpoint retVal = new Checkpoint();
+      retVal.myLastPid = Long.parseLong(properties.getProperty("lastPid"));
+      retVal.myResources = Long.parseLong(properties.getProperty("resources"));
+      retVal.myBytes = Long.parseLong(properties.getProperty("bytes"));
+      retVal.myComplete = Boolean.parseBoolean(properties.getProperty("complete"));
+      return retVal;
+    }
+  }
+
+  private static Properties readProperties(Path theFile) throws IOException {
+    Properties retVal = new Properties();
+    try (InputStream in = Files.newInputStream(theFile)) {
+      retVal.load(in);
+    }
+    return retVal;
+  }
+
+  private static void writeAtomically(Properties theProperties, Path theFile) throws IOException {
+    Path temp = theFile.resolveSibling(theFile.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      theProperties.store(out, null);
+    }
+    Files.move(temp, theFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Keeps the file open when a chunk's writer is closed
+   */
+  private static class UnclosableOutputStream extends OutputStream {
+
+    private final OutputStream myDelegate;
+
+    UnclosableOutputStream(OutputStream theDelegate) {
+      myDelegate = theDelegate;
+    }
+
+    @Override
+    public void write(int theByte) throws IOException {
+      myDelegate.write(theByte);
+    }
+
+    @Override
+    public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+      myDelegate.write(theBytes, theOffset, theLength);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      myDelegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.ParametersUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The <code>$import</code> operation, which loads NDJSON files with
+ * {@link NdjsonImportSvc}.
+ * <p>
+ * Each <code>input</code> parameter names either a file in the import
+ * directory (<code>file:observations.ndjson.gz</code>) or an uploaded Binary
+ * (<code>Binary/123</code>). The import runs in the background: the response
+ * is a 202 with a <code>Content-Location</code> pointing to
+ * <code>$import-poll-status</code>, which returns the progress as a
+ * Parameters resource.
+ */
+public class NdjsonImportProvider {
+
+  static final String OPERATION_IMPORT = "$import";
+  static final String OPERATION_IMPORT_POLL_STATUS = "$import-poll-status";
+  private static final String FILE_PREFIX = "file:";
+
+  private final FhirContext myFhirContext;
+  private final NdjsonImportSvc myImportSvc;
+  private final Path myImportDirectory;
+  private final Function<IIdType, NdjsonImportSvc.Source> myBinarySourceFactory;
+
+  /**
+   * @param theImportDirectory the directory file inputs are read from, or null to only accept Binary inputs
+   * @param theBinarySourceFactory opens the content of an uploaded Binary
+   */
+  public NdjsonImportProvider(FhirContext theFhirContext, NdjsonImportSvc theImportSvc, Path theImportDirectory,
+                              Function<IIdType, NdjsonImportSvc.Source> theBinarySourceFactory) {
+    myFhirContext = theFhirContext;
+    myImportSvc = theImportSvc;
+    myBinarySourceFactory = theBinarySourceFactory;
+    try {
+      myImportDirectory = theImportDirectory != null ? theImportDirectory.toRealPath() : null;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the import directory " + theImportDirectory, e);
+    }
+  }
+
+  @Operation(name = OPERATION_IMPORT, manualResponse = true)
+  public void importResources(
+    @OperationParam(name = "inputFormat", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theInputFormat,
+    @OperationParam(name = "input", min = 1, max = OperationParam.MAX_UNLIMITED, typeName = "string") List<IPrimitiveType<String>> theInputs,
+    ServletRequestDetails theRequestDetails
+  ) {
+    if (theInputFormat != null && !Constants.CTS_NDJSON.contains(theInputFormat.getValueAsString())) {
+      throw new InvalidRequestException("Unsupported inputFormat: " + theInputFormat.getValueAsString());
+    }
+    List<NdjsonImportSvc.Source> sources = new ArrayList<>();
+    for (IPrimitiveType<String> next : theInputs) {
+      sources.add(resolveSource(next.getValueAsString()));
+    }
+
+    NdjsonImportSvc.Job job = myImportSvc.submit(sources);
+
+    HttpServletResponse response = theRequestDetails.getServletResponse();
+    theRequestDetails.getServer().addHeadersToResponse(response);
+    response.addHeader(Constants.HEADER_CONTENT_LOCATION, theRequestDetails.getServerBaseForRequest() + "/" + OPERATION_IMPORT_POLL_STATUS + "?_jobId=" + job.getId());
+    response.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+  }
+
+  @Operation(name = OPERATION_IMPORT_POLL_STATUS, idempotent = true)
+  public IBaseParameters importPollStatus(
+    @OperationParam(name = "_jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId
+  ) {
+    NdjsonImportSvc.Job job = myImportSvc.getJob(theJobId.getValueAsString());
+    if (job == null) {
+      throw new ResourceNotFoundException("Unknown import job: " + theJobId.getValueAsString());
+    }
+
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    ParametersUtil.addParameterToParametersCode(myFhirContext, retVal, "status", job.getStatus().name().toLowerCase(Locale.ROOT).replace('_', '-'));
+    ParametersUtil.addParameterToParameters(myFhirContext, retVal, "startTime", instant(job.getStartTime()));
+    if (job.getEndTime() != null) {
+      ParametersUtil.addParameterToParameters(myFhirContext, retVal, "endTime", instant(job.getEndTime()));
+    }
+    if (job.getError() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "message", job.getError());
+    }
+    ParametersUtil.addParameterToParametersInteger(myFhirContext, retVal, "imported", toInt(job.getImportedCount()));
+    ParametersUtil.addParameterToParametersInteger(myFhirContext, retVal, "failed", toInt(job.getFailedCount()));
+    for (Map.Entry<String, Long> next : job.getImportedCountsByType().entrySet()) {
+      IBase parameter = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "resourceType");
+      ParametersUtil.addPartCode(myFhirContext, parameter, "type", next.getKey());
+      ParametersUtil.addPart(myFhirContext, parameter, "imported", primitive("integer", Long.toString(next.getValue())));
+    }
+    for (String next : job.getErrors()) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "error", next);
+    }
+    return retVal;
+  }
+
+  NdjsonImportSvc.Source resolveSource(String theInput) {
+    if (theInput.startsWith("Binary/")) {
+      IIdType id = myFhirContext.getVersion().newIdType();
+      id.setValue(theInput);
+      return myBinarySourceFactory.apply(id);
+    }
+
+    String path = theInput.startsWith(FILE_PREFIX) ? theInput.substring(FILE_PREFIX.length()) : theInput;
+    if (myImportDirectory == null) {
+      throw new InvalidRequestException("Importing from files is not enabled, upload the input as a Binary instead");
+    }
+    Path file;
+    try {
+      file = myImportDirectory.resolve(path).toRealPath();
+    } catch (IOException e) {
+      throw new InvalidRequestException("No such input file: " + theInput);
+    }
+    // Symbolic links and ../ must not lead out of the import directory
+    if (!file.startsWith(myImportDirectory) || !Files.isRegularFile(file)) {
+      throw new InvalidRequestException("No such input file: " + theInput);
+    }
+    return NdjsonImportSvc.fileSource(file);
+  }
+
+  private IPrimitiveType<?> instant(Date theDate) {
+    return primitive("instant", theDate.toInstant().toString());
+  }
+
+  private IPrimitiveType<?> primitive(String theType, String theValue) {
+    IPrimitiveType<?> retVal = (IPrimitiveType<?>) myFhirContext.getElementDefinition(theType).newInstance();
+    retVal.setValueAsString(theValue);
+    return retVal;
+  }
+
+  private static int toInt(long theValue) {
+    return (int) Math.min(theValue, Integer.MAX_VALUE);
+  }
+}
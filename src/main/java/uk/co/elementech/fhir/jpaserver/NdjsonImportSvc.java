@@ -0,0 +1,388 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports NDJSON files with a pipeline of one reader and a pool of workers per
+ * job.
+ * <p>
+ * The reader streams the inputs line by line and hands them to the workers in
+ * batches through a bounded queue, so memory use depends on the batch size and
+ * the number of workers, not on the size of the input. Each worker parses its
+ * batch and writes it with the {@link ResourceWriter} in one transaction. If
+ * the transaction fails, the batch is parsed and written again one resource
+ * at a time, so that one bad resource only fails itself. Lines that can not be parsed or
+ * stored are counted and the first errors are kept for the status.
+ */
+public class NdjsonImportSvc implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(NdjsonImportSvc.class);
+
+  static final int MAX_ERRORS = 100;
+  static final int MAX_JOBS = 100;
+  private static final Batch END = new Batch(null, Collections.emptyList());
+
+  /**
+   * Stores a batch of resources in one transaction
+   */
+  @FunctionalInterface
+  public interface ResourceWriter {
+    void write(List<IBaseResource> theResources);
+  }
+
+  /**
+   * An NDJSON input
+   */
+  public interface Source {
+    String getName();
+
+    InputStream open() throws IOException;
+  }
+
+  public enum Status {
+    IN_PROGRESS,
+    COMPLETE,
+    ERROR
+  }
+
+  private final FhirContext myFhirContext;
+  private final ResourceWriter myResourceWriter;
+  private final int myThreads;
+  private final int myBatchSize;
+  private final ExecutorService myWorkers;
+  private final ExecutorService myReaders;
+  private final Map<String, Job> myJobs = new ConcurrentHashMap<>();
+
+  public NdjsonImportSvc(FhirContext theFhirContext, ResourceWriter theResourceWriter, int theThreads, int theBatchSize) {
+    myFhirContext = theFhirContext;
+    myResourceWriter = theResourceWriter;
+    myThreads = theThreads;
+    myBatchSize = theBatchSize;
+    myWorkers = Executors.newFixedThreadPool(theThreads, newThreadFactory("ndjson-import-"));
+    myReaders = Executors.newCachedThreadPool(newThreadFactory("ndjson-import-reader-"));
+  }
+
+  /**
+   * Starts importing the given inputs, in order
+   */
+  public Job submit(List<Source> theSources) {
+    purgeOldJobs();
+    List<String> names = new ArrayList<>();
+    theSources.forEach(t -> names.add(t.getName()));
+    Job job = new Job(UUID.randomUUID().toString(), names);
+    myJobs.put(job.getId(), job);
+    ourLog.info("Starting bulk import job {} for {}", job.getId(), names);
+
+    BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(myThreads * 2);
+    AtomicInteger runningWorkers = new AtomicInteger(myThreads);
+    for (int i = 0; i < myThreads; i++) {
+      myWorkers.submit(() -> work(job, queue, runningWorkers));
+    }
+    myReaders.submit(() -> read(job, theSources, queue));
+    return job;
+  }
+
+  /**
+   * @return the job, or null if there is no such job
+   */
+  public Job getJob(String theId) {
+    return myJobs.get(theId);
+  }
+
+  private void read(Job theJob, List<Source> theSources, BlockingQueue<Batch> theQueue) {
+    try {
+      for (Source next : theSources) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(next.open(), StandardCharsets.UTF_8), 65536)) {
+          List<Line> lines = new ArrayList<>(myBatchSize);
+          long lineNumber = 0;
+          String line;
+          while ((line = reader.readLine()) != null && theJob.getStatus() == Status.IN_PROGRESS) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+              continue;
+            }
+            lines.add(new Line(lineNumber, line));
+            if (lines.size() == myBatchSize) {
+              theQueue.put(new Batch(next.getName(), lines));
+              lines = new ArrayList<>(myBatchSize);
+            }
+          }
+          if (!lines.isEmpty()) {
+            theQueue.put(new Batch(next.getName(), lines));
+          }
+        } catch (IOException e) {
+          ourLog.error("Bulk import job {} could not read {}", theJob.getId(), next.getName(), e);
+          theJob.fail(next.getName() + ": " + e.getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      theJob.fail("Interrupted");
+    } finally {
+      // On shutdown the workers are interrupted anyway
+      try {
+        for (int i = 0; i < myThreads; i++) {
+          theQueue.put(END);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void work(Job theJob, BlockingQueue<Batch> theQueue, AtomicInteger theRunningWorkers) {
+    IParser parser = myFhirContext.newJsonParser();
+    try {
+      while (true) {
+        Batch batch = theQueue.take();
+        if (batch == END) {
+          break;
+        }
+        if (theJob.getStatus() == Status.IN_PROGRESS) {
+          importBatch(theJob, parser, batch);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      theJob.fail("Interrupted");
+    } finally {
+      if (theRunningWorkers.decrementAndGet() == 0) {
+        theJob.finish();
+        ourLog.info("Bulk import job {} finished: {} imported, {} failed", theJob.getId(), theJob.getImportedCount(), theJob.getFailedCount());
+      }
+    }
+  }
+
+  private void importBatch(Job theJob, IParser theParser, Batch theBatch) {
+    List<IBaseResource> resources = new ArrayList<>(theBatch.myLines.size());
+    List<Line> lines = new ArrayList<>(theBatch.myLines.size());
+    for (Line next : theBatch.myLines) {
+      try {
+        resources.add(theParser.parseResource(next.myText));
+        lines.add(next);
+      } catch (Exception e) {
+        theJob.addFailure(theBatch.mySource, next.myNumber, e.getMessage());
+      }
+    }
+    if (resources.isEmpty()) {
+      return;
+    }
+
+    try {
+      myResourceWriter.write(resources);
+      resources.forEach(theJob::addImported);
+    } catch (RuntimeException e) {
+      ourLog.debug("Batch of {} from {} failed, retrying one by one", resources.size(), theBatch.mySource, e);
+      for (Line next : lines) {
+        try {
+          // Parsed again, as the failed write may have assigned ids to the resources it created
+          IBaseResource resource = theParser.parseResource(next.myText);
+          myResourceWriter.write(Collections.singletonList(resource));
+          theJob.addImported(resource);
+        } catch (RuntimeException e2) {
+          theJob.addFailure(theBatch.mySource, next.myNumber, e2.getMessage());
+        }
+      }
+    }
+  }
+
+  private void purgeOldJobs() {
+    if (myJobs.size() < MAX_JOBS) {
+      return;
+    }
+    myJobs.values()
+      .stream()
+      .filter(t -> t.getStatus() != Status.IN_PROGRESS)
+      .min(Comparator.comparing(Job::getStartTime))
+      .ifPresent(t -> myJobs.remove(t.getId()));
+  }
+
+  @Override
+  public void close() {
+    myReaders.shutdownNow();
+    myWorkers.shutdownNow();
+    try {
+      myWorkers.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * An input file, gunzipped on the fly if its name ends with <code>.gz</code>
+   */
+  public static Source fileSource(Path theFile) {
+    return new Source() {
+      @Override
+      public String getName() {
+        return theFile.getFileName().toString();
+      }
+
+      @Override
+      public InputStream open() throws IOException {
+        InputStream retVal = Files.newInputStream(theFile);
+        return getName().endsWith(".gz") ? new GZIPInputStream(retVal, 65536) : retVal;
+      }
+    };
+  }
+
+  private static ThreadFactory newThreadFactory(String thePrefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, thePrefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  public class Job {
+
+    private final String myId;
+    private final List<String> mySources;
+    private final Date myStartTime = new Date();
+    private final LongAdder myImportedCount = new LongAdder();
+    private final LongAdder myFailedCount = new LongAdder();
+    private final Map<String, LongAdder> myImportedCountsByType = new ConcurrentHashMap<>();
+    private final List<String> myErrors = Collections.synchronizedList(new ArrayList<>());
+    private volatile Status myStatus = Status.IN_PROGRESS;
+    private volatile Date myEndTime;
+    private volatile String myError;
+
+    Job(String theId, List<String> theSources) {
+      myId = theId;
+      mySources = Collections.unmodifiableList(theSources);
+    }
+
+    public String getId() {
+      return myId;
+    }
+
+    public List<String> getSources() {
+      return mySources;
+    }
+
+    public Date getStartTime() {
+      return myStartTime;
+    }
+
+    /**
+     * @return when the job finished, or null if it is still running
+     */
+    public Date getEndTime() {
+      return myEndTime;
+    }
+
+    public Status getStatus() {
+      return myStatus;
+    }
+
+    /**
+     * @return why the job stopped, if its status is {@link Status#ERROR}
+     */
+    public String getError() {
+      return myError;
+    }
+
+    public long getImportedCount() {
+      return myImportedCount.sum();
+    }
+
+    public long getFailedCount() {
+      return myFailedCount.sum();
+    }
+
+    public Map<String, Long> getImportedCountsByType() {
+      Map<String, Long> retVal = new TreeMap<>();
+      myImportedCountsByType.forEach((type, count) -> retVal.put(type, count.sum()));
+      return retVal;
+    }
+
+    /**
+     * The first {@value #MAX_ERRORS} lines that could not be imported
+     */
+    public List<String> getErrors() {
+      synchronized (myErrors) {
+        return new ArrayList<>(myErrors);
+      }
+    }
+
+    private void addImported(IBaseResource theResource) {
+      myImportedCount.increment();
+      String type = myFhirContext.getResourceDefinition(theResource).getName();
+      myImportedCountsByType.computeIfAbsent(type, t -> new LongAdder()).increment();
+    }
+
+    private void addFailure(String theSource, long theLineNumber, String theMessage) {
+      myFailedCount.increment();
+      synchronized (myErrors) {
+        if (myErrors.size() < MAX_ERRORS) {
+          myErrors.add(theSource + " line " + theLineNumber + ": " + theMessage);
+        }
+      }
+    }
+
+    private synchronized void fail(String theError) {
+      if (myStatus == Status.IN_PROGRESS) {
+        myError = theError;
+        myStatus = Status.ERROR;
+      }
+    }
+
+    private synchronized void finish() {
+      myEndTime = new Date();
+      if (myStatus == Status.IN_PROGRESS) {
+        myStatus = Status.COMPLETE;
+      }
+    }
+  }
+
+  private static class Batch {
+
+    private final String mySource;
+    private final List<Line> myLines;
+
+    Batch(String theSource, List<Line> theLines) {
+      mySource = theSource;
+      myLines = theLines;
+    }
+  }
+
+  private static class Line {
+
+    private final long myNumber;
+    private final String myText;
+
+    Line(long theNumber, String theText) {
+      myNumber = theNumber;
+      myText = theText;
+    }
+  }
+}
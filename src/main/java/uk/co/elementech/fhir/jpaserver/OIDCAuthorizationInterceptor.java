@@ -2,31 +2,44 @@
 package uk.co.elementech.fhir.jpaserver;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.IdType;
 import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
-import org.mitre.jwt.signer.service.impl.JWKSetCacheService;
 import org.mitre.openid.connect.client.service.ServerConfigurationService;
 import org.mitre.openid.connect.config.ServerConfiguration;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.stereotype.Service;
 
+import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
-import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRuleOp;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRuleOpClassifier;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRuleOpClassifierFinished;
+import ca.uhn.fhir.rest.server.interceptor.auth.IRuleApplier;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
 
 @SuppressWarnings("ConstantConditions")
@@ -36,34 +49,133 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(OIDCAuthorizationInterceptor.class);
 
+	/**
+	 * Operations allowed by the SMART v2 'r' permission without 's'
+	 */
+	private static final Set<RestOperationTypeEnum> READ_OPERATIONS = Collections.unmodifiableSet(EnumSet.of(
+		RestOperationTypeEnum.READ, RestOperationTypeEnum.VREAD, RestOperationTypeEnum.HISTORY_INSTANCE));
+
+	/**
+	 * Operations allowed by the SMART v2 's' permission without 'r'
+	 */
+	private static final Set<RestOperationTypeEnum> SEARCH_OPERATIONS = Collections.unmodifiableSet(EnumSet.of(
+		RestOperationTypeEnum.SEARCH_TYPE, RestOperationTypeEnum.SEARCH_SYSTEM, RestOperationTypeEnum.GET_PAGE,
+		RestOperationTypeEnum.HISTORY_TYPE, RestOperationTypeEnum.HISTORY_SYSTEM));
+
+	/**
+	 * Operations allowed by the SMART v2 'u' permission without 'c'
+	 */
+	private static final Set<RestOperationTypeEnum> UPDATE_OPERATIONS = Collections.unmodifiableSet(EnumSet.of(
+		RestOperationTypeEnum.UPDATE));
+
     private int myTimeSkewAllowance = 300;
 
 	private String authHeader = Constants.HEADER_AUTHORIZATION; 
 	private String tokenPrefix = Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER; 
-	private String altAuthHeader = HapiProperties.getAccessTokenHeaderName(); 
-	private String altTokenPrefix = HapiProperties.getAccessTokenHeaderPrefix(); 
 	
 	private ServerConfigurationService myServerConfigurationService;
 
-    private JWKSetCacheService myValidationServices;
+    private JwksValidatorService myValidationServices;
+
+	private VerifiedTokenCache myVerifiedTokenCache;
+
+	private AuthRuleListCache myRuleListCache;
+
+	private boolean mySystemScopesEnabled;
+
+	private Timer[] myPhaseTimers;
+
+	private Timer myAuthenticatedTimer;
+
+	private Timer myRejectedTimer;
 	
     OIDCAuthorizationInterceptor () {
         super();
-		myValidationServices = new JWKSetCacheService();
+		int tokenCacheSize = HapiProperties.getAuthTokenCacheMaxSize();
+		if (tokenCacheSize > 0) {
+			myVerifiedTokenCache = new VerifiedTokenCache(tokenCacheSize);
+		}
+		int ruleCacheSize = HapiProperties.getAuthRuleCacheMaxSize();
+		if (ruleCacheSize > 0) {
+			myRuleListCache = new AuthRuleListCache(ruleCacheSize);
+		}
+		mySystemScopesEnabled = HapiProperties.getAuthSystemScopesEnabled();
     }
 
 	public void setServerConfigurationService(ServerConfigurationService service) {
 		myServerConfigurationService = service;
+		if (myValidationServices == null) {
+			myValidationServices = new JwksValidatorService(service);
+		}
+	}
+
+	/**
+	 * Sets whether SMART v2 <code>system/</code> scopes grant access to every
+	 * resource of their types. If not, they are ignored.
+	 */
+	public void setSystemScopesEnabled(boolean enabled) {
+		mySystemScopesEnabled = enabled;
+		invalidateCaches();
+	}
+
+	/**
+	 * Sets the service holding the JWKS validators. If not set, each key set is fetched
+	 * on the request thread the first time its issuer is seen.
+	 */
+	public void setJwksValidatorService(JwksValidatorService service) {
+		myValidationServices = service;
+	}
+
+	/**
+	 * Records the auth phase timings of every request in the <code>auth.phase</code>
+	 * timer (tagged with the phase) and the overall time in <code>auth.duration</code>
+	 * (tagged <code>outcome=authenticated|rejected</code>)
+	 */
+	public void setMeterRegistry(MeterRegistry registry) {
+		AuthTimings.Phase[] phases = AuthTimings.Phase.values();
+		Timer[] phaseTimers = new Timer[phases.length];
+		for (AuthTimings.Phase next : phases) {
+			phaseTimers[next.ordinal()] = registry.timer("auth.phase", "phase", next.getTagValue());
+		}
+		myAuthenticatedTimer = registry.timer("auth.duration", "outcome", "authenticated");
+		myRejectedTimer = registry.timer("auth.duration", "outcome", "rejected");
+		myPhaseTimers = phaseTimers;
 	}
 
 	public SignedJWT authenticate(RequestDetails theRequest) throws AuthenticationException {
+		return authenticate(theRequest, new AuthTimings());
+	}
+
+	/**
+	 * Authenticates the request and returns what its rule list is built from:
+	 * the normalized scopes and the patient claim. Requests with the same
+	 * context are authorized the same way. Empty if auth is disabled.
+	 */
+	public String getAuthorizationContext(RequestDetails theRequest) throws AuthenticationException {
+		if (!HapiProperties.getOIDCEnabled()) {
+			return "";
+		}
+		SignedJWT token = authenticate(theRequest);
+		try {
+			JWTClaimsSet claims = token.getJWTClaimsSet();
+			return String.join(" ", AuthRuleListCache.normalizeScopes(claims.getStringClaim("scope")))
+				+ "|" + claims.getStringClaim("patient");
+		} catch (ParseException ex) {
+			throw new AuthenticationException(ex.getMessage(), ex);
+		}
+	}
+
+	private SignedJWT authenticate(RequestDetails theRequest, AuthTimings timings) throws AuthenticationException {
 		//Check for a "standard" bearer token first. 
 		//If the auth was handled by Kong we get the access token in a different header so check for that too....
-		ourLog.debug("Getting auth header with name '" + authHeader + "' and prefix '" + tokenPrefix + "'");
+		// the alternative header is read per request so that a reloaded configuration applies
+		PropertiesSnapshot properties = HapiProperties.getSnapshot();
+		String altAuthHeader = properties.getAccessTokenHeaderName();
+		String altTokenPrefix = properties.getAccessTokenHeaderPrefix();
 		String token = theRequest.getHeader(authHeader);
 		if (token == null)  {
 			if (altAuthHeader!=null) {
-				ourLog.debug("Checking alt auth header with name '" + altAuthHeader + "'");
+				ourLog.debug("No {} header, checking alt auth header {}", authHeader, altAuthHeader);
 				token = theRequest.getHeader(altAuthHeader);
 			}
 			if (token == null) {
@@ -71,15 +183,25 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 			}
 		}
 		if (!token.startsWith(tokenPrefix)) {
-			ourLog.debug("Checking alt token prefix '" + altTokenPrefix + "'");
-			if (!token.startsWith(altTokenPrefix)) {
+			if (altTokenPrefix == null || !token.startsWith(altTokenPrefix)) {
 				throw new AuthenticationException("Not authorized (authorization header does not contain a bearer token)");
 			}
 			token = token.substring(altTokenPrefix.length());
 		} else {
 			token = token.substring(tokenPrefix.length());
 		}
-		ourLog.info("Got token:" + token);
+
+		// A token we have already verified only needs its expiry re-checked
+		if (myVerifiedTokenCache != null) {
+			VerifiedTokenCache.VerifiedToken verified = myVerifiedTokenCache.get(token);
+			if (verified != null) {
+				timings.lap(AuthTimings.Phase.PARSE);
+				checkExpiration(verified.getClaims());
+				timings.lap(AuthTimings.Phase.CLAIMS);
+				return verified.getToken();
+			}
+		}
+
 		SignedJWT idToken;
 		try {
 			idToken = SignedJWT.parse(token);
@@ -95,16 +217,18 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 			throw new AuthenticationException("Not authorized (bearer token could not be validated)", e);
 		}
 
+		timings.lap(AuthTimings.Phase.PARSE);
+
 		String issuer = idClaims.getIssuer();
 
-		ourLog.info("Getting server config for issuer '" + issuer + "'");
 		if (myServerConfigurationService == null){
 			throw new AuthenticationException("Server config is null");
 		}
 
 		ServerConfiguration serverConfig = myServerConfigurationService.getServerConfiguration(issuer);
+		timings.lap(AuthTimings.Phase.ISSUER_LOOKUP);
 		if (serverConfig == null) {
-			ourLog.error("No server configuration found for issuer: " + issuer);
+			ourLog.debug("No server configuration found for issuer {}", issuer);
 			throw new AuthenticationException("Not authorized (no server configuration found for issuer " + issuer + ")");
 		}
 
@@ -114,12 +238,12 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 		JWSAlgorithm alg = idToken.getHeader().getAlgorithm();
 		if (alg.equals(JWSAlgorithm.HS256) || alg.equals(JWSAlgorithm.HS384) || alg.equals(JWSAlgorithm.HS512)) {
 
-			ourLog.info("Checking signature using client secret");
 			throw new AuthenticationException("Not authorized. Signature algorithm not supported");
 		} else {
 			// otherwise load from the server's public key
-			ourLog.info("checking signature using public key");
-			jwtValidator = myValidationServices.getValidator(serverConfig.getJwksUri());
+			// a key set never loaded is fetched on this thread, once per issuer; an unknown
+			// key id in a loaded key set queues a background refresh and does not wait
+			jwtValidator = myValidationServices.getValidator(serverConfig.getJwksUri(), idToken.getHeader().getKeyID());
 		}
 
 		if (jwtValidator != null) {
@@ -127,21 +251,13 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 				throw new AuthenticationException("Not authorized (signature validation failed)");
 			}
 		} else {
-			ourLog.error("No validation service found. Skipping signature validation");
+			ourLog.debug("No keys loaded yet for issuer {}", issuer);
 			throw new AuthenticationException("Not authorized (can't determine signature validator)");
 		}
+		timings.lap(AuthTimings.Phase.SIGNATURE);
 
 		// check expiration
-		if (idClaims.getExpirationTime() == null) {
-			throw new AuthenticationException("Id Token does not have required expiration claim");
-		} else {
-			// it's not null, see if it's expired
-			Date minAllowableExpirationTime = new Date(System.currentTimeMillis() - (myTimeSkewAllowance * 1000L));
-			Date expirationTime = idClaims.getExpirationTime();
-			if (!expirationTime.after(minAllowableExpirationTime)) {
-				throw new AuthenticationException("Id Token is expired: " + idClaims.getExpirationTime());
-			}
-		}
+		checkExpiration(idClaims);
 
 		// check not before
 		if (idClaims.getNotBeforeTime() != null) {
@@ -161,116 +277,230 @@ public class OIDCAuthorizationInterceptor extends AuthorizationInterceptor {
 				throw new AuthenticationException("Id Token was issued in the future: " + idClaims.getIssueTime());
 			}
 		}
+
+		timings.lap(AuthTimings.Phase.CLAIMS);
+
+		if (myVerifiedTokenCache != null) {
+			myVerifiedTokenCache.put(token, idToken, idClaims);
+		}
 		return idToken;
     }
 
+	private void checkExpiration(JWTClaimsSet idClaims) throws AuthenticationException {
+		if (idClaims.getExpirationTime() == null) {
+			throw new AuthenticationException("Id Token does not have required expiration claim");
+		} else {
+			// it's not null, see if it's expired
+			Date minAllowableExpirationTime = new Date(System.currentTimeMillis() - (myTimeSkewAllowance * 1000L));
+			Date expirationTime = idClaims.getExpirationTime();
+			if (!expirationTime.after(minAllowableExpirationTime)) {
+				throw new AuthenticationException("Id Token is expired: " + idClaims.getExpirationTime());
+			}
+		}
+	}
+
 	public int getTimeSkewAllowance() {
 		return myTimeSkewAllowance;
     }
 		
+	/**
+	 * Hit/miss counters for the rule list cache, or <code>null</code> if the cache is disabled
+	 */
+	public CacheStats getRuleListCacheStats() {
+		return myRuleListCache != null ? myRuleListCache.stats() : null;
+	}
+		
+	/**
+	 * Forgets all verified tokens and built rule lists
+	 */
+	void invalidateCaches() {
+		if (myVerifiedTokenCache != null) {
+			myVerifiedTokenCache.invalidateAll();
+		}
+		if (myRuleListCache != null) {
+			myRuleListCache.invalidateAll();
+		}
+	}
+
    @Override
    public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
       
-		IdType userIdPatientId = null;
-		SignedJWT token;
-		ourLog.info("Doing rulelist");
-		ourLog.info("OIDC value is " + HapiProperties.getOIDCEnabled());
 		if(!HapiProperties.getOIDCEnabled()){ //Auth is disabled - just allow everything. Hopefully we're just testing!
 			return new RuleBuilder()
 				.allowAll().build();
 		}
+
+		AuthTimings timings = new AuthTimings();
+		theRequestDetails.setAttribute(AuthTimings.ATTRIBUTE_NAME, timings);
+		boolean authenticated = false;
 		try {
-			token = authenticate(theRequestDetails);
+			List<IAuthRule> retVal = buildRuleList(theRequestDetails, timings);
+			authenticated = true;
+			return retVal;
 		} catch (AuthenticationException ex) {
+			ourLog.debug("Rejected request: {}", ex.getMessage());
 			return new RuleBuilder()
 				.allow("Anonymous Metadata").metadata().andThen()
 				.denyAll(ex.getMessage())
 				.build();
+		} finally {
+			timings.finish();
+			recordTimings(timings, authenticated);
 		}
+	}
 
-		String[] scopes;
+	private List<IAuthRule> buildRuleList(RequestDetails theRequestDetails, AuthTimings timings) throws AuthenticationException {
+		SignedJWT token = authenticate(theRequestDetails, timings);
+
+		String scopeClaim;
+		String patientClaim;
 		try {
-			scopes = token.getJWTClaimsSet().getStringClaim("scope").split(" ");
+			JWTClaimsSet claims = token.getJWTClaimsSet();
+			scopeClaim = claims.getStringClaim("scope");
+			patientClaim = claims.getStringClaim("patient");
 		} catch (ParseException ex) {
-			return new RuleBuilder()
-				.allow("Anonymous Metadata").metadata().andThen()
-				.denyAll(ex.getMessage())
-				.build();
+			throw new AuthenticationException(ex.getMessage(), ex);
+		}
+
+		// The rules depend only on the scopes and patient claim, so tokens that share
+		// them can share one rule list
+		List<IAuthRule> retVal;
+		if (myRuleListCache != null) {
+			retVal = myRuleListCache.get(scopeClaim, patientClaim, this::buildScopeRuleList);
+		} else {
+			retVal = buildScopeRuleList(AuthRuleListCache.normalizeScopes(scopeClaim), patientClaim);
+		}
+		timings.lap(AuthTimings.Phase.RULE_BUILD);
+		return retVal;
+	}
+
+	private void recordTimings(AuthTimings timings, boolean authenticated) {
+		// The toString() of the timings is only evaluated if debug is enabled
+		ourLog.debug("Auth timings: {}", timings);
+		Timer[] phaseTimers = myPhaseTimers;
+		if (phaseTimers == null) {
+			return;
+		}
+		for (AuthTimings.Phase next : AuthTimings.Phase.values()) {
+			long nanos = timings.getNanos(next);
+			if (nanos >= 0) {
+				phaseTimers[next.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+			}
 		}
-			
-		ScopeParser scopeParser = new ScopeParser(scopes);
-		if(!scopeParser.hasSmartScopes()){
+		(authenticated ? myAuthenticatedTimer : myRejectedTimer).record(timings.getTotalNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	private List<IAuthRule> buildScopeRuleList(String[] scopes, String patientClaim) {
+		List<SmartScope> smartScopes = ScopeParser.parse(scopes);
+		if(!mySystemScopesEnabled) {
+			smartScopes = smartScopes.stream().filter(s -> !s.isSystem()).collect(Collectors.toList());
+		}
+		if(smartScopes.isEmpty()){
 			return new RuleBuilder()
 				.allow("").metadata().andThen()
 				.denyAll("No scope found")
 				.build();	
 		}
 
-		RuleBuilder rules = new RuleBuilder();
-		Iterator<SmartScope> smartScopes = scopeParser.getSmartScopes();
-		ourLog.info("Checking for smart scopes");
-		while(smartScopes.hasNext()){
-			ourLog.info("got smart scopes");
-			SmartScope s = smartScopes.next();
-			IAuthRuleBuilderRuleOpClassifier classifier = null;
-			if(s.canRead()) {
-				ourLog.info("Adding read rule");
-				IAuthRuleBuilderRule rule = rules.allow();
-				if(s.getResource().equals("*")){
-					ourLog.info("Adding wildcard resource");
-					classifier = rule.read().allResources();
-				} else {
-					classifier = rule.read().resourcesOfType(s.getResource());
-				}
-				if(s.isPatient()) { 
-					userIdPatientId = getPatientClaim(token);
-					if(userIdPatientId==null){
-						return new RuleBuilder()
-						.allow("").metadata().andThen()
-						.denyAll("No patient claim found")
-						.build();			
-					}
-					rules = (RuleBuilder) classifier.inCompartment("Patient",userIdPatientId).andThen();
-				} else {
-					ourLog.info("Adding user level access");
-					rules = (RuleBuilder) classifier.withAnyId().andThen();
+		IdType userIdPatientId = null;
+		List<IAuthRule> retVal = new ArrayList<>();
+		for (SmartScope s : smartScopes) {
+			if(s.isPatient() && userIdPatientId == null) {
+				userIdPatientId = getPatientClaim(patientClaim);
+				if(userIdPatientId==null){
+					return new RuleBuilder()
+					.allow("").metadata().andThen()
+					.denyAll("No patient claim found")
+					.build();			
 				}
 			}
-			if(s.canWrite()) {
-				ourLog.info("Adding write rule");
-				IAuthRuleBuilderRule rule = rules.allow();
-				if(s.getResource().equals("*")){
-					classifier = rule.write().allResources();
-				} else {
-					classifier = rule.write().resourcesOfType(s.getResource());
-				}
-				if(s.isPatient()) { 
-					userIdPatientId = getPatientClaim(token);
-					if(userIdPatientId==null){
-						return new RuleBuilder()
-						.allow("").metadata().andThen()
-						.denyAll("No patient claim found")
-						.build();			
-					}
-					rules = (RuleBuilder) classifier.inCompartment("Patient",userIdPatientId).andThen();
-				} else {
-					rules = (RuleBuilder) classifier.withAnyId().andThen();
-				}
+			// HAPI's read rule covers both reading by id and searching, and its write
+			// rule both create and update, so a scope holding only one of each pair
+			// gets the rule limited to the operations of that permission
+			boolean read = s.has(SmartScope.Permission.READ);
+			boolean search = s.has(SmartScope.Permission.SEARCH);
+			if(read || search) {
+				addScopeRule(retVal, new RuleBuilder().allow().read(), s, userIdPatientId,
+					read && search ? null : read ? READ_OPERATIONS : SEARCH_OPERATIONS);
+			}
+			boolean create = s.has(SmartScope.Permission.CREATE);
+			boolean update = s.has(SmartScope.Permission.UPDATE);
+			if(create && update) {
+				addScopeRule(retVal, new RuleBuilder().allow().write(), s, userIdPatientId, null);
+			} else if(create) {
+				addScopeRule(retVal, new RuleBuilder().allow().create(), s, userIdPatientId, null);
+			} else if(update) {
+				addScopeRule(retVal, new RuleBuilder().allow().write(), s, userIdPatientId, UPDATE_OPERATIONS);
 			}
+			if(s.has(SmartScope.Permission.DELETE)) {
+				addScopeRule(retVal, new RuleBuilder().allow().delete(), s, userIdPatientId, null);
+			}
+		}
+		retVal.addAll(new RuleBuilder().allow().metadata().andThen().denyAll().build());
+		if (ourLog.isTraceEnabled()) {
+			ourLog.trace("Built {} rules for scopes {}: {}", retVal.size(), String.join(" ", scopes), retVal);
 		}
-		List<IAuthRule> r = rules.allow().metadata().andThen().denyAll().build();
-		ourLog.info(r.toString());
-		return r;
+		return retVal;
 	}
 
-	private IdType getPatientClaim(SignedJWT token){
-		try {
-			String patientClaim = token.getJWTClaimsSet().getStringClaim("patient");
-			return new IdType(patientClaim);
-		} catch(ParseException ex){
-			ourLog.info("Failed to parse patient from token");
+	/**
+	 * Adds the rule for one scope, limited to the given operations unless they are null
+	 */
+	private void addScopeRule(List<IAuthRule> rules, IAuthRuleBuilderRuleOp op, SmartScope s, IdType patientId, Set<RestOperationTypeEnum> operations) {
+		IAuthRuleBuilderRuleOpClassifier classifier;
+		if(s.allResources()){
+			classifier = op.allResources();
+		} else {
+			classifier = op.resourcesOfType(s.getResource());
+		}
+		IAuthRuleBuilderRuleOpClassifierFinished finished;
+		if(s.isPatient()) {
+			finished = classifier.inCompartment("Patient",patientId);
+		} else {
+			finished = classifier.withAnyId();
+		}
+		for (IAuthRule next : finished.build()) {
+			rules.add(operations == null ? next : new OperationLimitedRule(next, operations));
+		}
+	}
+
+	private IdType getPatientClaim(String patientClaim){
+		if (patientClaim == null || patientClaim.isEmpty()) {
+			ourLog.debug("No patient claim in token");
 			return null;
 		}
+		return new IdType(patientClaim);
 	}
-}
 
+	/**
+	 * A rule that only applies to some operations, and abstains on the others
+	 */
+	private static class OperationLimitedRule implements IAuthRule {
+
+		private final IAuthRule myRule;
+		private final Set<RestOperationTypeEnum> myOperations;
+
+		OperationLimitedRule(IAuthRule theRule, Set<RestOperationTypeEnum> theOperations) {
+			myRule = theRule;
+			myOperations = theOperations;
+		}
+
+		@Override
+		public AuthorizationInterceptor.Verdict applyRule(RestOperationTypeEnum theOperation, RequestDetails theRequestDetails, IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource, IRuleApplier theRuleApplier, Set<AuthorizationFlagsEnum> theFlags, Pointcut thePointcut) {
+			if (!myOperations.contains(theOperation)) {
+				return null;
+			}
+			return myRule.applyRule(theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource, theRuleApplier, theFlags, thePointcut);
+		}
+
+		@Override
+		public String getName() {
+			return myRule.getName();
+		}
+
+		@Override
+		public String toString() {
+			return myRule + " for " + myOperations;
+		}
+	}
+}
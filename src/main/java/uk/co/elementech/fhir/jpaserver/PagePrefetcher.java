@@ -0,0 +1,402 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IRestfulServerDefaults;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Loads the next page of a search in the background while the client is busy
+ * with the current one, so that a client paging through a search finds each
+ * page already loaded.
+ * <p>
+ * When a page <code>[from, to)</code> is served, the page after it, of the
+ * same size, is loaded by a pool of prefetch threads. The load goes through
+ * the paging provider like the client's own request would, with a copy of the
+ * request's headers, so storage interceptors (authorization included) see the
+ * same client. Prefetched pages are kept for the client whose token they were
+ * loaded with, and only until they are served or for
+ * {@value #PREFETCH_TTL_SECONDS} seconds.
+ * <p>
+ * Prefetching gives way under load: if the prefetch threads are busy and
+ * their queue is full, or the prefetched pages waiting to be served would
+ * hold more than the configured number of resources, the next page is simply
+ * loaded on demand. A page whose prefetch has not started yet when it is
+ * requested is also loaded on demand; one being loaded is waited for.
+ * <p>
+ * Served pages are counted in <code>fhir.paging.prefetch</code>, with
+ * <code>result</code> <code>hit</code> or <code>miss</code>, and prefetches
+ * given up under load with <code>result=dropped</code>.
+ */
+public class PagePrefetcher implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PagePrefetcher.class);
+
+  static final String PREFETCH_METER = "fhir.paging.prefetch";
+  static final int PREFETCH_TTL_SECONDS = 60;
+
+  private final BiFunction<RequestDetails, String, IBundleProvider> myLoader;
+  private final String myAltAuthHeader;
+  private final ThreadPoolExecutor myExecutor;
+  private final Cache<String, Prefetch> myPrefetches;
+  private final Counter myHits;
+  private final Counter myMisses;
+  private final Counter myDropped;
+
+  /**
+   * @param theLoader retrieves a search by its id, as {@link ca.uhn.fhir.rest.server.IPagingProvider#retrieveResultList(RequestDetails, String)}
+   * @param theAltAuthHeader the header holding the token when there is no Authorization header, or null
+   * @param theMaxResources the number of prefetched resources kept waiting to be served
+   */
+  public PagePrefetcher(BiFunction<RequestDetails, String, IBundleProvider> theLoader, String theAltAuthHeader,
+                        int theThreads, int theQueueSize, long theMaxResources, MeterRegistry theMeterRegistry) {
+    myLoader = theLoader;
+    myAltAuthHeader = theAltAuthHeader;
+    myPrefetches = Caffeine.newBuilder()
+      .maximumWeight(theMaxResources)
+      .<String, Prefetch>weigher((k, v) -> v.myCount)
+      .expireAfterWrite(PREFETCH_TTL_SECONDS, TimeUnit.SECONDS)
+      // Evicts on the request thread, so that a page over the budget is never served
+      .executor(Runnable::run)
+      .removalListener((String k, Prefetch v, RemovalCause cause) -> {
+        // Evicted under the budget, or expired: skip the load if it has not started
+        if (v != null && cause.wasEvicted()) {
+          v.cancel();
+        }
+      })
+      .build();
+
+    AtomicInteger threadCount = new AtomicInteger();
+    myExecutor = new ThreadPoolExecutor(theThreads, theThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(theQueueSize), r -> {
+      Thread thread = new Thread(r, "paging-prefetch-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    myHits = Counter.builder(PREFETCH_METER).tag("result", "hit").register(theMeterRegistry);
+    myMisses = Counter.builder(PREFETCH_METER).tag("result", "miss").register(theMeterRegistry);
+    myDropped = Counter.builder(PREFETCH_METER).tag("result", "dropped").register(theMeterRegistry);
+    Gauge.builder(PREFETCH_METER + ".pages", myPrefetches, Cache::estimatedSize).register(theMeterRegistry);
+  }
+
+  /**
+   * Wraps a search retrieved for a page request, so that its pages are served
+   * from the prefetched pages and each page served starts the prefetch of the
+   * next one
+   */
+  public IBundleProvider wrap(RequestDetails theRequestDetails, String theSearchId, IBundleProvider theBundleProvider) {
+    if (theBundleProvider == null) {
+      return null;
+    }
+    return new PrefetchingBundleProvider(theRequestDetails, theSearchId, theBundleProvider);
+  }
+
+  /**
+   * Starts loading a page of a search in the background, unless the prefetch
+   * threads are too busy
+   */
+  public void prefetch(RequestDetails theRequestDetails, String theSearchId, int theFrom, int theTo) {
+    if (theTo <= theFrom) {
+      return;
+    }
+    String key = key(theRequestDetails, theSearchId, theFrom, theTo);
+    RequestDetails requestDetails = new DetachedRequestDetails(theRequestDetails, myAltAuthHeader, theFrom, theTo - theFrom);
+    Prefetch prefetch = new Prefetch(theTo - theFrom, () -> {
+      IBundleProvider bundleProvider = myLoader.apply(requestDetails, theSearchId);
+      return bundleProvider != null ? bundleProvider.getResources(theFrom, theTo) : null;
+    });
+    if (myPrefetches.asMap().putIfAbsent(key, prefetch) != null) {
+      return;
+    }
+    try {
+      myExecutor.execute(prefetch);
+    } catch (RejectedExecutionException e) {
+      myPrefetches.asMap().remove(key, prefetch);
+      myDropped.increment();
+    }
+  }
+
+  /**
+   * The number of prefetched pages waiting to be served
+   */
+  long size() {
+    myPrefetches.cleanUp();
+    return myPrefetches.estimatedSize();
+  }
+
+  @Override
+  public void close() {
+    myExecutor.shutdownNow();
+    myPrefetches.invalidateAll();
+  }
+
+  private String key(RequestDetails theRequestDetails, String theSearchId, int theFrom, int theTo) {
+    String token = theRequestDetails.getHeader(Constants.HEADER_AUTHORIZATION);
+    if (token == null && myAltAuthHeader != null) {
+      token = theRequestDetails.getHeader(myAltAuthHeader);
+    }
+    String client = token != null ? VerifiedTokenCache.digest(token) : "";
+    return theSearchId + "|" + theFrom + "|" + theTo + "|" + client;
+  }
+
+  private class PrefetchingBundleProvider implements IBundleProvider {
+
+    private final RequestDetails myRequestDetails;
+    private final String mySearchId;
+    private final IBundleProvider myDelegate;
+
+    PrefetchingBundleProvider(RequestDetails theRequestDetails, String theSearchId, IBundleProvider theDelegate) {
+      myRequestDetails = theRequestDetails;
+      mySearchId = theSearchId;
+      myDelegate = theDelegate;
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+      List<IBaseResource> retVal = null;
+      Prefetch prefetch = myPrefetches.asMap().remove(key(myRequestDetails, mySearchId, theFromIndex, theToIndex));
+      if (prefetch != null) {
+        retVal = prefetch.take();
+      }
+      if (retVal != null) {
+        myHits.increment();
+      } else {
+        myMisses.increment();
+        retVal = myDelegate.getResources(theFromIndex, theToIndex);
+      }
+
+      int count = theToIndex - theFromIndex;
+      Integer size = myDelegate.size();
+      if (retVal != null && retVal.size() >= count && (size == null || theToIndex < size)) {
+        prefetch(myRequestDetails, mySearchId, theToIndex, theToIndex + count);
+      }
+      return retVal;
+    }
+
+    @Override
+    public String getCurrentPageId() {
+      return myDelegate.getCurrentPageId();
+    }
+
+    @Override
+    public String getNextPageId() {
+      return myDelegate.getNextPageId();
+    }
+
+    @Override
+    public String getPreviousPageId() {
+      return myDelegate.getPreviousPageId();
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+      return myDelegate.getPublished();
+    }
+
+    @Override
+    public String getUuid() {
+      return myDelegate.getUuid();
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+      return myDelegate.preferredPageSize();
+    }
+
+    @Override
+    public Integer size() {
+      return myDelegate.size();
+    }
+  }
+
+  private static class Prefetch implements Runnable {
+
+    private static final int NEW = 0;
+    private static final int STARTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final int myCount;
+    private final Supplier<List<IBaseResource>> myLoader;
+    private final AtomicInteger myState = new AtomicInteger(NEW);
+    private final CompletableFuture<List<IBaseResource>> myResult = new CompletableFuture<>();
+
+    Prefetch(int theCount, Supplier<List<IBaseResource>> theLoader) {
+      myCount = theCount;
+      myLoader = theLoader;
+    }
+
+    @Override
+    public void run() {
+      if (!myState.compareAndSet(NEW, STARTED)) {
+        return;
+      }
+      try {
+        myResult.complete(myLoader.get());
+      } catch (RuntimeException e) {
+        ourLog.debug("Could not prefetch a page", e);
+        myResult.completeExceptionally(e);
+      }
+    }
+
+    void cancel() {
+      myState.compareAndSet(NEW, CANCELLED);
+    }
+
+    /**
+     * The prefetched page, waiting for it if it is being loaded, or null if
+     * it should be loaded on demand
+     */
+    List<IBaseResource> take() {
+      if (myState.compareAndSet(NEW, CANCELLED) || myState.get() == CANCELLED) {
+        return null;
+      }
+      try {
+        return myResult.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * A copy of a request that outlives it, for loading a page on its behalf
+   * after the response has been sent
+   */
+  private static class DetachedRequestDetails extends RequestDetails {
+
+    private final Map<String, List<String>> myHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, Object> myAttributes = new HashMap<>();
+    private final FhirContext myFhirContext;
+    private final IRestfulServerDefaults myServer;
+    private final String myServerBaseForRequest;
+    private final Charset myCharset;
+
+    DetachedRequestDetails(RequestDetails theRequestDetails, String theAltAuthHeader, int theOffset, int theCount) {
+      super(theRequestDetails.getInterceptorBroadcaster());
+      myFhirContext = theRequestDetails.getFhirContext();
+      myServer = theRequestDetails.getServer();
+      myServerBaseForRequest = theRequestDetails.getServerBaseForRequest();
+      myCharset = theRequestDetails.getCharset();
+
+      if (theRequestDetails instanceof ServletRequestDetails) {
+        HttpServletRequest request = ((ServletRequestDetails) theRequestDetails).getServletRequest();
+        for (String next : Collections.list(request.getHeaderNames())) {
+          myHeaders.put(next, Collections.list(request.getHeaders(next)));
+        }
+      } else {
+        for (String next : new String[]{Constants.HEADER_AUTHORIZATION, theAltAuthHeader}) {
+          List<String> values = next != null ? theRequestDetails.getHeaders(next) : null;
+          if (values != null) {
+            myHeaders.put(next, new ArrayList<>(values));
+          }
+        }
+      }
+
+      Map<String, String[]> parameters = new HashMap<>(theRequestDetails.getParameters());
+      parameters.put(Constants.PARAM_PAGINGOFFSET, new String[]{Integer.toString(theOffset)});
+      parameters.put(Constants.PARAM_COUNT, new String[]{Integer.toString(theCount)});
+      setParameters(parameters);
+      setCompleteUrl(theRequestDetails.getCompleteUrl());
+      setFhirServerBase(theRequestDetails.getFhirServerBase());
+      setRequestPath(theRequestDetails.getRequestPath());
+      setRequestType(theRequestDetails.getRequestType());
+      setResourceName(theRequestDetails.getResourceName());
+      setRestOperationType(theRequestDetails.getRestOperationType());
+      setTenantId(theRequestDetails.getTenantId());
+      setRequestId(theRequestDetails.getRequestId());
+    }
+
+    @Override
+    protected byte[] getByteStreamRequestContents() {
+      return new byte[0];
+    }
+
+    @Override
+    public Charset getCharset() {
+      return myCharset != null ? myCharset : StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public FhirContext getFhirContext() {
+      return myFhirContext;
+    }
+
+    @Override
+    public String getHeader(String theName) {
+      List<String> values = myHeaders.get(theName);
+      return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    @Override
+    public List<String> getHeaders(String theName) {
+      return myHeaders.getOrDefault(theName, Collections.emptyList());
+    }
+
+    @Override
+    public Object getAttribute(String theAttributeName) {
+      return myAttributes.get(theAttributeName);
+    }
+
+    @Override
+    public void setAttribute(String theAttributeName, Object theAttributeValue) {
+      myAttributes.put(theAttributeName, theAttributeValue);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public Reader getReader() {
+      return new StringReader("");
+    }
+
+    @Override
+    public IRestfulServerDefaults getServer() {
+      return myServer;
+    }
+
+    @Override
+    public String getServerBaseForRequest() {
+      return myServerBaseForRequest;
+    }
+  }
+}
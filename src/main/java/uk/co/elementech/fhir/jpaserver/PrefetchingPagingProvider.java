@@ -0,0 +1,58 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A {@link DatabaseBackedPagingProvider} which prefetches the next page of a
+ * search with a {@link PagePrefetcher}: page 2 once the first page of the
+ * search has been returned, and page N+1 each time page N is requested with
+ * <code>_getpages</code>.
+ */
+public class PrefetchingPagingProvider extends DatabaseBackedPagingProvider implements AutoCloseable {
+
+  private final PagePrefetcher myPrefetcher;
+
+  public PrefetchingPagingProvider(int theThreads, int theQueueSize, long theMaxResources, MeterRegistry theMeterRegistry) {
+    myPrefetcher = new PagePrefetcher(
+      super::retrieveResultList,
+      HapiProperties.getAccessTokenHeaderName(),
+      theThreads,
+      theQueueSize,
+      theMaxResources,
+      theMeterRegistry);
+  }
+
+  public static PrefetchingPagingProvider create(MeterRegistry theMeterRegistry) {
+    return new PrefetchingPagingProvider(
+      HapiProperties.getPagingPrefetchThreads(),
+      HapiProperties.getPagingPrefetchQueueSize(),
+      HapiProperties.getPagingPrefetchMaxResources(),
+      theMeterRegistry);
+  }
+
+  @Override
+  public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId) {
+    return myPrefetcher.wrap(theRequestDetails, theId, super.retrieveResultList(theRequestDetails, theId));
+  }
+
+  @Override
+  public String storeResultList(RequestDetails theRequestDetails, IBundleProvider theList) {
+    String retVal = super.storeResultList(theRequestDetails, theList);
+    if (retVal != null && theRequestDetails != null) {
+      // The first page was the default or requested page size, as RestfulServer pages it
+      Integer count = RestfulServerUtils.extractCountParameter(theRequestDetails);
+      int pageSize = Math.min(count != null ? count : getDefaultPageSize(), getMaximumPageSize());
+      myPrefetcher.prefetch(theRequestDetails, retVal, pageSize, pageSize * 2);
+    }
+    return retVal;
+  }
+
+  @Override
+  public void close() {
+    myPrefetcher.close();
+  }
+}
@@ -0,0 +1,98 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.ConfigurationException;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads {@link HapiProperties} when the override properties file changes.
+ * <p>
+ * Changes are picked up a short while after the file is last written, so that
+ * an editor saving the file in several steps causes a single reload. If the
+ * file cannot be read the server keeps its current configuration.
+ */
+public class PropertiesFileWatcher implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PropertiesFileWatcher.class);
+
+  private static final long SETTLE_MILLIS = 200;
+
+  private final Path myFile;
+  private WatchService myWatchService;
+  private Thread myThread;
+
+  public PropertiesFileWatcher(Path theFile) {
+    myFile = theFile.toAbsolutePath();
+  }
+
+  public synchronized void start() throws IOException {
+    if (myThread != null) {
+      return;
+    }
+    myWatchService = FileSystems.getDefault().newWatchService();
+    myFile.getParent().register(myWatchService,
+      StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_MODIFY);
+
+    myThread = new Thread(this::run, "hapi-properties-watcher");
+    myThread.setDaemon(true);
+    myThread.start();
+    ourLog.info("Watching {} for configuration changes", myFile);
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        WatchKey key = myWatchService.take();
+        boolean changed = pollEvents(key);
+        // Wait for the file to settle, collecting any further writes to it
+        while ((key = myWatchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= pollEvents(key);
+        }
+        if (changed) {
+          reload();
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // stopped
+    }
+  }
+
+  private boolean pollEvents(WatchKey theKey) {
+    boolean retVal = false;
+    for (WatchEvent<?> next : theKey.pollEvents()) {
+      if (next.context() instanceof Path && myFile.getFileName().equals(next.context())) {
+        retVal = true;
+      }
+    }
+    theKey.reset();
+    return retVal;
+  }
+
+  private void reload() {
+    try {
+      HapiProperties.forceReload();
+      ourLog.info("Reloaded configuration from {}", myFile);
+    } catch (ConfigurationException e) {
+      ourLog.warn("Could not reload {}, keeping the current configuration: {}", myFile, e.toString());
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (myThread == null) {
+      return;
+    }
+    myWatchService.close();
+    myThread.interrupt();
+    myThread = null;
+  }
+}
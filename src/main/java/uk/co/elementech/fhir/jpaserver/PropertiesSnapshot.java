@@ -0,0 +1,153 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.api.Constants;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An immutable copy of the server configuration, published by
+ * {@link HapiProperties} and replaced as a whole when the configuration is
+ * reloaded.
+ * <p>
+ * A value is resolved once per snapshot, from its <code>HAPI_*</code>
+ * environment variable or else the properties file, and then remembered, so
+ * reading a setting takes neither a lock nor any string building. Boolean and
+ * integer settings are likewise parsed once and then remembered. Settings
+ * read on every request are parsed up front into fields.
+ */
+public final class PropertiesSnapshot {
+
+  private final Map<String, String> myProperties;
+  private final Map<String, String> myEnvironment;
+  private final ConcurrentHashMap<String, Optional<String>> myResolved = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Optional<Boolean>> myBooleans = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Optional<Integer>> myIntegers = new ConcurrentHashMap<>();
+
+  private final boolean myOidcEnabled;
+  private final String myAccessTokenHeaderName;
+  private final String myAccessTokenHeaderPrefix;
+  private final boolean myMetricsEnabled;
+
+  PropertiesSnapshot(Properties theProperties, Map<String, String> theEnvironment) {
+    Map<String, String> properties = new HashMap<>();
+    for (String next : theProperties.stringPropertyNames()) {
+      properties.put(next, theProperties.getProperty(next));
+    }
+    myProperties = Collections.unmodifiableMap(properties);
+    myEnvironment = theEnvironment;
+
+    myOidcEnabled = Boolean.parseBoolean(get("oidc.auth.enabled", "true"));
+    myAccessTokenHeaderName = get("oauth.token.name", Constants.HEADER_AUTHORIZATION);
+    myAccessTokenHeaderPrefix = get("oauth.token.prefix");
+    myMetricsEnabled = getBoolean("metrics.enabled", false);
+  }
+
+  /**
+   * @return the value of the setting, or <code>null</code> if it is not set
+   */
+  public String get(String theName) {
+    Optional<String> retVal = myResolved.get(theName);
+    if (retVal == null) {
+      retVal = Optional.ofNullable(resolve(theName));
+      myResolved.putIfAbsent(theName, retVal);
+    }
+    return retVal.orElse(null);
+  }
+
+  /**
+   * @return the value of the setting, or the default if it is not set or empty
+   */
+  public String get(String theName, String theDefaultValue) {
+    String value = get(theName);
+    return value != null && value.length() > 0 ? value : theDefaultValue;
+  }
+
+  /**
+   * @return the setting parsed as a boolean, or the default if it is not set or empty
+   */
+  public Boolean getBoolean(String theName, Boolean theDefaultValue) {
+    return parsed(myBooleans, theName, Boolean::parseBoolean).orElse(theDefaultValue);
+  }
+
+  /**
+   * @return the setting parsed as an integer, or the default if it is not set or empty
+   * @throws NumberFormatException if the setting is not an integer
+   */
+  public Integer getInteger(String theName, Integer theDefaultValue) {
+    return parsed(myIntegers, theName, Integer::parseInt).orElse(theDefaultValue);
+  }
+
+  private <T> Optional<T> parsed(ConcurrentHashMap<String, Optional<T>> theParsed, String theName, Function<String, T> theParser) {
+    Optional<T> retVal = theParsed.get(theName);
+    if (retVal == null) {
+      String value = get(theName);
+      // A value that can not be parsed is not remembered, so that every read fails
+      retVal = value != null && value.length() > 0 ? Optional.of(theParser.apply(value)) : Optional.empty();
+      theParsed.putIfAbsent(theName, retVal);
+    }
+    return retVal;
+  }
+
+  private String resolve(String theName) {
+    String env = "HAPI_" + theName.toUpperCase(Locale.US);
+    env = env.replace(".", "_");
+    env = env.replace("-", "_");
+
+    String retVal = myEnvironment.get(env);
+    if (retVal != null) {
+      return retVal;
+    }
+    return myProperties.get(theName);
+  }
+
+  public boolean isOidcEnabled() {
+    return myOidcEnabled;
+  }
+
+  public String getAccessTokenHeaderName() {
+    return myAccessTokenHeaderName;
+  }
+
+  public String getAccessTokenHeaderPrefix() {
+    return myAccessTokenHeaderPrefix;
+  }
+
+  public boolean isMetricsEnabled() {
+    return myMetricsEnabled;
+  }
+
+  /**
+   * @return a copy of this snapshot with one property replaced
+   */
+  PropertiesSnapshot with(String theName, String theValue) {
+    Properties properties = new Properties();
+    properties.putAll(myProperties);
+    properties.setProperty(theName, theValue);
+    return new PropertiesSnapshot(properties, myEnvironment);
+  }
+
+  /**
+   * @return the names of the properties whose file values differ between this snapshot and the given one
+   */
+  Set<String> getChangedNames(PropertiesSnapshot theOther) {
+    Set<String> retVal = new HashSet<>();
+    Set<String> names = new HashSet<>(myProperties.keySet());
+    names.addAll(theOther.myProperties.keySet());
+    for (String next : names) {
+      if (!Objects.equals(myProperties.get(next), theOther.myProperties.get(next))) {
+        retVal.add(next);
+      }
+    }
+    return retVal;
+  }
+}
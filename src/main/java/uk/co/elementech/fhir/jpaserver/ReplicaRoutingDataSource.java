@@ -0,0 +1,175 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out connections to the primary database, or to one of its read
+ * replicas when the current thread is serving a read-only request (see
+ * {@link ReplicaRoutingInterceptor}).
+ * <p>
+ * The routing decision is taken when a connection is requested, i.e. when a
+ * transaction begins, so all statements of a transaction run on the same
+ * database. A replica that fails to hand out a connection is skipped for a
+ * short period and the request falls back to the primary. The number of
+ * connections handed out per target is counted in the
+ * <code>datasource.routing</code> meter, tagged
+ * <code>target=primary|replica|fallback</code>.
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+  private static final ThreadLocal<Boolean> ourReadOnlyRequest = new ThreadLocal<>();
+  private static final long REPLICA_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  public enum Selection {
+    /** Replicas take turns */
+    ROUND_ROBIN,
+    /** The replica with the fewest connections in use, by its pool's own count */
+    LEAST_LOADED
+  }
+
+  private final DataSource myPrimary;
+  private final DataSource[] myReplicas;
+  private final Selection mySelection;
+  private final AtomicInteger myNextReplica = new AtomicInteger();
+  private final AtomicLongArray myReplicaDownUntil;
+  private final Counter myPrimaryCounter;
+  private final Counter myReplicaCounter;
+  private final Counter myFallbackCounter;
+
+  public ReplicaRoutingDataSource(DataSource thePrimary, List<DataSource> theReplicas, Selection theSelection, MeterRegistry theMeterRegistry) {
+    myPrimary = thePrimary;
+    myReplicas = theReplicas.toArray(new DataSource[0]);
+    mySelection = theSelection;
+    myReplicaDownUntil = new AtomicLongArray(myReplicas.length);
+    myPrimaryCounter = theMeterRegistry.counter("datasource.routing", "target", "primary");
+    myReplicaCounter = theMeterRegistry.counter("datasource.routing", "target", "replica");
+    myFallbackCounter = theMeterRegistry.counter("datasource.routing", "target", "fallback");
+  }
+
+  /**
+   * Marks whether the current thread is serving a request that may be answered from a replica
+   */
+  public static void setReadOnlyRequest(boolean theReadOnly) {
+    if (theReadOnly) {
+      ourReadOnlyRequest.set(Boolean.TRUE);
+    } else {
+      ourReadOnlyRequest.remove();
+    }
+  }
+
+  public static boolean isReadOnlyRequest() {
+    return ourReadOnlyRequest.get() != null;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return getConnection(null, null);
+  }
+
+  @Override
+  public Connection getConnection(String theUsername, String thePassword) throws SQLException {
+    if (isReadOnlyRequest()) {
+      int index = selectReplica();
+      if (index >= 0) {
+        try {
+          Connection retVal = connect(myReplicas[index], theUsername, thePassword);
+          myReplicaCounter.increment();
+          return retVal;
+        } catch (SQLException e) {
+          myReplicaDownUntil.set(index, System.currentTimeMillis() + REPLICA_RETRY_MILLIS);
+          ourLog.warn("Read replica {} is unavailable, using the primary for the next {}s: {}", index, TimeUnit.MILLISECONDS.toSeconds(REPLICA_RETRY_MILLIS), e.toString());
+        }
+      }
+      myFallbackCounter.increment();
+    } else {
+      myPrimaryCounter.increment();
+    }
+    return connect(myPrimary, theUsername, thePassword);
+  }
+
+  private static Connection connect(DataSource theDataSource, String theUsername, String thePassword) throws SQLException {
+    return theUsername == null ? theDataSource.getConnection() : theDataSource.getConnection(theUsername, thePassword);
+  }
+
+  /**
+   * @return the index of the replica to use, or -1 if none is available
+   */
+  int selectReplica() {
+    long now = System.currentTimeMillis();
+    int count = myReplicas.length;
+    int start = Math.floorMod(myNextReplica.getAndIncrement(), count);
+    int retVal = -1;
+    int retValActive = Integer.MAX_VALUE;
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % count;
+      if (myReplicaDownUntil.get(index) > now) {
+        continue;
+      }
+      if (mySelection == Selection.ROUND_ROBIN) {
+        return index;
+      }
+      int active = activeConnections(myReplicas[index]);
+      if (active < retValActive) {
+        retVal = index;
+        retValActive = active;
+      }
+    }
+    return retVal;
+  }
+
+  private static int activeConnections(DataSource theDataSource) {
+    if (theDataSource instanceof HikariDataSource) {
+      HikariPoolMXBean pool = ((HikariDataSource) theDataSource).getHikariPoolMXBean();
+      return pool != null ? pool.getActiveConnections() : 0;
+    }
+    if (theDataSource instanceof BasicDataSource) {
+      return ((BasicDataSource) theDataSource).getNumActive();
+    }
+    return 0;
+  }
+
+  /**
+   * Closes the pools of the primary and all replicas
+   */
+  @Override
+  public void close() throws Exception {
+    List<DataSource> all = new ArrayList<>();
+    all.add(myPrimary);
+    for (DataSource next : myReplicas) {
+      all.add(next);
+    }
+    Exception failure = null;
+    for (DataSource next : all) {
+      if (next instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) next).close();
+        } catch (Exception e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks requests that may be served from a read replica for
+ * {@link ReplicaRoutingDataSource}.
+ * <p>
+ * A request is sent to a replica when its operation type is one of the
+ * configured replica operations and its client has not written anything within
+ * the read-your-writes window. Clients are told apart by their access token, or
+ * by their address if they send none, so that a client that has just created or
+ * updated a resource reads it back from the primary until the replicas have
+ * caught up.
+ */
+@Interceptor
+public class ReplicaRoutingInterceptor {
+
+  private static final Set<RestOperationTypeEnum> ourReadOperations = EnumSet.of(
+    RestOperationTypeEnum.READ,
+    RestOperationTypeEnum.VREAD,
+    RestOperationTypeEnum.SEARCH_TYPE,
+    RestOperationTypeEnum.SEARCH_SYSTEM,
+    RestOperationTypeEnum.HISTORY_INSTANCE,
+    RestOperationTypeEnum.HISTORY_TYPE,
+    RestOperationTypeEnum.HISTORY_SYSTEM,
+    RestOperationTypeEnum.GET_PAGE,
+    RestOperationTypeEnum.GET_TAGS,
+    RestOperationTypeEnum.META,
+    RestOperationTypeEnum.METADATA,
+    RestOperationTypeEnum.GRAPHQL_REQUEST,
+    RestOperationTypeEnum.VALIDATE
+  );
+
+  private static final int MAX_TRACKED_WRITERS = 100000;
+
+  private final Set<RestOperationTypeEnum> myReplicaOperations;
+  private final String myAltAuthHeader = HapiProperties.getAccessTokenHeaderName();
+  private final Cache<String, Boolean> myRecentWriters;
+
+  /**
+   * @param theReplicaOperations the operation types that may be served from a replica
+   * @param theReadYourWritesMillis how long a client's reads go to the primary after it writes. 0 disables this.
+   */
+  public ReplicaRoutingInterceptor(Set<RestOperationTypeEnum> theReplicaOperations, long theReadYourWritesMillis) {
+    myReplicaOperations = EnumSet.noneOf(RestOperationTypeEnum.class);
+    myReplicaOperations.addAll(theReplicaOperations);
+    myRecentWriters = theReadYourWritesMillis > 0
+      ? Caffeine.newBuilder()
+        .maximumSize(MAX_TRACKED_WRITERS)
+        .expireAfterWrite(theReadYourWritesMillis, TimeUnit.MILLISECONDS)
+        .build()
+      : null;
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+  public void incomingRequestPreHandled(RequestDetails theRequestDetails, RestOperationTypeEnum theOperation) {
+    if (myReplicaOperations.contains(theOperation)) {
+      if (myRecentWriters == null || myRecentWriters.getIfPresent(getClientKey(theRequestDetails)) == null) {
+        ReplicaRoutingDataSource.setReadOnlyRequest(true);
+      }
+    } else {
+      recordWrite(theRequestDetails, theOperation);
+    }
+  }
+
+  @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+  public void processingCompleted(RequestDetails theRequestDetails) {
+    ReplicaRoutingDataSource.setReadOnlyRequest(false);
+    // Start the window again from when the write finished, not when it started
+    recordWrite(theRequestDetails, theRequestDetails.getRestOperationType());
+  }
+
+  private void recordWrite(RequestDetails theRequestDetails, RestOperationTypeEnum theOperation) {
+    if (myRecentWriters != null && theOperation != null && !ourReadOperations.contains(theOperation)) {
+      myRecentWriters.put(getClientKey(theRequestDetails), Boolean.TRUE);
+    }
+  }
+
+  private String getClientKey(RequestDetails theRequestDetails) {
+    String token = theRequestDetails.getHeader(Constants.HEADER_AUTHORIZATION);
+    if (token == null && myAltAuthHeader != null) {
+      token = theRequestDetails.getHeader(myAltAuthHeader);
+    }
+    if (token != null) {
+      return VerifiedTokenCache.digest(token);
+    }
+    if (theRequestDetails instanceof ServletRequestDetails) {
+      return ((ServletRequestDetails) theRequestDetails).getServletRequest().getRemoteAddr();
+    }
+    return "";
+  }
+}
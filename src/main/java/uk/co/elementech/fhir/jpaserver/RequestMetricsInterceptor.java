@@ -0,0 +1,112 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the latency of every request in the <code>fhir.request</code> timer,
+ * tagged with the operation, resource type and response status, and the time
+ * spent in the database, in serializing the response and in authorization in
+ * the <code>fhir.request.phase</code> timer, tagged with the phase, operation
+ * and resource type.
+ * <p>
+ * Both timers keep HdrHistogram-based p50/p95/p99 percentiles for the
+ * <code>$metrics</code> operation and publish percentile histogram buckets, so
+ * that Prometheus can aggregate percentiles, e.g. per resource type across
+ * operations. The database time is measured by
+ * {@link StatementTimingDataSource}, and the serialization time runs from the
+ * outgoing response hook until the request completes.
+ */
+@Interceptor
+public class RequestMetricsInterceptor {
+
+  static final String REQUEST_TIMER = "fhir.request";
+  static final String PHASE_TIMER = "fhir.request.phase";
+
+  private static final String START_NANOS_ATTRIBUTE = RequestMetricsInterceptor.class.getName() + ".startNanos";
+  private static final String RESPONSE_NANOS_ATTRIBUTE = RequestMetricsInterceptor.class.getName() + ".responseNanos";
+  private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+  private final MeterRegistry myMeterRegistry;
+
+  public RequestMetricsInterceptor(MeterRegistry theMeterRegistry) {
+    myMeterRegistry = theMeterRegistry;
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+    theRequestDetails.setAttribute(START_NANOS_ATTRIBUTE, System.nanoTime());
+    StatementTimingDataSource.startRecording();
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+  public boolean outgoingResponse(RequestDetails theRequestDetails) {
+    theRequestDetails.setAttribute(RESPONSE_NANOS_ATTRIBUTE, System.nanoTime());
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+  public void processingCompleted(RequestDetails theRequestDetails) {
+    long now = System.nanoTime();
+    long databaseNanos = StatementTimingDataSource.stopRecording();
+    Long startNanos = (Long) theRequestDetails.getAttribute(START_NANOS_ATTRIBUTE);
+    if (startNanos == null) {
+      return;
+    }
+
+    String operation = getOperation(theRequestDetails);
+    String resourceType = theRequestDetails.getResourceName() != null ? theRequestDetails.getResourceName() : "none";
+    String status = "unknown";
+    if (theRequestDetails instanceof ServletRequestDetails) {
+      status = Integer.toString(((ServletRequestDetails) theRequestDetails).getServletResponse().getStatus());
+    }
+
+    Tags tags = Tags.of("operation", operation, "resource", resourceType);
+    timer(REQUEST_TIMER, tags.and("status", status)).record(now - startNanos, TimeUnit.NANOSECONDS);
+
+    if (databaseNanos >= 0) {
+      timer(PHASE_TIMER, tags.and("phase", "database")).record(databaseNanos, TimeUnit.NANOSECONDS);
+    }
+    Long responseNanos = (Long) theRequestDetails.getAttribute(RESPONSE_NANOS_ATTRIBUTE);
+    if (responseNanos != null) {
+      timer(PHASE_TIMER, tags.and("phase", "serialization")).record(now - responseNanos, TimeUnit.NANOSECONDS);
+    }
+    AuthTimings authTimings = (AuthTimings) theRequestDetails.getAttribute(AuthTimings.ATTRIBUTE_NAME);
+    if (authTimings != null) {
+      timer(PHASE_TIMER, tags.and("phase", "auth")).record(authTimings.getTotalNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Extended operations are reported by name (e.g. <code>$everything</code>), everything else by its REST operation type
+   */
+  private static String getOperation(RequestDetails theRequestDetails) {
+    RestOperationTypeEnum type = theRequestDetails.getRestOperationType();
+    if (type == null) {
+      return "unknown";
+    }
+    if (theRequestDetails.getOperation() != null
+      && (type == RestOperationTypeEnum.EXTENDED_OPERATION_SERVER || type == RestOperationTypeEnum.EXTENDED_OPERATION_TYPE || type == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE)) {
+      return theRequestDetails.getOperation();
+    }
+    return type.getCode();
+  }
+
+  private Timer timer(String theName, Tags theTags) {
+    return Timer.builder(theName)
+      .tags(theTags)
+      .publishPercentiles(PERCENTILES)
+      .publishPercentileHistogram()
+      .register(myMeterRegistry);
+  }
+}
@@ -0,0 +1,274 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the encoded responses of reads, so that a resource version that has
+ * not changed is not serialized again for every read.
+ * <p>
+ * Entries are keyed by resource id and hold the encoded bytes of the version
+ * that was last read, one per variant: encoding, pretty printing,
+ * <code>_summary</code>, <code>_elements</code>, <code>_narrative</code>,
+ * server base and gzip. A hit needs the version, last updated time and tags
+ * of the resource loaded for the request to match those of the entry, so a
+ * stale entry is never served; writes, deletes and expunges only drop entries
+ * early to free their memory.
+ * The cache is bounded by the total size of the encoded bytes. Its hits,
+ * misses and size are published as the <code>cache.gets</code> and
+ * <code>cache.size</code> meters with <code>cache=fhir.response</code>.
+ * <p>
+ * Only plain reads are cached. Requests with any other parameter (e.g.
+ * <code>_fhirpath</code>), binaries served as their own content type and
+ * browser requests rendered by the response highlighter are left to the
+ * server.
+ */
+@Interceptor
+public class ResponseCacheInterceptor {
+
+  static final String CACHE_NAME = "fhir.response";
+
+  /**
+   * Returning false from the outgoing response hook skips the hooks after it,
+   * so this one must run after all of them, including the authorization checks
+   */
+  private static final int HOOK_ORDER = Integer.MAX_VALUE;
+  private static final Set<String> VARIANT_PARAMETERS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_ELEMENTS + Constants.PARAM_ELEMENTS_EXCLUDE_MODIFIER)));
+  /**
+   * Approximate memory used by an entry besides the encoded bytes
+   */
+  private static final int ENTRY_OVERHEAD = 256;
+
+  private final FhirContext myFhirContext;
+  private final Cache<String, Entry> myCache;
+  private final Counter myHits;
+  private final Counter myMisses;
+
+  public ResponseCacheInterceptor(FhirContext theFhirContext, long theMaximumBytes, MeterRegistry theMeterRegistry) {
+    myFhirContext = theFhirContext;
+    myCache = Caffeine.newBuilder()
+      .maximumWeight(theMaximumBytes)
+      .weigher((String id, Entry entry) -> entry.getWeight())
+      .build();
+    // Counted per response rather than per entry lookup, as an entry only hits if it has the right version and variant
+    myHits = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "hit").register(theMeterRegistry);
+    myMisses = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "miss").register(theMeterRegistry);
+    Gauge.builder("cache.size", myCache, Cache::estimatedSize).tag("cache", CACHE_NAME).register(theMeterRegistry);
+  }
+
+  @Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = HOOK_ORDER)
+  public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) throws IOException {
+    IBaseResource resource = theResponseDetails.getResponseResource();
+    if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ
+      || !(theRequestDetails instanceof ServletRequestDetails)
+      || theResponseDetails.getResponseCode() != Constants.STATUS_HTTP_200_OK
+      || resource == null
+      || !resource.getIdElement().hasVersionIdPart()
+      || !VARIANT_PARAMETERS.containsAll(theRequestDetails.getParameters().keySet())) {
+      return true;
+    }
+    RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null);
+    if (resource instanceof IBaseBinary && encoding == null) {
+      return true;
+    }
+    if (encoding == null) {
+      encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+    }
+
+    String id = resource.getIdElement().toUnqualifiedVersionless().getValue();
+    String fingerprint = fingerprint(resource);
+    String variant = variant(theRequestDetails, encoding);
+
+    byte[] body = null;
+    Entry entry = myCache.getIfPresent(id);
+    if (entry != null && entry.myFingerprint.equals(fingerprint)) {
+      body = entry.myBodies.get(variant);
+    }
+    if (body != null) {
+      myHits.increment();
+    } else {
+      myMisses.increment();
+      body = encode(myFhirContext, theRequestDetails, resource);
+      byte[] encoded = body;
+      myCache.asMap().compute(id, (k, existing) -> existing != null && existing.myFingerprint.equals(fingerprint)
+        ? existing.with(variant, encoded)
+        : new Entry(fingerprint, Collections.singletonMap(variant, encoded)));
+    }
+
+    IPrimitiveType<Date> lastUpdated = RestfulServerUtils.extractLastUpdatedFromResource(resource);
+    writeResponse((ServletRequestDetails) theRequestDetails, encoding, resource.getIdElement().getVersionIdPart(),
+      lastUpdated != null ? lastUpdated.getValue() : null, body);
+    return false;
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    invalidate(theNewResource.getIdElement());
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    invalidate(theResource.getIdElement());
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE)
+  public void expungeResource(IIdType theId) {
+    invalidate(theId);
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_EVERYTHING)
+  public void expungeEverything() {
+    myCache.invalidateAll();
+  }
+
+  long size() {
+    return myCache.estimatedSize();
+  }
+
+  private void invalidate(IIdType theId) {
+    if (theId != null && theId.hasIdPart()) {
+      myCache.invalidate(theId.toUnqualifiedVersionless().getValue());
+    }
+  }
+
+  /**
+   * Encodes a response resource as the server would for the request, gzipped if the request accepts it
+   */
+  static byte[] encode(FhirContext theFhirContext, RequestDetails theRequestDetails, IBaseResource theResource) throws IOException {
+    IParser parser = RestfulServerUtils.getNewParser(theFhirContext, theFhirContext.getVersion().getVersion(), theRequestDetails);
+    byte[] encoded = parser.encodeResourceToString(theResource).getBytes(StandardCharsets.UTF_8);
+    if (!theRequestDetails.isRespondGzip()) {
+      return encoded;
+    }
+    ByteArrayOutputStream retVal = new ByteArrayOutputStream(encoded.length / 4 + 64);
+    try (OutputStream out = new GZIPOutputStream(retVal)) {
+      out.write(encoded);
+    }
+    return retVal.toByteArray();
+  }
+
+  /**
+   * Writes the headers the server writes for a resource, followed by the encoded resource
+   *
+   * @param theVersionId the version for the ETag, or null
+   * @param theLastUpdated the time for the Last-Modified header, or null
+   */
+  static void writeResponse(ServletRequestDetails theRequestDetails, RestfulServerUtils.ResponseEncoding theEncoding,
+                            String theVersionId, Date theLastUpdated, byte[] theBody) throws IOException {
+    HttpServletResponse response = theRequestDetails.getServletResponse();
+    response.setStatus(Constants.STATUS_HTTP_200_OK);
+    response.setContentType(theEncoding.getResourceContentType());
+    response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+    for (Map.Entry<String, List<String>> next : theRequestDetails.getResponse().getHeaders().entrySet()) {
+      for (String value : next.getValue()) {
+        response.addHeader(next.getKey(), value);
+      }
+    }
+    if (theVersionId != null && theRequestDetails.getServer().getETagSupport() == ETagSupportEnum.ENABLED) {
+      response.addHeader(Constants.HEADER_ETAG, RestfulServerUtils.createEtag(theVersionId));
+    }
+    if (theLastUpdated != null) {
+      response.addHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(theLastUpdated));
+    }
+    if (theRequestDetails.isRespondGzip()) {
+      response.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+    }
+    try (OutputStream out = response.getOutputStream()) {
+      out.write(theBody);
+    }
+  }
+
+  /**
+   * What a cached encoding depends on, besides the variant
+   */
+  private static String fingerprint(IBaseResource theResource) {
+    StringBuilder retVal = new StringBuilder(theResource.getIdElement().getVersionIdPart());
+    IPrimitiveType<Date> lastUpdated = RestfulServerUtils.extractLastUpdatedFromResource(theResource);
+    retVal.append('|').append(lastUpdated != null ? lastUpdated.getValueAsString() : "");
+    // $meta-add and $meta-delete change the tags without a new version
+    for (IBaseCoding next : theResource.getMeta().getTag()) {
+      retVal.append("|t:").append(next.getSystem()).append('#').append(next.getCode());
+    }
+    for (IBaseCoding next : theResource.getMeta().getSecurity()) {
+      retVal.append("|s:").append(next.getSystem()).append('#').append(next.getCode());
+    }
+    for (IPrimitiveType<String> next : theResource.getMeta().getProfile()) {
+      retVal.append("|p:").append(next.getValueAsString());
+    }
+    return retVal.toString();
+  }
+
+  private static String variant(RequestDetails theRequestDetails, RestfulServerUtils.ResponseEncoding theEncoding) {
+    Map<String, String[]> parameters = theRequestDetails.getParameters();
+    return theEncoding.getEncoding()
+      + "|" + RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails)
+      + "|" + RestfulServerUtils.determineSummaryMode(theRequestDetails)
+      + "|" + Arrays.toString(parameters.get(Constants.PARAM_ELEMENTS))
+      + "|" + Arrays.toString(parameters.get(Constants.PARAM_ELEMENTS + Constants.PARAM_ELEMENTS_EXCLUDE_MODIFIER))
+      + "|" + NarrativeInterceptor.isNarrativeRequested(theRequestDetails)
+      + "|" + theRequestDetails.getFhirServerBase()
+      + "|" + theRequestDetails.isRespondGzip();
+  }
+
+  private static class Entry {
+
+    private final String myFingerprint;
+    private final Map<String, byte[]> myBodies;
+
+    Entry(String theFingerprint, Map<String, byte[]> theBodies) {
+      myFingerprint = theFingerprint;
+      myBodies = theBodies;
+    }
+
+    Entry with(String theVariant, byte[] theBody) {
+      Map<String, byte[]> bodies = new HashMap<>(myBodies);
+      bodies.put(theVariant, theBody);
+      return new Entry(myFingerprint, Collections.unmodifiableMap(bodies));
+    }
+
+    int getWeight() {
+      long retVal = ENTRY_OVERHEAD;
+      for (byte[] next : myBodies.values()) {
+        retVal += next.length + ENTRY_OVERHEAD;
+      }
+      return (int) Math.min(retVal, Integer.MAX_VALUE);
+    }
+  }
+}
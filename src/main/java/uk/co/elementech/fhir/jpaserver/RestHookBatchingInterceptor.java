@@ -0,0 +1,74 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Hands REST hook notifications to a {@link RestHookDeliveryQueue} instead
+ * of letting the subscription delivery make one call for each. While the
+ * queue of an endpoint is full, the delivery thread waits for space. A
+ * notification whose payload type is not a FHIR encoding, or that arrives
+ * once the queue is closed, is delivered as before.
+ * <p>
+ * It listens to the subscription pointcuts, so it is registered with the JPA
+ * interceptor service.
+ */
+@Interceptor
+public class RestHookBatchingInterceptor {
+
+  private final FhirContext myFhirContext;
+  private final RestHookDeliveryQueue myQueue;
+
+  public RestHookBatchingInterceptor(FhirContext theFhirContext, RestHookDeliveryQueue theQueue) {
+    myFhirContext = theFhirContext;
+    myQueue = theQueue;
+  }
+
+  /**
+   * @return false if the notification was queued, so that it is not delivered again
+   */
+  @Hook(Pointcut.SUBSCRIPTION_BEFORE_REST_HOOK_DELIVERY)
+  public boolean beforeRestHookDelivery(ResourceDeliveryMessage theMessage, CanonicalSubscription theSubscription) {
+    EncodingEnum encoding = null;
+    if (!isBlank(theSubscription.getPayloadString())) {
+      encoding = EncodingEnum.forContentType(theSubscription.getPayloadString());
+      if (encoding == null) {
+        return true;
+      }
+    }
+
+    IIdType id = theMessage.getPayloadId(myFhirContext);
+    IBaseResource resource = null;
+    if (encoding != null && theMessage.getOperationType() != ResourceModifiedMessage.OperationTypeEnum.DELETE) {
+      resource = theMessage.getPayload(myFhirContext);
+      if (resource == null) {
+        return true;
+      }
+      if (theSubscription.getRestHookDetails().isStripVersionId()) {
+        // The payload of the message is left as it is for other subscribers
+        IBaseResource copy = myFhirContext.getResourceDefinition(resource).newInstance();
+        myFhirContext.newTerser().cloneInto(resource, copy, true);
+        copy.setId(resource.getIdElement().toVersionless());
+        resource = copy;
+      }
+    }
+
+    RestHookDeliveryQueue.Notification notification = new RestHookDeliveryQueue.Notification(
+      theSubscription.getEndpointUrl(),
+      theSubscription.getHeaders(),
+      encoding,
+      id.toUnqualifiedVersionless().getValue(),
+      resource);
+    return !myQueue.offer(notification);
+  }
+}
@@ -0,0 +1,459 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers REST hook notifications in batches, with a queue per endpoint,
+ * instead of making one call per notification.
+ * <p>
+ * A notification waits up to the batch window, and the notifications queued
+ * for an endpoint by then are sent together: those with a payload as a
+ * <code>batch</code> Bundle of PUTs and DELETEs posted to the endpoint, and
+ * those without a payload as one empty POST. Queued notifications of the same
+ * resource are coalesced into the latest one. A batch is sent as soon as the
+ * queue holds the maximum batch size. At most the maximum number of batches
+ * are in flight to an endpoint at a time, and a resource is never in two of
+ * them, so its versions arrive in order.
+ * <p>
+ * A batch that fails is queued again and the endpoint is backed off,
+ * doubling the delay with every consecutive failure up to the maximum; a
+ * notification is logged and dropped after the maximum number of attempts.
+ * When the queue of an endpoint is full, {@link #offer(Notification)} waits
+ * for space, unless the notification replaces one already queued for the same
+ * resource, so that a slow endpoint holds back the threads notifying it.
+ * <p>
+ * The queued notifications are counted in the
+ * <code>fhir.subscription.resthook.queue</code> gauge, the time from queueing
+ * to delivery in the <code>fhir.subscription.resthook.latency</code> timer,
+ * the time spent waiting for space in the
+ * <code>fhir.subscription.resthook.backpressure</code> timer, and
+ * notifications in <code>fhir.subscription.resthook.notifications</code>,
+ * tagged with the result (delivered, coalesced or failed).
+ */
+public class RestHookDeliveryQueue implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RestHookDeliveryQueue.class);
+
+  static final String QUEUE_METER = "fhir.subscription.resthook.queue";
+  static final String LATENCY_METER = "fhir.subscription.resthook.latency";
+  static final String BACKPRESSURE_METER = "fhir.subscription.resthook.backpressure";
+  static final String NOTIFICATIONS_METER = "fhir.subscription.resthook.notifications";
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 30000;
+
+  private final FhirContext myFhirContext;
+  private final long myWindowMillis;
+  private final int myMaxBatchSize;
+  private final int myMaxInFlight;
+  private final int myMaxQueueSize;
+  private int myMaxAttempts = 5;
+  private long myInitialBackoffMillis = 1000;
+  private long myMaxBackoffMillis = 60000;
+  private final Map<String, Endpoint> myEndpoints = new ConcurrentHashMap<>();
+  private final AtomicInteger myQueued = new AtomicInteger();
+  private final ScheduledExecutorService myScheduler;
+  private final ExecutorService myWorkers;
+  private final Timer myLatency;
+  private final Timer myBackpressure;
+  private final Counter myDelivered;
+  private final Counter myCoalesced;
+  private final Counter myFailed;
+  private volatile boolean myClosed;
+
+  /**
+   * @param theMaxInFlight The maximum number of batches in flight to one endpoint
+   * @param theMaxQueueSize The maximum number of notifications queued for one endpoint
+   * @param theThreads The number of threads sending batches to all endpoints
+   */
+  public RestHookDeliveryQueue(FhirContext theFhirContext, long theWindowMillis, int theMaxBatchSize, int theMaxInFlight, int theMaxQueueSize, int theThreads, MeterRegistry theMeterRegistry) {
+    myFhirContext = theFhirContext;
+    myWindowMillis = theWindowMillis;
+    myMaxBatchSize = theMaxBatchSize;
+    myMaxInFlight = theMaxInFlight;
+    myMaxQueueSize = theMaxQueueSize;
+    myScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "resthook-batch-window");
+      thread.setDaemon(true);
+      return thread;
+    });
+    AtomicInteger threadCount = new AtomicInteger();
+    myWorkers = Executors.newFixedThreadPool(theThreads, r -> {
+      Thread thread = new Thread(r, "resthook-delivery-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    Gauge.builder(QUEUE_METER, myQueued, AtomicInteger::get).register(theMeterRegistry);
+    myLatency = Timer.builder(LATENCY_METER).register(theMeterRegistry);
+    myBackpressure = Timer.builder(BACKPRESSURE_METER).register(theMeterRegistry);
+    myDelivered = Counter.builder(NOTIFICATIONS_METER).tag("result", "delivered").register(theMeterRegistry);
+    myCoalesced = Counter.builder(NOTIFICATIONS_METER).tag("result", "coalesced").register(theMeterRegistry);
+    myFailed = Counter.builder(NOTIFICATIONS_METER).tag("result", "failed").register(theMeterRegistry);
+  }
+
+  /**
+   * @param theMaxAttempts The number of times a notification is sent before it is dropped
+   * @param theInitialBackoffMillis The delay after the first failure of an endpoint
+   * @param theMaxBackoffMillis The longest delay after consecutive failures
+   */
+  public void setRetry(int theMaxAttempts, long theInitialBackoffMillis, long theMaxBackoffMillis) {
+    myMaxAttempts = theMaxAttempts;
+    myInitialBackoffMillis = theInitialBackoffMillis;
+    myMaxBackoffMillis = theMaxBackoffMillis;
+  }
+
+  /**
+   * Queues a notification for its endpoint, waiting while the queue of the
+   * endpoint is full
+   *
+   * @return false if the queue is closed, or the thread was interrupted while waiting
+   */
+  public boolean offer(Notification theNotification) {
+    Endpoint endpoint = myEndpoints.computeIfAbsent(theNotification.getEndpointKey(), t -> new Endpoint(theNotification));
+    return endpoint.offer(theNotification);
+  }
+
+  /**
+   * The number of notifications queued or in flight
+   */
+  int size() {
+    return myQueued.get();
+  }
+
+  @Override
+  public void close() {
+    myClosed = true;
+    for (Endpoint next : myEndpoints.values()) {
+      synchronized (next) {
+        next.notifyAll();
+      }
+    }
+    myScheduler.shutdownNow();
+    myWorkers.shutdown();
+    try {
+      if (!myWorkers.awaitTermination(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        ourLog.warn("REST hook deliveries did not finish within {}ms", READ_TIMEOUT_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (myQueued.get() > 0) {
+      ourLog.warn("Dropping {} undelivered REST hook notifications", myQueued.get());
+    }
+  }
+
+  /**
+   * A batch Bundle with a PUT of each resource and a DELETE of each deleted one
+   */
+  IBaseBundle toBundle(List<Notification> theNotifications) {
+    RuntimeResourceDefinition bundleDef = myFhirContext.getResourceDefinition("Bundle");
+    IBaseBundle retVal = (IBaseBundle) bundleDef.newInstance();
+    addPrimitive(retVal, bundleDef, "type", "batch");
+
+    BaseRuntimeChildDefinition entryChild = bundleDef.getChildByName("entry");
+    BaseRuntimeElementCompositeDefinition<?> entryDef = (BaseRuntimeElementCompositeDefinition<?>) entryChild.getChildByName("entry");
+    BaseRuntimeChildDefinition requestChild = entryDef.getChildByName("request");
+    BaseRuntimeElementCompositeDefinition<?> requestDef = (BaseRuntimeElementCompositeDefinition<?>) requestChild.getChildByName("request");
+    for (Notification next : theNotifications) {
+      IBase entry = entryDef.newInstance();
+      entryChild.getMutator().addValue(retVal, entry);
+      if (next.getResource() != null) {
+        entryDef.getChildByName("resource").getMutator().addValue(entry, next.getResource());
+      }
+      IBase request = requestDef.newInstance();
+      requestChild.getMutator().addValue(entry, request);
+      addPrimitive(request, requestDef, "method", next.getResource() != null ? "PUT" : "DELETE");
+      addPrimitive(request, requestDef, "url", next.getResourceId());
+    }
+    return retVal;
+  }
+
+  private static void addPrimitive(IBase theTarget, BaseRuntimeElementCompositeDefinition<?> theDefinition, String theName, String theValue) {
+    BaseRuntimeChildDefinition child = theDefinition.getChildByName(theName);
+    IPrimitiveType<?> value = (IPrimitiveType<?>) child.getChildByName(theName).newInstance(child.getInstanceConstructorArguments());
+    value.setValueAsString(theValue);
+    child.getMutator().addValue(theTarget, value);
+  }
+
+  private long backoffMillis(int theFailures) {
+    return Math.min(myMaxBackoffMillis, myInitialBackoffMillis << Math.min(theFailures - 1, 20));
+  }
+
+  /**
+   * A change to a resource, to notify an endpoint of
+   */
+  public static final class Notification {
+
+    private final String myEndpointUrl;
+    private final List<String> myHeaders;
+    private final EncodingEnum myEncoding;
+    private final String myResourceId;
+    private final IBaseResource myResource;
+    private long myQueuedNanos;
+    private int myAttempts;
+
+    /**
+     * @param theHeaders Headers to send, as <code>Name: value</code>
+     * @param theEncoding The encoding of the payload, or null to notify without one
+     * @param theResourceId The versionless id of the resource, as <code>Type/id</code>
+     * @param theResource The resource, or null if it was deleted
+     */
+    public Notification(String theEndpointUrl, List<String> theHeaders, EncodingEnum theEncoding, String theResourceId, IBaseResource theResource) {
+      myEndpointUrl = theEndpointUrl;
+      myHeaders = theHeaders != null ? theHeaders : new ArrayList<>();
+      myEncoding = theEncoding;
+      myResourceId = theResourceId;
+      myResource = theResource;
+    }
+
+    public String getResourceId() {
+      return myResourceId;
+    }
+
+    public IBaseResource getResource() {
+      return myResource;
+    }
+
+    /**
+     * Notifications are batched together if they go to the same endpoint in the same way
+     */
+    private String getEndpointKey() {
+      return myEndpointUrl + "\n" + myEncoding + "\n" + String.join("\n", myHeaders);
+    }
+  }
+
+  private class Endpoint {
+
+    private final String myUrl;
+    private final List<String> myHeaders;
+    private final EncodingEnum myEncoding;
+    private final LinkedHashMap<String, Notification> myPending = new LinkedHashMap<>();
+    private final Set<String> myInFlightIds = new HashSet<>();
+    private int myInFlight;
+    private int myFailures;
+    private long myBackoffUntilNanos;
+    /**
+     * A dispatch is scheduled
+     */
+    private boolean myScheduled;
+    /**
+     * The pending notifications are to be sent as soon as a batch can be
+     */
+    private boolean myDue;
+
+    private Endpoint(Notification theNotification) {
+      myUrl = theNotification.myEndpointUrl;
+      myHeaders = theNotification.myHeaders;
+      myEncoding = theNotification.myEncoding;
+    }
+
+    private synchronized boolean offer(Notification theNotification) {
+      Notification previous = myPending.get(theNotification.myResourceId);
+      if (previous == null && myPending.size() >= myMaxQueueSize) {
+        long start = System.nanoTime();
+        try {
+          while (previous == null && myPending.size() >= myMaxQueueSize) {
+            if (myClosed) {
+              return false;
+            }
+            wait();
+            previous = myPending.get(theNotification.myResourceId);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        } finally {
+          myBackpressure.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+      }
+      if (previous != null) {
+        // Latency is counted from the first change that was not delivered
+        theNotification.myQueuedNanos = previous.myQueuedNanos;
+        myCoalesced.increment();
+      } else {
+        theNotification.myQueuedNanos = System.nanoTime();
+        myQueued.incrementAndGet();
+      }
+      myPending.put(theNotification.myResourceId, theNotification);
+
+      if (myPending.size() >= myMaxBatchSize) {
+        myDue = true;
+        dispatch();
+      } else if (!myDue) {
+        schedule(myWindowMillis);
+      }
+      return true;
+    }
+
+    private synchronized void windowElapsed() {
+      myScheduled = false;
+      myDue = true;
+      dispatch();
+    }
+
+    /**
+     * Sends the pending notifications in as many batches as can be in flight
+     */
+    private void dispatch() {
+      long backoffNanos = myBackoffUntilNanos - System.nanoTime();
+      if (backoffNanos > 0) {
+        schedule(TimeUnit.NANOSECONDS.toMillis(backoffNanos) + 1);
+        return;
+      }
+      while (myInFlight < myMaxInFlight && !myPending.isEmpty()) {
+        List<Notification> batch = new ArrayList<>();
+        Iterator<Notification> iter = myPending.values().iterator();
+        while (iter.hasNext() && batch.size() < myMaxBatchSize) {
+          Notification next = iter.next();
+          if (myInFlightIds.add(next.myResourceId)) {
+            batch.add(next);
+            iter.remove();
+          }
+        }
+        if (batch.isEmpty()) {
+          // Each pending resource is in flight, and is sent again once that batch completes
+          break;
+        }
+        try {
+          myWorkers.execute(() -> send(batch));
+          myInFlight++;
+        } catch (RejectedExecutionException e) {
+          // Closing
+          batch.forEach(t -> {
+            myInFlightIds.remove(t.myResourceId);
+            myPending.put(t.myResourceId, t);
+          });
+          return;
+        }
+      }
+      if (myPending.isEmpty()) {
+        myDue = false;
+      }
+      if (myPending.size() < myMaxQueueSize) {
+        notifyAll();
+      }
+    }
+
+    private void schedule(long theDelayMillis) {
+      if (myScheduled) {
+        return;
+      }
+      try {
+        myScheduler.schedule(this::windowElapsed, theDelayMillis, TimeUnit.MILLISECONDS);
+        myScheduled = true;
+      } catch (RejectedExecutionException e) {
+        // Closing
+      }
+    }
+
+    private void send(List<Notification> theBatch) {
+      boolean delivered;
+      try {
+        post(theBatch);
+        delivered = true;
+      } catch (IOException | RuntimeException e) {
+        ourLog.warn("Could not deliver {} REST hook notifications to {}: {}", theBatch.size(), myUrl, e.toString());
+        delivered = false;
+      }
+
+      synchronized (this) {
+        myInFlight--;
+        theBatch.forEach(t -> myInFlightIds.remove(t.myResourceId));
+        if (delivered) {
+          myFailures = 0;
+          long now = System.nanoTime();
+          for (Notification next : theBatch) {
+            myLatency.record(now - next.myQueuedNanos, TimeUnit.NANOSECONDS);
+          }
+          myDelivered.increment(theBatch.size());
+          myQueued.addAndGet(-theBatch.size());
+        } else {
+          myFailures++;
+          myBackoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis(myFailures));
+          for (Notification next : theBatch) {
+            if (++next.myAttempts >= myMaxAttempts) {
+              ourLog.error("Dropping the REST hook notification of {} to {} after {} attempts", next.myResourceId, myUrl, next.myAttempts);
+              myFailed.increment();
+              myQueued.decrementAndGet();
+            } else if (myPending.putIfAbsent(next.myResourceId, next) != null) {
+              // Superseded by a later change queued meanwhile
+              myCoalesced.increment();
+              myQueued.decrementAndGet();
+            }
+          }
+          myDue = true;
+        }
+        if (myDue) {
+          dispatch();
+        }
+      }
+    }
+
+    private void post(List<Notification> theBatch) throws IOException {
+      byte[] body = new byte[0];
+      HttpURLConnection connection = (HttpURLConnection) new URL(myUrl).openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      for (String next : myHeaders) {
+        int colon = next.indexOf(':');
+        if (colon > 0) {
+          connection.addRequestProperty(next.substring(0, colon).trim(), next.substring(colon + 1).trim());
+        }
+      }
+      if (myEncoding != null) {
+        connection.setRequestProperty(Constants.HEADER_CONTENT_TYPE, myEncoding.getResourceContentTypeNonLegacy() + Constants.CHARSET_UTF8_CTSUFFIX);
+        body = myEncoding.newParser(myFhirContext).encodeResourceToString(toBundle(theBatch)).getBytes(StandardCharsets.UTF_8);
+      }
+      connection.setFixedLengthStreamingMode(body.length);
+      try (OutputStream output = connection.getOutputStream()) {
+        output.write(body);
+      }
+      int status = connection.getResponseCode();
+      // Reading the response to the end lets the connection be reused for the next batch
+      try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+        if (input != null) {
+          IOUtils.toByteArray(input);
+        }
+      }
+      if (status / 100 != 2) {
+        throw new IOException("HTTP " + status);
+      }
+    }
+  }
+}
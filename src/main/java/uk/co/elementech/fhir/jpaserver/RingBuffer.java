@@ -0,0 +1,95 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer
+ * thread.
+ * <p>
+ * Each slot carries a sequence number telling producers whether it is free and
+ * the consumer whether it has been filled, so producers only contend on one
+ * compare-and-set of the tail and the consumer needs no atomic update at all.
+ */
+public final class RingBuffer<E> {
+
+  private final int myMask;
+  private final AtomicReferenceArray<E> myElements;
+  private final AtomicLongArray mySequences;
+  private final AtomicLong myTail = new AtomicLong();
+  private final AtomicLong myHead = new AtomicLong();
+
+  /**
+   * @param theCapacity the number of elements the buffer holds, rounded up to a power of two
+   */
+  public RingBuffer(int theCapacity) {
+    if (theCapacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    int capacity = theCapacity == 1 ? 1 : Integer.highestOneBit(theCapacity - 1) << 1;
+    myMask = capacity - 1;
+    myElements = new AtomicReferenceArray<>(capacity);
+    mySequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      mySequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds an element, from any thread
+   *
+   * @return false if the buffer is full
+   */
+  public boolean offer(E theElement) {
+    long position = myTail.get();
+    while (true) {
+      int index = (int) position & myMask;
+      long difference = mySequences.get(index) - position;
+      if (difference == 0) {
+        if (myTail.compareAndSet(position, position + 1)) {
+          myElements.lazySet(index, theElement);
+          // Publishes the element to the consumer
+          mySequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = myTail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = myTail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest element. Must only be called by the consumer thread.
+   *
+   * @return the element, or null if the buffer is empty
+   */
+  public E poll() {
+    long position = myHead.get();
+    int index = (int) position & myMask;
+    if (mySequences.get(index) != position + 1) {
+      return null;
+    }
+    E retVal = myElements.get(index);
+    myElements.lazySet(index, null);
+    // Hands the slot back to the producers for the next lap
+    mySequences.lazySet(index, position + myMask + 1);
+    myHead.lazySet(position + 1);
+    return retVal;
+  }
+
+  public int capacity() {
+    return myMask + 1;
+  }
+
+  /**
+   * @return the approximate number of elements in the buffer
+   */
+  public int size() {
+    long size = myTail.get() - myHead.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+}
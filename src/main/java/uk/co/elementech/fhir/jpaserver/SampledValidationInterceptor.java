@@ -0,0 +1,203 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates the resources in request bodies, like HAPI's
+ * <code>RequestValidatingInterceptor</code>, but only a sample of them, and
+ * optionally after the fact.
+ * <p>
+ * Each request with a body is validated with a probability of
+ * <code>validation.requests.sample_percent</code>. In synchronous mode a
+ * request whose resource has errors is rejected with a 422 and the
+ * OperationOutcome. In asynchronous mode the body is handed to a pool of
+ * validation threads and the request goes ahead; if the validators fall
+ * behind, the bodies that do not fit in their queue are not validated, so
+ * validation never holds up or piles up behind requests.
+ * <p>
+ * In both modes the outcomes of invalid requests go to a bounded queue,
+ * dropping the oldest, which <code>$validation-results</code> drains (see
+ * {@link ValidationResultsProvider}). Validations are timed in the
+ * <code>fhir.validation</code> timer, tagged with the mode and result.
+ */
+@Interceptor
+public class SampledValidationInterceptor implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SampledValidationInterceptor.class);
+
+  static final String VALIDATION_TIMER = "fhir.validation";
+
+  private final FhirContext myFhirContext;
+  private final FhirValidator myValidator;
+  private final int mySamplePercent;
+  private final ThreadPoolExecutor myExecutor;
+  private final BlockingQueue<Result> myResults;
+  private final MeterRegistry myMeterRegistry;
+  private final Counter myDropped;
+
+  /**
+   * @param theThreads the number of threads validating after the fact, or 0 to validate in the request
+   * @param theQueueSize the number of bodies waiting for a validation thread
+   * @param theMaxResults the number of invalid outcomes kept until they are drained
+   */
+  public SampledValidationInterceptor(FhirContext theFhirContext, IValidatorModule theValidatorModule, int theSamplePercent,
+                                      int theThreads, int theQueueSize, int theMaxResults, MeterRegistry theMeterRegistry) {
+    myFhirContext = theFhirContext;
+    myValidator = theFhirContext.newValidator();
+    myValidator.registerValidatorModule(theValidatorModule);
+    mySamplePercent = theSamplePercent;
+    myResults = new ArrayBlockingQueue<>(theMaxResults);
+    myMeterRegistry = theMeterRegistry;
+    myDropped = Counter.builder(VALIDATION_TIMER + ".dropped").register(theMeterRegistry);
+
+    if (theThreads > 0) {
+      AtomicInteger threadCount = new AtomicInteger();
+      myExecutor = new ThreadPoolExecutor(theThreads, theThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(theQueueSize), r -> {
+        Thread thread = new Thread(r, "validation-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }, (r, executor) -> myDropped.increment());
+    } else {
+      myExecutor = null;
+    }
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+    EncodingEnum encoding = RestfulServerUtils.determineRequestEncodingNoDefault(theRequestDetails);
+    if (encoding == null || mySamplePercent <= 0 || (mySamplePercent < 100 && ThreadLocalRandom.current().nextInt(100) >= mySamplePercent)) {
+      return true;
+    }
+    byte[] contents = theRequestDetails.loadRequestContents();
+    if (contents == null || contents.length == 0) {
+      return true;
+    }
+
+    String body = new String(contents, StandardCharsets.UTF_8);
+    String request = theRequestDetails.getRequestType() + " " + theRequestDetails.getCompleteUrl();
+    String requestId = theRequestDetails.getRequestId();
+    if (myExecutor != null) {
+      myExecutor.execute(() -> {
+        try {
+          validate(body, request, requestId, "async");
+        } catch (RuntimeException e) {
+          ourLog.warn("Could not validate {}", request, e);
+        }
+      });
+      return true;
+    }
+
+    ValidationResult result = validate(body, request, requestId, "sync");
+    if (!isValid(result)) {
+      throw new UnprocessableEntityException(myFhirContext, result.toOperationOutcome());
+    }
+    return true;
+  }
+
+  /**
+   * Removes and returns up to the given number of the oldest invalid outcomes
+   */
+  public List<Result> drainResults(int theMaxResults) {
+    List<Result> retVal = new ArrayList<>();
+    myResults.drainTo(retVal, theMaxResults);
+    return retVal;
+  }
+
+  private ValidationResult validate(String theBody, String theRequest, String theRequestId, String theMode) {
+    long start = System.nanoTime();
+    ValidationResult retVal = myValidator.validateWithResult(theBody);
+    boolean valid = isValid(retVal);
+    Timer.builder(VALIDATION_TIMER)
+      .tag("mode", theMode)
+      .tag("result", valid ? "valid" : "invalid")
+      .register(myMeterRegistry)
+      .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+    if (!valid) {
+      Result result = new Result(theRequest, theRequestId, retVal.toOperationOutcome());
+      while (!myResults.offer(result)) {
+        myResults.poll();
+      }
+    }
+    return retVal;
+  }
+
+  private static boolean isValid(ValidationResult theResult) {
+    for (SingleValidationMessage next : theResult.getMessages()) {
+      if (next.getSeverity() != null && next.getSeverity().ordinal() >= ResultSeverityEnum.ERROR.ordinal()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * The outcome of validating an invalid request
+   */
+  public static class Result {
+
+    private final Date myTime = new Date();
+    private final String myRequest;
+    private final String myRequestId;
+    private final IBaseOperationOutcome myOperationOutcome;
+
+    Result(String theRequest, String theRequestId, IBaseOperationOutcome theOperationOutcome) {
+      myRequest = theRequest;
+      myRequestId = theRequestId;
+      myOperationOutcome = theOperationOutcome;
+    }
+
+    public Date getTime() {
+      return myTime;
+    }
+
+    /**
+     * The method and URL of the request
+     */
+    public String getRequest() {
+      return myRequest;
+    }
+
+    public String getRequestId() {
+      return myRequestId;
+    }
+
+    public IBaseOperationOutcome getOperationOutcome() {
+      return myOperationOutcome;
+    }
+  }
+}
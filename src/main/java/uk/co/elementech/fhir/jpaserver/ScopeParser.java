@@ -1,32 +1,185 @@
 package uk.co.elementech.fhir.jpaserver;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class ScopeParser {
-   
-    private ArrayList<SmartScope> scopesList = new ArrayList<SmartScope>();
+/**
+ * Parses SMART on FHIR resource scopes without regular expressions.
+ * <p>
+ * Both SMART v1 (<code>patient/Observation.read</code>, <code>user/*.write</code>,
+ * <code>user/*.*</code>) and SMART v2 (<code>patient/Observation.rs</code>,
+ * <code>system/*.cruds</code>) forms are understood. Scopes that are not resource
+ * scopes (<code>openid</code>, <code>launch/patient</code>, ...) are ignored, as are
+ * v2 scopes carrying query restrictions such as <code>?category=</code>, which this
+ * server cannot enforce and therefore does not grant.
+ * <p>
+ * Parsed scopes are immutable and interned: once a scope string has been seen,
+ * later tokens carrying it get the same {@link SmartScope} instance back from a
+ * single map lookup.
+ */
+public final class ScopeParser {
 
-    ScopeParser(String[] scopesArr) {
-        parseScopes(scopesArr);
+  /**
+   * Upper bound on the number of distinct scope strings remembered. Beyond this,
+   * scopes are still parsed but not interned.
+   */
+  static final int MAX_INTERNED_SCOPES = 4096;
+
+  private static final SmartScope.Permission[] PERMISSIONS = SmartScope.Permission.values();
+  private static final SmartScope.Specificity[] SPECIFICITIES = SmartScope.Specificity.values();
+  private static final SmartScope NOT_A_SMART_SCOPE = new SmartScope("", null, null, 0);
+  private static final ConcurrentHashMap<String, SmartScope> ourScopes = new ConcurrentHashMap<>();
+
+  private ScopeParser() {
+  }
+
+  /**
+   * Parses a space separated scope claim in a single pass, returning the SMART
+   * resource scopes it contains in claim order.
+   */
+  public static List<SmartScope> parse(String theScopeClaim) {
+    if (theScopeClaim == null || theScopeClaim.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<SmartScope> retVal = new ArrayList<>();
+    int length = theScopeClaim.length();
+    int start = 0;
+    for (int i = 0; i <= length; i++) {
+      if (i == length || theScopeClaim.charAt(i) == ' ') {
+        if (i > start) {
+          addIfSmart(retVal, lookup(theScopeClaim.substring(start, i)));
+        }
+        start = i + 1;
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * Parses scopes that have already been split, e.g. by {@link AuthRuleListCache#normalizeScopes(String)}
+   */
+  public static List<SmartScope> parse(String[] theScopes) {
+    List<SmartScope> retVal = new ArrayList<>(theScopes.length);
+    for (String scope : theScopes) {
+      addIfSmart(retVal, lookup(scope));
+    }
+    return retVal;
+  }
+
+  /**
+   * @return the parsed scope, or <code>null</code> if the string is not a SMART resource scope
+   */
+  public static SmartScope parseScope(String theScope) {
+    SmartScope retVal = lookup(theScope);
+    return retVal == NOT_A_SMART_SCOPE ? null : retVal;
+  }
+
+  private static void addIfSmart(List<SmartScope> theList, SmartScope theScope) {
+    if (theScope != NOT_A_SMART_SCOPE) {
+      theList.add(theScope);
     }
+  }
 
-    void parseScopes(String[] scopesArr) {
-        for (String scope: scopesArr) {
-            SmartScope smartScope = new SmartScope();
-            if(smartScope.matchSmartScope(scope)) {
-                scopesList.add(smartScope);
-            }
+  private static SmartScope lookup(String theScope) {
+    SmartScope retVal = ourScopes.get(theScope);
+    if (retVal == null) {
+      retVal = tokenize(theScope);
+      if (ourScopes.size() < MAX_INTERNED_SCOPES) {
+        SmartScope existing = ourScopes.putIfAbsent(theScope, retVal);
+        if (existing != null) {
+          retVal = existing;
         }
+      }
     }
+    return retVal;
+  }
 
-    Boolean hasSmartScopes() {
-        return (scopesList!=null) && (scopesList.size()>0);
+  /**
+   * Splits <code>specificity/Resource.permissions</code> with one scan for the
+   * separators, then validates each part in place.
+   */
+  static SmartScope tokenize(String theScope) {
+    int slash = -1;
+    int dot = -1;
+    int length = theScope.length();
+    for (int i = 0; i < length && dot == -1; i++) {
+      char c = theScope.charAt(i);
+      if (c == '/' && slash == -1) {
+        slash = i;
+      } else if (c == '.' && slash != -1) {
+        dot = i;
+      }
+    }
+    if (slash <= 0 || dot == -1 || dot == slash + 1 || dot == length - 1) {
+      return NOT_A_SMART_SCOPE;
     }
 
-    Iterator<SmartScope> getSmartScopes(){
-        return scopesList.iterator();
+    SmartScope.Specificity specificity = null;
+    for (SmartScope.Specificity next : SPECIFICITIES) {
+      String prefix = next.getPrefix();
+      if (prefix.length() == slash && theScope.startsWith(prefix)) {
+        specificity = next;
+        break;
+      }
     }
-}
+    if (specificity == null || !isResourceType(theScope, slash + 1, dot)) {
+      return NOT_A_SMART_SCOPE;
+    }
+
+    int permissions = parsePermissions(theScope, dot + 1);
+    if (permissions == 0) {
+      return NOT_A_SMART_SCOPE;
+    }
+
+    String resource = theScope.substring(slash + 1, dot).intern();
+    return new SmartScope(theScope.intern(), specificity, resource, permissions);
+  }
+
+  private static boolean isResourceType(String theScope, int theStart, int theEnd) {
+    if (theEnd - theStart == 1 && theScope.charAt(theStart) == '*') {
+      return true;
+    }
+    for (int i = theStart; i < theEnd; i++) {
+      if (!Character.isLetterOrDigit(theScope.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
 
+  /**
+   * Returns the permission bit mask for a v1 (<code>read</code>, <code>write</code>,
+   * <code>*</code>) or v2 (ordered subset of <code>cruds</code>) suffix, or 0 if the
+   * suffix is not recognised.
+   */
+  static int parsePermissions(String theScope, int theStart) {
+    int length = theScope.length() - theStart;
+    if (length == 1 && theScope.charAt(theStart) == '*') {
+      return SmartScope.V1_READ | SmartScope.V1_WRITE;
+    }
+    if (length == 4 && theScope.startsWith("read", theStart)) {
+      return SmartScope.V1_READ;
+    }
+    if (length == 5 && theScope.startsWith("write", theStart)) {
+      return SmartScope.V1_WRITE;
+    }
 
+    // v2 permissions must appear at most once each, in c-r-u-d-s order
+    int retVal = 0;
+    int next = 0;
+    for (int i = theStart; i < theScope.length(); i++) {
+      char c = theScope.charAt(i);
+      while (next < PERMISSIONS.length && PERMISSIONS[next].getCode() != c) {
+        next++;
+      }
+      if (next == PERMISSIONS.length) {
+        return 0;
+      }
+      retVal |= PERMISSIONS[next].getMask();
+      next++;
+    }
+    return retVal;
+  }
+}
@@ -0,0 +1,334 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An in-memory cache of the first page of recent searches, in front of the
+ * searches the JPA server stores in the database. Clients that repeat the same
+ * search every few seconds, such as dashboards, get the cached page without a
+ * query; the next links of the page still page through the stored search.
+ * <p>
+ * Entries are keyed by the search with its parameters sorted, the response
+ * variant (encoding, pretty printing, narrative, server base and gzip) and the
+ * authorization context of the client: its scopes and patient. A hit is
+ * written before the request is authorized, which is safe because the entry
+ * was produced for a request with the same search and context, and the rules
+ * are built from the context alone. Requests whose context can not be
+ * determined and browser requests, which the response highlighter renders,
+ * are not cached.
+ * <p>
+ * Entries expire after a time to live and are bounded by the total size of
+ * the encoded pages. Creating, updating, deleting or expunging a resource
+ * drops the entries that depend on its type: the searched type, the types of
+ * the entries of the page and included types. Searches with chains,
+ * <code>_has</code> or wildcard includes depend on every type. Hits, misses
+ * and size are published as the <code>cache.gets</code> and
+ * <code>cache.size</code> meters with <code>cache=fhir.search</code>.
+ */
+@Interceptor
+public class SearchCacheInterceptor {
+
+  static final String CACHE_NAME = "fhir.search";
+
+  /**
+   * Runs after the other hooks on the processed request, such as the request
+   * metrics, as returning false skips the hooks after it
+   */
+  private static final int INCOMING_HOOK_ORDER = 1000;
+  /**
+   * Returning false from the outgoing response hook skips the hooks after it,
+   * so this one must run after all of them, including the authorization checks
+   */
+  private static final int OUTGOING_HOOK_ORDER = Integer.MAX_VALUE;
+  private static final String ATTRIBUTE_KEY = SearchCacheInterceptor.class.getName() + "_KEY";
+  private static final String ATTRIBUTE_SEQUENCE = SearchCacheInterceptor.class.getName() + "_SEQUENCE";
+  private static final String ALL_TYPES = "*";
+  /**
+   * Approximate memory used by an entry besides the encoded bytes
+   */
+  private static final int ENTRY_OVERHEAD = 512;
+
+  private final FhirContext myFhirContext;
+  private final Function<RequestDetails, String> myAuthorizationContext;
+  private final Cache<String, Entry> myCache;
+  private final AtomicLong myWriteSequence = new AtomicLong();
+  private final Map<String, Long> myLastWrites = new ConcurrentHashMap<>();
+  private final Counter myHits;
+  private final Counter myMisses;
+
+  /**
+   * @param theAuthorizationContext returns the authorization context of a
+   *                                request, or null if its responses must not
+   *                                be cached
+   */
+  public SearchCacheInterceptor(FhirContext theFhirContext, long theMaximumBytes, long theTimeToLiveSeconds,
+                                Function<RequestDetails, String> theAuthorizationContext, MeterRegistry theMeterRegistry) {
+    myFhirContext = theFhirContext;
+    myAuthorizationContext = theAuthorizationContext;
+    myCache = Caffeine.newBuilder()
+      .maximumWeight(theMaximumBytes)
+      .weigher((String key, Entry entry) -> entry.getWeight())
+      .expireAfterWrite(theTimeToLiveSeconds, TimeUnit.SECONDS)
+      .build();
+    myHits = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "hit").register(theMeterRegistry);
+    myMisses = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "miss").register(theMeterRegistry);
+    Gauge.builder("cache.size", myCache, Cache::estimatedSize).tag("cache", CACHE_NAME).register(theMeterRegistry);
+  }
+
+  @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = INCOMING_HOOK_ORDER)
+  public boolean incomingRequest(RequestDetails theRequestDetails) throws IOException {
+    if (theRequestDetails.getRequestType() != RequestTypeEnum.GET
+      || !(theRequestDetails instanceof ServletRequestDetails)
+      || theRequestDetails.getId() != null
+      || theRequestDetails.getOperation() != null
+      || theRequestDetails.getCompartmentName() != null
+      || theRequestDetails.getParameters().containsKey(Constants.PARAM_PAGINGACTION)
+      || !isResourceType(theRequestDetails.getResourceName())
+      || isHtmlRequest(theRequestDetails)) {
+      return true;
+    }
+    String authorizationContext = myAuthorizationContext.apply(theRequestDetails);
+    if (authorizationContext == null) {
+      return true;
+    }
+
+    RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+    String key = key(theRequestDetails, encoding, authorizationContext);
+    Entry entry = myCache.getIfPresent(key);
+    if (entry == null) {
+      myMisses.increment();
+      theRequestDetails.setAttribute(ATTRIBUTE_KEY, key);
+      theRequestDetails.setAttribute(ATTRIBUTE_SEQUENCE, myWriteSequence.get());
+      return true;
+    }
+
+    myHits.increment();
+    ResponseCacheInterceptor.writeResponse((ServletRequestDetails) theRequestDetails, encoding, null, entry.myLastUpdated, entry.myBody);
+    return false;
+  }
+
+  @Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = OUTGOING_HOOK_ORDER)
+  public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) throws IOException {
+    String key = (String) theRequestDetails.getAttribute(ATTRIBUTE_KEY);
+    IBaseResource resource = theResponseDetails.getResponseResource();
+    if (key == null
+      || theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE
+      || theResponseDetails.getResponseCode() != Constants.STATUS_HTTP_200_OK
+      || !(resource instanceof IBaseBundle)) {
+      return true;
+    }
+
+    RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+    byte[] body = ResponseCacheInterceptor.encode(myFhirContext, theRequestDetails, resource);
+    IPrimitiveType<Date> lastUpdated = RestfulServerUtils.extractLastUpdatedFromResource(resource);
+    Entry entry = new Entry(body, lastUpdated != null ? lastUpdated.getValue() : null, dependentTypes(theRequestDetails, (IBaseBundle) resource));
+
+    // A write between the search and here may have been missed by the search,
+    // and one during the put may have invalidated before the entry was added
+    long sequence = (Long) theRequestDetails.getAttribute(ATTRIBUTE_SEQUENCE);
+    if (!isWrittenSince(entry, sequence)) {
+      myCache.put(key, entry);
+      if (isWrittenSince(entry, sequence)) {
+        myCache.asMap().remove(key, entry);
+      }
+    }
+
+    ResponseCacheInterceptor.writeResponse((ServletRequestDetails) theRequestDetails, encoding, null, entry.myLastUpdated, body);
+    return false;
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    written(myFhirContext.getResourceDefinition(theResource).getName());
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    written(myFhirContext.getResourceDefinition(theNewResource).getName());
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    written(myFhirContext.getResourceDefinition(theResource).getName());
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE)
+  public void expungeResource(IIdType theId) {
+    written(theId != null && theId.hasResourceType() ? theId.getResourceType() : ALL_TYPES);
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_EVERYTHING)
+  public void expungeEverything() {
+    written(ALL_TYPES);
+  }
+
+  long size() {
+    return myCache.estimatedSize();
+  }
+
+  /**
+   * Drops the entries that depend on a type, now and again once the
+   * transaction of the write completes, as searches running until then may
+   * still see the data from before it
+   */
+  private void written(String theResourceType) {
+    invalidate(theResourceType);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int theStatus) {
+          invalidate(theResourceType);
+        }
+      });
+    }
+  }
+
+  /**
+   * Drops the entries that depend on a type, or every entry if the type is
+   * null, such as after a write by another server
+   */
+  public void invalidate(String theResourceType) {
+    String resourceType = theResourceType != null ? theResourceType : ALL_TYPES;
+    myLastWrites.put(resourceType, myWriteSequence.incrementAndGet());
+    if (resourceType.equals(ALL_TYPES)) {
+      myCache.invalidateAll();
+    } else {
+      myCache.asMap().values().removeIf(t -> t.dependsOn(resourceType));
+    }
+  }
+
+  private boolean isWrittenSince(Entry theEntry, long theSequence) {
+    for (Map.Entry<String, Long> next : myLastWrites.entrySet()) {
+      if (next.getValue() > theSequence && (next.getKey().equals(ALL_TYPES) || theEntry.dependsOn(next.getKey()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Browser requests are rendered by the response highlighter, after this
+   * interceptor would have written a hit
+   */
+  private static boolean isHtmlRequest(RequestDetails theRequestDetails) {
+    String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+    if (format != null && Arrays.stream(format).anyMatch(t -> t.contains("html"))) {
+      return true;
+    }
+    String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+    return accept != null && accept.contains(Constants.CT_HTML);
+  }
+
+  private boolean isResourceType(String theResourceName) {
+    if (theResourceName == null) {
+      return false;
+    }
+    try {
+      myFhirContext.getResourceDefinition(theResourceName);
+      return true;
+    } catch (DataFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The types whose writes can change the first page of a search
+   */
+  private Set<String> dependentTypes(RequestDetails theRequestDetails, IBaseBundle theBundle) {
+    Set<String> retVal = new HashSet<>();
+    retVal.add(theRequestDetails.getResourceName());
+    for (IBaseResource next : BundleUtil.toListOfResources(myFhirContext, theBundle)) {
+      retVal.add(myFhirContext.getResourceDefinition(next).getName());
+    }
+    for (Map.Entry<String, String[]> next : theRequestDetails.getParameters().entrySet()) {
+      String name = next.getKey();
+      if (name.startsWith(Constants.PARAM_REVINCLUDE)) {
+        for (String value : next.getValue()) {
+          retVal.add(value.split(":")[0]);
+        }
+      } else if (name.startsWith(Constants.PARAM_INCLUDE)) {
+        for (String value : next.getValue()) {
+          String[] parts = value.split(":");
+          retVal.add(parts.length == 3 ? parts[2] : ALL_TYPES);
+        }
+      } else if (name.contains(".") || name.startsWith(Constants.PARAM_HAS)) {
+        retVal.add(ALL_TYPES);
+      }
+    }
+    return retVal;
+  }
+
+  private static String key(RequestDetails theRequestDetails, RestfulServerUtils.ResponseEncoding theEncoding, String theAuthorizationContext) {
+    StringBuilder retVal = new StringBuilder(theRequestDetails.getResourceName()).append('?');
+    for (Map.Entry<String, String[]> next : new TreeMap<>(theRequestDetails.getParameters()).entrySet()) {
+      String[] values = next.getValue().clone();
+      Arrays.sort(values);
+      retVal.append(next.getKey()).append('=').append(Arrays.toString(values)).append('&');
+    }
+    return retVal
+      .append('|').append(theEncoding.getEncoding())
+      .append('|').append(RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails))
+      .append('|').append(NarrativeInterceptor.isNarrativeRequested(theRequestDetails))
+      .append('|').append(theRequestDetails.getFhirServerBase())
+      .append('|').append(theRequestDetails.isRespondGzip())
+      .append('|').append(theAuthorizationContext)
+      .toString();
+  }
+
+  private static class Entry {
+
+    private final byte[] myBody;
+    private final Date myLastUpdated;
+    private final Set<String> myTypes;
+
+    Entry(byte[] theBody, Date theLastUpdated, Set<String> theTypes) {
+      myBody = theBody;
+      myLastUpdated = theLastUpdated;
+      myTypes = Collections.unmodifiableSet(theTypes);
+    }
+
+    boolean dependsOn(String theResourceType) {
+      return myTypes.contains(theResourceType) || myTypes.contains(ALL_TYPES);
+    }
+
+    int getWeight() {
+      return (int) Math.min((long) myBody.length + ENTRY_OVERHEAD, Integer.MAX_VALUE);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.JCacheMetrics;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cfg.AvailableSettings;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Hibernate second-level cache, kept in process by Caffeine through its
+ * JCache provider. It is switched on with
+ * <code>hibernate.cache.use_second_level_cache=true</code>.
+ * <p>
+ * Only the entities listed in <code>jpa.cache.regions</code> are cached, each
+ * in its own region named after the entity class and bounded by its own
+ * <code>jpa.cache.&lt;region&gt;.max_entries</code> and
+ * <code>jpa.cache.&lt;region&gt;.ttl_seconds</code>. The regions are created
+ * here rather than by Hibernate so that none of them is unbounded, and their
+ * hits, misses and evictions are published as <code>cache.*</code> meters
+ * tagged with the region name.
+ */
+public class SecondLevelCache implements AutoCloseable {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SecondLevelCache.class);
+
+  /**
+   * Package of the HAPI JPA entities, used for region names that are not fully qualified
+   */
+  static final String ENTITY_PACKAGE = "ca.uhn.fhir.jpa.model.entity.";
+
+  /**
+   * Hibernate's JPA bootstrap setting for caching an entity that is not annotated as cacheable
+   */
+  private static final String CLASS_CACHE_PREFIX = "hibernate.ejb.classcache.";
+
+  private final CacheManager myCacheManager;
+
+  private SecondLevelCache(CacheManager theCacheManager) {
+    myCacheManager = theCacheManager;
+  }
+
+  /**
+   * Creates the configured cache regions, or a disabled cache if the second-level cache is switched off
+   */
+  public static SecondLevelCache create(MeterRegistry theMeterRegistry) {
+    if (!HapiProperties.getSecondLevelCacheEnabled()) {
+      return new SecondLevelCache(null);
+    }
+
+    CacheManager cacheManager = new CaffeineCachingProvider().getCacheManager();
+    for (String next : HapiProperties.getSecondLevelCacheRegions()) {
+      long maxEntries = HapiProperties.getSecondLevelCacheMaxEntries(next);
+      long ttlSeconds = HapiProperties.getSecondLevelCacheTtlSeconds(next);
+
+      CaffeineConfiguration<Object, Object> config = new CaffeineConfiguration<>();
+      config.setMaximumSize(OptionalLong.of(maxEntries));
+      if (ttlSeconds > 0) {
+        config.setExpireAfterWrite(OptionalLong.of(TimeUnit.SECONDS.toNanos(ttlSeconds)));
+      }
+      // Hibernate caches disassembled, immutable entries, so there is no need to copy them
+      config.setStoreByValue(false);
+      config.setStatisticsEnabled(true);
+
+      Cache<Object, Object> cache = cacheManager.createCache(next, config);
+      JCacheMetrics.monitor(theMeterRegistry, cache);
+      ourLog.info("Caching {} in the second-level cache, up to {} entries for {}s", next, maxEntries, ttlSeconds);
+    }
+    return new SecondLevelCache(cacheManager);
+  }
+
+  public boolean isEnabled() {
+    return myCacheManager != null;
+  }
+
+  CacheManager getCacheManager() {
+    return myCacheManager;
+  }
+
+  /**
+   * Adds the region factory and the cached entities to the JPA properties. Does nothing if the cache is disabled.
+   *
+   * @return the given properties
+   */
+  public Properties apply(Properties theJpaProperties) {
+    if (myCacheManager == null) {
+      return theJpaProperties;
+    }
+
+    theJpaProperties.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, "true");
+    theJpaProperties.put(AvailableSettings.CACHE_REGION_FACTORY, ConfigSettings.SIMPLE_FACTORY_NAME);
+    theJpaProperties.put(ConfigSettings.CACHE_MANAGER, myCacheManager);
+    for (String next : HapiProperties.getSecondLevelCacheRegions()) {
+      // Region names are simple entity class names unless given fully qualified
+      String entityClass = next.contains(".") ? next : ENTITY_PACKAGE + next;
+      theJpaProperties.put(CLASS_CACHE_PREFIX + entityClass, "read-write," + next);
+    }
+    return theJpaProperties;
+  }
+
+  @Override
+  public void close() {
+    if (myCacheManager != null) {
+      myCacheManager.close();
+    }
+  }
+}
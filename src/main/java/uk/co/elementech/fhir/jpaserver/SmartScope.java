@@ -1,54 +1,119 @@
 package uk.co.elementech.fhir.jpaserver;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+/**
+ * An immutable, parsed SMART on FHIR resource scope such as
+ * <code>patient/Observation.read</code> or <code>user/*.rs</code>.
+ * <p>
+ * Instances are created by {@link ScopeParser} and shared between tokens, so
+ * the same scope string always yields the same instance.
+ */
+public final class SmartScope {
 
-public class SmartScope {
-	
-    private String specificity;
-    private String resource;
-    private String operation;
+  public enum Specificity {
+    PATIENT("patient"),
+    USER("user"),
+    SYSTEM("system");
 
-    private Pattern pattern = Pattern.compile("^(patient|user)/([^.]+)\\.(.+)$");
+    private final String myPrefix;
 
-    private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(OIDCAuthorizationInterceptor.class);
-
-    void ScopeParser(){
+    Specificity(String thePrefix) {
+      myPrefix = thePrefix;
     }
 
-    Boolean matchSmartScope(String scope){
-        Matcher m = pattern.matcher(scope);
-        if (m.find()) {
-            specificity = m.group(1);
-            resource = m.group(2);
-            operation = m.group(3);
-            return true;
-        }
-        return false;
+    public String getPrefix() {
+      return myPrefix;
     }
+  }
 
-    public Boolean isPatient(){
-        return specificity.equals("patient");
-    }
+  /**
+   * SMART v2 permissions, in the order they must appear in a scope suffix
+   */
+  public enum Permission {
+    CREATE('c'),
+    READ('r'),
+    UPDATE('u'),
+    DELETE('d'),
+    SEARCH('s');
 
-    public Boolean isUser(){
-        return specificity.equals("user");
-    }
+    private final char myCode;
+    private final int myMask;
 
-    public Boolean canRead(){
-        ourLog.info("Checking can read from operation '" + operation + "'");
-        return ((operation.equals("read")) || (operation.equals("*")));
+    Permission(char theCode) {
+      myCode = theCode;
+      myMask = 1 << ordinal();
     }
 
-    public Boolean canWrite(){
-        return ((operation.equals("write")) || (operation.equals("*")));
+    public char getCode() {
+      return myCode;
     }
 
-    public Boolean allResourceS(){
-        return resource.equals("*");
+    int getMask() {
+      return myMask;
     }
+  }
 
-    public String getResource(){
-        return resource;
-    }
+  static final int V1_READ = Permission.READ.getMask() | Permission.SEARCH.getMask();
+  static final int V1_WRITE = Permission.CREATE.getMask() | Permission.UPDATE.getMask();
+
+  private final String myScope;
+  private final Specificity mySpecificity;
+  private final String myResource;
+  private final int myPermissions;
+
+  SmartScope(String theScope, Specificity theSpecificity, String theResource, int thePermissions) {
+    myScope = theScope;
+    mySpecificity = theSpecificity;
+    myResource = theResource;
+    myPermissions = thePermissions;
+  }
+
+  public Specificity getSpecificity() {
+    return mySpecificity;
+  }
+
+  public boolean isPatient() {
+    return mySpecificity == Specificity.PATIENT;
+  }
+
+  public boolean isUser() {
+    return mySpecificity == Specificity.USER;
+  }
+
+  public boolean isSystem() {
+    return mySpecificity == Specificity.SYSTEM;
+  }
+
+  public boolean has(Permission thePermission) {
+    return (myPermissions & thePermission.getMask()) != 0;
+  }
+
+  /**
+   * True if the scope allows reading or searching (v1 <code>read</code>, v2 <code>r</code> or <code>s</code>)
+   */
+  public boolean canRead() {
+    return (myPermissions & V1_READ) != 0;
+  }
+
+  /**
+   * True if the scope allows any kind of modification (v1 <code>write</code>, v2 <code>c</code>, <code>u</code> or <code>d</code>)
+   */
+  public boolean canWrite() {
+    return (myPermissions & (V1_WRITE | Permission.DELETE.getMask())) != 0;
+  }
+
+  public boolean allResources() {
+    return "*".equals(myResource);
+  }
+
+  /**
+   * The resource type, or <code>*</code> for all resources. The returned string is interned.
+   */
+  public String getResource() {
+    return myResource;
+  }
+
+  @Override
+  public String toString() {
+    return myScope;
+  }
 }
@@ -0,0 +1,141 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Wrapper;
+
+/**
+ * Adds up the time the current thread spends executing JDBC statements, so
+ * that {@link RequestMetricsInterceptor} can report the database time of each
+ * request.
+ * <p>
+ * Only threads that have called {@link #startRecording()} are timed; on all
+ * others the wrappers just pass calls through. The time measured is that of the
+ * <code>execute*</code> calls, which includes the round trip to the database
+ * but not reading the rows of large result sets.
+ */
+public class StatementTimingDataSource extends DelegatingDataSource implements AutoCloseable {
+
+  private static final ThreadLocal<long[]> ourStatementNanos = new ThreadLocal<>();
+
+  public StatementTimingDataSource(DataSource theTargetDataSource) {
+    super(theTargetDataSource);
+  }
+
+  /**
+   * Starts adding up statement time on the current thread
+   */
+  public static void startRecording() {
+    ourStatementNanos.set(new long[1]);
+  }
+
+  /**
+   * Stops adding up statement time on the current thread
+   *
+   * @return the time spent executing statements since {@link #startRecording()}, or -1 if recording was not started
+   */
+  public static long stopRecording() {
+    long[] nanos = ourStatementNanos.get();
+    ourStatementNanos.remove();
+    return nanos != null ? nanos[0] : -1;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return wrap(super.getConnection());
+  }
+
+  @Override
+  public Connection getConnection(String theUsername, String thePassword) throws SQLException {
+    return wrap(super.getConnection(theUsername, thePassword));
+  }
+
+  private static Connection wrap(Connection theConnection) {
+    return (Connection) Proxy.newProxyInstance(
+      StatementTimingDataSource.class.getClassLoader(),
+      new Class<?>[]{Connection.class},
+      new ConnectionHandler(theConnection));
+  }
+
+  private static Object invoke(Object theProxy, Object theTarget, Method theMethod, Object[] theArgs) throws Throwable {
+    // Hibernate keeps open statements in hash maps, so a wrapper must be equal to itself
+    if (theMethod.getName().equals("equals") && theMethod.getParameterCount() == 1) {
+      return theProxy == theArgs[0];
+    }
+    if (theMethod.getName().equals("hashCode") && theMethod.getParameterCount() == 0) {
+      return System.identityHashCode(theProxy);
+    }
+    // The wrapper only implements the JDBC interface, so vendor interfaces are unwrapped from the target
+    if (theMethod.getName().equals("unwrap") && theMethod.getParameterCount() == 1) {
+      Class<?> iface = (Class<?>) theArgs[0];
+      return iface.isInstance(theProxy) ? theProxy : ((Wrapper) theTarget).unwrap(iface);
+    }
+    if (theMethod.getName().equals("isWrapperFor") && theMethod.getParameterCount() == 1) {
+      Class<?> iface = (Class<?>) theArgs[0];
+      return iface.isInstance(theProxy) || ((Wrapper) theTarget).isWrapperFor(iface);
+    }
+    try {
+      return theMethod.invoke(theTarget, theArgs);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Override
+  public void close() throws Exception {
+    if (getTargetDataSource() instanceof AutoCloseable) {
+      ((AutoCloseable) getTargetDataSource()).close();
+    }
+  }
+
+  private static class ConnectionHandler implements InvocationHandler {
+    private final Connection myTarget;
+
+    ConnectionHandler(Connection theTarget) {
+      myTarget = theTarget;
+    }
+
+    @Override
+    public Object invoke(Object theProxy, Method theMethod, Object[] theArgs) throws Throwable {
+      Object retVal = StatementTimingDataSource.invoke(theProxy, myTarget, theMethod, theArgs);
+      if (retVal instanceof Statement && Statement.class.isAssignableFrom(theMethod.getReturnType())) {
+        // Statement, PreparedStatement or CallableStatement, as declared by the method
+        return Proxy.newProxyInstance(
+          StatementTimingDataSource.class.getClassLoader(),
+          new Class<?>[]{theMethod.getReturnType()},
+          new StatementHandler(retVal));
+      }
+      return retVal;
+    }
+  }
+
+  private static class StatementHandler implements InvocationHandler {
+    private final Object myTarget;
+
+    StatementHandler(Object theTarget) {
+      myTarget = theTarget;
+    }
+
+    @Override
+    public Object invoke(Object theProxy, Method theMethod, Object[] theArgs) throws Throwable {
+      long[] nanos = ourStatementNanos.get();
+      if (nanos == null || !theMethod.getName().startsWith("execute")) {
+        return StatementTimingDataSource.invoke(theProxy, myTarget, theMethod, theArgs);
+      }
+      long start = System.nanoTime();
+      try {
+        return StatementTimingDataSource.invoke(theProxy, myTarget, theMethod, theArgs);
+      } finally {
+        nanos[0] += System.nanoTime() - start;
+      }
+    }
+  }
+}
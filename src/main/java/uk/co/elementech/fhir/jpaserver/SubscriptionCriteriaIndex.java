@@ -0,0 +1,390 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.UrlUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * An inverted index over the criteria of the active subscriptions, which
+ * finds the few subscriptions a written resource can match without
+ * evaluating the criteria of every one.
+ * <p>
+ * Subscriptions are indexed by the resource type of their criteria and, if
+ * the criteria have one, by the values of their first token or reference
+ * parameter without a modifier, such as <code>code=http://loinc.org|1234</code>
+ * or <code>subject=Patient/1</code>. A resource is a candidate for the
+ * subscriptions of its type that are indexed by one of its own values for the
+ * parameter, or that have no indexed parameter. The index only rules out
+ * subscriptions that can not match: values are compared case-insensitively,
+ * and if the values of a parameter can not be read from a resource, every
+ * subscription indexed by that parameter is a candidate. Candidates are then
+ * matched as usual.
+ * <p>
+ * Lookups read an immutable snapshot and take no lock, and neither does
+ * putting a subscription whose criteria are unchanged, which is what the
+ * matcher does for every subscription on every write. Changes to the
+ * subscriptions are collected and applied to a new snapshot on the next
+ * lookup.
+ */
+public class SubscriptionCriteriaIndex {
+
+  private static final String ID_PARAM = "_id";
+  /**
+   * Reference paths restricted to a target type, which the index reads without the restriction
+   */
+  private static final Pattern RESOLVE_IS = Pattern.compile("\\.where\\(\\s*resolve\\(\\)\\s+is\\s+[A-Za-z]+\\s*\\)");
+
+  private final FhirContext myFhirContext;
+  private final IFhirPath myFhirPath;
+  /**
+   * Read without the lock, changed holding it
+   */
+  private final Map<String, Criteria> myCriteria = new ConcurrentHashMap<>();
+  private volatile boolean myDirty;
+  private volatile Snapshot mySnapshot = new Snapshot(Collections.emptyMap());
+
+  public SubscriptionCriteriaIndex(FhirContext theFhirContext) {
+    myFhirContext = theFhirContext;
+    // FHIRPath is not available for DSTU2, where only the resource type is indexed
+    myFhirPath = theFhirContext.getVersion().getVersion().isEqualOrNewerThan(FhirVersionEnum.DSTU3) ? theFhirContext.newFhirPath() : null;
+  }
+
+  /**
+   * Adds a subscription or changes its criteria
+   *
+   * @return true if the subscription was not indexed with these criteria
+   */
+  public boolean put(String theId, String theCriteria) {
+    if (isIndexed(theId, theCriteria)) {
+      return false;
+    }
+    synchronized (this) {
+      if (isIndexed(theId, theCriteria)) {
+        return false;
+      }
+      myCriteria.put(theId, parse(theCriteria));
+      myDirty = true;
+      return true;
+    }
+  }
+
+  private boolean isIndexed(String theId, String theCriteria) {
+    Criteria existing = myCriteria.get(theId);
+    return existing != null && existing.myCriteria.equals(theCriteria != null ? theCriteria : "");
+  }
+
+  /**
+   * Removes a subscription, e.g. once it has been deleted or deactivated
+   *
+   * @return true if the subscription was indexed
+   */
+  public synchronized boolean remove(String theId) {
+    if (myCriteria.remove(theId) == null) {
+      return false;
+    }
+    myDirty = true;
+    return true;
+  }
+
+  public int size() {
+    return myCriteria.size();
+  }
+
+  /**
+   * The ids of the subscriptions the resource can match
+   */
+  public Set<String> candidates(IBaseResource theResource) {
+    Snapshot snapshot = snapshot();
+    String resourceType = myFhirContext.getResourceDefinition(theResource).getName();
+    Set<String> retVal = new HashSet<>(snapshot.myAnyType);
+    TypeIndex typeIndex = snapshot.myTypes.get(resourceType);
+    if (typeIndex == null) {
+      return retVal;
+    }
+    retVal.addAll(typeIndex.myUnindexed);
+    for (Map.Entry<String, Map<String, Set<String>>> next : typeIndex.myParams.entrySet()) {
+      Set<String> values = values(theResource, resourceType, next.getKey());
+      if (values == null) {
+        next.getValue().values().forEach(retVal::addAll);
+        continue;
+      }
+      for (String value : values) {
+        Set<String> ids = next.getValue().get(value);
+        if (ids != null) {
+          retVal.addAll(ids);
+        }
+      }
+    }
+    return retVal;
+  }
+
+  private Snapshot snapshot() {
+    if (!myDirty) {
+      return mySnapshot;
+    }
+    synchronized (this) {
+      if (myDirty) {
+        mySnapshot = new Snapshot(myCriteria);
+        myDirty = false;
+      }
+      return mySnapshot;
+    }
+  }
+
+  /**
+   * Reads the resource type and the first indexable parameter of the criteria
+   */
+  Criteria parse(String theCriteria) {
+    Criteria retVal = new Criteria(theCriteria);
+    String criteria = theCriteria != null ? theCriteria.trim() : "";
+    int question = criteria.indexOf('?');
+    String resourceType = question == -1 ? criteria : criteria.substring(0, question);
+    RuntimeResourceDefinition definition;
+    try {
+      definition = myFhirContext.getResourceDefinition(resourceType);
+    } catch (DataFormatException | IllegalArgumentException e) {
+      return retVal;
+    }
+    retVal.myResourceType = definition.getName();
+    if (question == -1) {
+      return retVal;
+    }
+
+    for (String next : criteria.substring(question + 1).split("&")) {
+      int equals = next.indexOf('=');
+      if (equals == -1) {
+        continue;
+      }
+      String name = UrlUtil.unescape(next.substring(0, equals));
+      String value = UrlUtil.unescape(next.substring(equals + 1));
+      RestSearchParameterTypeEnum type = paramType(definition, name);
+      if (type == null || value.isEmpty() || value.contains("\\")) {
+        continue;
+      }
+      Set<String> values = new HashSet<>();
+      for (String nextValue : value.split(",")) {
+        values.add(type == RestSearchParameterTypeEnum.REFERENCE ? normalizeReference(nextValue) : nextValue.toLowerCase(Locale.ROOT));
+      }
+      retVal.myParam = name;
+      retVal.myValues = values;
+      return retVal;
+    }
+    return retVal;
+  }
+
+  /**
+   * The type of a parameter that is compared for equality, or null if the
+   * parameter can not be indexed
+   */
+  private RestSearchParameterTypeEnum paramType(RuntimeResourceDefinition theDefinition, String theName) {
+    if (theName.equals(ID_PARAM)) {
+      return RestSearchParameterTypeEnum.TOKEN;
+    }
+    if (myFhirPath == null || theName.startsWith("_") || theName.contains(":") || theName.contains(".")) {
+      return null;
+    }
+    RuntimeSearchParam searchParam = theDefinition.getSearchParam(theName);
+    if (searchParam == null || searchParam.getPath() == null) {
+      return null;
+    }
+    RestSearchParameterTypeEnum retVal = searchParam.getParamType();
+    return retVal == RestSearchParameterTypeEnum.TOKEN || retVal == RestSearchParameterTypeEnum.REFERENCE ? retVal : null;
+  }
+
+  /**
+   * The values of the resource for a parameter, in the forms a criteria
+   * value may take, or null if they can not be read
+   */
+  private Set<String> values(IBaseResource theResource, String theResourceType, String theParam) {
+    Set<String> retVal = new HashSet<>();
+    if (theParam.equals(ID_PARAM)) {
+      if (theResource.getIdElement().hasIdPart()) {
+        retVal.add(theResource.getIdElement().getIdPart().toLowerCase(Locale.ROOT));
+      }
+      return retVal;
+    }
+    RuntimeSearchParam searchParam = myFhirContext.getResourceDefinition(theResourceType).getSearchParam(theParam);
+    List<IBase> elements;
+    try {
+      elements = myFhirPath.evaluate(theResource, RESOLVE_IS.matcher(searchParam.getPath()).replaceAll(""), IBase.class);
+    } catch (RuntimeException e) {
+      return null;
+    }
+    for (IBase next : elements) {
+      if (!addValues(next, searchParam.getParamType(), retVal)) {
+        return null;
+      }
+    }
+    return retVal;
+  }
+
+  private boolean addValues(IBase theElement, RestSearchParameterTypeEnum theType, Set<String> theValues) {
+    if (theType == RestSearchParameterTypeEnum.REFERENCE) {
+      if (theElement instanceof IBaseReference) {
+        IIdType reference = ((IBaseReference) theElement).getReferenceElement();
+        if (reference != null && reference.hasIdPart()) {
+          theValues.add(normalizeReference(reference.getValue()));
+          theValues.add(reference.getIdPart().toLowerCase(Locale.ROOT));
+        }
+        return true;
+      }
+      if (theElement instanceof IPrimitiveType) {
+        String value = ((IPrimitiveType<?>) theElement).getValueAsString();
+        if (isNotBlank(value)) {
+          theValues.add(normalizeReference(value));
+        }
+        return true;
+      }
+      return false;
+    }
+
+    switch (theElement.fhirType()) {
+      case "CodeableConcept":
+        for (IBase next : myFhirPath.evaluate(theElement, "coding", IBase.class)) {
+          if (!addValues(next, theType, theValues)) {
+            return false;
+          }
+        }
+        return true;
+      case "Coding":
+        if (!(theElement instanceof IBaseCoding)) {
+          return false;
+        }
+        addToken(((IBaseCoding) theElement).getSystem(), ((IBaseCoding) theElement).getCode(), theValues);
+        return true;
+      case "Identifier":
+        addToken(primitive(theElement, "system"), primitive(theElement, "value"), theValues);
+        return true;
+      case "ContactPoint":
+        addToken(null, primitive(theElement, "value"), theValues);
+        return true;
+      default:
+        if (theElement instanceof IPrimitiveType) {
+          addToken(null, ((IPrimitiveType<?>) theElement).getValueAsString(), theValues);
+          return true;
+        }
+        return false;
+    }
+  }
+
+  private String primitive(IBase theElement, String theChild) {
+    return myFhirPath.evaluateFirst(theElement, theChild, IPrimitiveType.class)
+      .map(IPrimitiveType::getValueAsString)
+      .orElse(null);
+  }
+
+  /**
+   * Adds a token in each form a criteria value may take: <code>code</code>,
+   * <code>system|code</code>, <code>|code</code> and <code>system|</code>
+   */
+  private static void addToken(String theSystem, String theCode, Set<String> theValues) {
+    String system = theSystem != null ? theSystem.toLowerCase(Locale.ROOT) : "";
+    String code = theCode != null ? theCode.toLowerCase(Locale.ROOT) : "";
+    if (!code.isEmpty()) {
+      theValues.add(code);
+      theValues.add(system + "|" + code);
+    }
+    if (!system.isEmpty()) {
+      theValues.add(system + "|");
+    }
+  }
+
+  /**
+   * <code>Type/id</code> for a relative or absolute reference, without a
+   * version, or the id alone
+   */
+  static String normalizeReference(String theReference) {
+    String reference = theReference.trim();
+    int history = reference.indexOf("/" + Constants.PARAM_HISTORY + "/");
+    if (history != -1) {
+      reference = reference.substring(0, history);
+    }
+    String[] parts = reference.split("/");
+    if (parts.length >= 2) {
+      reference = parts[parts.length - 2] + "/" + parts[parts.length - 1];
+    }
+    return reference.toLowerCase(Locale.ROOT);
+  }
+
+  static class Criteria {
+
+    private final String myCriteria;
+    /**
+     * Null if the criteria are not for a single known resource type
+     */
+    private String myResourceType;
+    private String myParam;
+    private Set<String> myValues;
+
+    private Criteria(String theCriteria) {
+      myCriteria = theCriteria != null ? theCriteria : "";
+    }
+
+    String getResourceType() {
+      return myResourceType;
+    }
+
+    String getParam() {
+      return myParam;
+    }
+
+    Set<String> getValues() {
+      return myValues;
+    }
+  }
+
+  private static class TypeIndex {
+
+    private final Set<String> myUnindexed = new HashSet<>();
+    private final Map<String, Map<String, Set<String>>> myParams = new HashMap<>();
+  }
+
+  private static class Snapshot {
+
+    private final Set<String> myAnyType = new HashSet<>();
+    private final Map<String, TypeIndex> myTypes = new HashMap<>();
+
+    private Snapshot(Map<String, Criteria> theCriteria) {
+      for (Map.Entry<String, Criteria> next : theCriteria.entrySet()) {
+        Criteria criteria = next.getValue();
+        if (criteria.myResourceType == null) {
+          myAnyType.add(next.getKey());
+          continue;
+        }
+        TypeIndex typeIndex = myTypes.computeIfAbsent(criteria.myResourceType, t -> new TypeIndex());
+        if (criteria.myParam == null) {
+          typeIndex.myUnindexed.add(next.getKey());
+          continue;
+        }
+        Map<String, Set<String>> values = typeIndex.myParams.computeIfAbsent(criteria.myParam, t -> new HashMap<>());
+        for (String value : criteria.myValues) {
+          values.computeIfAbsent(value, t -> new HashSet<>()).add(next.getKey());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.subscription.match.matcher.matching.CompositeInMemoryDaoSubscriptionMatcher;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Puts an {@link IndexedSubscriptionMatcher} in front of the subscription
+ * matcher of the HAPI subscription processor, when
+ * <code>subscription.matching.indexed</code> is enabled, and registers it
+ * with the interceptor service so that it hears of Subscription changes
+ */
+@Configuration
+public class SubscriptionMatchingConfig {
+
+  /**
+   * Static, as a post-processor is created before the other beans
+   */
+  @Bean
+  public static BeanPostProcessor indexedSubscriptionMatcherPostProcessor(BeanFactory theBeanFactory) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object theBean, String theBeanName) {
+        if (theBean instanceof CompositeInMemoryDaoSubscriptionMatcher) {
+          IndexedSubscriptionMatcher retVal = new IndexedSubscriptionMatcher((CompositeInMemoryDaoSubscriptionMatcher) theBean,
+            theBeanFactory.getBean(FhirContext.class), theBeanFactory.getBean(MeterRegistry.class));
+          theBeanFactory.getBean(IInterceptorService.class).registerInterceptor(retVal);
+          return retVal;
+        }
+        return theBean;
+      }
+    };
+  }
+}
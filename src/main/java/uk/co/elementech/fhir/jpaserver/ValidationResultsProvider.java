@@ -0,0 +1,57 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.util.ParametersUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.Date;
+
+/**
+ * The <code>$validation-results</code> operation, which takes the outcomes
+ * of invalid requests out of the queue of {@link SampledValidationInterceptor}.
+ * Each <code>result</code> parameter has the <code>request</code>, the
+ * <code>time</code> it was validated and the <code>outcome</code>. Results are
+ * returned once, oldest first, up to <code>_count</code> at a time.
+ */
+public class ValidationResultsProvider {
+
+  static final String OPERATION_VALIDATION_RESULTS = "$validation-results";
+  private static final int DEFAULT_COUNT = 100;
+
+  private final FhirContext myFhirContext;
+  private final SampledValidationInterceptor myInterceptor;
+
+  public ValidationResultsProvider(FhirContext theFhirContext, SampledValidationInterceptor theInterceptor) {
+    myFhirContext = theFhirContext;
+    myInterceptor = theInterceptor;
+  }
+
+  @Operation(name = OPERATION_VALIDATION_RESULTS)
+  public IBaseParameters validationResults(
+    @OperationParam(name = "_count", min = 0, max = 1, typeName = "integer") IPrimitiveType<Integer> theCount
+  ) {
+    int count = theCount != null && theCount.getValue() != null ? theCount.getValue() : DEFAULT_COUNT;
+
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    for (SampledValidationInterceptor.Result next : myInterceptor.drainResults(count)) {
+      IBase parameter = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "result");
+      ParametersUtil.addPartString(myFhirContext, parameter, "request", next.getRequest());
+      if (next.getRequestId() != null) {
+        ParametersUtil.addPartString(myFhirContext, parameter, "requestId", next.getRequestId());
+      }
+      ParametersUtil.addPart(myFhirContext, parameter, "time", instant(next.getTime()));
+      ParametersUtil.addPartResource(myFhirContext, parameter, "outcome", next.getOperationOutcome());
+    }
+    return retVal;
+  }
+
+  private IPrimitiveType<?> instant(Date theDate) {
+    IPrimitiveType<?> retVal = (IPrimitiveType<?>) myFhirContext.getElementDefinition("instant").newInstance();
+    retVal.setValueAsString(theDate.toInstant().toString());
+    return retVal;
+  }
+}
@@ -0,0 +1,102 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of bearer tokens whose signature, issuer and time claims have
+ * already been verified by {@link OIDCAuthorizationInterceptor}.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the compact JWT so the raw token is
+ * never held as a map key. Each entry expires at the token's own {@code exp}
+ * claim, and the least recently used entries are evicted once the cache is full.
+ */
+public class VerifiedTokenCache {
+
+  private final Cache<String, VerifiedToken> myCache;
+
+  public VerifiedTokenCache(long theMaximumSize) {
+    myCache = Caffeine.newBuilder()
+      .maximumSize(theMaximumSize)
+      .expireAfter(new TokenExpiry())
+      .build();
+  }
+
+  /**
+   * Returns the previously verified token for the given compact serialization,
+   * or <code>null</code> if it has not been verified or has expired from the cache.
+   */
+  public VerifiedToken get(String theCompactToken) {
+    return myCache.getIfPresent(digest(theCompactToken));
+  }
+
+  /**
+   * Records a token that has passed all verification checks. Tokens without an
+   * expiration claim are never cached.
+   */
+  public void put(String theCompactToken, SignedJWT theToken, JWTClaimsSet theClaims) {
+    if (theClaims.getExpirationTime() == null) {
+      return;
+    }
+    myCache.put(digest(theCompactToken), new VerifiedToken(theToken, theClaims));
+  }
+
+  public long size() {
+    return myCache.estimatedSize();
+  }
+
+  public void invalidateAll() {
+    myCache.invalidateAll();
+  }
+
+  static String digest(String theCompactToken) {
+    return Hashing.sha256().hashString(theCompactToken, StandardCharsets.US_ASCII).toString();
+  }
+
+  public static class VerifiedToken {
+    private final SignedJWT myToken;
+    private final JWTClaimsSet myClaims;
+
+    VerifiedToken(SignedJWT theToken, JWTClaimsSet theClaims) {
+      myToken = theToken;
+      myClaims = theClaims;
+    }
+
+    public SignedJWT getToken() {
+      return myToken;
+    }
+
+    public JWTClaimsSet getClaims() {
+      return myClaims;
+    }
+  }
+
+  /**
+   * Expires each entry at the token's <code>exp</code> claim, independent of how
+   * often it is read.
+   */
+  private static class TokenExpiry implements Expiry<String, VerifiedToken> {
+    @Override
+    public long expireAfterCreate(String theKey, VerifiedToken theValue, long theCurrentTime) {
+      long remainingMillis = theValue.getClaims().getExpirationTime().getTime() - System.currentTimeMillis();
+      return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMillis));
+    }
+
+    @Override
+    public long expireAfterUpdate(String theKey, VerifiedToken theValue, long theCurrentTime, long theCurrentDuration) {
+      return expireAfterCreate(theKey, theValue, theCurrentTime);
+    }
+
+    @Override
+    public long expireAfterRead(String theKey, VerifiedToken theValue, long theCurrentTime, long theCurrentDuration) {
+      return theCurrentDuration;
+    }
+  }
+}
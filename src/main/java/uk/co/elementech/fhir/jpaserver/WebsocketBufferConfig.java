@@ -0,0 +1,42 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.WebSocketHandler;
+
+/**
+ * Puts a {@link BufferedWebSocketHandler} in front of the websocket handler of
+ * the HAPI websocket dispatcher, when <code>subscription.websocket.buffered</code>
+ * is enabled
+ */
+@Configuration
+public class WebsocketBufferConfig {
+
+  /**
+   * The name of the handler bean of <code>WebsocketDispatcherConfig</code>
+   */
+  private static final String HANDLER_BEAN_NAME = "subscriptionWebSocketHandler";
+
+  /**
+   * Static, as a post-processor is created before the other beans
+   */
+  @Bean
+  public static BeanPostProcessor bufferedWebSocketHandlerPostProcessor(BeanFactory theBeanFactory) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object theBean, String theBeanName) {
+        if (HANDLER_BEAN_NAME.equals(theBeanName) && theBean instanceof WebSocketHandler) {
+          WebsocketFanout fanout = new WebsocketFanout(
+            HapiProperties.getSubscriptionWebsocketBufferSize(),
+            HapiProperties.getSubscriptionWebsocketSlowConsumerPolicy(),
+            theBeanFactory.getBean(MeterRegistry.class));
+          return new BufferedWebSocketHandler((WebSocketHandler) theBean, fanout);
+        }
+        return theBean;
+      }
+    };
+  }
+}
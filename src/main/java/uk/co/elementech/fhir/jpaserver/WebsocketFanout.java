@@ -0,0 +1,229 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Bounded outbound buffers for websocket sessions, so that a slow client
+ * does not hold up the threads sending to the others.
+ * <p>
+ * Each session gets an {@link Outbox} holding up to the buffer size of
+ * messages. Sending only queues the message; the messages are written one at
+ * a time with the asynchronous send of the {@link Transport}, the next once
+ * the previous has been written. When the buffer of a session is full, the
+ * {@link SlowConsumerPolicy} decides what gives way. A session whose write
+ * fails is closed.
+ * <p>
+ * Open sessions are counted in the <code>fhir.websocket.sessions</code> gauge,
+ * queued messages in <code>fhir.websocket.queue</code>, messages in
+ * <code>fhir.websocket.messages</code>, tagged with the result (sent, dropped,
+ * coalesced or failed), and sessions closed for being too slow in
+ * <code>fhir.websocket.disconnects</code>.
+ */
+public class WebsocketFanout {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(WebsocketFanout.class);
+
+  static final String SESSIONS_METER = "fhir.websocket.sessions";
+  static final String QUEUE_METER = "fhir.websocket.queue";
+  static final String MESSAGES_METER = "fhir.websocket.messages";
+  static final String DISCONNECTS_METER = "fhir.websocket.disconnects";
+
+  private final int myBufferSize;
+  private final SlowConsumerPolicy myPolicy;
+  private final AtomicInteger mySessions = new AtomicInteger();
+  private final AtomicInteger myQueued = new AtomicInteger();
+  private final Counter mySent;
+  private final Counter myDropped;
+  private final Counter myCoalesced;
+  private final Counter myFailed;
+  private final Counter myDisconnects;
+
+  /**
+   * What to do with a message for a session whose buffer is full
+   */
+  public enum SlowConsumerPolicy {
+    /**
+     * Drop the oldest queued message
+     */
+    DROP_OLDEST,
+    /**
+     * Drop a message that is already queued, such as a repeated notification
+     * of a subscription, and otherwise the oldest queued message
+     */
+    COALESCE,
+    /**
+     * Close the session
+     */
+    DISCONNECT
+  }
+
+  /**
+   * Writes to one session
+   */
+  public interface Transport {
+
+    /**
+     * Starts writing a message, and calls back with null once it is written or
+     * with the failure. The callback may be called before this returns.
+     */
+    void sendAsync(String theMessage, Consumer<Throwable> theCallback);
+
+    void disconnect(String theReason);
+  }
+
+  public WebsocketFanout(int theBufferSize, SlowConsumerPolicy thePolicy, MeterRegistry theMeterRegistry) {
+    myBufferSize = theBufferSize;
+    myPolicy = thePolicy;
+    Gauge.builder(SESSIONS_METER, mySessions, AtomicInteger::get).register(theMeterRegistry);
+    Gauge.builder(QUEUE_METER, myQueued, AtomicInteger::get).register(theMeterRegistry);
+    mySent = Counter.builder(MESSAGES_METER).tag("result", "sent").register(theMeterRegistry);
+    myDropped = Counter.builder(MESSAGES_METER).tag("result", "dropped").register(theMeterRegistry);
+    myCoalesced = Counter.builder(MESSAGES_METER).tag("result", "coalesced").register(theMeterRegistry);
+    myFailed = Counter.builder(MESSAGES_METER).tag("result", "failed").register(theMeterRegistry);
+    myDisconnects = Counter.builder(DISCONNECTS_METER).register(theMeterRegistry);
+  }
+
+  /**
+   * Opens the buffer of a new session
+   */
+  public Outbox open(Transport theTransport) {
+    mySessions.incrementAndGet();
+    return new Outbox(theTransport);
+  }
+
+  public class Outbox {
+
+    private final Transport myTransport;
+    private final ArrayDeque<String> myBuffer = new ArrayDeque<>();
+    private boolean myClosed;
+    /**
+     * A message is being written, by the thread in {@link #sendNext()} or asynchronously
+     */
+    private boolean mySending;
+    private boolean myInSend;
+    private boolean myCompletedInSend;
+
+    private Outbox(Transport theTransport) {
+      myTransport = theTransport;
+    }
+
+    /**
+     * Queues a message, and starts writing it if nothing else is being written
+     */
+    public void send(String theMessage) {
+      boolean disconnect;
+      synchronized (this) {
+        if (myClosed) {
+          return;
+        }
+        if (myBuffer.size() >= myBufferSize) {
+          if (myPolicy == SlowConsumerPolicy.DISCONNECT) {
+            closeBuffer();
+            myDisconnects.increment();
+          } else if (myPolicy == SlowConsumerPolicy.COALESCE && myBuffer.contains(theMessage)) {
+            myCoalesced.increment();
+            return;
+          } else {
+            myBuffer.poll();
+            myQueued.decrementAndGet();
+            myDropped.increment();
+          }
+        }
+        disconnect = myClosed;
+        if (!disconnect) {
+          myBuffer.add(theMessage);
+          myQueued.incrementAndGet();
+          if (mySending) {
+            return;
+          }
+          mySending = true;
+        }
+      }
+      if (disconnect) {
+        ourLog.info("Closing a websocket session that fell {} messages behind", myBufferSize);
+        myTransport.disconnect("Too slow to receive messages");
+        return;
+      }
+      sendNext();
+    }
+
+    /**
+     * Writes the queued messages until one completes asynchronously, which
+     * continues with the next
+     */
+    private void sendNext() {
+      while (true) {
+        String next;
+        synchronized (this) {
+          next = myClosed ? null : myBuffer.poll();
+          if (next == null) {
+            mySending = false;
+            return;
+          }
+          myQueued.decrementAndGet();
+          myInSend = true;
+          myCompletedInSend = false;
+        }
+        try {
+          myTransport.sendAsync(next, this::sent);
+        } catch (RuntimeException e) {
+          sent(e);
+        }
+        synchronized (this) {
+          myInSend = false;
+          if (!myCompletedInSend) {
+            return;
+          }
+        }
+      }
+    }
+
+    private void sent(Throwable theFailure) {
+      if (theFailure != null) {
+        myFailed.increment();
+        synchronized (this) {
+          closeBuffer();
+          mySending = false;
+        }
+        ourLog.debug("Closing a websocket session that could not be written to: {}", theFailure.toString());
+        myTransport.disconnect("Write failed");
+        return;
+      }
+      mySent.increment();
+      synchronized (this) {
+        if (myInSend) {
+          // Written before sendAsync returned, so sendNext() carries on
+          myCompletedInSend = true;
+          return;
+        }
+      }
+      sendNext();
+    }
+
+    /**
+     * Drops the queued messages once the session is closed
+     */
+    public synchronized void close() {
+      closeBuffer();
+    }
+
+    private void closeBuffer() {
+      if (!myClosed) {
+        myClosed = true;
+        myQueued.addAndGet(-myBuffer.size());
+        myBuffer.clear();
+        mySessions.decrementAndGet();
+      }
+    }
+
+    synchronized int size() {
+      return myBuffer.size();
+    }
+  }
+}
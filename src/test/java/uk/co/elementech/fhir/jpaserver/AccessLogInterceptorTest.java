@@ -0,0 +1,205 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AccessLogInterceptorTest {
+
+  @Rule
+  public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testRingBufferDeliversEveryElementInOrder() throws Exception {
+    int producers = 4;
+    int perProducer = 20000;
+    RingBuffer<long[]> buffer = new RingBuffer<>(100);
+    assertEquals(128, buffer.capacity());
+
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      int producer = p;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          long[] element = {producer, i};
+          while (!buffer.offer(element)) {
+            Thread.yield();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    long[] expectedNext = new long[producers];
+    int received = 0;
+    while (received < producers * perProducer) {
+      long[] next = buffer.poll();
+      if (next == null) {
+        Thread.yield();
+        continue;
+      }
+      assertEquals("elements of one producer arrive in order", expectedNext[(int) next[0]], next[1]);
+      expectedNext[(int) next[0]]++;
+      received++;
+    }
+    for (Thread next : threads) {
+      next.join();
+    }
+    assertEquals(null, buffer.poll());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void testWritesJsonRecordToFile() throws Exception {
+    File file = myTemporaryFolder.newFile("access.log");
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    AccessLogInterceptor interceptor = new AccessLogInterceptor("test.access", file.toPath(), AccessLogInterceptor.Format.JSON,
+      AccessLogInterceptor.FullPolicy.BLOCK, 16, 4, meterRegistry);
+    interceptor.start();
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (int i = 0; i < 10; i++) {
+      ServletRequestDetails request = OIDCAuthorizationInterceptorTest.request(null);
+      request.setServletResponse(response(body));
+      request.setRequestType(RequestTypeEnum.GET);
+      request.setRequestPath("Patient/" + i);
+      request.setRestOperationType(RestOperationTypeEnum.READ);
+      request.setResourceName("Patient");
+
+      interceptor.incomingRequestPostProcessed(request);
+      request.getServletResponse().getWriter().write("café");
+      request.getServletResponse().getWriter().close();
+      interceptor.processingCompleted(request);
+    }
+    interceptor.close();
+
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    assertEquals(10, lines.size());
+    assertTrue(lines.get(3), lines.get(3).contains("\"method\":\"GET\",\"path\":\"Patient/3\",\"operationType\":\"read\",\"resourceType\":\"Patient\",\"status\":200,\"responseBytes\":5,"));
+    assertTrue(lines.get(3), lines.get(3).contains("\"remoteAddress\":\"127.0.0.1\""));
+    assertEquals(10.0, meterRegistry.get("accesslog.records").tag("outcome", "written").counter().count(), 0.0);
+  }
+
+  @Test
+  public void testWritesLoggerFormats() throws Exception {
+    File file = myTemporaryFolder.newFile("access.log");
+    AccessLogInterceptor interceptor = new AccessLogInterceptor("test.access", file.toPath(), AccessLogInterceptor.Format.PATTERN,
+      AccessLogInterceptor.FullPolicy.BLOCK, 16, 4, new SimpleMeterRegistry());
+    interceptor.setMessageFormat("Source[${remoteAddr}] Operation[${operationType} ${idOrResourceName}] Params[${requestParameters}] Other[${other}]");
+    interceptor.setErrorMessageFormat("ERROR - ${requestVerb} ${exceptionMessage}");
+    interceptor.start();
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (int i = 0; i < 2; i++) {
+      ServletRequestDetails request = OIDCAuthorizationInterceptorTest.request(null);
+      request.setServletResponse(response(body));
+      request.setRequestType(RequestTypeEnum.GET);
+      request.setRestOperationType(RestOperationTypeEnum.SEARCH_TYPE);
+      request.setResourceName("Patient");
+      Map<String, String[]> parameters = new LinkedHashMap<>();
+      parameters.put("name", new String[]{"smith", "jo nes"});
+      request.setParameters(parameters);
+
+      interceptor.incomingRequestPostProcessed(request);
+      if (i == 1) {
+        interceptor.handleException(request, new ResourceNotFoundException("Unknown search parameter"));
+      }
+      interceptor.processingCompleted(request);
+    }
+
+    // Failed requests are not logged without an error format
+    interceptor.setErrorMessageFormat(null);
+    ServletRequestDetails request = OIDCAuthorizationInterceptorTest.request(null);
+    request.setServletResponse(response(body));
+    interceptor.incomingRequestPostProcessed(request);
+    interceptor.handleException(request, new ResourceNotFoundException("Unknown"));
+    interceptor.processingCompleted(request);
+    interceptor.close();
+
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertEquals("Source[127.0.0.1] Operation[search-type Patient] Params[name=smith&name=jo%20nes] Other[!VAL!]", lines.get(0));
+    assertEquals("ERROR - GET Unknown search parameter", lines.get(1));
+  }
+
+  @Test
+  public void testDropsWhenFull() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // Not started, so nothing drains the buffer
+    AccessLogInterceptor interceptor = new AccessLogInterceptor("test.access", null, AccessLogInterceptor.Format.TEXT,
+      AccessLogInterceptor.FullPolicy.DROP, 2, 4, meterRegistry);
+
+    for (int i = 0; i < 5; i++) {
+      interceptor.enqueue(new AccessLogRecord(0, 0, null, null, "GET", "metadata", "metadata", null, null, 200, 0, null));
+    }
+
+    assertEquals(3.0, meterRegistry.get("accesslog.records").tag("outcome", "dropped").counter().count(), 0.0);
+    assertEquals(2.0, meterRegistry.get("accesslog.buffer.size").gauge().value(), 0.0);
+  }
+
+  @Test
+  public void testTextFormat() {
+    AccessLogRecord record = new AccessLogRecord(0, 12_345_678, "abc", "10.0.0.1", "POST", "Patient/$validate",
+      "extended-operation-type", "$validate", "Patient", 400, 321, "curl/7.68");
+    StringBuilder builder = new StringBuilder();
+    record.appendText(builder);
+    assertEquals("1970-01-01T00:00:00Z 10.0.0.1 \"POST /Patient/$validate\" 400 321 12.3ms extended-operation-type $validate Patient ua=\"curl/7.68\" id=abc", builder.toString());
+  }
+
+  static HttpServletResponse response(ByteArrayOutputStream theBody) {
+    AtomicInteger status = new AtomicInteger(200);
+    ServletOutputStream outputStream = new ServletOutputStream() {
+      @Override
+      public void write(int theByte) {
+        theBody.write(theByte);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener theWriteListener) {
+      }
+    };
+    return (HttpServletResponse) Proxy.newProxyInstance(
+      AccessLogInterceptorTest.class.getClassLoader(),
+      new Class<?>[]{HttpServletResponse.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getOutputStream":
+            return outputStream;
+          case "getCharacterEncoding":
+            return "UTF-8";
+          case "getStatus":
+            return status.get();
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+}
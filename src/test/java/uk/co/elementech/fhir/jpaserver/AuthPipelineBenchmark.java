@@ -0,0 +1,186 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.openid.connect.config.ServerConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-request cost of {@link OIDCAuthorizationInterceptor}, from
+ * the bearer header to the rule list, with locally generated signing keys and
+ * an in-memory issuer (no network).
+ * <p>
+ * <code>myCacheHitRatio</code> is the fraction of requests answered from the
+ * verified token and rule list caches. A miss clears both caches before the
+ * request, so it pays for parsing, signature verification and rule building
+ * (plus the cost of clearing two single-entry caches).
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec -Dbenchmark=AuthPipelineBenchmark</code>.
+ * Results are written to <code>target/jmh-result.json</code> so they can be
+ * compared with those of the previous release.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthPipelineBenchmark {
+
+  private static final String ISSUER = "http://issuer.example";
+  private static final String KEY_ID = "bench";
+  private static final int PATTERN_LENGTH = 1024;
+
+  @Param({"RS256", "ES256"})
+  public String myAlgorithm;
+
+  @Param({"5", "20", "40"})
+  public int myScopeCount;
+
+  @Param({"patient", "user"})
+  public String mySpecificity;
+
+  @Param({"0.0", "0.9", "1.0"})
+  public double myCacheHitRatio;
+
+  private OIDCAuthorizationInterceptor myInterceptor;
+  private ServletRequestDetails myRequest;
+  private boolean[] myHitPattern;
+  private int myCursor;
+
+  @Setup
+  public void setup() throws Exception {
+    JWK publicKey;
+    JWSSigner signer;
+    if ("ES256".equals(myAlgorithm)) {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+      generator.initialize(new ECGenParameterSpec("secp256r1"));
+      KeyPair keyPair = generator.generateKeyPair();
+      publicKey = new ECKey.Builder(Curve.P_256, (ECPublicKey) keyPair.getPublic()).keyID(KEY_ID).build();
+      signer = new ECDSASigner((ECPrivateKey) keyPair.getPrivate());
+    } else {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(2048);
+      KeyPair keyPair = generator.generateKeyPair();
+      publicKey = new RSAKey.Builder((RSAPublicKey) keyPair.getPublic()).keyID(KEY_ID).build();
+      signer = new RSASSASigner(keyPair.getPrivate());
+    }
+    JWTSigningAndValidationService validator = new DefaultJWTSigningAndValidationService(new JWKSetKeyStore(new JWKSet(publicKey)));
+
+    myInterceptor = new OIDCAuthorizationInterceptor();
+    myInterceptor.setServerConfigurationService(issuer -> {
+      ServerConfiguration config = new ServerConfiguration();
+      config.setIssuer(issuer);
+      config.setJwksUri(issuer + "/certs");
+      return config;
+    });
+    myInterceptor.setJwksValidatorService(new JwksValidatorService(null) {
+      @Override
+      public JWTSigningAndValidationService getValidator(String theJwksUri, String theKeyId) {
+        return validator;
+      }
+    });
+
+    JWTClaimsSet claims = new JWTClaimsSet.Builder()
+      .issuer(ISSUER)
+      .subject("bench-user")
+      .issueTime(new Date())
+      .expirationTime(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)))
+      .claim("scope", buildScopeClaim(myScopeCount, mySpecificity))
+      .claim("patient", "123")
+      .build();
+    SignedJWT token = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.parse(myAlgorithm)).keyID(KEY_ID).build(), claims);
+    token.sign(signer);
+    myRequest = OIDCAuthorizationInterceptorTest.request(token.serialize());
+
+    // A fixed, shuffled sequence with exactly the requested share of hits
+    List<Boolean> pattern = new ArrayList<>(PATTERN_LENGTH);
+    int hits = (int) Math.round(myCacheHitRatio * PATTERN_LENGTH);
+    for (int i = 0; i < PATTERN_LENGTH; i++) {
+      pattern.add(i < hits);
+    }
+    Collections.shuffle(pattern, new Random(42));
+    myHitPattern = new boolean[PATTERN_LENGTH];
+    for (int i = 0; i < PATTERN_LENGTH; i++) {
+      myHitPattern[i] = pattern.get(i);
+    }
+
+    // Sanity check, and warms the caches for the first hit
+    if (myInterceptor.buildRuleList(myRequest).size() < 3) {
+      throw new IllegalStateException("Benchmark token was rejected");
+    }
+  }
+
+  /**
+   * Resource scopes of a single specificity, as a patient or clinician facing app
+   * would be granted, after the usual identity and launch scopes
+   */
+  static String buildScopeClaim(int theScopeCount, String theSpecificity) {
+    String[] suffixes = {"read", "rs", "write", "cruds", "*"};
+    List<String> scopes = new ArrayList<>();
+    scopes.add("openid");
+    scopes.add("fhirUser");
+    scopes.add("launch/" + theSpecificity);
+    for (int i = 0; i < theScopeCount; i++) {
+      String resourceType = ScopeParserBenchmark.RESOURCE_TYPES[i % ScopeParserBenchmark.RESOURCE_TYPES.length];
+      scopes.add(theSpecificity + "/" + resourceType + "." + suffixes[i % suffixes.length]);
+    }
+    return String.join(" ", scopes);
+  }
+
+  private void nextRequest() {
+    if (!myHitPattern[myCursor]) {
+      myInterceptor.invalidateCaches();
+    }
+    myCursor = (myCursor + 1) % PATTERN_LENGTH;
+  }
+
+  @Benchmark
+  public Object authenticate() {
+    nextRequest();
+    return myInterceptor.authenticate(myRequest);
+  }
+
+  @Benchmark
+  public Object buildRuleList() {
+    nextRequest();
+    return myInterceptor.buildRuleList(myRequest);
+  }
+}
@@ -0,0 +1,47 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class AuthRuleListCacheTest {
+
+  @Test
+  public void testBuiltOncePerDistinctKey() {
+    AuthRuleListCache cache = new AuthRuleListCache(100);
+    AtomicInteger builds = new AtomicInteger();
+
+    List<IAuthRule> first = cache.get("patient/*.read launch/patient", "123", (scopes, patient) -> {
+      builds.incrementAndGet();
+      return new RuleBuilder().allowAll().build();
+    });
+    List<IAuthRule> reordered = cache.get("launch/patient  patient/*.read patient/*.read", "123", (scopes, patient) -> {
+      builds.incrementAndGet();
+      return new RuleBuilder().allowAll().build();
+    });
+    List<IAuthRule> otherPatient = cache.get("patient/*.read launch/patient", "456", (scopes, patient) -> {
+      builds.incrementAndGet();
+      return new RuleBuilder().allowAll().build();
+    });
+
+    assertSame(first, reordered);
+    assertNotSame(first, otherPatient);
+    assertEquals(2, builds.get());
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void testNormalizeScopes() {
+    assertArrayEquals(new String[]{"openid", "user/*.read"}, AuthRuleListCache.normalizeScopes(" user/*.read openid  user/*.read"));
+    assertArrayEquals(new String[0], AuthRuleListCache.normalizeScopes(null));
+  }
+}
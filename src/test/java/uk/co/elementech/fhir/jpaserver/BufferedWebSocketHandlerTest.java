@@ -0,0 +1,124 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BufferedWebSocketHandlerTest {
+
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+  private final List<String> myWritten = new ArrayList<>();
+  private SendHandler myPending;
+  private boolean myOpen = true;
+
+  @Test
+  public void testWritesStandardSessionAsynchronously() throws Exception {
+    WebsocketFanout fanout = new WebsocketFanout(10, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    CapturingHandler delegate = new CapturingHandler();
+    BufferedWebSocketHandler handler = new BufferedWebSocketHandler(delegate, fanout);
+
+    StandardWebSocketSession session = new StandardWebSocketSession(null, null, null, null);
+    session.initializeNativeSession(nativeSession());
+    handler.afterConnectionEstablished(session);
+
+    // Returns before the client has read anything, the blocking send is never used
+    delegate.mySession.sendMessage(new TextMessage("a"));
+    delegate.mySession.sendMessage(new TextMessage("b"));
+    assertEquals(Collections.singletonList("a"), myWritten);
+
+    complete(new SendResult());
+    complete(new SendResult());
+    assertEquals(Arrays.asList("a", "b"), myWritten);
+  }
+
+  @Test
+  public void testClosesStandardSessionOnWriteFailure() throws Exception {
+    WebsocketFanout fanout = new WebsocketFanout(10, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    CapturingHandler delegate = new CapturingHandler();
+    BufferedWebSocketHandler handler = new BufferedWebSocketHandler(delegate, fanout);
+
+    StandardWebSocketSession session = new StandardWebSocketSession(null, null, null, null);
+    session.initializeNativeSession(nativeSession());
+    handler.afterConnectionEstablished(session);
+
+    delegate.mySession.sendMessage(new TextMessage("a"));
+    complete(new SendResult(new IOException("broken pipe")));
+    assertFalse(myOpen);
+    assertEquals(1, myMeterRegistry.get(WebsocketFanout.MESSAGES_METER).tag("result", "failed").counter().count(), 0);
+  }
+
+  private void complete(SendResult theResult) {
+    SendHandler handler = myPending;
+    myPending = null;
+    handler.onResult(theResult);
+  }
+
+  /**
+   * A standard websocket session, as Tomcat provides, that only supports the
+   * asynchronous send
+   */
+  private Session nativeSession() {
+    RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+      getClass().getClassLoader(),
+      new Class<?>[]{RemoteEndpoint.Async.class},
+      (proxy, method, args) -> {
+        if (method.getName().equals("sendText") && args.length == 2) {
+          myWritten.add((String) args[0]);
+          myPending = (SendHandler) args[1];
+          return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      });
+    return (Session) Proxy.newProxyInstance(
+      getClass().getClassLoader(),
+      new Class<?>[]{Session.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getId":
+            return "1";
+          case "isOpen":
+            return myOpen;
+          case "close":
+            myOpen = false;
+            return null;
+          case "getAsyncRemote":
+            return async;
+          case "getNegotiatedExtensions":
+            return Collections.emptyList();
+          case "getRequestURI":
+          case "getNegotiatedSubprotocol":
+          case "getUserPrincipal":
+            return null;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+  private static class CapturingHandler extends AbstractWebSocketHandler {
+
+    private WebSocketSession mySession;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession theSession) {
+      mySession = theSession;
+    }
+  }
+}
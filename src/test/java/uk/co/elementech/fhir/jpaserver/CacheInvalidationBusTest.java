@@ -0,0 +1,173 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CacheInvalidationBusTest {
+
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+  private final FakeTransport myTransport = new FakeTransport();
+  private CacheInvalidationBus myBus;
+
+  @Before
+  public void before() {
+    myBus = new CacheInvalidationBus(myTransport, 3600000, 4, myMeterRegistry);
+    myBus.start();
+  }
+
+  @After
+  public void after() {
+    myBus.close();
+  }
+
+  @Test
+  public void testSendsCoalescedBatches() {
+    myBus.resourceUpdated(null, patient("1"));
+    myBus.resourceUpdated(null, patient("1"));
+    myBus.resourceCreated(patient("2"));
+    myBus.flush();
+    myBus.flush();
+    assertEquals(Collections.singletonList(Arrays.asList(event("Patient/1"), event("Patient/2"))), myTransport.myBatches);
+    assertEquals(2, myMeterRegistry.get(CacheInvalidationBus.EVENTS_METER).tag("direction", "sent").counter().count(), 0);
+  }
+
+  @Test
+  public void testCoalesces() {
+    assertEquals(Arrays.asList(event("Observation/1"), event("Patient")),
+      CacheInvalidationBus.coalesce(Arrays.asList(event("Patient/1"), event("Observation/1"), event("Patient"), event("Patient/2")), 10));
+    assertEquals(Collections.singletonList(CacheInvalidationEvent.everything()),
+      CacheInvalidationBus.coalesce(Arrays.asList(event("Patient/1"), event("*")), 10));
+    assertEquals(Arrays.asList(event("Patient"), event("Observation")),
+      CacheInvalidationBus.coalesce(Arrays.asList(event("Patient/1"), event("Observation/1"), event("Patient/2")), 2));
+  }
+
+  @Test
+  public void testPublishesCommittedWritesOnly() {
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      myBus.resourceDeleted(patient("1"));
+      myBus.flush();
+      assertEquals(0, myTransport.myBatches.size());
+      complete(TransactionSynchronization.STATUS_COMMITTED);
+
+      TransactionSynchronizationManager.initSynchronization();
+      myBus.resourceDeleted(patient("2"));
+      complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+    } finally {
+      if (TransactionSynchronizationManager.isSynchronizationActive()) {
+        TransactionSynchronizationManager.clearSynchronization();
+      }
+    }
+    myBus.flush();
+    assertEquals(Collections.singletonList(Collections.singletonList(event("Patient/1"))), myTransport.myBatches);
+  }
+
+  @Test
+  public void testRetriesFailedBatches() {
+    myTransport.myFail = true;
+    myBus.expungeResource(new IdType("Patient/1"));
+    myBus.flush();
+    myTransport.myFail = false;
+    myBus.expungeEverything();
+    myBus.flush();
+    assertEquals(Collections.singletonList(Collections.singletonList(CacheInvalidationEvent.everything())), myTransport.myBatches);
+  }
+
+  @Test
+  public void testInvalidatesEverythingWhenTooManyEventsAreWaiting() throws Exception {
+    myTransport.myFail = true;
+    for (int i = 0; i < 50; i++) {
+      myBus.resourceCreated(patient(Integer.toString(i)));
+    }
+    await(() -> myBus.getPendingCount() == 1);
+    myBus.resourceCreated(patient("50"));
+    assertEquals(1, myBus.getPendingCount());
+
+    myTransport.myFail = false;
+    myBus.flush();
+    await(() -> !myTransport.myBatches.isEmpty());
+    assertEquals(Collections.singletonList(Collections.singletonList(CacheInvalidationEvent.everything())), myTransport.myBatches);
+  }
+
+  @Test
+  public void testDeliversReceivedEventsToListeners() {
+    List<CacheInvalidationEvent> received = new ArrayList<>();
+    myBus.addListener(theEvents -> {
+      throw new IllegalStateException("failing listener");
+    });
+    myBus.addListener(received::addAll);
+    myTransport.myReceiver.accept(Collections.singletonList(event("SearchParameter/1")));
+    assertEquals(Collections.singletonList(event("SearchParameter/1")), received);
+    assertEquals(1, myMeterRegistry.get(CacheInvalidationBus.EVENTS_METER).tag("direction", "received").counter().count(), 0);
+  }
+
+  private static void await(BooleanSupplier theCondition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!theCondition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(20);
+    }
+  }
+
+  private static void complete(int theStatus) {
+    List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+    TransactionSynchronizationManager.clearSynchronization();
+    for (TransactionSynchronization next : synchronizations) {
+      next.afterCompletion(theStatus);
+    }
+  }
+
+  private static Patient patient(String theId) {
+    Patient retVal = new Patient();
+    retVal.setId(new IdType("Patient", theId, "1"));
+    return retVal;
+  }
+
+  private static CacheInvalidationEvent event(String theValue) {
+    return CacheInvalidationEvent.parse(theValue);
+  }
+
+  private static class FakeTransport implements CacheInvalidationTransport {
+
+    private final List<List<CacheInvalidationEvent>> myBatches = new CopyOnWriteArrayList<>();
+    private volatile boolean myFail;
+    private Consumer<List<CacheInvalidationEvent>> myReceiver;
+
+    @Override
+    public void start(Consumer<List<CacheInvalidationEvent>> theReceiver) {
+      myReceiver = theReceiver;
+    }
+
+    @Override
+    public void publish(List<CacheInvalidationEvent> theEvents) throws IOException {
+      if (myFail) {
+        throw new IOException("unavailable");
+      }
+      myBatches.add(theEvents);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
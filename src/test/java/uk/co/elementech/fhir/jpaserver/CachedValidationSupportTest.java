@@ -0,0 +1,109 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CachedValidationSupportTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final CountingValidationSupport myDelegate = new CountingValidationSupport();
+
+  @Test
+  public void testCachesLookupsAndMisses() {
+    CachedValidationSupport support = new CachedValidationSupport(myDelegate, 100, 600, null);
+
+    ValueSet valueSet = (ValueSet) support.fetchValueSet("http://example.com/vs");
+    assertSame(valueSet, support.fetchResource(ValueSet.class, "http://example.com/vs"));
+    assertNull(support.fetchValueSet("http://example.com/unknown"));
+    assertNull(support.fetchValueSet("http://example.com/unknown"));
+    assertEquals(2, myDelegate.myFetches.get());
+
+    assertTrue(support.validateCode(support, new ConceptValidationOptions(), "http://example.com/cs", "a", null, null).isOk());
+    assertTrue(support.validateCode(support, new ConceptValidationOptions(), "http://example.com/cs", "a", null, null).isOk());
+    assertFalse(support.validateCode(support, new ConceptValidationOptions(), "http://example.com/cs", "b", null, null).isOk());
+    assertEquals(2, myDelegate.myValidations.get());
+
+    support.invalidateCaches();
+    support.fetchValueSet("http://example.com/vs");
+    assertEquals(3, myDelegate.myFetches.get());
+  }
+
+  @Test
+  public void testPrecompileGeneratesMissingSnapshots() {
+    CachedValidationSupport support = new CachedValidationSupport(myDelegate, 100, 600, null);
+
+    support.precompile();
+    assertEquals(1, myDelegate.mySnapshots.get());
+
+    StructureDefinition profile = (StructureDefinition) support.fetchStructureDefinition("http://example.com/profile");
+    assertTrue(profile.hasSnapshot());
+    assertTrue(((StructureDefinition) support.fetchStructureDefinition("http://example.com/snapshotted")).hasSnapshot());
+    assertEquals(0, myDelegate.myFetches.get());
+  }
+
+  private static class CountingValidationSupport implements IValidationSupport {
+
+    private final AtomicInteger myFetches = new AtomicInteger();
+    private final AtomicInteger myValidations = new AtomicInteger();
+    private final AtomicInteger mySnapshots = new AtomicInteger();
+
+    @Override
+    public FhirContext getFhirContext() {
+      return ourCtx;
+    }
+
+    @Override
+    public IBaseResource fetchValueSet(String theUri) {
+      myFetches.incrementAndGet();
+      return theUri.equals("http://example.com/vs") ? new ValueSet().setUrl(theUri) : null;
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String theUrl) {
+      myFetches.incrementAndGet();
+      return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource> List<T> fetchAllStructureDefinitions() {
+      StructureDefinition withoutSnapshot = new StructureDefinition().setUrl("http://example.com/profile");
+      StructureDefinition withSnapshot = new StructureDefinition().setUrl("http://example.com/snapshotted");
+      withSnapshot.getSnapshot().addElement().setPath("Patient");
+      return (List<T>) Arrays.asList(withoutSnapshot, withSnapshot);
+    }
+
+    @Override
+    public IBaseResource generateSnapshot(IValidationSupport theRootValidationSupport, IBaseResource theInput, String theUrl, String theWebUrl, String theProfileName) {
+      mySnapshots.incrementAndGet();
+      StructureDefinition retVal = ((StructureDefinition) theInput).copy();
+      retVal.getSnapshot().addElement().setPath("Patient");
+      return retVal;
+    }
+
+    @Override
+    public CodeValidationResult validateCode(IValidationSupport theRootValidationSupport, ConceptValidationOptions theOptions, String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl) {
+      myValidations.incrementAndGet();
+      if (!theCode.equals("a")) {
+        return new CodeValidationResult().setSeverity(IssueSeverity.ERROR).setMessage("Unknown code");
+      }
+      return new CodeValidationResult().setCode(theCode);
+    }
+  }
+}
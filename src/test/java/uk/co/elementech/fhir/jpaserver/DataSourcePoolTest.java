@@ -0,0 +1,74 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DataSourcePoolTest {
+
+  private DataSource myDataSource;
+
+  @After
+  public void after() throws Exception {
+    if (myDataSource != null) {
+      ((AutoCloseable) myDataSource).close();
+    }
+    HapiProperties.forceReload();
+  }
+
+  @Test
+  public void testDbcp2Metrics() throws Exception {
+    assertPoolMetrics("dbcp2", MeteredBasicDataSource.class);
+  }
+
+  @Test
+  public void testHikariMetrics() throws Exception {
+    assertPoolMetrics("hikari", com.zaxxer.hikari.HikariDataSource.class);
+  }
+
+  @Test
+  public void testPoolNameCaseInsensitive() {
+    assertEquals(DataSourcePool.HIKARI, DataSourcePool.fromPropertyValue(" Hikari "));
+    assertEquals(DataSourcePool.DBCP2, DataSourcePool.fromPropertyValue("dbcp2"));
+  }
+
+  private void assertPoolMetrics(String thePool, Class<?> theExpectedType) throws Exception {
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_POOL, thePool);
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_DRIVER, "org.h2.Driver");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:" + thePool + ";DB_CLOSE_DELAY=-1");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_MAX_POOL_SIZE, "2");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_CONNECTION_TIMEOUT_MILLIS, "250");
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    myDataSource = DataSourcePool.create(registry);
+    assertTrue(theExpectedType.isInstance(myDataSource));
+    String prefix = thePool.equals("hikari") ? "hikaricp.connections" : "dbcp2.connections";
+
+    try (Connection first = myDataSource.getConnection(); Connection second = myDataSource.getConnection()) {
+      try (Statement statement = first.createStatement()) {
+        statement.execute("select 1");
+      }
+      assertEquals(2.0, registry.get(prefix + ".active").tag("pool", DataSourcePool.POOL_NAME).gauge().value(), 0.0);
+
+      // The pool is exhausted, so the next caller waits and then times out
+      try (Connection third = myDataSource.getConnection()) {
+        fail("Expected a connection timeout");
+      } catch (SQLException e) {
+        // expected
+      }
+    }
+
+    // Like HikariCP, the timed out wait is included in the acquire times
+    assertEquals(3, registry.get(prefix + ".acquire").timer().count());
+    assertEquals(1.0, registry.get(prefix + ".timeout").counter().count(), 0.0);
+  }
+}
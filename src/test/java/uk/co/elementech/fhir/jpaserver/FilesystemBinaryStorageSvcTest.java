@@ -0,0 +1,166 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.binstore.StoredDetails;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilesystemBinaryStorageSvcTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  @Rule
+  public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testStoresByContentHash() throws Exception {
+    FilesystemBinaryStorageSvc svc = new FilesystemBinaryStorageSvc(ourCtx, myTemporaryFolder.getRoot().toPath());
+    byte[] content = new byte[3 * 1024 * 1024 + 17];
+    new Random(42).nextBytes(content);
+    String hash = hex(MessageDigest.getInstance("SHA-256").digest(content));
+
+    StoredDetails stored = svc.storeBlob(new IdType("Binary/1"), null, "image/jpeg", new ByteArrayInputStream(content));
+    assertEquals(hash, stored.getBlobId());
+    assertEquals(content.length, stored.getBytes());
+    assertTrue(Files.exists(myTemporaryFolder.getRoot().toPath().resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash)));
+
+    StoredDetails fetched = svc.fetchBlobDetails(new IdType("Binary/1"), hash);
+    assertEquals(content.length, fetched.getBytes());
+    assertEquals("image/jpeg", fetched.getContentType());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(svc.writeBlob(new IdType("Binary/1"), hash, out));
+    assertArrayEquals(content, out.toByteArray());
+    assertArrayEquals(content, svc.fetchBlob(new IdType("Binary/1"), hash));
+  }
+
+  @Test
+  public void testKeepsSharedContentUntilLastReferenceIsExpunged() throws Exception {
+    FilesystemBinaryStorageSvc svc = new FilesystemBinaryStorageSvc(ourCtx, myTemporaryFolder.getRoot().toPath());
+    byte[] content = "same bytes".getBytes();
+
+    String blobId = svc.storeBlob(null, null, "text/plain", new ByteArrayInputStream(content)).getBlobId();
+    svc.resourceCreated(binary("Binary/1/_history/1", "text/plain", blobId));
+    StoredDetails second = svc.storeBlob(null, null, "application/octet-stream", new ByteArrayInputStream(content));
+    svc.resourceCreated(binary("Binary/1-2/_history/1", "application/octet-stream", blobId));
+    assertEquals(blobId, second.getBlobId());
+    assertEquals("application/octet-stream", second.getContentType());
+    assertEquals("text/plain", svc.fetchBlobDetails(new IdType("Binary/1"), blobId).getContentType());
+    assertEquals("application/octet-stream", svc.fetchBlobDetails(new IdType("Binary/1-2"), blobId).getContentType());
+    Path file = svc.getContentFile(blobId);
+    expirePendingMarkers(file);
+
+    svc.expungeBlob(new IdType("Binary/1/_history/1"), blobId);
+    assertTrue(Files.exists(file));
+    svc.expungeBlob(new IdType("Binary/1/_history/1"), blobId);
+    assertTrue("other resources still refer to it", Files.exists(file));
+
+    svc.expungeBlob(new IdType("Binary/1-2/_history/1"), blobId);
+    assertFalse(Files.exists(file));
+    assertNull(svc.fetchBlobDetails(new IdType("Binary/1"), blobId));
+    assertFalse(svc.writeBlob(new IdType("Binary/1"), blobId, new ByteArrayOutputStream()));
+  }
+
+  @Test
+  public void testKeepsContentOfCurrentVersionWhenOldVersionsAreExpunged() throws Exception {
+    FilesystemBinaryStorageSvc svc = new FilesystemBinaryStorageSvc(ourCtx, myTemporaryFolder.getRoot().toPath());
+    String blobId = svc.storeBlob(new IdType("Binary/1"), null, "text/plain", new ByteArrayInputStream("content".getBytes())).getBlobId();
+    svc.resourceCreated(binary("Binary/1/_history/1", "text/plain", blobId));
+    // Later versions keep referring to the stored content
+    svc.resourceUpdated(null, binary("Binary/1/_history/2", "text/plain", blobId));
+    svc.resourceUpdated(null, binary("Binary/1/_history/3", "text/markdown", blobId));
+    Path file = svc.getContentFile(blobId);
+    expirePendingMarkers(file);
+
+    svc.expungeBlob(new IdType("Binary/1/_history/1"), blobId);
+    svc.expungeBlob(new IdType("Binary/1/_history/2"), blobId);
+    assertTrue("the current version still refers to it", Files.exists(file));
+    assertEquals("text/markdown", svc.fetchBlobDetails(new IdType("Binary/1"), blobId).getContentType());
+
+    svc.expungeBlob(new IdType("Binary/1/_history/3"), blobId);
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testKeepsContentUntilPendingMarkerExpires() throws Exception {
+    FilesystemBinaryStorageSvc svc = new FilesystemBinaryStorageSvc(ourCtx, myTemporaryFolder.getRoot().toPath());
+    byte[] content = "content".getBytes();
+    String blobId = svc.storeBlob(null, null, "text/plain", new ByteArrayInputStream(content)).getBlobId();
+    svc.resourceCreated(binary("Binary/1/_history/1", "text/plain", blobId));
+    // Stored for a resource that is not committed yet
+    svc.storeBlob(null, null, "text/plain", new ByteArrayInputStream(content));
+    Path file = svc.getContentFile(blobId);
+
+    svc.expungeBlob(new IdType("Binary/1/_history/1"), blobId);
+    assertTrue(Files.exists(file));
+
+    expirePendingMarkers(file);
+    svc.expungeBlob(new IdType("Binary/1/_history/1"), blobId);
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testRejectsBlobsOverMaximumSize() throws Exception {
+    Path directory = myTemporaryFolder.getRoot().toPath();
+    FilesystemBinaryStorageSvc svc = new FilesystemBinaryStorageSvc(ourCtx, directory);
+    svc.setMaximumBinarySize(10);
+
+    svc.storeBlob(new IdType("Binary/1"), null, "text/plain", new ByteArrayInputStream(new byte[10]));
+    try {
+      svc.storeBlob(new IdType("Binary/2"), null, "text/plain", new ByteArrayInputStream(new byte[11]));
+      fail();
+    } catch (PayloadTooLargeException e) {
+      // expected
+    }
+    assertEquals("no partial upload is left behind", 0, Files.list(directory.resolve("tmp")).count());
+  }
+
+  private static Binary binary(String theId, String theContentType, String theBlobId) {
+    Binary retVal = new Binary();
+    retVal.setId(theId);
+    retVal.setContentType(theContentType);
+    retVal.getDataElement().addExtension(JpaConstants.EXT_EXTERNALIZED_BINARY_ID, new StringType(theBlobId));
+    return retVal;
+  }
+
+  private static void expirePendingMarkers(Path theContentFile) throws IOException {
+    FileTime expired = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(FilesystemBinaryStorageSvc.PENDING_MARKER_MINUTES + 1));
+    try (DirectoryStream<Path> markers = Files.newDirectoryStream(theContentFile.resolveSibling(theContentFile.getFileName() + ".refs"), "pending_*")) {
+      for (Path next : markers) {
+        Files.setLastModifiedTime(next, expired);
+      }
+    }
+  }
+
+  private static String hex(byte[] theBytes) {
+    StringBuilder retVal = new StringBuilder();
+    for (byte next : theBytes) {
+      retVal.append(String.format("%02x", next));
+    }
+    return retVal.toString();
+  }
+}
@@ -0,0 +1,116 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HapiPropertiesTest {
+
+  @Rule
+  public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private final BlockingQueue<Set<String>> myChanges = new LinkedBlockingQueue<>();
+  private final HapiProperties.ChangeListener myListener = myChanges::add;
+
+  @After
+  public void after() {
+    HapiProperties.removeChangeListener(myListener);
+    System.clearProperty(HapiProperties.HAPI_PROPERTIES);
+    HapiProperties.forceReload();
+  }
+
+  @Test
+  public void testEnvironmentOverridesFile() {
+    Properties properties = new Properties();
+    properties.setProperty("oauth.token.name", "X-Access-Token");
+    properties.setProperty("oidc.auth.enabled", "true");
+    PropertiesSnapshot snapshot = new PropertiesSnapshot(properties, Collections.singletonMap("HAPI_OIDC_AUTH_ENABLED", "false"));
+
+    assertFalse(snapshot.isOidcEnabled());
+    assertEquals("X-Access-Token", snapshot.getAccessTokenHeaderName());
+    assertNull(snapshot.getAccessTokenHeaderPrefix());
+    assertNull(snapshot.get("not.set"));
+    assertEquals("fallback", snapshot.get("not.set", "fallback"));
+  }
+
+  @Test
+  public void testParsesTypedSettings() {
+    Properties properties = new Properties();
+    properties.setProperty("metrics.enabled", "true");
+    properties.setProperty("paging.prefetch.threads", "3");
+    properties.setProperty("empty", "");
+    properties.setProperty("bad", "three");
+    PropertiesSnapshot snapshot = new PropertiesSnapshot(properties, Collections.singletonMap("HAPI_PAGING_PREFETCH_THREADS", "5"));
+
+    assertTrue(snapshot.isMetricsEnabled());
+    assertEquals(Boolean.TRUE, snapshot.getBoolean("metrics.enabled", false));
+    assertEquals(Integer.valueOf(5), snapshot.getInteger("paging.prefetch.threads", 1));
+    assertEquals(Integer.valueOf(7), snapshot.getInteger("empty", 7));
+    assertNull(snapshot.getInteger("not.set", null));
+    for (int i = 0; i < 2; i++) {
+      try {
+        snapshot.getInteger("bad", 1);
+        fail();
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testSetPropertyPublishesNewSnapshot() {
+    HapiProperties.addChangeListener(myListener);
+    PropertiesSnapshot before = HapiProperties.getSnapshot();
+    boolean enabled = before.isOidcEnabled();
+
+    HapiProperties.setProperty("oidc.auth.enabled", Boolean.toString(!enabled));
+
+    assertEquals(!enabled, HapiProperties.getOIDCEnabled());
+    assertEquals("the old snapshot is never modified", enabled, before.isOidcEnabled());
+    assertEquals(Collections.singleton("oidc.auth.enabled"), myChanges.poll());
+
+    // Setting the same value again is not a change
+    HapiProperties.setProperty("oidc.auth.enabled", Boolean.toString(!enabled));
+    assertTrue(myChanges.isEmpty());
+  }
+
+  @Test
+  public void testWatcherReloadsChangedFile() throws Exception {
+    File file = myTemporaryFolder.newFile("override.properties");
+    Files.write(file.toPath(), "oauth.token.prefix=FIRST\n".getBytes(StandardCharsets.ISO_8859_1));
+    System.setProperty(HapiProperties.HAPI_PROPERTIES, file.getAbsolutePath());
+    HapiProperties.forceReload();
+    assertEquals("FIRST", HapiProperties.getAccessTokenHeaderPrefix());
+    HapiProperties.addChangeListener(myListener);
+
+    try (PropertiesFileWatcher watcher = new PropertiesFileWatcher(file.toPath())) {
+      watcher.start();
+      PropertiesSnapshot before = HapiProperties.getSnapshot();
+      Files.write(file.toPath(), "oauth.token.prefix=SECOND\n".getBytes(StandardCharsets.ISO_8859_1));
+
+      Set<String> changed = myChanges.poll(30, TimeUnit.SECONDS);
+      assertNotNull("Expected a reload", changed);
+      assertEquals(Collections.singleton("oauth.token.prefix"), changed);
+      assertEquals("SECOND", HapiProperties.getAccessTokenHeaderPrefix());
+      assertEquals("FIRST", before.getAccessTokenHeaderPrefix());
+    }
+  }
+}
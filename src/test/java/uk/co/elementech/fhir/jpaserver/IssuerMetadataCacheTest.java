@@ -0,0 +1,159 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.openid.connect.config.ServerConfiguration;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Uses a local HTTP server as a stand-in for the issuer's discovery endpoint
+ */
+public class IssuerMetadataCacheTest {
+
+  private HttpServer myServer;
+  private String myIssuer;
+  private final AtomicInteger myStatus = new AtomicInteger(200);
+  private final AtomicInteger myFetches = new AtomicInteger();
+  private SimpleMeterRegistry myMeterRegistry;
+  private IssuerMetadataCache myCache;
+
+  @Before
+  public void before() throws Exception {
+    myServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    myIssuer = "http://localhost:" + myServer.getAddress().getPort() + "/realms/test";
+    myServer.createContext("/realms/", exchange -> {
+      myFetches.incrementAndGet();
+      String path = exchange.getRequestURI().getPath();
+      String issuer = "http://localhost:" + myServer.getAddress().getPort() + path.substring(0, path.indexOf("/.well-known/"));
+      byte[] body = ("{\"issuer\":\"" + issuer + "\",\"jwks_uri\":\"" + issuer + "/certs\",\"token_endpoint\":\"" + issuer + "/token\"}").getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(myStatus.get(), body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    myServer.start();
+
+    myMeterRegistry = new SimpleMeterRegistry();
+    myCache = new IssuerMetadataCache(Collections.singleton(myIssuer), myMeterRegistry);
+  }
+
+  @After
+  public void after() {
+    myCache.stop();
+    myServer.stop(0);
+  }
+
+  @Test
+  public void testFirstLookupsShareOneLoad() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<ServerConfiguration>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit(() -> myCache.getServerConfiguration(myIssuer)));
+      }
+      for (Future<ServerConfiguration> next : lookups) {
+        ServerConfiguration config = next.get();
+        assertEquals(myIssuer + "/certs", config.getJwksUri());
+        assertEquals(myIssuer + "/token", config.getTokenEndpointUri());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, myFetches.get());
+    assertEquals(1, myMeterRegistry.get("oidc.discovery.refresh").tag("issuer", myIssuer).tag("outcome", "success").timer().count());
+  }
+
+  @Test
+  public void testFailedFirstLoadIsNotRetriedWithinInterval() {
+    myCache.setMinRefreshIntervalMillis(60000);
+    myStatus.set(503);
+    assertNull(myCache.getServerConfiguration(myIssuer));
+    myStatus.set(200);
+    assertNull(myCache.getServerConfiguration(myIssuer));
+    assertEquals(1, myFetches.get());
+
+    myCache.setMinRefreshIntervalMillis(0);
+    assertEquals(myIssuer + "/certs", myCache.getServerConfiguration(myIssuer).getJwksUri());
+  }
+
+  @Test
+  public void testUnlistedIssuersAreBoundedAndNotTagged() {
+    myCache.stop();
+    myMeterRegistry = new SimpleMeterRegistry();
+    myCache = new IssuerMetadataCache(Collections.emptyList(), myMeterRegistry);
+    String base = "http://localhost:" + myServer.getAddress().getPort() + "/realms/";
+    for (int i = 0; i < IssuerMetadataCache.MAX_UNLISTED_ISSUERS + 5; i++) {
+      assertEquals(base + i + "/certs", myCache.getServerConfiguration(base + i).getJwksUri());
+    }
+    assertEquals(IssuerMetadataCache.MAX_UNLISTED_ISSUERS, myMeterRegistry.get("oidc.discovery.issuers").gauge().value(), 0);
+    assertEquals(1, myMeterRegistry.find("oidc.discovery.refresh").timers().size());
+    assertEquals(IssuerMetadataCache.MAX_UNLISTED_ISSUERS + 5, myMeterRegistry.get("oidc.discovery.refresh").tag("issuer", "other").timer().count());
+  }
+
+  @Test
+  public void testStartNotifiesListeners() throws Exception {
+    AtomicInteger notified = new AtomicInteger();
+    myCache.addListener(config -> notified.incrementAndGet());
+    myCache.start();
+
+    await(() -> notified.get() == 1);
+    assertTrue(myCache.refresh(myIssuer));
+    assertEquals("unchanged jwks_uri does not notify again", 1, notified.get());
+  }
+
+  @Test
+  public void testOutageServesStaleDocument() {
+    assertTrue(myCache.refresh(myIssuer));
+
+    myStatus.set(503);
+    assertFalse(myCache.refresh(myIssuer));
+
+    assertEquals(myIssuer + "/certs", myCache.getServerConfiguration(myIssuer).getJwksUri());
+    assertEquals(1, myMeterRegistry.get("oidc.discovery.refresh").tag("outcome", "failure").timer().count());
+  }
+
+  @Test
+  public void testTooStaleDocumentRejected() throws Exception {
+    myCache.setMaxStaleSeconds(0);
+    assertTrue(myCache.refresh(myIssuer));
+    Thread.sleep(5);
+
+    assertNull(myCache.getServerConfiguration(myIssuer));
+  }
+
+  @Test
+  public void testIssuerNotInWhitelist() {
+    assertNull(myCache.getServerConfiguration("http://evil.example"));
+    assertEquals(0, myMeterRegistry.find("oidc.discovery.refresh").timers().size());
+  }
+
+  private static void await(BooleanSupplier theCondition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!theCondition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JdbcCacheInvalidationTransportTest {
+
+  private static final long POLL_INTERVAL = 3600000;
+
+  private final List<CacheInvalidationEvent> myReceivedByA = new CopyOnWriteArrayList<>();
+  private final List<CacheInvalidationEvent> myReceivedByB = new CopyOnWriteArrayList<>();
+  private BasicDataSource myDataSource;
+  private JdbcCacheInvalidationTransport myNodeA;
+  private JdbcCacheInvalidationTransport myNodeB;
+
+  @Before
+  public void before() {
+    myDataSource = new BasicDataSource();
+    myDataSource.setDriverClassName("org.h2.Driver");
+    myDataSource.setUrl("jdbc:h2:mem:cacheInvalidation" + System.nanoTime());
+    myNodeA = new JdbcCacheInvalidationTransport(myDataSource, "a", POLL_INTERVAL, 60000);
+    myNodeB = new JdbcCacheInvalidationTransport(myDataSource, "b", POLL_INTERVAL, 60000);
+    myNodeA.start(myReceivedByA::addAll);
+    myNodeB.start(myReceivedByB::addAll);
+  }
+
+  @After
+  public void after() throws Exception {
+    myNodeA.close();
+    myNodeB.close();
+    myDataSource.close();
+  }
+
+  @Test
+  public void testDeliversToOtherNodesOnly() throws Exception {
+    List<CacheInvalidationEvent> events = Arrays.asList(
+      CacheInvalidationEvent.forResource(new IdType("Patient/123/_history/2")),
+      CacheInvalidationEvent.forType("SearchParameter"),
+      CacheInvalidationEvent.everything());
+    myNodeA.publish(events);
+    myNodeA.poll();
+    myNodeB.poll();
+    assertEquals(Collections.emptyList(), myReceivedByA);
+    assertEquals(events, myReceivedByB);
+    assertEquals("Patient", myReceivedByB.get(0).getResourceType());
+    assertEquals("123", myReceivedByB.get(0).getResourceId());
+
+    myNodeB.poll();
+    assertEquals(3, myReceivedByB.size());
+  }
+
+  @Test
+  public void testSplitsLargeBatchesIntoRows() throws Exception {
+    List<CacheInvalidationEvent> events = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      events.add(CacheInvalidationEvent.forResource(new IdType("Observation", "observation-" + i)));
+    }
+    myNodeA.publish(events);
+    assertTrue(rows() > 1);
+    myNodeB.poll();
+    assertEquals(events, myReceivedByB);
+  }
+
+  @Test
+  public void testReadsRowsCommittedOutOfOrder() throws Exception {
+    long next = lastId() + 1;
+    insert(next + 1, "Patient/2");
+    myNodeB.poll();
+    assertEquals(Collections.singletonList(CacheInvalidationEvent.parse("Patient/2")), myReceivedByB);
+
+    insert(next, "Patient/1");
+    myNodeB.poll();
+    myNodeB.poll();
+    assertEquals(Arrays.asList(CacheInvalidationEvent.parse("Patient/2"), CacheInvalidationEvent.parse("Patient/1")), myReceivedByB);
+  }
+
+  @Test
+  public void testDeletesExpiredRows() throws Exception {
+    myNodeA.publish(Collections.singletonList(CacheInvalidationEvent.forType("Patient")));
+    myNodeA.deleteExpired();
+    assertEquals(1, rows());
+
+    JdbcCacheInvalidationTransport expiring = new JdbcCacheInvalidationTransport(myDataSource, "c", POLL_INTERVAL, -1);
+    expiring.deleteExpired();
+    expiring.close();
+    assertEquals(0, rows());
+  }
+
+  private void insert(long theId, String theEvents) throws Exception {
+    try (Connection connection = myDataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement("INSERT INTO " + JdbcCacheInvalidationTransport.TABLE_NAME + " VALUES (?, 'c', ?, ?)")) {
+      statement.setLong(1, theId);
+      statement.setLong(2, System.currentTimeMillis());
+      statement.setString(3, theEvents);
+      statement.executeUpdate();
+    }
+  }
+
+  private long lastId() throws Exception {
+    return query("SELECT COALESCE(MAX(ID), 0) FROM " + JdbcCacheInvalidationTransport.TABLE_NAME);
+  }
+
+  private long rows() throws Exception {
+    return query("SELECT COUNT(*) FROM " + JdbcCacheInvalidationTransport.TABLE_NAME);
+  }
+
+  private long query(String theSql) throws Exception {
+    try (Connection connection = myDataSource.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery(theSql)) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.openid.connect.config.ServerConfiguration;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Uses a local HTTP server as a stand-in for the issuer's JWKS endpoint
+ */
+public class JwksValidatorServiceTest {
+
+  private static final String ISSUER = "http://issuer.example";
+
+  private HttpServer myServer;
+  private String myJwksUri;
+  private final AtomicReference<String> myJwks = new AtomicReference<>();
+  private final AtomicInteger myFetchCount = new AtomicInteger();
+  private JwksValidatorService mySvc;
+
+  @Before
+  public void before() throws Exception {
+    myServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    myServer.createContext("/jwks", exchange -> {
+      myFetchCount.incrementAndGet();
+      byte[] body = myJwks.get().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    myServer.start();
+    myJwksUri = "http://localhost:" + myServer.getAddress().getPort() + "/jwks";
+
+    mySvc = new JwksValidatorService(issuer -> {
+      ServerConfiguration config = new ServerConfiguration();
+      config.setIssuer(issuer);
+      config.setJwksUri(myJwksUri);
+      return config;
+    });
+    mySvc.setMinRefreshIntervalMillis(0);
+  }
+
+  @After
+  public void after() {
+    mySvc.stop();
+    myServer.stop(0);
+  }
+
+  @Test
+  public void testWarmedAtStartupAndRefreshedOnKeyRotation() throws Exception {
+    KeyPair first = generateKeyPair();
+    KeyPair second = generateKeyPair();
+    myJwks.set(jwks(first, "k1"));
+
+    mySvc.start(Collections.singleton(ISSUER));
+    await(() -> mySvc.getLoadedJwksUris().contains(myJwksUri));
+
+    JWTSigningAndValidationService validator = mySvc.getValidator(myJwksUri, "k1");
+    assertTrue(validator.validateSignature(sign(first, "k1")));
+    assertEquals(1, myFetchCount.get());
+
+    // Rotate the issuer's key: the current validator is returned without
+    // waiting, and the new key is fetched in the background
+    myJwks.set(jwks(second, "k2"));
+    SignedJWT rotated = sign(second, "k2");
+    assertFalse(mySvc.getValidator(myJwksUri, "k2").validateSignature(rotated));
+    await(() -> mySvc.getValidator(myJwksUri, "k2").validateSignature(rotated));
+  }
+
+  @Test
+  public void testFirstRequestsShareOneLoad() throws Exception {
+    KeyPair keyPair = generateKeyPair();
+    myJwks.set(jwks(keyPair, "k1"));
+    SignedJWT token = sign(keyPair, "k1");
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> mySvc.getValidator(myJwksUri, "k1").validateSignature(token)));
+      }
+      for (Future<Boolean> next : results) {
+        assertTrue(next.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, myFetchCount.get());
+  }
+
+  @Test
+  public void testFailedFirstLoadIsNotRetriedWithinInterval() throws Exception {
+    mySvc.setMinRefreshIntervalMillis(60000);
+    myJwks.set("not json");
+
+    assertNull(mySvc.getValidator(myJwksUri, "k1"));
+    assertNull(mySvc.getValidator(myJwksUri, "k1"));
+    assertEquals(1, myFetchCount.get());
+  }
+
+  @Test
+  public void testFailedRefreshKeepsPreviousKeys() throws Exception {
+    KeyPair keyPair = generateKeyPair();
+    myJwks.set(jwks(keyPair, "k1"));
+    assertTrue(mySvc.refresh(myJwksUri));
+
+    myJwks.set("not json");
+    assertFalse(mySvc.refresh(myJwksUri));
+    assertTrue(mySvc.getValidator(myJwksUri, "k1").validateSignature(sign(keyPair, "k1")));
+  }
+
+  private static KeyPair generateKeyPair() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static String jwks(KeyPair theKeyPair, String theKeyId) {
+    RSAKey key = new RSAKey.Builder((RSAPublicKey) theKeyPair.getPublic()).keyID(theKeyId).build();
+    return new JWKSet(key).toJSONObject(true).toString();
+  }
+
+  private static SignedJWT sign(KeyPair theKeyPair, String theKeyId) throws Exception {
+    JWTClaimsSet claims = new JWTClaimsSet.Builder()
+      .issuer(ISSUER)
+      .issueTime(new Date())
+      .expirationTime(new Date(System.currentTimeMillis() + 60000))
+      .build();
+    SignedJWT retVal = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(theKeyId).build(), claims);
+    retVal.sign(new RSASSASigner(theKeyPair.getPrivate()));
+    return retVal;
+  }
+
+  private static void await(BooleanSupplier theCondition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!theCondition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(20);
+    }
+  }
+}
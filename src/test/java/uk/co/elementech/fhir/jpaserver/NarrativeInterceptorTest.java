@@ -0,0 +1,160 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NarrativeInterceptorTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final AtomicInteger myGenerated = new AtomicInteger();
+  private final INarrativeGenerator myGenerator = (theContext, theResource) -> {
+    myGenerated.incrementAndGet();
+    DomainResource resource = (DomainResource) theResource;
+    resource.getText().setStatus(Narrative.NarrativeStatus.GENERATED);
+    resource.getText().setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">" + resource.getIdElement().getValue() + "</div>");
+    return true;
+  };
+  private Server myServer;
+  private String myBase;
+
+  @After
+  public void after() throws Exception {
+    if (myServer != null) {
+      myServer.stop();
+    }
+  }
+
+  @Test
+  public void testGeneratesNarrativesOnlyOnRequest() throws Exception {
+    start(Collections.emptySet());
+
+    assertFalse(get("/Patient/1", Patient.class).hasText());
+    assertEquals(0, myGenerated.get());
+
+    Patient patient = get("/Patient/1?_narrative=true", Patient.class);
+    assertEquals(Narrative.NarrativeStatus.GENERATED, patient.getText().getStatus());
+    assertTrue(patient.getText().getDivAsString().contains("Patient/1/_history/3"));
+
+    Bundle bundle = get("/Patient?_narrative=true", Bundle.class);
+    assertEquals(2, bundle.getEntry().size());
+    for (Bundle.BundleEntryComponent next : bundle.getEntry()) {
+      assertTrue(((Patient) next.getResource()).getText().getDivAsString().contains(next.getResource().getIdElement().getIdPart()));
+    }
+    assertEquals("Patient/1 was generated once", 2, myGenerated.get());
+  }
+
+  @Test
+  public void testGeneratesNarrativesForConfiguredTypes() throws Exception {
+    start(new HashSet<>(Collections.singletonList("Patient")));
+
+    assertTrue(get("/Patient/1", Patient.class).hasText());
+    Patient cached = get("/Patient/1", Patient.class);
+    assertEquals(Narrative.NarrativeStatus.GENERATED, cached.getText().getStatus());
+    assertTrue(cached.getText().getDivAsString().contains("Patient/1/_history/3"));
+    assertEquals(1, myGenerated.get());
+
+    Patient patient = get("/Patient/2", Patient.class);
+    assertEquals("its own narrative is kept", Narrative.NarrativeStatus.ADDITIONAL, patient.getText().getStatus());
+    assertFalse(get("/Observation/1", Observation.class).hasText());
+    assertEquals(1, myGenerated.get());
+  }
+
+  private void start(Set<String> theResourceTypes) throws Exception {
+    RestfulServer server = new RestfulServer(ourCtx);
+    server.registerProviders(new PatientProvider(), new ObservationProvider());
+    server.registerInterceptor(new NarrativeInterceptor(ourCtx, myGenerator, theResourceTypes, 100));
+
+    myServer = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(server), "/*");
+    myServer.setHandler(context);
+    myServer.start();
+    myBase = "http://localhost:" + ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+  }
+
+  private <T extends IBaseResource> T get(String thePath, Class<T> theType) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(myBase + thePath).openConnection();
+    connection.setRequestProperty("Accept", "application/fhir+json");
+    assertEquals(thePath, 200, connection.getResponseCode());
+    return ourCtx.newJsonParser().parseResource(theType, IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  private static Patient patient(String theId) {
+    Patient retVal = new Patient();
+    retVal.setId(new IdType("Patient", theId, "3"));
+    retVal.addName().setFamily("Smith");
+    if (theId.equals("2")) {
+      retVal.getText().setStatus(Narrative.NarrativeStatus.ADDITIONAL);
+      retVal.getText().setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">Mine</div>");
+    }
+    return retVal;
+  }
+
+  public static class PatientProvider implements IResourceProvider {
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Patient.class;
+    }
+
+    @Read
+    public Patient read(@IdParam IdType theId) {
+      return patient(theId.getIdPart());
+    }
+
+    @Search
+    public List<Patient> search() {
+      return Arrays.asList(patient("1"), patient("3"));
+    }
+  }
+
+  public static class ObservationProvider implements IResourceProvider {
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Observation.class;
+    }
+
+    @Read
+    public Observation read(@IdParam IdType theId) {
+      Observation retVal = new Observation();
+      retVal.setId(new IdType("Observation", theId.getIdPart(), "1"));
+      retVal.setStatus(Observation.ObservationStatus.FINAL);
+      return retVal;
+    }
+  }
+}
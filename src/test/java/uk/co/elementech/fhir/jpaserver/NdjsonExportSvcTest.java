@@ -0,0 +1,271 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NdjsonExportSvcTest {
+
+  private static final FhirContext ourFhirContext = FhirContext.forR4();
+  private static final long NOW = System.currentTimeMillis();
+
+  @Rule
+  public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private BasicDataSource myDataSource;
+  private Path myDirectory;
+
+  @Before
+  public void before() throws Exception {
+    myDataSource = new BasicDataSource();
+    myDataSource.setDriverClassName("org.h2.Driver");
+    myDataSource.setUrl("jdbc:h2:mem:ndjsonExport" + System.nanoTime());
+    try (Connection connection = myDataSource.getConnection()) {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TABLE HFJ_RESOURCE (RES_ID BIGINT PRIMARY KEY, RES_TYPE VARCHAR(40), RES_UPDATED TIMESTAMP, RES_DELETED_AT TIMESTAMP)");
+        statement.execute("CREATE TABLE HFJ_RES_LINK (SRC_RESOURCE_ID BIGINT, TARGET_RESOURCE_ID BIGINT)");
+        statement.execute("CREATE TABLE HFJ_FORCED_ID (RESOURCE_PID BIGINT, RESOURCE_TYPE VARCHAR(40), FORCED_ID VARCHAR(100))");
+        // Patient 9 has a client assigned id
+        statement.execute("INSERT INTO HFJ_FORCED_ID VALUES (9, 'Patient', 'jane')");
+        // Each Observation refers to the Patient with its pid - 100, and 104 also links to 7 in another way
+        for (long pid = 101; pid <= 110; pid++) {
+          statement.execute("INSERT INTO HFJ_RES_LINK VALUES (" + pid + ", " + (pid - 100) + ")");
+        }
+        statement.execute("INSERT INTO HFJ_RES_LINK VALUES (104, 7)");
+      }
+      try (PreparedStatement insert = connection.prepareStatement("INSERT INTO HFJ_RESOURCE VALUES (?, ?, ?, ?)")) {
+        // Patients 1-25, with 13 deleted
+        for (long pid = 1; pid <= 25; pid++) {
+          insert(insert, pid, "Patient", NOW, pid == 13 ? NOW : null);
+        }
+        // Observations 101-110, the first half updated a day ago
+        for (long pid = 101; pid <= 110; pid++) {
+          insert(insert, pid, "Observation", pid <= 105 ? NOW - 86400000L : NOW, null);
+        }
+      }
+    }
+    myDirectory = myTemporaryFolder.newFolder("export").toPath();
+  }
+
+  @After
+  public void after() throws Exception {
+    myDataSource.close();
+  }
+
+  @Test
+  public void testExportsEveryTypeInChunks() throws Exception {
+    AtomicInteger chunks = new AtomicInteger();
+    try (NdjsonExportSvc svc = newSvc(true, (type, pids) -> {
+      chunks.incrementAndGet();
+      return load(type, pids);
+    })) {
+      svc.start();
+      NdjsonExportSvc.Job job = svc.submit(Collections.emptyList(), null, "http://localhost/fhir/$export");
+      awaitStatus(job, NdjsonExportSvc.Status.COMPLETE);
+
+      assertEquals("[Observation, Patient]", job.getResourceTypes().toString());
+      assertEquals("{Observation=10, Patient=24}", job.getOutputCounts().toString());
+      assertEquals(34, job.getResourceCount());
+      // 24 Patients and 10 Observations in chunks of 4
+      assertEquals(6 + 3, chunks.get());
+
+      List<String> patientIds = readIds(job.getFile("Patient"), true);
+      assertEquals(24, patientIds.size());
+      assertEquals("Patient/1", patientIds.get(0));
+      assertFalse(patientIds.contains("Patient/13"));
+      assertEquals("Patient/25", patientIds.get(23));
+    }
+  }
+
+  @Test
+  public void testExportsResourcesUpdatedSince() throws Exception {
+    try (NdjsonExportSvc svc = newSvc(false, NdjsonExportSvcTest::load)) {
+      svc.start();
+      NdjsonExportSvc.Job job = svc.submit(Collections.singletonList("Observation"), new Date(NOW - 3600000L), "http://localhost/fhir/$export");
+      awaitStatus(job, NdjsonExportSvc.Status.COMPLETE);
+
+      assertTrue(job.getFile("Observation").toString().endsWith("Observation.ndjson"));
+      assertEquals("[Observation/106, Observation/107, Observation/108, Observation/109, Observation/110]",
+        readIds(job.getFile("Observation"), false).toString());
+    }
+  }
+
+  @Test
+  public void testResumesFromCheckpoint() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    NdjsonExportSvc.Job job;
+    try (NdjsonExportSvc svc = newSvc(true, (type, pids) -> {
+      if (pids.get(0) > 8) {
+        // Stop after two chunks, as if the server was shut down
+        blocked.countDown();
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+      }
+      return load(type, pids);
+    })) {
+      svc.start();
+      job = svc.submit(Collections.singletonList("Patient"), null, "http://localhost/fhir/$export");
+      blocked.await();
+    }
+    assertEquals(NdjsonExportSvc.Status.IN_PROGRESS, NdjsonExportSvc.Job.read(myDirectory.resolve(job.getId())).getStatus());
+
+    // Bytes written after the last checkpoint are discarded
+    Files.write(job.getFile("Patient"), "partial chunk".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    AtomicLong firstPid = new AtomicLong();
+    try (NdjsonExportSvc svc = newSvc(true, (type, pids) -> {
+      firstPid.compareAndSet(0, pids.get(0));
+      return load(type, pids);
+    })) {
+      svc.start();
+      NdjsonExportSvc.Job resumed = svc.getJob(job.getId());
+      awaitStatus(resumed, NdjsonExportSvc.Status.COMPLETE);
+
+      assertEquals(9, firstPid.get());
+      List<String> ids = readIds(resumed.getFile("Patient"), true);
+      assertEquals(24, ids.size());
+      assertEquals(24, ids.stream().distinct().count());
+      assertEquals(24, resumed.getResourceCount());
+    }
+  }
+
+  @Test
+  public void testExportsCompartmentsOfGroupPatients() throws Exception {
+    NdjsonExportSvc.Job job;
+    List<Long> loaded = Collections.synchronizedList(new ArrayList<>());
+    try (NdjsonExportSvc svc = newSvc(false, (type, pids) -> {
+      loaded.addAll(pids);
+      return load(type, pids);
+    })) {
+      svc.start();
+      job = svc.submitPatients(Collections.emptyList(), null, "http://localhost/fhir/Group/1/$export", Arrays.asList("2", "7", "jane", "404"));
+      awaitStatus(job, NdjsonExportSvc.Status.COMPLETE);
+
+      assertEquals(Arrays.asList("Observation", "Patient"), job.getResourceTypes());
+      assertEquals("[Patient/2, Patient/7, Patient/jane]", readIds(job.getFile("Patient"), false).toString());
+      assertEquals("[Observation/102, Observation/107, Observation/109]", readIds(job.getFile("Observation"), false).toString());
+    }
+    Collections.sort(loaded);
+    assertEquals("only resources linked to the patients are loaded", Arrays.asList(2L, 7L, 9L, 102L, 104L, 107L, 109L), loaded);
+
+    // The patients are kept with the job
+    NdjsonExportSvc.Job read = NdjsonExportSvc.Job.read(myDirectory.resolve(job.getId()));
+    assertEquals(NdjsonExportSvc.Status.COMPLETE, read.getStatus());
+    assertEquals(3, read.getOutputCounts().get("Observation").longValue());
+  }
+
+  @Test
+  public void testPatientExportRejectsTypesOutsideCompartment() throws Exception {
+    try (NdjsonExportSvc svc = newSvc(false, NdjsonExportSvcTest::load)) {
+      assertTrue(svc.getPatientCompartmentTypes().contains("Observation"));
+      assertFalse(svc.getPatientCompartmentTypes().contains("Organization"));
+      try {
+        svc.submitPatients(Collections.singletonList("Organization"), null, "http://localhost/fhir/Patient/$export", null);
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals("Organization is not in the Patient compartment", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testJobWithoutStatusIsFailed() throws Exception {
+    Path partial = Files.createDirectories(myDirectory.resolve("partial"));
+    Files.write(partial.resolve(NdjsonExportSvc.JOB_FILE), Arrays.asList("types=Patient", "transactionTime=" + NOW), StandardCharsets.ISO_8859_1);
+    Path broken = Files.createDirectories(myDirectory.resolve("broken"));
+    Files.write(broken.resolve(NdjsonExportSvc.JOB_FILE), Collections.singletonList("types=Patient"), StandardCharsets.ISO_8859_1);
+
+    try (NdjsonExportSvc svc = newSvc(false, NdjsonExportSvcTest::load)) {
+      svc.start();
+      assertEquals(NdjsonExportSvc.Status.ERROR, svc.getJob("partial").getStatus());
+      assertNull(svc.getJob("broken"));
+    }
+  }
+
+  private NdjsonExportSvc newSvc(boolean theGzip, NdjsonExportSvc.ResourceLoader theResourceLoader) {
+    return new NdjsonExportSvc(ourFhirContext, myDataSource, theResourceLoader, myDirectory, theGzip, 4, 2, 24);
+  }
+
+  private static void insert(PreparedStatement theInsert, long thePid, String theType, long theUpdated, Long theDeleted) throws Exception {
+    theInsert.setLong(1, thePid);
+    theInsert.setString(2, theType);
+    theInsert.setTimestamp(3, new Timestamp(theUpdated));
+    theInsert.setTimestamp(4, theDeleted != null ? new Timestamp(theDeleted) : null);
+    theInsert.executeUpdate();
+  }
+
+  private static List<IBaseResource> load(String theResourceType, List<Long> thePids) {
+    List<IBaseResource> retVal = new ArrayList<>();
+    for (Long next : thePids) {
+      IBaseResource resource = theResourceType.equals("Patient")
+        ? new Patient().setActive(true)
+        : new Observation().setSubject(new Reference("Patient/" + patientId(next - 100)));
+      resource.setId(theResourceType + "/" + (theResourceType.equals("Patient") ? patientId(next) : Long.toString(next)));
+      retVal.add(resource);
+    }
+    return retVal;
+  }
+
+  private static String patientId(long thePid) {
+    return thePid == 9 ? "jane" : Long.toString(thePid);
+  }
+
+  private static void awaitStatus(NdjsonExportSvc.Job theJob, NdjsonExportSvc.Status theStatus) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (theJob.getStatus() != theStatus && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(theJob.getError(), theStatus, theJob.getStatus());
+  }
+
+  private static List<String> readIds(Path theFile, boolean theGzip) throws IOException {
+    try (InputStream in = theGzip ? new GZIPInputStream(Files.newInputStream(theFile)) : Files.newInputStream(theFile);
+         BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      return reader
+        .lines()
+        .map(t -> ourFhirContext.newJsonParser().parseResource(t).getIdElement().toUnqualifiedVersionless().getValue())
+        .collect(Collectors.toList());
+    }
+  }
+}
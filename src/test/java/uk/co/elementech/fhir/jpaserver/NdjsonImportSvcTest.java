@@ -0,0 +1,170 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NdjsonImportSvcTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  @Rule
+  public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private NdjsonImportSvc mySvc;
+
+  @After
+  public void after() {
+    if (mySvc != null) {
+      mySvc.close();
+    }
+  }
+
+  @Test
+  public void testImportsAllInputsInBatches() throws Exception {
+    List<IBaseResource> stored = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger writes = new AtomicInteger();
+    mySvc = new NdjsonImportSvc(ourCtx, t -> {
+      writes.incrementAndGet();
+      stored.addAll(t);
+    }, 3, 10);
+
+    StringBuilder patients = new StringBuilder();
+    for (int i = 0; i < 95; i++) {
+      patients.append("{\"resourceType\":\"Patient\",\"id\":\"p").append(i).append("\"}\n");
+    }
+    Path patientFile = myTemporaryFolder.newFile("Patient.ndjson").toPath();
+    Files.write(patientFile, patients.toString().getBytes(StandardCharsets.UTF_8));
+
+    Path observationFile = myTemporaryFolder.newFile("Observation.ndjson.gz").toPath();
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(observationFile))) {
+      for (int i = 0; i < 12; i++) {
+        out.write("{\"resourceType\":\"Observation\",\"status\":\"final\"}\n\n".getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    NdjsonImportSvc.Job job = await(mySvc.submit(Arrays.asList(NdjsonImportSvc.fileSource(patientFile), NdjsonImportSvc.fileSource(observationFile))));
+
+    assertEquals(NdjsonImportSvc.Status.COMPLETE, job.getStatus());
+    assertEquals(107, job.getImportedCount());
+    assertEquals(0, job.getFailedCount());
+    assertEquals(95, job.getImportedCountsByType().get("Patient").longValue());
+    assertEquals(12, job.getImportedCountsByType().get("Observation").longValue());
+    assertEquals(107, stored.size());
+    assertEquals("one write per batch", 10 + 2, writes.get());
+  }
+
+  @Test
+  public void testBadLinesOnlyFailThemselves() throws Exception {
+    List<IBaseResource> stored = Collections.synchronizedList(new ArrayList<>());
+    mySvc = new NdjsonImportSvc(ourCtx, t -> {
+      if (t.stream().anyMatch(r -> "rejected".equals(r.getIdElement().getIdPart()))) {
+        throw new IllegalStateException("rejected by the database");
+      }
+      stored.addAll(t);
+    }, 2, 5);
+
+    Path file = myTemporaryFolder.newFile("Patient.ndjson").toPath();
+    Files.write(file, Arrays.asList(
+      "{\"resourceType\":\"Patient\",\"id\":\"a\"}",
+      "{\"resourceType\":\"Patient\",\"id\":\"rejected\"}",
+      "{not json",
+      "{\"resourceType\":\"Patient\",\"id\":\"b\"}",
+      "{\"resourceType\":\"Patient\",\"id\":\"c\"}",
+      "{\"resourceType\":\"Patient\",\"id\":\"d\"}"));
+
+    NdjsonImportSvc.Job job = await(mySvc.submit(Collections.singletonList(NdjsonImportSvc.fileSource(file))));
+
+    assertEquals(NdjsonImportSvc.Status.COMPLETE, job.getStatus());
+    assertEquals(4, job.getImportedCount());
+    assertEquals(4, stored.size());
+    assertEquals(2, job.getFailedCount());
+    List<String> errors = new ArrayList<>(job.getErrors());
+    Collections.sort(errors);
+    assertEquals(2, errors.size());
+    assertTrue(errors.get(0), errors.get(0).startsWith("Patient.ndjson line 2: rejected by the database"));
+    assertTrue(errors.get(1), errors.get(1).startsWith("Patient.ndjson line 3: "));
+  }
+
+  @Test
+  public void testRetriedResourcesWithoutIdAreCreated() throws Exception {
+    List<String> updatedIds = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger nextId = new AtomicInteger();
+    mySvc = new NdjsonImportSvc(ourCtx, t -> {
+      // Assigns ids like the DAO does, before the transaction fails
+      for (IBaseResource next : t) {
+        if (next.getIdElement().hasIdPart()) {
+          updatedIds.add(next.getIdElement().getIdPart());
+        } else {
+          next.setId("Patient/" + nextId.incrementAndGet());
+        }
+      }
+      if (t.stream().anyMatch(r -> !((Patient) r).getActive())) {
+        throw new IllegalStateException("rejected by the database");
+      }
+    }, 1, 5);
+
+    Path file = myTemporaryFolder.newFile("Patient.ndjson").toPath();
+    Files.write(file, Arrays.asList(
+      "{\"resourceType\":\"Patient\",\"active\":true}",
+      "{\"resourceType\":\"Patient\",\"active\":false}",
+      "{\"resourceType\":\"Patient\",\"active\":true}",
+      "{\"resourceType\":\"Patient\",\"id\":\"a\",\"active\":true}"));
+
+    NdjsonImportSvc.Job job = await(mySvc.submit(Collections.singletonList(NdjsonImportSvc.fileSource(file))));
+
+    assertEquals(NdjsonImportSvc.Status.COMPLETE, job.getStatus());
+    assertEquals(3, job.getImportedCount());
+    assertEquals(1, job.getFailedCount());
+    assertEquals("only the resource with an id is updated", Arrays.asList("a", "a"), updatedIds);
+  }
+
+  @Test
+  public void testProviderOnlyReadsFilesFromImportDirectory() throws Exception {
+    mySvc = new NdjsonImportSvc(ourCtx, t -> {
+    }, 1, 10);
+    Path directory = myTemporaryFolder.newFolder("import").toPath();
+    Files.write(directory.resolve("Patient.ndjson"), new byte[0]);
+    Files.write(myTemporaryFolder.getRoot().toPath().resolve("secret.ndjson"), new byte[0]);
+    NdjsonImportProvider provider = new NdjsonImportProvider(ourCtx, mySvc, directory, id -> {
+      throw new AssertionError(id);
+    });
+
+    assertEquals("Patient.ndjson", provider.resolveSource("file:Patient.ndjson").getName());
+    for (String next : Arrays.asList("file:../secret.ndjson", "file:" + myTemporaryFolder.getRoot() + "/secret.ndjson", "file:Missing.ndjson")) {
+      try {
+        provider.resolveSource(next);
+        fail(next);
+      } catch (InvalidRequestException e) {
+        // expected
+      }
+    }
+  }
+
+  private static NdjsonImportSvc.Job await(NdjsonImportSvc.Job theJob) throws InterruptedException {
+    for (int i = 0; i < 200 && theJob.getStatus() == NdjsonImportSvc.Status.IN_PROGRESS; i++) {
+      Thread.sleep(50);
+    }
+    return theJob;
+  }
+}
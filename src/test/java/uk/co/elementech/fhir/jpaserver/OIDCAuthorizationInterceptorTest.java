@@ -0,0 +1,250 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.openid.connect.config.ServerConfiguration;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class OIDCAuthorizationInterceptorTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+  private static final String ISSUER = "http://issuer.example";
+  private static final String KEY_ID = "k1";
+
+  private KeyPair myKeyPair;
+  private SimpleMeterRegistry myMeterRegistry;
+  private OIDCAuthorizationInterceptor myInterceptor;
+
+  @Before
+  public void before() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    myKeyPair = generator.generateKeyPair();
+
+    RSAKey key = new RSAKey.Builder((RSAPublicKey) myKeyPair.getPublic()).keyID(KEY_ID).build();
+    JWTSigningAndValidationService validator = new DefaultJWTSigningAndValidationService(new JWKSetKeyStore(new JWKSet(key)));
+
+    myMeterRegistry = new SimpleMeterRegistry();
+    myInterceptor = new OIDCAuthorizationInterceptor();
+    myInterceptor.setServerConfigurationService(issuer -> {
+      ServerConfiguration config = new ServerConfiguration();
+      config.setIssuer(issuer);
+      config.setJwksUri(issuer + "/certs");
+      return config;
+    });
+    myInterceptor.setJwksValidatorService(new JwksValidatorService(null) {
+      @Override
+      public JWTSigningAndValidationService getValidator(String theJwksUri, String theKeyId) {
+        return validator;
+      }
+    });
+    myInterceptor.setMeterRegistry(myMeterRegistry);
+  }
+
+  @Test
+  public void testPhaseTimingsRecorded() throws Exception {
+    String token = sign("patient/Observation.read");
+
+    ServletRequestDetails request = request(token);
+    List<IAuthRule> rules = myInterceptor.buildRuleList(request);
+    assertEquals(3, rules.size());
+
+    AuthTimings timings = (AuthTimings) request.getAttribute(AuthTimings.ATTRIBUTE_NAME);
+    assertNotNull(timings);
+    for (AuthTimings.Phase next : AuthTimings.Phase.values()) {
+      assertTrue(next.name(), timings.getNanos(next) >= 0);
+      assertEquals(next.name(), 1, myMeterRegistry.get("auth.phase").tag("phase", next.getTagValue()).timer().count());
+    }
+    assertEquals(1, myMeterRegistry.get("auth.duration").tag("outcome", "authenticated").timer().count());
+
+    // The second request hits the verified token cache and skips the signature check
+    request = request(token);
+    myInterceptor.buildRuleList(request);
+    timings = (AuthTimings) request.getAttribute(AuthTimings.ATTRIBUTE_NAME);
+    assertEquals(-1, timings.getNanos(AuthTimings.Phase.SIGNATURE));
+    assertEquals(-1, timings.getNanos(AuthTimings.Phase.ISSUER_LOOKUP));
+    assertEquals(1, myMeterRegistry.get("auth.phase").tag("phase", "signature").timer().count());
+    assertEquals(2, myMeterRegistry.get("auth.phase").tag("phase", "rule_build").timer().count());
+  }
+
+  @Test
+  public void testRejectedRequestTimed() {
+    ServletRequestDetails request = request(null);
+    List<IAuthRule> rules = myInterceptor.buildRuleList(request);
+    assertEquals(2, rules.size());
+
+    assertNotNull(request.getAttribute(AuthTimings.ATTRIBUTE_NAME));
+    assertEquals(1, myMeterRegistry.get("auth.duration").tag("outcome", "rejected").timer().count());
+    assertEquals(0, myMeterRegistry.get("auth.phase").tag("phase", "parse").timer().count());
+  }
+
+  @Test
+  public void testSearchScopeDoesNotAllowReadById() throws Exception {
+    ServletRequestDetails request = request(sign("user/Observation.s"));
+    request.setServer(new RestfulServer(ourCtx));
+    Observation observation = new Observation();
+    observation.setId("Observation/1");
+
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.SEARCH_TYPE, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, observation.getIdElement(), null, Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED).getDecision());
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+  }
+
+  @Test
+  public void testUpdateScopeDoesNotAllowCreate() throws Exception {
+    ServletRequestDetails request = request(sign("user/Observation.u"));
+    request.setServer(new RestfulServer(ourCtx));
+    Observation observation = new Observation();
+    observation.setId("Observation/1");
+
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.UPDATE, request, observation, observation.getIdElement(), null, Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED).getDecision());
+    observation.setId((String) null);
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.CREATE, request, observation, null, null, Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED).getDecision());
+  }
+
+  @Test
+  public void testVersionOneScopesAllowBothOperations() throws Exception {
+    ServletRequestDetails request = request(sign("user/Observation.read user/Observation.write"));
+    request.setServer(new RestfulServer(ourCtx));
+    Observation observation = new Observation();
+    observation.setId("Observation/1");
+
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.SEARCH_TYPE, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.UPDATE, request, observation, observation.getIdElement(), null, Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED).getDecision());
+    observation.setId((String) null);
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.CREATE, request, observation, null, null, Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED).getDecision());
+  }
+
+  @Test
+  public void testSystemScopesIgnoredByDefault() throws Exception {
+    ServletRequestDetails request = request(sign("system/Observation.rs"));
+    request.setServer(new RestfulServer(ourCtx));
+    Observation observation = new Observation();
+    observation.setId("Observation/1");
+
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+
+    // Other scopes of the token still apply
+    request = request(sign("system/Patient.cruds user/Observation.rs"));
+    request.setServer(new RestfulServer(ourCtx));
+    Patient patient = new Patient();
+    patient.setId("Patient/456");
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, patient, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+  }
+
+  @Test
+  public void testSystemScopesAllowEveryResourceWhenEnabled() throws Exception {
+    myInterceptor.setSystemScopesEnabled(true);
+    ServletRequestDetails request = request(sign("system/Observation.rs"));
+    request.setServer(new RestfulServer(ourCtx));
+    Observation observation = new Observation();
+    observation.setId("Observation/1");
+    observation.setSubject(new Reference("Patient/456"));
+
+    assertEquals(PolicyEnum.ALLOW, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, request, null, null, observation, Pointcut.SERVER_OUTGOING_RESPONSE).getDecision());
+    observation.setId((String) null);
+    assertEquals(PolicyEnum.DENY, myInterceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.CREATE, request, observation, null, null, Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED).getDecision());
+  }
+
+  @Test
+  public void testAlternativeTokenHeaderReadPerRequest() throws Exception {
+    String token = sign("patient/Observation.read");
+    assertEquals(2, myInterceptor.buildRuleList(request("X-Access-Token", "MYTOKEN" + token)).size());
+
+    try {
+      HapiProperties.setProperty("oauth.token.name", "X-Access-Token");
+      HapiProperties.setProperty("oauth.token.prefix", "MYTOKEN");
+      assertEquals(3, myInterceptor.buildRuleList(request("X-Access-Token", "MYTOKEN" + token)).size());
+      assertEquals(2, myInterceptor.buildRuleList(request("X-Access-Token", "OTHER" + token)).size());
+    } finally {
+      HapiProperties.forceReload();
+    }
+  }
+
+  private String sign(String theScope) throws Exception {
+    JWTClaimsSet claims = new JWTClaimsSet.Builder()
+      .issuer(ISSUER)
+      .issueTime(new Date())
+      .expirationTime(new Date(System.currentTimeMillis() + 60000))
+      .claim("scope", theScope)
+      .claim("patient", "123")
+      .build();
+    SignedJWT retVal = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(KEY_ID).build(), claims);
+    retVal.sign(new RSASSASigner(myKeyPair.getPrivate()));
+    return retVal.serialize();
+  }
+
+  /**
+   * A request carrying the given bearer token, backed by a minimal servlet request
+   * that only supports headers and attributes
+   */
+  static ServletRequestDetails request(String theToken) {
+    return request(Constants.HEADER_AUTHORIZATION, theToken != null ? Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + theToken : null);
+  }
+
+  /**
+   * A request carrying the given header, backed by a minimal servlet request
+   * that only supports headers and attributes
+   */
+  static ServletRequestDetails request(String theHeaderName, String theHeaderValue) {
+    Map<String, Object> attributes = new HashMap<>();
+    HttpServletRequest servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+      OIDCAuthorizationInterceptorTest.class.getClassLoader(),
+      new Class<?>[]{HttpServletRequest.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getHeader":
+            return theHeaderName.equals(args[0]) ? theHeaderValue : null;
+          case "getAttribute":
+            return attributes.get(args[0]);
+          case "setAttribute":
+            attributes.put((String) args[0], args[1]);
+            return null;
+          case "getRemoteAddr":
+            return "127.0.0.1";
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+    ServletRequestDetails retVal = new ServletRequestDetails(null);
+    retVal.setServletRequest(servletRequest);
+    return retVal;
+  }
+}
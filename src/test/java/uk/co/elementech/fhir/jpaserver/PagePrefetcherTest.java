@@ -0,0 +1,192 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PagePrefetcherTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+  private final Map<String, String> myLoads = new ConcurrentHashMap<>();
+  private PagePrefetcher myPrefetcher;
+  private Server myServer;
+  private String myBase;
+
+  @After
+  public void after() throws Exception {
+    myPrefetcher.close();
+    myServer.stop();
+  }
+
+  @Test
+  public void testServesPrefetchedPages() throws Exception {
+    start(1000);
+
+    Bundle page = get("/Patient?_count=10", "Bearer a");
+    awaitLoad("10-20");
+    for (int i = 1; i < 5; i++) {
+      page = get(page.getLink("next").getUrl(), "Bearer a");
+      assertEquals(ids(i * 10, i * 10 + 10), ids(page));
+      if (i < 4) {
+        awaitLoad((i + 1) * 10 + "-" + (i * 10 + 20));
+      }
+    }
+    assertEquals(4, prefetch("hit"), 0);
+    assertEquals(0, prefetch("miss"), 0);
+    assertTrue("the first page is loaded by the request", myLoads.get("0-10").startsWith("qtp"));
+    assertEquals(0, myPrefetcher.size());
+  }
+
+  @Test
+  public void testPrefetchedPagesAreOnlyServedToTheirClient() throws Exception {
+    start(1000);
+
+    Bundle page = get("/Patient?_count=10", "Bearer a");
+    awaitLoad("10-20");
+    page = get(page.getLink("next").getUrl(), "Bearer b");
+    assertEquals(ids(10, 20), ids(page));
+    assertEquals(0, prefetch("hit"), 0);
+    assertEquals(1, prefetch("miss"), 0);
+  }
+
+  @Test
+  public void testLoadsOnDemandOverBudget() throws Exception {
+    start(5);
+
+    Bundle page = get("/Patient?_count=10", null);
+    page = get(page.getLink("next").getUrl(), null);
+    assertEquals(ids(10, 20), ids(page));
+    assertEquals(0, prefetch("hit"), 0);
+    assertEquals(1, prefetch("miss"), 0);
+    assertEquals(0, myPrefetcher.size());
+  }
+
+  private void start(long theMaxResources) throws Exception {
+    RestfulServer server = new RestfulServer(ourCtx);
+    server.registerProvider(new PatientProvider());
+    server.setPagingProvider(new PrefetchingFifoPagingProvider(theMaxResources));
+
+    myServer = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(server), "/*");
+    myServer.setHandler(context);
+    myServer.start();
+    myBase = "http://localhost:" + ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+  }
+
+  private void awaitLoad(String theRange) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!myLoads.containsKey(theRange) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(theRange, String.valueOf(myLoads.get(theRange)).startsWith("paging-prefetch-"));
+  }
+
+  private double prefetch(String theResult) {
+    return myMeterRegistry.get(PagePrefetcher.PREFETCH_METER).tag("result", theResult).counter().count();
+  }
+
+  private Bundle get(String theUrl, String theAuthorization) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(theUrl.startsWith("http") ? theUrl : myBase + theUrl).openConnection();
+    connection.setRequestProperty("Accept", "application/fhir+json");
+    if (theAuthorization != null) {
+      connection.setRequestProperty("Authorization", theAuthorization);
+    }
+    assertEquals(theUrl, 200, connection.getResponseCode());
+    return ourCtx.newJsonParser().parseResource(Bundle.class, IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  private static List<String> ids(int theFrom, int theTo) {
+    List<String> retVal = new ArrayList<>();
+    for (int i = theFrom; i < theTo; i++) {
+      retVal.add(Integer.toString(i));
+    }
+    return retVal;
+  }
+
+  private static List<String> ids(Bundle theBundle) {
+    List<String> retVal = new ArrayList<>();
+    for (Bundle.BundleEntryComponent next : theBundle.getEntry()) {
+      retVal.add(next.getResource().getIdElement().getIdPart());
+    }
+    return retVal;
+  }
+
+  /**
+   * Prefetches like {@link PrefetchingPagingProvider}, over HAPI's in-memory paging provider
+   */
+  private class PrefetchingFifoPagingProvider extends FifoMemoryPagingProvider {
+
+    private PrefetchingFifoPagingProvider(long theMaxResources) {
+      super(10);
+      myPrefetcher = new PagePrefetcher(super::retrieveResultList, null, 1, 4, theMaxResources, myMeterRegistry);
+    }
+
+    @Override
+    public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId) {
+      return myPrefetcher.wrap(theRequestDetails, theId, super.retrieveResultList(theRequestDetails, theId));
+    }
+
+    @Override
+    public String storeResultList(RequestDetails theRequestDetails, IBundleProvider theList) {
+      String retVal = super.storeResultList(theRequestDetails, theList);
+      myPrefetcher.prefetch(theRequestDetails, retVal, 10, 20);
+      return retVal;
+    }
+  }
+
+  public class PatientProvider implements IResourceProvider {
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Patient.class;
+    }
+
+    @Search
+    public IBundleProvider search() {
+      List<IBaseResource> patients = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        Patient patient = new Patient();
+        patient.setId(new IdType("Patient", Integer.toString(i)));
+        patients.add(patient);
+      }
+      return new SimpleBundleProvider(patients) {
+        @Override
+        public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+          myLoads.put(theFromIndex + "-" + theToIndex, Thread.currentThread().getName());
+          return super.getResources(theFromIndex, theToIndex);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses separate in-memory H2 databases as the primary and its replicas. Each
+ * holds a one-row table naming the database, so a query shows where a
+ * connection was routed.
+ */
+public class ReplicaRoutingDataSourceTest {
+
+  private SimpleMeterRegistry myMeterRegistry;
+  private ReplicaRoutingDataSource myDataSource;
+
+  @Before
+  public void before() throws Exception {
+    myMeterRegistry = new SimpleMeterRegistry();
+    myDataSource = new ReplicaRoutingDataSource(
+      database("primary"),
+      Arrays.asList(database("replica0"), database("replica1")),
+      ReplicaRoutingDataSource.Selection.ROUND_ROBIN,
+      myMeterRegistry);
+  }
+
+  @After
+  public void after() throws Exception {
+    ReplicaRoutingDataSource.setReadOnlyRequest(false);
+    myDataSource.close();
+  }
+
+  @Test
+  public void testWritesGoToPrimary() throws Exception {
+    assertEquals("primary", whichDatabase(myDataSource));
+    assertEquals(1.0, myMeterRegistry.get("datasource.routing").tag("target", "primary").counter().count(), 0.0);
+  }
+
+  @Test
+  public void testReadsRoundRobinOverReplicas() throws Exception {
+    ReplicaRoutingDataSource.setReadOnlyRequest(true);
+    String first = whichDatabase(myDataSource);
+    String second = whichDatabase(myDataSource);
+    assertTrue(first.startsWith("replica"));
+    assertTrue(second.startsWith("replica"));
+    assertFalse(first.equals(second));
+    assertEquals(first, whichDatabase(myDataSource));
+  }
+
+  @Test
+  public void testLeastLoadedReplica() throws Exception {
+    BasicDataSource replica0 = database("least0");
+    BasicDataSource replica1 = database("least1");
+    try (ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(database("leastPrimary"), Arrays.asList(replica0, replica1), ReplicaRoutingDataSource.Selection.LEAST_LOADED, myMeterRegistry)) {
+      ReplicaRoutingDataSource.setReadOnlyRequest(true);
+      try (Connection busy = replica0.getConnection()) {
+        for (int i = 0; i < 3; i++) {
+          assertEquals("least1", whichDatabase(dataSource));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testUnavailableReplicaFallsBackToPrimary() throws Exception {
+    BasicDataSource broken = new BasicDataSource();
+    broken.setDriverClassName("org.h2.Driver");
+    broken.setUrl("jdbc:h2:mem:broken;IFEXISTS=TRUE");
+    try (ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(database("fallbackPrimary"), Arrays.asList(broken), ReplicaRoutingDataSource.Selection.ROUND_ROBIN, myMeterRegistry)) {
+      ReplicaRoutingDataSource.setReadOnlyRequest(true);
+      assertEquals("fallbackPrimary", whichDatabase(dataSource));
+      assertEquals("fallbackPrimary", whichDatabase(dataSource));
+      assertEquals("replica is skipped once it has failed", -1, dataSource.selectReplica());
+      assertEquals(2.0, myMeterRegistry.get("datasource.routing").tag("target", "fallback").counter().count(), 0.0);
+    }
+  }
+
+  @Test
+  public void testInterceptorReadYourWrites() throws Exception {
+    ReplicaRoutingInterceptor interceptor = new ReplicaRoutingInterceptor(EnumSet.of(RestOperationTypeEnum.READ), 60000);
+
+    ServletRequestDetails read = OIDCAuthorizationInterceptorTest.request("client-a");
+    read.setRestOperationType(RestOperationTypeEnum.READ);
+    interceptor.incomingRequestPreHandled(read, RestOperationTypeEnum.READ);
+    assertTrue(ReplicaRoutingDataSource.isReadOnlyRequest());
+    interceptor.processingCompleted(read);
+    assertFalse(ReplicaRoutingDataSource.isReadOnlyRequest());
+
+    ServletRequestDetails search = OIDCAuthorizationInterceptorTest.request("client-a");
+    interceptor.incomingRequestPreHandled(search, RestOperationTypeEnum.SEARCH_TYPE);
+    assertFalse("not a replica operation", ReplicaRoutingDataSource.isReadOnlyRequest());
+    interceptor.processingCompleted(search);
+
+    ServletRequestDetails update = OIDCAuthorizationInterceptorTest.request("client-a");
+    update.setRestOperationType(RestOperationTypeEnum.UPDATE);
+    interceptor.incomingRequestPreHandled(update, RestOperationTypeEnum.UPDATE);
+    interceptor.processingCompleted(update);
+
+    // The writer reads its own writes from the primary, other clients still use the replicas
+    interceptor.incomingRequestPreHandled(OIDCAuthorizationInterceptorTest.request("client-a"), RestOperationTypeEnum.READ);
+    assertFalse(ReplicaRoutingDataSource.isReadOnlyRequest());
+    interceptor.incomingRequestPreHandled(OIDCAuthorizationInterceptorTest.request("client-b"), RestOperationTypeEnum.READ);
+    assertTrue(ReplicaRoutingDataSource.isReadOnlyRequest());
+  }
+
+  private static BasicDataSource database(String theName) throws Exception {
+    BasicDataSource retVal = new BasicDataSource();
+    retVal.setDriverClassName("org.h2.Driver");
+    retVal.setUrl("jdbc:h2:mem:" + theName + ";DB_CLOSE_DELAY=-1");
+    try (Connection connection = retVal.getConnection(); Statement statement = connection.createStatement()) {
+      statement.execute("create table if not exists whoami (name varchar(20))");
+      statement.execute("delete from whoami");
+      statement.execute("insert into whoami values ('" + theName + "')");
+    }
+    return retVal;
+  }
+
+  private static String whichDatabase(DataSource theDataSource) throws Exception {
+    try (Connection connection = theDataSource.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("select name from whoami")) {
+      resultSet.next();
+      return resultSet.getString(1);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.jdbc.JdbcStatement;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestMetricsInterceptorTest {
+
+  @Test
+  public void testStatementTiming() throws Exception {
+    BasicDataSource target = new BasicDataSource();
+    target.setDriverClassName("org.h2.Driver");
+    target.setUrl("jdbc:h2:mem:statementTiming");
+    try (StatementTimingDataSource dataSource = new StatementTimingDataSource(target)) {
+      StatementTimingDataSource.startRecording();
+      try (Connection connection = dataSource.getConnection();
+           PreparedStatement statement = connection.prepareStatement("select count(*) from information_schema.tables");
+           ResultSet resultSet = statement.executeQuery()) {
+        resultSet.next();
+
+        // Hibernate keeps the statements it has open in hash sets
+        Set<Statement> statements = new HashSet<>();
+        statements.add(statement);
+        assertTrue(statements.remove(statement));
+      }
+      assertTrue(StatementTimingDataSource.stopRecording() > 0);
+      assertEquals("not recording", -1, StatementTimingDataSource.stopRecording());
+    }
+  }
+
+  @Test
+  public void testStatementTimingUnwrapsVendorInterfaces() throws Exception {
+    BasicDataSource target = new BasicDataSource();
+    target.setDriverClassName("org.h2.Driver");
+    target.setUrl("jdbc:h2:mem:statementTimingUnwrap");
+    try (StatementTimingDataSource dataSource = new StatementTimingDataSource(target);
+         Connection connection = dataSource.getConnection();
+         Statement statement = connection.createStatement()) {
+      assertSame(connection, connection.unwrap(Connection.class));
+      assertTrue(connection.isWrapperFor(JdbcConnection.class));
+      assertTrue(connection.unwrap(JdbcConnection.class) instanceof JdbcConnection);
+      assertFalse(connection.isWrapperFor(Runnable.class));
+
+      assertSame(statement, statement.unwrap(Statement.class));
+      assertTrue(statement.unwrap(JdbcStatement.class) instanceof JdbcStatement);
+    }
+  }
+
+  @Test
+  public void testRecordsRequestAndPhases() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    RequestMetricsInterceptor interceptor = new RequestMetricsInterceptor(meterRegistry);
+
+    for (int i = 0; i < 3; i++) {
+      ServletRequestDetails request = OIDCAuthorizationInterceptorTest.request(null);
+      request.setServletResponse(AccessLogInterceptorTest.response(new ByteArrayOutputStream()));
+      request.setRestOperationType(RestOperationTypeEnum.SEARCH_TYPE);
+      request.setResourceName("Observation");
+
+      interceptor.incomingRequestPostProcessed(request);
+      AuthTimings authTimings = new AuthTimings();
+      authTimings.finish();
+      request.setAttribute(AuthTimings.ATTRIBUTE_NAME, authTimings);
+      interceptor.outgoingResponse(request);
+      interceptor.processingCompleted(request);
+    }
+
+    assertEquals(3, meterRegistry.get(RequestMetricsInterceptor.REQUEST_TIMER)
+      .tags("operation", "search-type", "resource", "Observation", "status", "200").timer().count());
+    for (String next : new String[]{"database", "serialization", "auth"}) {
+      assertEquals(next, 3, meterRegistry.get(RequestMetricsInterceptor.PHASE_TIMER)
+        .tags("phase", next, "operation", "search-type", "resource", "Observation").timer().count());
+    }
+
+    Parameters parameters = (Parameters) new MetricsProvider(FhirContext.forR4(), meterRegistry).metrics();
+    Parameters.ParametersParameterComponent request = parameters.getParameter().stream()
+      .filter(t -> t.getName().equals("request"))
+      .findFirst()
+      .orElseThrow(IllegalStateException::new);
+    List<String> partNames = request.getPart().stream().map(Parameters.ParametersParameterComponent::getName).collect(Collectors.toList());
+    assertEquals("[operation, resource, status, count, meanMillis, p50Millis, p95Millis, p99Millis, maxMillis]", partNames.toString());
+    assertEquals("Observation", request.getPart().get(1).getValue().primitiveValue());
+    assertEquals("3", request.getPart().get(3).getValue().primitiveValue());
+    assertEquals(4, parameters.getParameter().size());
+  }
+}
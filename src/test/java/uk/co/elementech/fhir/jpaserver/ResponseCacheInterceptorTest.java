@@ -0,0 +1,191 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheInterceptorTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final Map<String, Patient> myPatients = new ConcurrentHashMap<>();
+  private SimpleMeterRegistry myMeterRegistry;
+  private ResponseCacheInterceptor myInterceptor;
+  private Server myServer;
+  private String myBase;
+
+  @Before
+  public void before() throws Exception {
+    myMeterRegistry = new SimpleMeterRegistry();
+    myInterceptor = new ResponseCacheInterceptor(ourCtx, 1024 * 1024, myMeterRegistry);
+
+    RestfulServer cached = new RestfulServer(ourCtx);
+    cached.registerProvider(new PatientProvider());
+    cached.registerInterceptor(myInterceptor);
+    RestfulServer plain = new RestfulServer(ourCtx);
+    plain.registerProvider(new PatientProvider());
+
+    myServer = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(cached), "/cached/*");
+    context.addServlet(new ServletHolder(plain), "/plain/*");
+    myServer.setHandler(context);
+    myServer.start();
+    myBase = "http://localhost:" + ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+
+    store("1", "1", "Smith");
+  }
+
+  @After
+  public void after() throws Exception {
+    myServer.stop();
+  }
+
+  @Test
+  public void testServesUnchangedVersionFromCache() throws Exception {
+    for (String next : new String[]{"", "?_format=xml", "?_pretty=true", "?_summary=true", "?_elements=name"}) {
+      Response expected = get("/plain/Patient/1" + next, false);
+      assertEquals(expected, get("/cached/Patient/1" + next, false));
+      assertEquals(expected, get("/cached/Patient/1" + next, false));
+    }
+    assertEquals(5, hits(), 0);
+
+    Response expected = get("/plain/Patient/1", true);
+    assertEquals(expected, get("/cached/Patient/1", true));
+    assertEquals(expected, get("/cached/Patient/1", true));
+    assertEquals(6, hits(), 0);
+  }
+
+  @Test
+  public void testDoesNotServeStaleVersions() throws Exception {
+    get("/cached/Patient/1", false);
+
+    store("1", "2", "Jones");
+    Response response = get("/cached/Patient/1", false);
+    assertEquals("W/\"2\"", response.myEtag);
+    assertTrue(response.myBody, response.myBody.contains("Jones"));
+
+    // Same version, different tags, as after $meta-add
+    myPatients.get("1").getMeta().addTag("http://example.com", "vip", null);
+    assertTrue(get("/cached/Patient/1", false).myBody.contains("vip"));
+    assertEquals(0, hits(), 0);
+  }
+
+  @Test
+  public void testLeavesOtherRequestsToServer() throws Exception {
+    assertEquals(404, get("/cached/Patient/2", false).myStatus);
+    get("/cached/Patient/1?_fhirpath=Patient.name", false);
+    assertEquals(0, myInterceptor.size());
+
+    get("/cached/Patient/1", false);
+    myInterceptor.resourceUpdated(null, myPatients.get("1"));
+    assertEquals(0, myInterceptor.size());
+  }
+
+  private void store(String theId, String theVersion, String theFamily) {
+    Patient patient = new Patient();
+    patient.setId(new IdType("Patient", theId, theVersion));
+    patient.getMeta().setLastUpdated(new Date());
+    patient.addName().setFamily(theFamily);
+    myPatients.put(theId, patient);
+  }
+
+  private double hits() {
+    return myMeterRegistry.get("cache.gets").tag("cache", ResponseCacheInterceptor.CACHE_NAME).tag("result", "hit").counter().count();
+  }
+
+  private Response get(String thePath, boolean theGzip) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(myBase + thePath).openConnection();
+    connection.setRequestProperty("Accept", "application/fhir+json");
+    if (theGzip) {
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    Response retVal = new Response();
+    retVal.myStatus = connection.getResponseCode();
+    retVal.myContentType = connection.getContentType();
+    retVal.myEtag = connection.getHeaderField("ETag");
+    retVal.myLastModified = connection.getHeaderField("Last-Modified");
+    retVal.myContentEncoding = connection.getHeaderField("Content-Encoding");
+    InputStream in = retVal.myStatus < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if ("gzip".equals(retVal.myContentEncoding)) {
+      in = new GZIPInputStream(in);
+    }
+    retVal.myBody = IOUtils.toString(in, StandardCharsets.UTF_8);
+    return retVal;
+  }
+
+  private class PatientProvider implements IResourceProvider {
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Patient.class;
+    }
+
+    @Read
+    public Patient read(@IdParam IdType theId) {
+      Patient retVal = myPatients.get(theId.getIdPart());
+      if (retVal == null) {
+        throw new ResourceNotFoundException(theId);
+      }
+      return retVal.copy();
+    }
+  }
+
+  private static class Response {
+
+    private int myStatus;
+    private String myContentType;
+    private String myEtag;
+    private String myLastModified;
+    private String myContentEncoding;
+    private String myBody;
+
+    @Override
+    public boolean equals(Object theOther) {
+      Response other = (Response) theOther;
+      return myStatus == other.myStatus
+        && myContentType.replace(" ", "").equalsIgnoreCase(other.myContentType.replace(" ", ""))
+        && String.valueOf(myEtag).equals(String.valueOf(other.myEtag))
+        && String.valueOf(myLastModified).equals(String.valueOf(other.myLastModified))
+        && String.valueOf(myContentEncoding).equals(String.valueOf(other.myContentEncoding))
+        && myBody.equals(other.myBody);
+    }
+
+    @Override
+    public int hashCode() {
+      return myBody.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return myStatus + " " + myContentType + " " + myEtag + " " + myLastModified + " " + myContentEncoding + "\n" + myBody;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RestHookDeliveryQueueTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+  private final List<String> myBodies = new CopyOnWriteArrayList<>();
+  private final List<String> myAuthorizations = new CopyOnWriteArrayList<>();
+  private final AtomicInteger myFailures = new AtomicInteger();
+  private final AtomicInteger myConcurrent = new AtomicInteger();
+  private final AtomicInteger myMaxConcurrent = new AtomicInteger();
+  private volatile CountDownLatch myGate = new CountDownLatch(0);
+  private HttpServer myServer;
+  private String myEndpoint;
+  private RestHookDeliveryQueue myQueue;
+
+  @Before
+  public void before() throws Exception {
+    myServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    myServer.setExecutor(Executors.newCachedThreadPool());
+    myEndpoint = "http://localhost:" + myServer.getAddress().getPort() + "/hook";
+    myServer.createContext("/hook", exchange -> {
+      myMaxConcurrent.accumulateAndGet(myConcurrent.incrementAndGet(), Math::max);
+      try {
+        myGate.await();
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      myBodies.add(IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+      myAuthorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+      myConcurrent.decrementAndGet();
+      boolean fail = myFailures.getAndUpdate(t -> Math.max(t - 1, 0)) > 0;
+      exchange.sendResponseHeaders(fail ? 500 : 200, -1);
+      exchange.close();
+    });
+    myServer.start();
+  }
+
+  @After
+  public void after() {
+    myQueue.close();
+    myServer.stop(0);
+  }
+
+  @Test
+  public void testBatchesAndCoalescesPerWindow() throws Exception {
+    myQueue = new RestHookDeliveryQueue(ourCtx, 300, 100, 2, 100, 2, myMeterRegistry);
+    assertTrue(myQueue.offer(notification("1", "1")));
+    assertTrue(myQueue.offer(notification("2", "1")));
+    assertTrue(myQueue.offer(notification("1", "2")));
+    assertTrue(myQueue.offer(deleted("3")));
+    await(() -> myQueue.size() == 0);
+
+    assertEquals(1, myBodies.size());
+    Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, myBodies.get(0));
+    assertEquals(Bundle.BundleType.BATCH, bundle.getType());
+    assertEquals(3, bundle.getEntry().size());
+    assertEquals(Bundle.HTTPVerb.PUT, bundle.getEntry().get(0).getRequest().getMethod());
+    assertEquals("Patient/1", bundle.getEntry().get(0).getRequest().getUrl());
+    assertEquals("2", bundle.getEntry().get(0).getResource().getMeta().getVersionId());
+    assertEquals("Patient/2", bundle.getEntry().get(1).getRequest().getUrl());
+    assertEquals(Bundle.HTTPVerb.DELETE, bundle.getEntry().get(2).getRequest().getMethod());
+    assertEquals("Patient/3", bundle.getEntry().get(2).getRequest().getUrl());
+    assertEquals("Bearer secret", myAuthorizations.get(0));
+
+    assertEquals(3, count("delivered"), 0);
+    assertEquals(1, count("coalesced"), 0);
+    assertEquals(3, myMeterRegistry.get(RestHookDeliveryQueue.LATENCY_METER).timer().count());
+  }
+
+  @Test
+  public void testNotifiesWithoutPayloadOncePerBatch() throws Exception {
+    myQueue = new RestHookDeliveryQueue(ourCtx, 300, 100, 2, 100, 2, myMeterRegistry);
+    for (int i = 0; i < 3; i++) {
+      myQueue.offer(new RestHookDeliveryQueue.Notification(myEndpoint, null, null, "Patient/" + i, null));
+    }
+    await(() -> myQueue.size() == 0);
+    assertEquals(Collections.singletonList(""), myBodies);
+  }
+
+  @Test
+  public void testLimitsBatchesInFlight() throws Exception {
+    myQueue = new RestHookDeliveryQueue(ourCtx, 0, 1, 2, 100, 8, myMeterRegistry);
+    for (int i = 0; i < 10; i++) {
+      myQueue.offer(notification(Integer.toString(i), "1"));
+    }
+    await(() -> myQueue.size() == 0);
+    assertEquals(10, myBodies.size());
+    assertEquals(2, myMaxConcurrent.get());
+  }
+
+  @Test
+  public void testRetriesWithBackoff() throws Exception {
+    myFailures.set(2);
+    myQueue = new RestHookDeliveryQueue(ourCtx, 0, 100, 1, 100, 2, myMeterRegistry);
+    myQueue.setRetry(5, 10, 100);
+    myQueue.offer(notification("1", "1"));
+    await(() -> myQueue.size() == 0);
+    assertEquals(3, myBodies.size());
+    assertEquals(1, count("delivered"), 0);
+  }
+
+  @Test
+  public void testDropsAfterMaxAttempts() throws Exception {
+    myFailures.set(Integer.MAX_VALUE);
+    myQueue = new RestHookDeliveryQueue(ourCtx, 0, 100, 1, 100, 2, myMeterRegistry);
+    myQueue.setRetry(2, 10, 10);
+    myQueue.offer(notification("1", "1"));
+    await(() -> myQueue.size() == 0);
+    assertEquals(2, myBodies.size());
+    assertEquals(1, count("failed"), 0);
+  }
+
+  @Test
+  public void testWaitsWhenQueueIsFull() throws Exception {
+    myGate = new CountDownLatch(1);
+    myQueue = new RestHookDeliveryQueue(ourCtx, 0, 1, 1, 1, 2, myMeterRegistry);
+    assertTrue(myQueue.offer(notification("1", "1")));
+    await(() -> myQueue.size() == 1 && myConcurrent.get() == 1);
+    assertTrue(myQueue.offer(notification("2", "1")));
+    // Replaces the queued notification of the same resource without waiting
+    assertTrue(myQueue.offer(notification("2", "2")));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> offered = executor.submit(() -> myQueue.offer(notification("3", "1")));
+      Thread.sleep(200);
+      assertFalse(offered.isDone());
+
+      myGate.countDown();
+      assertTrue(offered.get(10, TimeUnit.SECONDS));
+      await(() -> myQueue.size() == 0);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(3, myBodies.size());
+    Bundle second = ourCtx.newJsonParser().parseResource(Bundle.class, myBodies.get(1));
+    assertEquals("Patient/2", second.getEntry().get(0).getRequest().getUrl());
+    assertEquals("2", second.getEntry().get(0).getResource().getMeta().getVersionId());
+    Bundle third = ourCtx.newJsonParser().parseResource(Bundle.class, myBodies.get(2));
+    assertEquals("Patient/3", third.getEntry().get(0).getRequest().getUrl());
+    assertEquals(1, myMeterRegistry.get(RestHookDeliveryQueue.BACKPRESSURE_METER).timer().count());
+  }
+
+  private RestHookDeliveryQueue.Notification notification(String theId, String theVersion) {
+    Patient patient = new Patient();
+    patient.setId("Patient/" + theId + "/_history/" + theVersion);
+    patient.getMeta().setVersionId(theVersion);
+    return new RestHookDeliveryQueue.Notification(myEndpoint, Collections.singletonList("Authorization: Bearer secret"), EncodingEnum.JSON, "Patient/" + theId, patient);
+  }
+
+  private RestHookDeliveryQueue.Notification deleted(String theId) {
+    return new RestHookDeliveryQueue.Notification(myEndpoint, Collections.singletonList("Authorization: Bearer secret"), EncodingEnum.JSON, "Patient/" + theId, null);
+  }
+
+  private double count(String theResult) {
+    return myMeterRegistry.get(RestHookDeliveryQueue.NOTIFICATIONS_METER).tag("result", theResult).counter().count();
+  }
+
+  private static void await(BooleanSupplier theCondition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!theCondition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampledValidationInterceptorTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final AtomicInteger myValidated = new AtomicInteger();
+  private final IValidatorModule myValidatorModule = theContext -> {
+    if (!(theContext.getResource() instanceof Patient)) {
+      return;
+    }
+    myValidated.incrementAndGet();
+    Patient patient = (Patient) theContext.getResource();
+    if (patient.getNameFirstRep().getFamily().equals("Invalid")) {
+      SingleValidationMessage message = new SingleValidationMessage();
+      message.setSeverity(ResultSeverityEnum.ERROR);
+      message.setLocationString("Patient.name");
+      message.setMessage("Invalid name");
+      theContext.addValidationMessage(message);
+    }
+  };
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+  private SampledValidationInterceptor myInterceptor;
+  private Server myServer;
+  private String myBase;
+
+  @After
+  public void after() throws Exception {
+    myInterceptor.close();
+    myServer.stop();
+  }
+
+  @Test
+  public void testRejectsInvalidRequests() throws Exception {
+    start(100, 0);
+
+    assertEquals(201, post("Smith").myStatus);
+    Response response = post("Invalid");
+    assertEquals(422, response.myStatus);
+    assertTrue(response.myBody, response.myBody.contains("Invalid name"));
+    assertEquals(2, myValidated.get());
+    assertEquals(1, myMeterRegistry.get(SampledValidationInterceptor.VALIDATION_TIMER).tag("mode", "sync").tag("result", "invalid").timer().count());
+
+    Parameters results = validationResults();
+    assertEquals(1, results.getParameter().size());
+    assertEquals("POST " + myBase + "/Patient", results.getParameterFirstRep().getPart().get(0).getValue().primitiveValue());
+    assertEquals(0, validationResults().getParameter().size());
+  }
+
+  @Test
+  public void testValidatesOnlySampledRequests() throws Exception {
+    start(0, 0);
+
+    assertEquals(201, post("Invalid").myStatus);
+    assertEquals(0, myValidated.get());
+  }
+
+  @Test
+  public void testValidatesAfterTheFact() throws Exception {
+    start(100, 2);
+
+    assertEquals(201, post("Invalid").myStatus);
+    assertEquals(201, post("Smith").myStatus);
+    assertEquals(201, post("Invalid").myStatus);
+
+    Parameters results = new Parameters();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (results.getParameter().size() < 2 && System.currentTimeMillis() < deadline) {
+      validationResults().getParameter().forEach(results::addParameter);
+      Thread.sleep(10);
+    }
+    assertEquals(2, results.getParameter().size());
+    assertEquals(3, myValidated.get());
+    Parameters.ParametersParameterComponent outcome = results.getParameterFirstRep().getPart().stream()
+      .filter(t -> t.getName().equals("outcome"))
+      .findFirst()
+      .orElseThrow(AssertionError::new);
+    assertEquals("Invalid name", ((OperationOutcome) outcome.getResource()).getIssueFirstRep().getDiagnostics());
+  }
+
+  private void start(int theSamplePercent, int theThreads) throws Exception {
+    myInterceptor = new SampledValidationInterceptor(ourCtx, myValidatorModule, theSamplePercent, theThreads, 10, 10, myMeterRegistry);
+    RestfulServer server = new RestfulServer(ourCtx);
+    server.registerProviders(new PatientProvider(), new ValidationResultsProvider(ourCtx, myInterceptor));
+    server.registerInterceptor(myInterceptor);
+
+    myServer = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(server), "/*");
+    myServer.setHandler(context);
+    myServer.start();
+    myBase = "http://localhost:" + ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+  }
+
+  private Response post(String theFamily) throws Exception {
+    Patient patient = new Patient();
+    patient.addName().setFamily(theFamily);
+    HttpURLConnection connection = post("/Patient", patient);
+    Response retVal = new Response();
+    retVal.myStatus = connection.getResponseCode();
+    try (InputStream in = retVal.myStatus < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+      retVal.myBody = IOUtils.toString(in, StandardCharsets.UTF_8);
+    }
+    return retVal;
+  }
+
+  private HttpURLConnection post(String thePath, IBaseResource theResource) throws Exception {
+    HttpURLConnection retVal = (HttpURLConnection) new URL(myBase + thePath).openConnection();
+    retVal.setRequestMethod("POST");
+    retVal.setDoOutput(true);
+    retVal.setRequestProperty("Content-Type", "application/fhir+json");
+    retVal.setRequestProperty("Accept", "application/fhir+json");
+    try (OutputStream out = retVal.getOutputStream()) {
+      out.write(ourCtx.newJsonParser().encodeResourceToString(theResource).getBytes(StandardCharsets.UTF_8));
+    }
+    return retVal;
+  }
+
+  private Parameters validationResults() throws Exception {
+    HttpURLConnection connection = post("/" + ValidationResultsProvider.OPERATION_VALIDATION_RESULTS, new Parameters());
+    assertEquals(200, connection.getResponseCode());
+    return ourCtx.newJsonParser().parseResource(Parameters.class, IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  public static class PatientProvider implements IResourceProvider {
+
+    private final AtomicInteger myNextId = new AtomicInteger();
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Patient.class;
+    }
+
+    @Create
+    public MethodOutcome create(@ResourceParam Patient thePatient) {
+      return new MethodOutcome(new IdType("Patient", Integer.toString(myNextId.incrementAndGet()), "1"), true);
+    }
+  }
+
+  private static class Response {
+
+    private int myStatus;
+    private String myBody;
+  }
+}
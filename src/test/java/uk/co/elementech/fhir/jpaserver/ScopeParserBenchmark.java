@@ -0,0 +1,152 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the regex based scope parsing that {@link ScopeParser} replaced with
+ * the current tokenizer, over realistic scope claims of 5 to 40 scopes.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec -Dbenchmark=ScopeParserBenchmark</code>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScopeParserBenchmark {
+
+  static final String[] RESOURCE_TYPES = {
+    "Patient", "Observation", "Condition", "Encounter", "MedicationRequest", "AllergyIntolerance",
+    "Immunization", "Procedure", "DiagnosticReport", "DocumentReference", "CarePlan", "Goal",
+    "Practitioner", "Organization", "Location"
+  };
+
+  @Param({"5", "20", "40"})
+  public int myScopeCount;
+
+  private String myScopeClaim;
+
+  @Setup
+  public void setup() {
+    myScopeClaim = buildScopeClaim(myScopeCount);
+  }
+
+  /**
+   * A claim as an EHR would issue it: a few identity/launch scopes followed by
+   * a mix of patient and user, v1 and v2 resource scopes.
+   */
+  static String buildScopeClaim(int theScopeCount) {
+    String[] nonResourceScopes = {"openid", "fhirUser", "launch/patient", "offline_access"};
+    String[] suffixes = {"read", "rs", "write", "cruds", "*"};
+    List<String> scopes = new ArrayList<>();
+    for (int i = 0; i < theScopeCount; i++) {
+      if (i < nonResourceScopes.length && i < theScopeCount / 3) {
+        scopes.add(nonResourceScopes[i]);
+      } else {
+        String specificity = i % 3 == 0 ? "user" : "patient";
+        scopes.add(specificity + "/" + RESOURCE_TYPES[i % RESOURCE_TYPES.length] + "." + suffixes[i % suffixes.length]);
+      }
+    }
+    return String.join(" ", scopes);
+  }
+
+  @Benchmark
+  public void regexParser(Blackhole theBlackhole) {
+    for (RegexSmartScope scope : RegexSmartScope.parse(myScopeClaim.split(" "))) {
+      theBlackhole.consume(scope.canRead());
+      theBlackhole.consume(scope.canWrite());
+      theBlackhole.consume(scope.getResource());
+    }
+  }
+
+  @Benchmark
+  public void tokenizer(Blackhole theBlackhole) {
+    for (SmartScope scope : ScopeParser.parse(myScopeClaim)) {
+      theBlackhole.consume(scope.canRead());
+      theBlackhole.consume(scope.canWrite());
+      theBlackhole.consume(scope.getResource());
+    }
+  }
+
+  /**
+   * The tokenizer without the interned scope lookup, i.e. the cost the first
+   * time a scope string is seen.
+   */
+  @Benchmark
+  public void tokenizerUninterned(Blackhole theBlackhole) {
+    for (String next : myScopeClaim.split(" ")) {
+      SmartScope scope = ScopeParser.tokenize(next);
+      theBlackhole.consume(scope.canRead());
+      theBlackhole.consume(scope.canWrite());
+      theBlackhole.consume(scope.getResource());
+    }
+  }
+
+  /**
+   * The previous implementation: a pattern compiled per scope instance and
+   * string comparisons on every permission check.
+   */
+  static class RegexSmartScope {
+    private String specificity;
+    private String resource;
+    private String operation;
+
+    private Pattern pattern = Pattern.compile("^(patient|user)/([^.]+)\\.(.+)$");
+
+    static List<RegexSmartScope> parse(String[] theScopes) {
+      List<RegexSmartScope> retVal = new ArrayList<>();
+      for (String scope : theScopes) {
+        RegexSmartScope smartScope = new RegexSmartScope();
+        if (smartScope.matchSmartScope(scope)) {
+          retVal.add(smartScope);
+        }
+      }
+      return retVal;
+    }
+
+    boolean matchSmartScope(String scope) {
+      Matcher m = pattern.matcher(scope);
+      if (m.find()) {
+        specificity = m.group(1);
+        resource = m.group(2);
+        operation = m.group(3);
+        return true;
+      }
+      return false;
+    }
+
+    boolean isPatient() {
+      return specificity.equals("patient");
+    }
+
+    boolean canRead() {
+      return ((operation.equals("read")) || (operation.equals("*")));
+    }
+
+    boolean canWrite() {
+      return ((operation.equals("write")) || (operation.equals("*")));
+    }
+
+    String getResource() {
+      return resource;
+    }
+  }
+}
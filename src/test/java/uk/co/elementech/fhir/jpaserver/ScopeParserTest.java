@@ -0,0 +1,103 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScopeParserTest {
+
+  @Test
+  public void testV1Scopes() {
+    SmartScope read = ScopeParser.parseScope("patient/Observation.read");
+    assertTrue(read.isPatient());
+    assertEquals("Observation", read.getResource());
+    assertTrue(read.canRead());
+    assertFalse(read.canWrite());
+
+    SmartScope write = ScopeParser.parseScope("user/Patient.write");
+    assertTrue(write.isUser());
+    assertFalse(write.canRead());
+    assertTrue(write.has(SmartScope.Permission.CREATE));
+    assertTrue(write.has(SmartScope.Permission.UPDATE));
+    assertFalse(write.has(SmartScope.Permission.DELETE));
+
+    SmartScope all = ScopeParser.parseScope("user/*.*");
+    assertTrue(all.allResources());
+    assertTrue(all.canRead());
+    assertTrue(all.canWrite());
+  }
+
+  @Test
+  public void testV2Scopes() {
+    SmartScope rs = ScopeParser.parseScope("patient/Observation.rs");
+    assertTrue(rs.canRead());
+    assertFalse(rs.canWrite());
+
+    SmartScope cruds = ScopeParser.parseScope("system/*.cruds");
+    assertTrue(cruds.isSystem());
+    for (SmartScope.Permission next : SmartScope.Permission.values()) {
+      assertTrue(next.name(), cruds.has(next));
+    }
+
+    SmartScope cd = ScopeParser.parseScope("user/Encounter.cd");
+    assertTrue(cd.has(SmartScope.Permission.CREATE));
+    assertTrue(cd.has(SmartScope.Permission.DELETE));
+    assertFalse(cd.has(SmartScope.Permission.UPDATE));
+    assertFalse(cd.canRead());
+  }
+
+  @Test
+  public void testRejected() {
+    assertNull(ScopeParser.parseScope("openid"));
+    assertNull(ScopeParser.parseScope("launch/patient"));
+    assertNull(ScopeParser.parseScope("patient/.read"));
+    assertNull(ScopeParser.parseScope("patient/Observation."));
+    assertNull(ScopeParser.parseScope("admin/Observation.read"));
+    assertNull(ScopeParser.parseScope("patient/Observation.sr"));
+    assertNull(ScopeParser.parseScope("patient/Observation.rr"));
+    assertNull(ScopeParser.parseScope("patient/Observation.rx"));
+    assertNull(ScopeParser.parseScope("patient/Observation.rs?category=laboratory"));
+    assertNull(ScopeParser.parseScope("patient/Obs/ervation.read"));
+  }
+
+  @Test
+  public void testParseClaim() {
+    List<SmartScope> scopes = ScopeParser.parse("openid  fhirUser patient/Observation.read user/*.cruds ");
+    assertEquals(2, scopes.size());
+    assertEquals("patient/Observation.read", scopes.get(0).toString());
+    assertEquals("user/*.cruds", scopes.get(1).toString());
+    assertTrue(ScopeParser.parse((String) null).isEmpty());
+  }
+
+  @Test
+  public void testInterned() {
+    SmartScope first = ScopeParser.parseScope(new String("patient/Condition.read"));
+    SmartScope second = ScopeParser.parseScope(new String("patient/Condition.read"));
+    assertSame(first, second);
+    assertSame("Condition", first.getResource());
+  }
+
+  @Test
+  public void testAgreesWithRegexParserOnV1Scopes() {
+    for (int count : new int[]{5, 20, 40}) {
+      String claim = ScopeParserBenchmark.buildScopeClaim(count);
+      List<ScopeParserBenchmark.RegexSmartScope> expected = ScopeParserBenchmark.RegexSmartScope.parse(claim.split(" "));
+      List<SmartScope> actual = ScopeParser.parse(claim);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getResource(), actual.get(i).getResource());
+        assertEquals(expected.get(i).isPatient(), actual.get(i).isPatient());
+        if (expected.get(i).canRead() || expected.get(i).canWrite()) {
+          assertEquals(expected.get(i).canRead(), actual.get(i).canRead());
+          assertEquals(expected.get(i).canWrite(), actual.get(i).canWrite());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Provenance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class SearchCacheInterceptorTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final AtomicInteger mySearches = new AtomicInteger();
+  private final AtomicBoolean myWriteDuringSearch = new AtomicBoolean();
+  private SimpleMeterRegistry myMeterRegistry;
+  private SearchCacheInterceptor myInterceptor;
+  private Server myServer;
+  private String myBase;
+
+  @Before
+  public void before() throws Exception {
+    myMeterRegistry = new SimpleMeterRegistry();
+    myInterceptor = new SearchCacheInterceptor(ourCtx, 1024 * 1024, 60, t -> t.getHeader("Authorization"), myMeterRegistry);
+
+    RestfulServer cached = new RestfulServer(ourCtx);
+    cached.registerProvider(new PatientProvider());
+    cached.registerInterceptor(myInterceptor);
+    RestfulServer plain = new RestfulServer(ourCtx);
+    plain.registerProvider(new PatientProvider());
+
+    myServer = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(cached), "/cached/*");
+    context.addServlet(new ServletHolder(plain), "/plain/*");
+    myServer.setHandler(context);
+    myServer.start();
+    myBase = "http://localhost:" + ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+  }
+
+  @After
+  public void after() throws Exception {
+    myServer.stop();
+  }
+
+  @Test
+  public void testServesRepeatedSearchesFromCache() throws Exception {
+    String first = get("/cached/Patient?name=smith&_count=5", "Bearer a", false);
+    assertEquals(first, get("/cached/Patient?name=smith&_count=5", "Bearer a", false));
+    assertEquals(first, get("/cached/Patient?_count=5&name=smith", "Bearer a", false));
+    assertEquals(1, mySearches.get());
+    assertEquals(2, gets("hit"), 0);
+    assertEquals(1, gets("miss"), 0);
+
+    Bundle expected = parse(get("/plain/Patient?name=smith&_count=5", "Bearer a", false));
+    Bundle actual = parse(first);
+    assertEquals(ids(expected), ids(actual));
+    assertEquals(expected.getTotal(), actual.getTotal());
+    assertEquals(expected.getLink("self").getUrl().replace("/plain/", "/cached/"), actual.getLink("self").getUrl());
+
+    String gzipped = get("/cached/Patient?name=smith&_count=5", "Bearer a", true);
+    assertEquals(gzipped, get("/cached/Patient?name=smith&_count=5", "Bearer a", true));
+    assertEquals(ids(actual), ids(parse(gzipped)));
+    // Once for each variant, and once by the plain server
+    assertEquals(3, mySearches.get());
+  }
+
+  @Test
+  public void testInvalidatesOnWritesToDependentTypes() throws Exception {
+    get("/cached/Patient?name=smith", "Bearer a", false);
+    get("/cached/Patient?_revinclude=Provenance:target", "Bearer a", false);
+    assertEquals(2, myInterceptor.size());
+
+    myInterceptor.resourceCreated(new Observation());
+    assertEquals(2, myInterceptor.size());
+    myInterceptor.resourceCreated(new Provenance());
+    assertEquals(1, myInterceptor.size());
+    myInterceptor.resourceDeleted(new Patient());
+    assertEquals(0, myInterceptor.size());
+
+    get("/cached/Patient?name=smith", "Bearer a", false);
+    assertEquals(3, mySearches.get());
+  }
+
+  @Test
+  public void testDoesNotCacheSearchesRacingWrites() throws Exception {
+    myWriteDuringSearch.set(true);
+    get("/cached/Patient?name=smith", "Bearer a", false);
+    assertEquals(0, myInterceptor.size());
+
+    myWriteDuringSearch.set(false);
+    get("/cached/Patient?name=smith", "Bearer a", false);
+    assertEquals(1, myInterceptor.size());
+  }
+
+  @Test
+  public void testSeparatesAuthorizationContexts() throws Exception {
+    get("/cached/Patient?name=smith", "Bearer a", false);
+    get("/cached/Patient?name=smith", "Bearer b", false);
+    get("/cached/Patient?name=smith", null, false);
+    get("/cached/Patient?name=smith", null, false);
+    assertEquals(4, mySearches.get());
+    assertEquals(2, myInterceptor.size());
+    assertEquals(0, gets("hit"), 0);
+  }
+
+  @Test
+  public void testLeavesOtherRequestsToServer() throws Exception {
+    get("/cached/Patient?name=smith&_format=html", "Bearer a", false);
+    get("/cached/Patient?name=smith&_format=html", "Bearer a", false);
+    assertEquals(2, mySearches.get());
+    assertEquals(0, myInterceptor.size());
+    assertEquals(0, gets("miss"), 0);
+  }
+
+  private double gets(String theResult) {
+    return myMeterRegistry.get("cache.gets").tag("cache", SearchCacheInterceptor.CACHE_NAME).tag("result", theResult).counter().count();
+  }
+
+  private String get(String thePath, String theAuthorization, boolean theGzip) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(myBase + thePath).openConnection();
+    connection.setRequestProperty("Accept", "application/fhir+json");
+    if (theAuthorization != null) {
+      connection.setRequestProperty("Authorization", theAuthorization);
+    }
+    if (theGzip) {
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    assertEquals(thePath, 200, connection.getResponseCode());
+    InputStream in = connection.getInputStream();
+    assertEquals(theGzip ? "gzip" : null, connection.getHeaderField("Content-Encoding"));
+    if (theGzip) {
+      in = new GZIPInputStream(in);
+    }
+    return IOUtils.toString(in, StandardCharsets.UTF_8);
+  }
+
+  private static Bundle parse(String theBody) {
+    return ourCtx.newJsonParser().parseResource(Bundle.class, theBody);
+  }
+
+  private static List<String> ids(Bundle theBundle) {
+    List<String> retVal = new ArrayList<>();
+    for (Bundle.BundleEntryComponent next : theBundle.getEntry()) {
+      retVal.add(next.getResource().getIdElement().toUnqualifiedVersionless().getValue());
+    }
+    assertNotEquals(0, retVal.size());
+    return retVal;
+  }
+
+  private class PatientProvider implements IResourceProvider {
+
+    @Override
+    public Class<? extends IBaseResource> getResourceType() {
+      return Patient.class;
+    }
+
+    @Search
+    public List<Patient> search(
+      @OptionalParam(name = Patient.SP_NAME) StringParam theName,
+      @IncludeParam(reverse = true) Set<Include> theRevIncludes) {
+      mySearches.incrementAndGet();
+      if (myWriteDuringSearch.get()) {
+        myInterceptor.resourceUpdated(null, new Patient());
+      }
+      List<Patient> retVal = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        Patient patient = new Patient();
+        patient.setId(new IdType("Patient", Integer.toString(i)));
+        patient.addName().setFamily("Smith");
+        retVal.add(patient);
+      }
+      return retVal;
+    }
+  }
+}
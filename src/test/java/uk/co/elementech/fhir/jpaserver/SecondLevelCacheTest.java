@@ -0,0 +1,136 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+
+import javax.cache.Cache;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SecondLevelCacheTest {
+
+  private static final String REGION = CachedPractitioner.class.getName();
+
+  private SecondLevelCache mySecondLevelCache;
+  private LocalContainerEntityManagerFactoryBean myEntityManagerFactoryBean;
+
+  @After
+  public void after() {
+    if (myEntityManagerFactoryBean != null) {
+      myEntityManagerFactoryBean.destroy();
+    }
+    if (mySecondLevelCache != null) {
+      mySecondLevelCache.close();
+    }
+    HapiProperties.forceReload();
+  }
+
+  @Test
+  public void testDisabled() {
+    HapiProperties.setProperty(HapiProperties.SECOND_LEVEL_CACHE_ENABLED, "false");
+    mySecondLevelCache = SecondLevelCache.create(new SimpleMeterRegistry());
+
+    Properties properties = new Properties();
+    assertSame(properties, mySecondLevelCache.apply(properties));
+    assertFalse(mySecondLevelCache.isEnabled());
+    assertTrue(properties.isEmpty());
+  }
+
+  @Test
+  public void testRegionSettings() {
+    HapiProperties.setProperty(HapiProperties.SECOND_LEVEL_CACHE_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.SECOND_LEVEL_CACHE_REGIONS, "ResourceTable, ForcedId");
+    HapiProperties.setProperty("jpa.cache.default.max_entries", "100");
+    HapiProperties.setProperty("jpa.cache.ResourceTable.max_entries", "500");
+    HapiProperties.setProperty("jpa.cache.ForcedId.ttl_seconds", "0");
+    mySecondLevelCache = SecondLevelCache.create(new SimpleMeterRegistry());
+
+    assertEquals(500, HapiProperties.getSecondLevelCacheMaxEntries("ResourceTable").intValue());
+    assertEquals(100, HapiProperties.getSecondLevelCacheMaxEntries("ForcedId").intValue());
+    assertEquals(300, HapiProperties.getSecondLevelCacheTtlSeconds("ResourceTable").intValue());
+    assertEquals(0, HapiProperties.getSecondLevelCacheTtlSeconds("ForcedId").intValue());
+
+    Cache<Object, Object> cache = mySecondLevelCache.getCacheManager().getCache("ResourceTable");
+    assertNotNull(cache);
+    assertFalse(cache.getConfiguration(CompleteConfiguration.class).isStoreByValue());
+
+    Properties properties = mySecondLevelCache.apply(new Properties());
+    assertEquals("read-write,ResourceTable", properties.get("hibernate.ejb.classcache." + SecondLevelCache.ENTITY_PACKAGE + "ResourceTable"));
+    assertEquals("read-write,ForcedId", properties.get("hibernate.ejb.classcache." + SecondLevelCache.ENTITY_PACKAGE + "ForcedId"));
+    assertSame(mySecondLevelCache.getCacheManager(), properties.get("hibernate.javax.cache.cache_manager"));
+  }
+
+  /**
+   * Loads an entity that is not annotated as cacheable through Hibernate twice,
+   * in separate entity managers, and expects the second load to come from the cache
+   */
+  @Test
+  public void testHibernateUsesRegion() {
+    HapiProperties.setProperty(HapiProperties.SECOND_LEVEL_CACHE_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.SECOND_LEVEL_CACHE_REGIONS, REGION);
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    mySecondLevelCache = SecondLevelCache.create(meterRegistry);
+
+    BasicDataSource dataSource = new BasicDataSource();
+    dataSource.setDriverClassName("org.h2.Driver");
+    dataSource.setUrl("jdbc:h2:mem:secondLevelCache;DB_CLOSE_DELAY=-1");
+    Properties jpaProperties = new Properties();
+    jpaProperties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+    jpaProperties.put("hibernate.hbm2ddl.auto", "create-drop");
+
+    myEntityManagerFactoryBean = new LocalContainerEntityManagerFactoryBean();
+    myEntityManagerFactoryBean.setDataSource(dataSource);
+    myEntityManagerFactoryBean.setPersistenceProviderClass(HibernatePersistenceProvider.class);
+    myEntityManagerFactoryBean.setPackagesToScan(SecondLevelCacheTest.class.getPackage().getName());
+    myEntityManagerFactoryBean.setJpaProperties(mySecondLevelCache.apply(jpaProperties));
+    myEntityManagerFactoryBean.afterPropertiesSet();
+    EntityManagerFactory entityManagerFactory = myEntityManagerFactoryBean.getObject();
+
+    EntityManager entityManager = entityManagerFactory.createEntityManager();
+    entityManager.getTransaction().begin();
+    entityManager.persist(new CachedPractitioner(1L, "Dr Jones"));
+    entityManager.getTransaction().commit();
+    entityManager.close();
+
+    for (int i = 0; i < 2; i++) {
+      entityManager = entityManagerFactory.createEntityManager();
+      assertEquals("Dr Jones", entityManager.find(CachedPractitioner.class, 1L).getName());
+      entityManager.close();
+    }
+
+    assertEquals(2.0, meterRegistry.get("cache.gets").tag("cache", REGION).tag("result", "hit").functionCounter().count(), 0.0);
+  }
+
+  @Entity
+  public static class CachedPractitioner {
+    @Id
+    private Long myId;
+    private String myName;
+
+    public CachedPractitioner() {
+    }
+
+    CachedPractitioner(Long theId, String theName) {
+      myId = theId;
+      myName = theName;
+    }
+
+    public String getName() {
+      return myName;
+    }
+  }
+}
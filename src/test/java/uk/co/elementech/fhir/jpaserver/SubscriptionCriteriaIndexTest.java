@@ -0,0 +1,105 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionCriteriaIndexTest {
+
+  private static final FhirContext ourCtx = FhirContext.forR4();
+
+  private final SubscriptionCriteriaIndex myIndex = new SubscriptionCriteriaIndex(ourCtx);
+
+  @Test
+  public void testIndexesByTypeAndToken() {
+    myIndex.put("glucose", "Observation?code=http://loinc.org|15074-8");
+    myIndex.put("any-code", "Observation?code=15074-8,2339-0");
+    myIndex.put("system", "Observation?code=http://LOINC.org|");
+    myIndex.put("no-system", "Observation?code=|15074-8");
+    myIndex.put("heart-rate", "Observation?code=http://loinc.org|8867-4");
+    myIndex.put("status", "Observation?status=final");
+    myIndex.put("patients", "Patient?active=true");
+    myIndex.put("observations", "Observation");
+
+    assertEquals(set("glucose", "any-code", "system", "observations"), myIndex.candidates(observation("http://loinc.org", "15074-8", "Patient/1")));
+    assertEquals(set("no-system", "any-code", "observations"), myIndex.candidates(observation(null, "15074-8", "Patient/1")));
+  }
+
+  @Test
+  public void testIndexesByReference() {
+    myIndex.put("relative", "Observation?subject=Patient/1");
+    myIndex.put("absolute", "Observation?subject=http://example.com/fhir/Patient/1/_history/2");
+    myIndex.put("id", "Observation?patient=1");
+    myIndex.put("other", "Observation?subject=Patient/2");
+    myIndex.put("by-id", "Observation?_id=OBS");
+
+    Observation observation = observation("http://loinc.org", "15074-8", "Patient/1");
+    observation.setId("obs");
+    assertEquals(set("relative", "absolute", "id", "by-id"), myIndex.candidates(observation));
+  }
+
+  @Test
+  public void testKeepsCriteriaThatCanNotBeIndexed() {
+    myIndex.put("modifier", "Observation?code:not=15074-8");
+    myIndex.put("chained", "Observation?subject.name=smith");
+    myIndex.put("date", "Observation?date=gt2020-01-01");
+    myIndex.put("escaped", "Observation?code=a\\,b");
+    myIndex.put("unknown-type", "Unknown?code=1");
+    myIndex.put("no-criteria", "");
+    myIndex.put("second", "Observation?date=gt2020-01-01&code=1234");
+
+    assertEquals(set("modifier", "chained", "date", "escaped", "unknown-type", "no-criteria"),
+      myIndex.candidates(observation("http://loinc.org", "15074-8", "Patient/1")));
+    assertEquals(set("unknown-type", "no-criteria"), myIndex.candidates(new Patient()));
+  }
+
+  @Test
+  public void testTracksChanges() {
+    assertTrue(myIndex.put("1", "Observation?code=1234"));
+    assertFalse(myIndex.put("1", "Observation?code=1234"));
+    assertEquals(set(), myIndex.candidates(observation(null, "15074-8", null)));
+
+    assertTrue(myIndex.put("1", "Observation?code=15074-8"));
+    myIndex.put("2", "Observation");
+    assertEquals(set("1", "2"), myIndex.candidates(observation(null, "15074-8", null)));
+    assertEquals(2, myIndex.size());
+  }
+
+  @Test
+  public void testRemovesSubscriptions() {
+    myIndex.put("1", "Observation?code=15074-8");
+    myIndex.put("2", "Observation");
+    assertTrue(myIndex.remove("1"));
+    assertFalse(myIndex.remove("1"));
+    assertEquals(set("2"), myIndex.candidates(observation(null, "15074-8", null)));
+    assertEquals(1, myIndex.size());
+
+    assertTrue(myIndex.put("1", "Observation?code=15074-8"));
+    assertEquals(set("1", "2"), myIndex.candidates(observation(null, "15074-8", null)));
+  }
+
+  private static Observation observation(String theSystem, String theCode, String theSubject) {
+    Observation retVal = new Observation();
+    retVal.setCode(new CodeableConcept().addCoding(new Coding(theSystem, theCode, null)));
+    if (theSubject != null) {
+      retVal.setSubject(new Reference(theSubject));
+    }
+    return retVal;
+  }
+
+  private static Set<String> set(String... theValues) {
+    return new HashSet<>(Arrays.asList(theValues));
+  }
+}
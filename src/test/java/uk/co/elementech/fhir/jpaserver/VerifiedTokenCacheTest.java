@@ -0,0 +1,87 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class VerifiedTokenCacheTest {
+
+  private static KeyPair ourKeyPair;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    ourKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  public void testCachedUntilExpiry() throws Exception {
+    VerifiedTokenCache cache = new VerifiedTokenCache(100);
+    SignedJWT token = sign(new Date(System.currentTimeMillis() + 60000), "user/*.read");
+    String compact = token.serialize();
+
+    cache.put(compact, token, token.getJWTClaimsSet());
+
+    VerifiedTokenCache.VerifiedToken verified = cache.get(compact);
+    assertNotNull(verified);
+    assertSame(token, verified.getToken());
+    assertNull(cache.get(sign(new Date(System.currentTimeMillis() + 60000), "user/*.write").serialize()));
+  }
+
+  @Test
+  public void testExpiredTokenNotReturned() throws Exception {
+    VerifiedTokenCache cache = new VerifiedTokenCache(100);
+    SignedJWT token = sign(new Date(System.currentTimeMillis() - 1000), "user/*.read");
+    String compact = token.serialize();
+
+    cache.put(compact, token, token.getJWTClaimsSet());
+
+    assertNull(cache.get(compact));
+  }
+
+  @Test
+  public void testTokenWithoutExpiryNotCached() throws Exception {
+    VerifiedTokenCache cache = new VerifiedTokenCache(100);
+    SignedJWT token = sign(null, "user/*.read");
+    String compact = token.serialize();
+
+    cache.put(compact, token, token.getJWTClaimsSet());
+
+    assertNull(cache.get(compact));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testDigest() {
+    assertEquals(64, VerifiedTokenCache.digest("a.b.c").length());
+    assertEquals(VerifiedTokenCache.digest("a.b.c"), VerifiedTokenCache.digest("a.b.c"));
+    assertNotEquals(VerifiedTokenCache.digest("a.b.c"), VerifiedTokenCache.digest("a.b.d"));
+  }
+
+  private static SignedJWT sign(Date theExpiry, String theScope) throws Exception {
+    JWTClaimsSet claims = new JWTClaimsSet.Builder()
+      .issuer("http://localhost/issuer")
+      .issueTime(new Date())
+      .expirationTime(theExpiry)
+      .claim("scope", theScope)
+      .build();
+    SignedJWT retVal = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256), claims);
+    retVal.sign(new RSASSASigner(ourKeyPair.getPrivate()));
+    return retVal;
+  }
+}
@@ -0,0 +1,178 @@
+package uk.co.elementech.fhir.jpaserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WebsocketFanoutTest {
+
+  private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  public void testWritesOneMessageAtATime() {
+    WebsocketFanout fanout = new WebsocketFanout(10, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(false);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    outbox.send("a");
+    outbox.send("b");
+    outbox.send("c");
+    assertEquals(Collections.singletonList("a"), transport.myWritten);
+    assertEquals(2, gauge(WebsocketFanout.QUEUE_METER), 0);
+
+    transport.complete(null);
+    transport.complete(null);
+    transport.complete(null);
+    assertEquals(Arrays.asList("a", "b", "c"), transport.myWritten);
+    assertEquals(0, gauge(WebsocketFanout.QUEUE_METER), 0);
+    assertEquals(3, count("sent"), 0);
+    assertEquals(1, gauge(WebsocketFanout.SESSIONS_METER), 0);
+
+    outbox.close();
+    assertEquals(0, gauge(WebsocketFanout.SESSIONS_METER), 0);
+  }
+
+  @Test
+  public void testWritesCompletedInlineInOrder() {
+    WebsocketFanout fanout = new WebsocketFanout(10, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(true);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    for (int i = 0; i < 5; i++) {
+      outbox.send("m" + i);
+    }
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), transport.myWritten);
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void testDropsOldest() {
+    WebsocketFanout fanout = new WebsocketFanout(2, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(false);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    for (String next : Arrays.asList("a", "b", "c", "d")) {
+      outbox.send(next);
+    }
+    drain(transport);
+    assertEquals(Arrays.asList("a", "c", "d"), transport.myWritten);
+    assertEquals(1, count("dropped"), 0);
+  }
+
+  @Test
+  public void testCoalesces() {
+    WebsocketFanout fanout = new WebsocketFanout(2, WebsocketFanout.SlowConsumerPolicy.COALESCE, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(false);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    for (String next : Arrays.asList("ping Subscription/1", "ping Subscription/1", "ping Subscription/2", "ping Subscription/1", "ping Subscription/3")) {
+      outbox.send(next);
+    }
+    drain(transport);
+    assertEquals(Arrays.asList("ping Subscription/1", "ping Subscription/2", "ping Subscription/3"), transport.myWritten);
+    assertEquals(1, count("coalesced"), 0);
+    assertEquals(1, count("dropped"), 0);
+  }
+
+  @Test
+  public void testDisconnectsSlowConsumer() {
+    WebsocketFanout fanout = new WebsocketFanout(2, WebsocketFanout.SlowConsumerPolicy.DISCONNECT, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(false);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    for (String next : Arrays.asList("a", "b", "c", "d", "e")) {
+      outbox.send(next);
+    }
+    assertEquals("Too slow to receive messages", transport.myDisconnectReason);
+    assertEquals(1, myMeterRegistry.get(WebsocketFanout.DISCONNECTS_METER).counter().count(), 0);
+    assertEquals(0, gauge(WebsocketFanout.QUEUE_METER), 0);
+    assertEquals(0, gauge(WebsocketFanout.SESSIONS_METER), 0);
+
+    transport.complete(null);
+    assertEquals(Collections.singletonList("a"), transport.myWritten);
+  }
+
+  @Test
+  public void testDisconnectsOnWriteFailure() {
+    WebsocketFanout fanout = new WebsocketFanout(10, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    FakeTransport transport = new FakeTransport(false);
+    WebsocketFanout.Outbox outbox = fanout.open(transport);
+    outbox.send("a");
+    outbox.send("b");
+    transport.complete(new IOException("broken pipe"));
+    outbox.send("c");
+    assertEquals(Collections.singletonList("a"), transport.myWritten);
+    assertEquals("Write failed", transport.myDisconnectReason);
+    assertEquals(1, count("failed"), 0);
+  }
+
+  @Test
+  public void testSessionsAreIndependent() {
+    WebsocketFanout fanout = new WebsocketFanout(1, WebsocketFanout.SlowConsumerPolicy.DROP_OLDEST, myMeterRegistry);
+    FakeTransport slow = new FakeTransport(false);
+    FakeTransport fast = new FakeTransport(true);
+    WebsocketFanout.Outbox slowOutbox = fanout.open(slow);
+    WebsocketFanout.Outbox fastOutbox = fanout.open(fast);
+    for (int i = 0; i < 100; i++) {
+      slowOutbox.send("m" + i);
+      fastOutbox.send("m" + i);
+    }
+    assertEquals(100, fast.myWritten.size());
+    assertEquals(1, slow.myWritten.size());
+    assertNull(slow.myDisconnectReason);
+    assertEquals(1, gauge(WebsocketFanout.QUEUE_METER), 0);
+  }
+
+  private static void drain(FakeTransport theTransport) {
+    while (theTransport.myPending != null) {
+      theTransport.complete(null);
+    }
+  }
+
+  private double gauge(String theName) {
+    return myMeterRegistry.get(theName).gauge().value();
+  }
+
+  private double count(String theResult) {
+    return myMeterRegistry.get(WebsocketFanout.MESSAGES_METER).tag("result", theResult).counter().count();
+  }
+
+  private static class FakeTransport implements WebsocketFanout.Transport {
+
+    private final boolean myCompleteInline;
+    private final List<String> myWritten = new ArrayList<>();
+    private Consumer<Throwable> myPending;
+    private String myDisconnectReason;
+
+    private FakeTransport(boolean theCompleteInline) {
+      myCompleteInline = theCompleteInline;
+    }
+
+    @Override
+    public void sendAsync(String theMessage, Consumer<Throwable> theCallback) {
+      myWritten.add(theMessage);
+      if (myCompleteInline) {
+        theCallback.accept(null);
+      } else {
+        myPending = theCallback;
+      }
+    }
+
+    @Override
+    public void disconnect(String theReason) {
+      myDisconnectReason = theReason;
+    }
+
+    private void complete(Throwable theFailure) {
+      Consumer<Throwable> callback = myPending;
+      myPending = null;
+      if (callback != null) {
+        callback.accept(theFailure);
+      }
+    }
+  }
+}